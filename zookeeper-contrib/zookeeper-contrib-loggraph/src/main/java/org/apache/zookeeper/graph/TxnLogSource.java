@@ -34,6 +34,8 @@
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLogBlockInputStream;
+import org.apache.zookeeper.server.persistence.TxnLogCodec;
 import org.apache.zookeeper.server.util.SerializeUtils;
 import org.apache.zookeeper.txn.TxnHeader;
 
@@ -66,6 +68,7 @@ public class TxnLogSource implements LogSource {
     private long starttime = 0;
     private long endtime = 0;
     private long size = 0;
+    private TxnLogCodec codec = TxnLogCodec.NONE;
 
     public boolean overlapsRange(long starttime, long endtime) {
 	return (starttime <= this.endtime && endtime >= this.starttime);
@@ -76,6 +79,18 @@ public boolean overlapsRange(long starttime, long endtime) {
     public long getEndTime() { return endtime; }
     public LogSkipList getSkipList() { return skiplist; }
 
+    /**
+     * Read the log from the given offset, which must be the start of a
+     * block when the log is compressed.
+     */
+    private BinaryInputArchive openLog(RandomAccessFileReader reader, long offset) throws IOException {
+	reader.seek(offset);
+	if (codec == TxnLogCodec.NONE) {
+	    return new BinaryInputArchive(reader);
+	}
+	return BinaryInputArchive.getArchive(new TxnLogBlockInputStream(reader, codec, offset));
+    }
+
     public static boolean isTransactionFile(String file) throws IOException {
         RandomAccessFileReader reader = new RandomAccessFileReader(new File(file));
         BinaryInputArchive logStream = new BinaryInputArchive(reader);
@@ -109,13 +124,15 @@ public TxnLogSourceIterator(TxnLogSource src, long starttime, long endtime, Filt
 		logStream = new BinaryInputArchive(reader);
 		FileHeader fhdr = new FileHeader();
 		fhdr.deserialize(logStream, "fileheader");
+		TxnLogCodec.read(fhdr, logStream);
+		logStream = src.openLog(reader, reader.getPosition());
 	    } catch (Exception e) {
 		throw new IllegalArgumentException("Cannot open transaction log ("+src.file+") :" + e);
 	    }
 	    
 	    LogSkipList.Mark start = src.getSkipList().findMarkBefore(starttime);
 	    try {
-		reader.seek(start.getBytes());
+		logStream = src.openLog(reader, start.getBytes());
 		skippedAtStart = start.getEntriesSkipped();
 	    } catch (IOException ioe) {
 		// if we can't skip, we should just read from the start
@@ -124,7 +141,7 @@ public TxnLogSourceIterator(TxnLogSource src, long starttime, long endtime, Filt
 	    this.filter = filter;
 
 	    LogEntry e;
-	    while ((e = readNextEntry()) != null && e.getTimestamp() < endtime) {
+	    while ((e = readNextEntry(logStream)) != null && e.getTimestamp() < endtime) {
 		if (e.getTimestamp() >= starttime && (filter == null || filter.matches(e))  ) {
 		    next = e;
 		    return;
@@ -140,26 +157,31 @@ public long size() throws IOException {
 		return src.size() - skippedAtStart;
 	    }
 	    
-	    long pos = reader.getPosition();
 	    LogEntry e;
 
 	    LogSkipList.Mark lastseg = src.getSkipList().findMarkBefore(this.endtime);
-	    reader.seek(lastseg.getBytes());
-	    // number of entries skipped to get to the end of the iterator, less the number skipped to get to the start
-	    long count = lastseg.getEntriesSkipped() - skippedAtStart; 
+	    // count with another reader, the blocks of a compressed log can't
+	    // be read from the current position of this one
+	    RandomAccessFileReader counter = new RandomAccessFileReader(new File(src.file));
+	    try {
+		BinaryInputArchive counted = src.openLog(counter, lastseg.getBytes());
+		// number of entries skipped to get to the end of the iterator, less the number skipped to get to the start
+		long count = lastseg.getEntriesSkipped() - skippedAtStart;
 
-	    while ((e = readNextEntry()) != null) {
-		if (e.getTimestamp() > this.endtime) {
-		    break;
+		while ((e = readNextEntry(counted)) != null) {
+		    if (e.getTimestamp() > this.endtime) {
+			break;
+		    }
+		    count++;
 		}
-		count++;
-	    }
-	    reader.seek(pos);;
 
-	    return count;
+		return count;
+	    } finally {
+		counter.close();
+	    }
 	}
 	
-	private LogEntry readNextEntry() {
+	private LogEntry readNextEntry(BinaryInputArchive logStream) {
 	    LogEntry e = null;
 	    try {
 		long crcValue;
@@ -244,12 +266,12 @@ public boolean hasNext() {
 	
 	public LogEntry next() throws NoSuchElementException {
 	    LogEntry ret = next;
-	    LogEntry e = readNextEntry();
+	    LogEntry e = readNextEntry(logStream);
 
 	    if (filter != null) {
 		try {
 		    while (e != null && !filter.matches(e)) {
-			e = readNextEntry();
+			e = readNextEntry(logStream);
 		    }
 		} catch (FilterException fe) {
 		    throw new NoSuchElementException(fe.toString());
@@ -304,8 +326,16 @@ public TxnLogSource(String file) throws IOException {
 	    BinaryInputArchive logStream = new BinaryInputArchive(reader);
 	    FileHeader fhdr = new FileHeader();
 	    fhdr.deserialize(logStream, "fileheader");
+	    codec = TxnLogCodec.read(fhdr, logStream);
+	    TxnLogBlockInputStream blocks = null;
+	    if (codec != TxnLogCodec.NONE) {
+		blocks = new TxnLogBlockInputStream(reader, codec, reader.getPosition());
+		logStream = BinaryInputArchive.getArchive(blocks);
+	    }
 	    
 	    byte[] bytes = null;
+	    long nextMark = 0;
+	    long blockOffset = -1;
 	    while (true) {
 		long lastFp = reader.getPosition();
 
@@ -339,8 +369,17 @@ public TxnLogSource(String file) throws IOException {
 		}
 		endtime = hdr.getTime();
 
-		if (size % skipN == 0) {
+		boolean markable = true;
+		if (blocks != null) {
+		    // the iterators can only start reading a compressed log
+		    // at the beginning of a block
+		    markable = blocks.getBlockOffset() != blockOffset;
+		    blockOffset = blocks.getBlockOffset();
+		    lastFp = blockOffset;
+		}
+		if (markable && size >= nextMark) {
 		    skiplist.addMark(hdr.getTime(), lastFp, size);
+		    nextMark = size + skipN;
 		}
 		size++;
 	    }
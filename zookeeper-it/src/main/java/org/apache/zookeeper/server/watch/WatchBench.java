@@ -26,6 +26,7 @@
 
 import org.openjdk.jmh.annotations.*;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @Fork(3)
@@ -65,7 +66,7 @@ static long getMemoryUse() {
     @State(Scope.Benchmark)
     public static class IterationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerSharded"})
         public String watchManagerClass;
 
         @Param({"10000"})
@@ -128,7 +129,7 @@ public void testAddConcentrateWatch(IterationState state) throws Exception {
     @State(Scope.Benchmark)
     public static class InvocationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerSharded"})
         public String watchManagerClass;
 
         @Param({"1", "1000"})
@@ -297,4 +298,70 @@ public void testTriggerSparseWatch(TriggerSparseWatchState state) throws Excepti
             state.watchManager.triggerWatch(path, event);
         }
     }
+
+    @State(Scope.Benchmark)
+    public static class ConcurrentState {
+
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerSharded"})
+        public String watchManagerClass;
+
+        @Param({"10000"})
+        public int pathCount;
+
+        String[] paths;
+
+        IWatchManager watchManager;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            paths = new String[pathCount];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = pathPrefix + i;
+            }
+            watchManager = createWatchManager(watchManagerClass);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            watchManager.shutdown();
+        }
+
+        String randomPath() {
+            return paths[ThreadLocalRandom.current().nextInt(paths.length)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WatcherState {
+
+        Watcher watcher = new DumbWatcher();
+    }
+
+    /**
+     * Test watches added and triggered concurrently on random paths, half
+     * of the threads adding watches and the other half triggering them.
+     *
+     * The output of this test is the throughput of each group of threads.
+     */
+    @Benchmark
+    @Group("concurrentAddTrigger")
+    @GroupThreads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public boolean testConcurrentAdd(ConcurrentState state, WatcherState watcherState) {
+        return state.watchManager.addWatch(state.randomPath(), watcherState.watcher);
+    }
+
+    @Benchmark
+    @Group("concurrentAddTrigger")
+    @GroupThreads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public WatcherOrBitSet testConcurrentTrigger(ConcurrentState state) {
+        return state.watchManager.triggerWatch(state.randomPath(), event);
+    }
 }
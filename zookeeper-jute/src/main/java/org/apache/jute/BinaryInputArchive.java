@@ -34,7 +34,7 @@ public class BinaryInputArchive implements InputArchive {
     // CHECKSTYLE.OFF: ConstantName - for backward compatibility
     public static final int maxBuffer = Integer.getInteger("jute.maxbuffer", 0xfffff);
     // CHECKSTYLE.ON:
-    private static final int extraMaxBuffer;
+    static final int extraMaxBuffer;
 
     static {
         final Integer configuredExtraMaxBuffer =
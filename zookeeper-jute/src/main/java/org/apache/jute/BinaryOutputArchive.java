@@ -102,6 +102,29 @@ private ByteBuffer stringToByteBuffer(CharSequence s) {
         return bb;
     }
 
+    /**
+     * @return the number of bytes the string is serialized to, length included
+     */
+    public static int stringSize(CharSequence s) {
+        if (s == null) {
+            return 4;
+        }
+        int size = 4;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            size += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the buffer is serialized to, length included
+     */
+    public static int bufferSize(byte[] barr) {
+        return barr == null ? 4 : 4 + barr.length;
+    }
+
     public void writeString(String s, String tag) throws IOException {
         if (s == null) {
             writeInt(-1, "len");
@@ -122,6 +145,18 @@ public void writeBuffer(byte[] barr, String tag)
         out.write(barr);
     }
 
+    @Override
+    public boolean writeSerialized(ByteBuffer bytes, String tag) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            out.write(copy);
+        }
+        return true;
+    }
+
     public void writeRecord(Record r, String tag) throws IOException {
         r.serialize(this, tag);
     }
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An archive reading what a {@link BinaryOutputArchive} writes straight from
+ * a {@link ByteBuffer}, from its position, instead of going through a stream.
+ * Strings are decoded from the backing array of heap buffers without copying
+ * their bytes first. Buffers are still copied, since the records keep them.
+ */
+public class ByteBufferInputArchive implements InputArchive {
+
+    private final ByteBuffer bb;
+    private final int maxBufferSize;
+    private final int extraMaxBufferSize;
+
+    private static class ByteBufferIndex implements Index {
+        private int n;
+
+        ByteBufferIndex(int nelems) {
+            this.n = nelems;
+        }
+
+        public boolean done() {
+            return (n <= 0);
+        }
+
+        public void incr() {
+            n--;
+        }
+    }
+
+    /**
+     * Creates a new instance of ByteBufferInputArchive, reading the buffer
+     * from its position, which is advanced by the reads.
+     */
+    public ByteBufferInputArchive(ByteBuffer bb) {
+        this(bb, BinaryInputArchive.maxBuffer, BinaryInputArchive.extraMaxBuffer);
+    }
+
+    public ByteBufferInputArchive(ByteBuffer bb, int maxBufferSize, int extraMaxBufferSize) {
+        this.bb = bb;
+        this.maxBufferSize = maxBufferSize;
+        this.extraMaxBufferSize = extraMaxBufferSize;
+    }
+
+    /**
+     * @return the buffer read, positioned at the next byte to read
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    private void ensureRemaining(int n) throws EOFException {
+        if (bb.remaining() < n) {
+            throw new EOFException();
+        }
+    }
+
+    public byte readByte(String tag) throws IOException {
+        ensureRemaining(1);
+        return bb.get();
+    }
+
+    public boolean readBool(String tag) throws IOException {
+        ensureRemaining(1);
+        return bb.get() != 0;
+    }
+
+    public int readInt(String tag) throws IOException {
+        ensureRemaining(4);
+        return bb.getInt();
+    }
+
+    public long readLong(String tag) throws IOException {
+        ensureRemaining(8);
+        return bb.getLong();
+    }
+
+    public float readFloat(String tag) throws IOException {
+        ensureRemaining(4);
+        return bb.getFloat();
+    }
+
+    public double readDouble(String tag) throws IOException {
+        ensureRemaining(8);
+        return bb.getDouble();
+    }
+
+    public String readString(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) {
+            return null;
+        }
+        checkLength(len);
+        ensureRemaining(len);
+        String s;
+        if (bb.hasArray()) {
+            s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, StandardCharsets.UTF_8);
+            bb.position(bb.position() + len);
+        } else {
+            byte[] b = new byte[len];
+            bb.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    public byte[] readBuffer(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) {
+            return null;
+        }
+        checkLength(len);
+        ensureRemaining(len);
+        byte[] arr = new byte[len];
+        bb.get(arr);
+        return arr;
+    }
+
+    public void readRecord(Record r, String tag) throws IOException {
+        r.deserialize(this, tag);
+    }
+
+    public void startRecord(String tag) throws IOException {
+    }
+
+    public void endRecord(String tag) throws IOException {
+    }
+
+    public Index startVector(String tag) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) {
+            return null;
+        }
+        return new ByteBufferIndex(len);
+    }
+
+    public void endVector(String tag) throws IOException {
+    }
+
+    public Index startMap(String tag) throws IOException {
+        return new ByteBufferIndex(readInt(tag));
+    }
+
+    public void endMap(String tag) throws IOException {
+    }
+
+    // same sanity check as BinaryInputArchive
+    private void checkLength(int len) throws IOException {
+        checkLength(len, maxBufferSize + extraMaxBufferSize);
+    }
+
+    private static void checkLength(int len, int maxLength) throws IOException {
+        if (len < 0 || len > maxLength) {
+            throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + len);
+        }
+    }
+
+    /**
+     * Skip a string or a buffer, its length is checked as when it's read.
+     * Used by the generated views to find where their fields start.
+     */
+    public static void skipBuffer(ByteBuffer bb) throws IOException {
+        if (bb.remaining() < 4) {
+            throw new EOFException();
+        }
+        int len = bb.getInt();
+        if (len == -1) {
+            return;
+        }
+        checkLength(len, BinaryInputArchive.maxBuffer + BinaryInputArchive.extraMaxBuffer);
+        if (bb.remaining() < len) {
+            throw new EOFException();
+        }
+        bb.position(bb.position() + len);
+    }
+}
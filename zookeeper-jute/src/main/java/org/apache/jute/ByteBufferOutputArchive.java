@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * An archive writing the same bytes as a {@link BinaryOutputArchive} straight
+ * into a heap {@link ByteBuffer}, which grows as needed, instead of going
+ * through a stream.
+ */
+public class ByteBufferOutputArchive implements OutputArchive {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // the reused buffers above this size are dropped so that idle threads
+    // don't hold on to the largest record they ever serialized
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<ByteBufferOutputArchive> THREAD_ARCHIVE =
+        ThreadLocal.withInitial(() -> new ByteBufferOutputArchive(ByteBuffer.allocate(INITIAL_CAPACITY)));
+
+    private ByteBuffer bb;
+
+    private boolean inUse;
+
+    /**
+     * Creates a new instance of ByteBufferOutputArchive writing from the
+     * position of the buffer. The buffer is replaced by a larger one if it
+     * gets full, see {@link #getBuffer()}.
+     */
+    public ByteBufferOutputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    /**
+     * Serialize the records back to back, skipping the null ones. If the
+     * sizes of the records are known, they are serialized straight into an
+     * array of that size, otherwise into a buffer reused by the thread, then
+     * copied out.
+     *
+     * @return the serialized records
+     */
+    public static byte[] serialize(Record... records) throws IOException {
+        int size = 0;
+        for (Record r : records) {
+            if (r != null) {
+                int recordSize = r.serializedSize();
+                if (recordSize < 0) {
+                    size = -1;
+                    break;
+                }
+                size += recordSize;
+            }
+        }
+        if (size >= 0) {
+            ByteBufferOutputArchive archive = new ByteBufferOutputArchive(ByteBuffer.allocate(size));
+            for (Record r : records) {
+                if (r != null) {
+                    r.serialize(archive, null);
+                }
+            }
+            ByteBuffer written = archive.bb;
+            return written.position() == written.capacity() ? written.array() : archive.toByteArray();
+        }
+
+        ByteBufferOutputArchive archive = THREAD_ARCHIVE.get();
+        if (archive.inUse) {
+            // a record serializing another one with this method
+            archive = new ByteBufferOutputArchive(ByteBuffer.allocate(INITIAL_CAPACITY));
+        }
+        archive.inUse = true;
+        try {
+            for (Record r : records) {
+                if (r != null) {
+                    r.serialize(archive, null);
+                }
+            }
+            return archive.toByteArray();
+        } finally {
+            archive.inUse = false;
+            if (archive.bb.capacity() > MAX_RETAINED_CAPACITY) {
+                archive.bb = ByteBuffer.allocate(INITIAL_CAPACITY);
+            } else {
+                archive.bb.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the buffer written to, positioned after the last byte written
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    /**
+     * @return a copy of the bytes written
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[bb.position()];
+        ByteBuffer src = bb.duplicate();
+        src.flip();
+        src.get(bytes);
+        return bytes;
+    }
+
+    private void ensureRemaining(int n) {
+        if (bb.remaining() < n) {
+            int capacity = Math.max(bb.capacity() << 1, bb.position() + n);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            bb.flip();
+            larger.put(bb);
+            bb = larger;
+        }
+    }
+
+    public void writeByte(byte b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put(b);
+    }
+
+    public void writeBool(boolean b, String tag) throws IOException {
+        ensureRemaining(1);
+        bb.put((byte) (b ? 1 : 0));
+    }
+
+    public void writeInt(int i, String tag) throws IOException {
+        ensureRemaining(4);
+        bb.putInt(i);
+    }
+
+    public void writeLong(long l, String tag) throws IOException {
+        ensureRemaining(8);
+        bb.putLong(l);
+    }
+
+    public void writeFloat(float f, String tag) throws IOException {
+        ensureRemaining(4);
+        bb.putFloat(f);
+    }
+
+    public void writeDouble(double d, String tag) throws IOException {
+        ensureRemaining(8);
+        bb.putDouble(d);
+    }
+
+    /**
+     * Encode the string the same way as {@link BinaryOutputArchive}, straight
+     * into the buffer.
+     */
+    public void writeString(String s, String tag) throws IOException {
+        if (s == null) {
+            writeInt(-1, "len");
+            return;
+        }
+        final int len = s.length();
+        if (bb.remaining() < 4 + 3 * len) {
+            ensureRemaining(BinaryOutputArchive.stringSize(s));
+        }
+        int lengthPosition = bb.position();
+        bb.putInt(0);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bb.put((byte) c);
+            } else if (c < 0x800) {
+                bb.put((byte) (0xc0 | (c >> 6)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                bb.put((byte) (0xe0 | (c >> 12)));
+                bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        bb.putInt(lengthPosition, bb.position() - lengthPosition - 4);
+    }
+
+    public void writeBuffer(byte[] barr, String tag) throws IOException {
+        if (barr == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        ensureRemaining(4 + barr.length);
+        bb.putInt(barr.length);
+        bb.put(barr);
+    }
+
+    @Override
+    public boolean writeSerialized(ByteBuffer bytes, String tag) throws IOException {
+        ensureRemaining(bytes.remaining());
+        bb.put(bytes.duplicate());
+        return true;
+    }
+
+    public void writeRecord(Record r, String tag) throws IOException {
+        r.serialize(this, tag);
+    }
+
+    public void startRecord(Record r, String tag) throws IOException {
+    }
+
+    public void endRecord(Record r, String tag) throws IOException {
+    }
+
+    public void startVector(List<?> v, String tag) throws IOException {
+        if (v == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        writeInt(v.size(), tag);
+    }
+
+    public void endVector(List<?> v, String tag) throws IOException {
+    }
+
+    public void startMap(TreeMap<?, ?> v, String tag) throws IOException {
+        writeInt(v.size(), tag);
+    }
+
+    public void endMap(TreeMap<?, ?> v, String tag) throws IOException {
+    }
+
+}
@@ -19,6 +19,7 @@
 package org.apache.jute;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -59,4 +60,17 @@ void writeBuffer(byte[] buf, String tag)
 
     void endMap(TreeMap<?, ?> v, String tag) throws IOException;
 
+    /**
+     * Write a record already serialized in the binary format as it is, for
+     * the records which still have the bytes they were read from.
+     *
+     * @param bytes the remaining bytes of the buffer are written, its
+     *              position is not changed
+     * @return false if the archive doesn't write the binary format, the
+     *         record has to be written field by field then
+     */
+    default boolean writeSerialized(ByteBuffer bytes, String tag) throws IOException {
+        return false;
+    }
+
 }
@@ -28,4 +28,12 @@
 public interface Record {
     void serialize(OutputArchive archive, String tag) throws IOException;
     void deserialize(InputArchive archive, String tag) throws IOException;
+
+    /**
+     * @return the number of bytes of the record once serialized by a
+     *         {@link BinaryOutputArchive}, or -1 if it isn't known
+     */
+    default int serializedSize() {
+        return -1;
+    }
 }
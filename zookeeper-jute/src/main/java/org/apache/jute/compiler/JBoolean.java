@@ -34,6 +34,14 @@ public String getSignature() {
         return "z";
     }
 
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += 1;\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    bb_.position(bb_.position() + 1);\n";
+    }
+
     public String genJavaCompareTo(String fname) {
         return "    ret = (" + fname + " == peer." + fname + ")? 0 : (" + fname + "?1:-1);\n";
     }
@@ -56,6 +56,14 @@ public String genJavaWriteWrapper(String fname, String tag) {
         return "        a_.writeBuffer(" + fname + ",\"" + tag + "\");\n";
     }
 
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += BinaryOutputArchive.bufferSize(" + fname + ");\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    ByteBufferInputArchive.skipBuffer(bb_);\n";
+    }
+
     public String genJavaCompareTo(String fname, String other) {
         StringBuilder sb = new StringBuilder();
         sb.append("    {\n");
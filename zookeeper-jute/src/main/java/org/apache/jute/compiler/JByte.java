@@ -33,4 +33,12 @@ public JByte() {
     public String getSignature() {
         return "b";
     }
+
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += 1;\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    bb_.position(bb_.position() + 1);\n";
+    }
 }
@@ -34,6 +34,14 @@ public String getSignature() {
         return "d";
     }
 
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += 8;\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    bb_.position(bb_.position() + 8);\n";
+    }
+
     public String genJavaHashCode(String fname) {
         return "    ret = java.lang.Double.hashCode(" + fname + ");\n";
     }
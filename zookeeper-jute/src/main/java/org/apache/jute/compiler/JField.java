@@ -118,6 +118,10 @@ public String genJavaWriteMethodName() {
         return mType.genJavaWriteMethod(getName(), getTag());
     }
 
+    public String genJavaSizeMethodName() {
+        return mType.genJavaSizeMethod(getName());
+    }
+
     public String genJavaReadMethodName() {
         return mType.genJavaReadMethod(getName(), getTag());
     }
@@ -21,7 +21,9 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Container for the Hadoop Record DDL.
@@ -64,13 +66,26 @@ String getName() {
      */
     public void genCode(String language, File outputDirectory)
             throws IOException {
+        genCode(language, outputDirectory, Collections.<String>emptySet());
+    }
+
+    /**
+     * Generate record code in given language. Language should be all
+     * lowercase. The Java generator also emits a lazily decoded
+     * {@code <Record>View} subclass for the records of the given modules.
+     *
+     * @param outputDirectory
+     * @param viewModules
+     */
+    public void genCode(String language, File outputDirectory, Set<String> viewModules)
+            throws IOException {
         if ("c++".equals(language)) {
             CppGenerator gen = new CppGenerator(mName, mInclFiles, mRecords,
                     outputDirectory);
             gen.genCode();
         } else if ("java".equals(language)) {
             JavaGenerator gen = new JavaGenerator(mName, mInclFiles, mRecords,
-                    outputDirectory);
+                    outputDirectory, viewModules);
             gen.genCode();
         } else if ("c".equals(language)) {
             CGenerator gen = new CGenerator(mName, mInclFiles, mRecords,
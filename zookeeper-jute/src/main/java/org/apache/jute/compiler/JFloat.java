@@ -34,6 +34,14 @@ public String getSignature() {
         return "f";
     }
 
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += 4;\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    bb_.position(bb_.position() + 4);\n";
+    }
+
     public String genJavaHashCode(String fname) {
         return "    ret = java.lang.Float.hashCode(" + fname + ");\n";
     }
@@ -33,4 +33,12 @@ public JInt() {
     public String getSignature() {
         return "i";
     }
+
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += 4;\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    bb_.position(bb_.position() + 4);\n";
+    }
 }
@@ -109,6 +109,36 @@ public String genJavaWriteMethod(String fname, String tag) {
         return genJavaWriteWrapper(fname, tag);
     }
 
+    String genJavaSizeMethod(String fname) {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      size_ += 4;\n");
+        ret.append("      java.util.Set " + getId("es") + " = " + fname + ".entrySet();\n");
+        ret.append("      for(java.util.Iterator " + getId("midx") + " = " + getId("es") + ".iterator(); " + getId("midx") + ".hasNext(); ) {\n");
+        ret.append("        java.util.Map.Entry " + getId("me") + " = (java.util.Map.Entry) " + getId("midx") + ".next();\n");
+        ret.append("        " + mKey.getJavaWrapperType() + " " + getId("k") + " = (" + mKey.getJavaWrapperType() + ") " + getId("me") + ".getKey();\n");
+        ret.append("        " + mValue.getJavaWrapperType() + " " + getId("v") + " = (" + mValue.getJavaWrapperType() + ") " + getId("me") + ".getValue();\n");
+        ret.append(mKey.genJavaSizeMethod(getId("k")));
+        ret.append(mValue.genJavaSizeMethod(getId("v")));
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
+
+    String genJavaSkipMethod() {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      int " + getId("len") + " = bb_.getInt();\n");
+        ret.append("      for(int " + getId("midx") + " = 0; " + getId("midx") + "<" + getId("len") + "; " + getId("midx") + "++) {\n");
+        ret.append(mKey.genJavaSkipMethod());
+        ret.append(mValue.genJavaSkipMethod());
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
+
     public String genCsharpWriteWrapper(String fname, int tag) {
         StringBuilder ret = new StringBuilder("    {\n");
         incrLevel();
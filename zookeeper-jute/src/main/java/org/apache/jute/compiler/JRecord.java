@@ -124,6 +124,20 @@ public String genJavaWriteWrapper(String fname, String tag) {
         return "    a_.writeRecord(" + fname + ",\"" + tag + "\");\n";
     }
 
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += " + fname + ".serializedSize();\n";
+    }
+
+    String genJavaSkipMethod() {
+        // inlined, so that the nested records don't need a view of their own
+        StringBuilder ret = new StringBuilder("    {\n");
+        for (JField jf : mFields) {
+            ret.append(jf.getType().genJavaSkipMethod());
+        }
+        ret.append("    }\n");
+        return ret.toString();
+    }
+
     String genCsharpReadMethod(String fname, String tag) {
         //return "    "+capitalize(fname)+"=a_.Read"+mMethodSuffix+"(" + capitalize(fname) + ",\""+tag+"\");\n";
         return genCsharpReadWrapper(capitalize(fname), tag, false);
@@ -401,6 +415,10 @@ public void genCppCode(FileWriter hh, FileWriter cc)
     }
 
     public void genJavaCode(File outputDirectory) throws IOException {
+        genJavaCode(outputDirectory, false);
+    }
+
+    private File genJavaPackageDir(File outputDirectory) throws IOException {
         String pkg = getJavaPackage();
         String pkgpath = pkg.replaceAll("\\.", "/");
         File pkgdir = new File(outputDirectory, pkgpath);
@@ -412,27 +430,41 @@ public void genJavaCode(File outputDirectory) throws IOException {
         } else if (!pkgdir.isDirectory()) {
             throw new IOException(pkgpath + " is not a directory.");
         }
+        return pkgdir;
+    }
+
+    private void genJavaHeader(FileWriter jj) throws IOException {
+        jj.write("// File generated by hadoop record compiler. Do not edit.\n");
+        jj.write("/**\n");
+        jj.write("* Licensed to the Apache Software Foundation (ASF) under one\n");
+        jj.write("* or more contributor license agreements.  See the NOTICE file\n");
+        jj.write("* distributed with this work for additional information\n");
+        jj.write("* regarding copyright ownership.  The ASF licenses this file\n");
+        jj.write("* to you under the Apache License, Version 2.0 (the\n");
+        jj.write("* \"License\"); you may not use this file except in compliance\n");
+        jj.write("* with the License.  You may obtain a copy of the License at\n");
+        jj.write("*\n");
+        jj.write("*     http://www.apache.org/licenses/LICENSE-2.0\n");
+        jj.write("*\n");
+        jj.write("* Unless required by applicable law or agreed to in writing, software\n");
+        jj.write("* distributed under the License is distributed on an \"AS IS\" BASIS,\n");
+        jj.write("* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.\n");
+        jj.write("* See the License for the specific language governing permissions and\n");
+        jj.write("* limitations under the License.\n");
+        jj.write("*/\n");
+        jj.write("\n");
+        jj.write("package " + getJavaPackage() + ";\n\n");
+    }
+
+    /**
+     * Generate the Java class of this record. When views is set the
+     * equals and compareTo methods decode a {@code <Record>View} peer before
+     * comparing its fields.
+     */
+    public void genJavaCode(File outputDirectory, boolean views) throws IOException {
+        File pkgdir = genJavaPackageDir(outputDirectory);
         try (FileWriter jj = new FileWriter(new File(pkgdir, getName() + ".java"))) {
-            jj.write("// File generated by hadoop record compiler. Do not edit.\n");
-            jj.write("/**\n");
-            jj.write("* Licensed to the Apache Software Foundation (ASF) under one\n");
-            jj.write("* or more contributor license agreements.  See the NOTICE file\n");
-            jj.write("* distributed with this work for additional information\n");
-            jj.write("* regarding copyright ownership.  The ASF licenses this file\n");
-            jj.write("* to you under the Apache License, Version 2.0 (the\n");
-            jj.write("* \"License\"); you may not use this file except in compliance\n");
-            jj.write("* with the License.  You may obtain a copy of the License at\n");
-            jj.write("*\n");
-            jj.write("*     http://www.apache.org/licenses/LICENSE-2.0\n");
-            jj.write("*\n");
-            jj.write("* Unless required by applicable law or agreed to in writing, software\n");
-            jj.write("* distributed under the License is distributed on an \"AS IS\" BASIS,\n");
-            jj.write("* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.\n");
-            jj.write("* See the License for the specific language governing permissions and\n");
-            jj.write("* limitations under the License.\n");
-            jj.write("*/\n");
-            jj.write("\n");
-            jj.write("package " + getJavaPackage() + ";\n\n");
+            genJavaHeader(jj);
             jj.write("import org.apache.jute.*;\n");
             jj.write("import org.apache.jute.Record; // JDK14 needs explicit import due to clash with java.lang.Record\n");
             jj.write("import org.apache.yetus.audience.InterfaceAudience;\n");
@@ -475,6 +507,15 @@ public void genJavaCode(File outputDirectory) throws IOException {
             jj.write("    a_.endRecord(this,tag);\n");
             jj.write("  }\n");
 
+            jj.write("  public int serializedSize() {\n");
+            jj.write("    int size_ = 0;\n");
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); ) {
+                JField jf = i.next();
+                jj.write(jf.genJavaSizeMethodName());
+            }
+            jj.write("    return size_;\n");
+            jj.write("  }\n");
+
             jj.write("  public void deserialize(InputArchive a_, String tag) throws java.io.IOException {\n");
             jj.write("    a_.startRecord(tag);\n");
             fIdx = 0;
@@ -530,6 +571,9 @@ public void genJavaCode(File outputDirectory) throws IOException {
                 jj.write("    if (!(peer_ instanceof " + getName() + ")) {\n");
                 jj.write("      throw new ClassCastException(\"Comparing different types of records.\");\n");
                 jj.write("    }\n");
+                if (views) {
+                    jj.write(genJavaDecodeViewPeer());
+                }
                 jj.write("    " + getName() + " peer = (" + getName() + ") peer_;\n");
                 jj.write("    int ret = 0;\n");
                 for (Iterator<JField> i = mFields.iterator(); i.hasNext(); fIdx++) {
@@ -548,6 +592,9 @@ public void genJavaCode(File outputDirectory) throws IOException {
             jj.write("    if (peer_ == this) {\n");
             jj.write("      return true;\n");
             jj.write("    }\n");
+            if (views) {
+                jj.write(genJavaDecodeViewPeer());
+            }
             jj.write("    " + getName() + " peer = (" + getName() + ") peer_;\n");
             jj.write("    boolean ret = false;\n");
             for (Iterator<JField> i = mFields.iterator(); i.hasNext(); fIdx++) {
@@ -576,6 +623,203 @@ public void genJavaCode(File outputDirectory) throws IOException {
         }
     }
 
+    private String genJavaDecodeViewPeer() {
+        return "    if (peer_ instanceof " + getName() + "View) {\n"
+                + "      ((" + getName() + "View) peer_).decodeAll_();\n"
+                + "    }\n";
+    }
+
+    /**
+     * Generate {@code <Record>View}, a subclass of the record that keeps the
+     * serialized bytes it was read from and decodes each field on first
+     * access. Wrapping a buffer walks the field lengths to find where each
+     * field starts, checking them like a read does, so the fields decoded
+     * later can't fail. Serializing an unmodified view copies the original
+     * bytes instead of encoding the fields again, until all the fields are
+     * decoded: the view then drops the buffer so the data isn't held twice.
+     */
+    public void genJavaViewCode(File outputDirectory) throws IOException {
+        if (mFields.size() > Long.SIZE) {
+            throw new IOException("Cannot generate a view of " + getName()
+                    + " with more than " + Long.SIZE + " fields");
+        }
+        String view = getName() + "View";
+        int fLen = mFields.size();
+        long all = (fLen == Long.SIZE) ? -1L : (1L << fLen) - 1;
+        File pkgdir = genJavaPackageDir(outputDirectory);
+        try (FileWriter jj = new FileWriter(new File(pkgdir, view + ".java"))) {
+            genJavaHeader(jj);
+            jj.write("import org.apache.jute.*;\n");
+            jj.write("import org.apache.jute.Record; // JDK14 needs explicit import due to clash with java.lang.Record\n");
+            jj.write("import org.apache.yetus.audience.InterfaceAudience;\n");
+            jj.write("/**\n");
+            jj.write(" * Lazily decoded " + getName() + ". Fields are decoded from the wrapped\n");
+            jj.write(" * buffer on first access and an unmodified view is serialized by copying\n");
+            jj.write(" * that buffer, which is dropped once all the fields are decoded. Records\n");
+            jj.write(" * and lists returned by the getters must not be modified in place; use\n");
+            jj.write(" * the setters instead.\n");
+            jj.write(" */\n");
+            jj.write("@InterfaceAudience.Private\n");
+            jj.write("public class " + view + " extends " + getName() + " implements RecordView {\n");
+            jj.write("  private static final long ALL_ = " + all + "L;\n");
+            jj.write("  private java.nio.ByteBuffer buf_;\n");
+            jj.write("  private int[] offsets_;\n");
+            jj.write("  private volatile long decoded_ = ALL_;\n");
+            jj.write("  private volatile boolean modified_ = true;\n");
+            jj.write("  public " + view + "() {\n");
+            jj.write("  }\n");
+            jj.write("  public " + view + "(java.nio.ByteBuffer bb) throws java.io.IOException {\n");
+            jj.write("    wrap(bb);\n");
+            jj.write("  }\n");
+
+            jj.write("  public void wrap(java.nio.ByteBuffer bb) throws java.io.IOException {\n");
+            jj.write("    buf_ = null;\n");
+            jj.write("    offsets_ = null;\n");
+            jj.write("    decoded_ = ALL_;\n");
+            jj.write("    modified_ = true;\n");
+            jj.write("    java.nio.ByteBuffer bb_ = bb.slice();\n");
+            jj.write("    int[] offsets = new int[" + fLen + "];\n");
+            jj.write("    try {\n");
+            int fIdx = 0;
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); fIdx++) {
+                JField jf = i.next();
+                jj.write("    offsets[" + fIdx + "] = bb_.position();\n");
+                jj.write(jf.getType().genJavaSkipMethod());
+            }
+            jj.write("    } catch (java.nio.BufferUnderflowException | IllegalArgumentException e) {\n");
+            jj.write("      throw new java.io.EOFException(\"Truncated " + getName() + "\");\n");
+            jj.write("    }\n");
+            jj.write("    bb_.flip();\n");
+            jj.write("    bb.position(bb.position() + bb_.limit());\n");
+            jj.write("    buf_ = bb_;\n");
+            jj.write("    offsets_ = offsets;\n");
+            jj.write("    decoded_ = 0;\n");
+            jj.write("    modified_ = false;\n");
+            jj.write("  }\n");
+
+            jj.write("  private synchronized void decode_(int i_) {\n");
+            jj.write("    if ((decoded_ & (1L << i_)) != 0) {\n");
+            jj.write("      return;\n");
+            jj.write("    }\n");
+            jj.write("    java.nio.ByteBuffer bb_ = buf_.duplicate();\n");
+            jj.write("    bb_.position(offsets_[i_]);\n");
+            jj.write("    ByteBufferInputArchive a_ = new ByteBufferInputArchive(bb_);\n");
+            jj.write("    try {\n");
+            jj.write("      switch (i_) {\n");
+            fIdx = 0;
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); fIdx++) {
+                JField jf = i.next();
+                JType type = jf.getType();
+                jj.write("      case " + fIdx + ": {\n");
+                jj.write("    " + type.getJavaType() + " v_"
+                        + ((type instanceof JCompType) ? " = null" : "") + ";\n");
+                jj.write(type.genJavaReadMethod("v_", jf.getTag()));
+                jj.write("    super.set" + capitalize(jf.getName()) + "(v_);\n");
+                jj.write("        break;\n");
+                jj.write("      }\n");
+            }
+            jj.write("      }\n");
+            jj.write("    } catch (java.io.IOException e) {\n");
+            jj.write("      throw new java.io.UncheckedIOException(e);\n");
+            jj.write("    }\n");
+            jj.write("    decoded_ |= 1L << i_;\n");
+            jj.write("    if (decoded_ == ALL_) {\n");
+            jj.write("      buf_ = null;\n");
+            jj.write("      offsets_ = null;\n");
+            jj.write("    }\n");
+            jj.write("  }\n");
+
+            jj.write("  void decodeAll_() {\n");
+            jj.write("    if (decoded_ == ALL_) {\n");
+            jj.write("      return;\n");
+            jj.write("    }\n");
+            jj.write("    for (int i_ = 0; i_ < " + fLen + "; i_++) {\n");
+            jj.write("      if ((decoded_ & (1L << i_)) == 0) {\n");
+            jj.write("        decode_(i_);\n");
+            jj.write("      }\n");
+            jj.write("    }\n");
+            jj.write("  }\n");
+
+            jj.write("  public void decode() throws java.io.IOException {\n");
+            jj.write("    try {\n");
+            jj.write("      decodeAll_();\n");
+            jj.write("    } catch (java.io.UncheckedIOException e) {\n");
+            jj.write("      throw e.getCause();\n");
+            jj.write("    }\n");
+            jj.write("  }\n");
+
+            fIdx = 0;
+            for (Iterator<JField> i = mFields.iterator(); i.hasNext(); fIdx++) {
+                JField jf = i.next();
+                String jtype = jf.getType().getJavaType();
+                String cname = capitalize(jf.getName());
+                jj.write("  public " + jtype + " get" + cname + "() {\n");
+                jj.write("    if ((decoded_ & " + (1L << fIdx) + "L) == 0) {\n");
+                jj.write("      decode_(" + fIdx + ");\n");
+                jj.write("    }\n");
+                jj.write("    return super.get" + cname + "();\n");
+                jj.write("  }\n");
+                jj.write("  public void set" + cname + "(" + jtype + " m_) {\n");
+                jj.write("    decodeAll_();\n");
+                jj.write("    modified_ = true;\n");
+                jj.write("    super.set" + cname + "(m_);\n");
+                jj.write("  }\n");
+            }
+
+            jj.write("  public void serialize(OutputArchive a_, String tag) throws java.io.IOException {\n");
+            jj.write("    java.nio.ByteBuffer buf = buf_;\n");
+            jj.write("    if (!modified_ && buf != null && a_.writeSerialized(buf.duplicate(), tag)) {\n");
+            jj.write("      return;\n");
+            jj.write("    }\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    super.serialize(a_, tag);\n");
+            jj.write("  }\n");
+
+            jj.write("  public int serializedSize() {\n");
+            jj.write("    java.nio.ByteBuffer buf = buf_;\n");
+            jj.write("    if (!modified_ && buf != null) {\n");
+            jj.write("      return buf.limit();\n");
+            jj.write("    }\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    return super.serializedSize();\n");
+            jj.write("  }\n");
+
+            jj.write("  public void deserialize(InputArchive a_, String tag) throws java.io.IOException {\n");
+            jj.write("    if (a_ instanceof ByteBufferInputArchive) {\n");
+            jj.write("      wrap(((ByteBufferInputArchive) a_).getBuffer());\n");
+            jj.write("      return;\n");
+            jj.write("    }\n");
+            jj.write("    buf_ = null;\n");
+            jj.write("    offsets_ = null;\n");
+            jj.write("    decoded_ = ALL_;\n");
+            jj.write("    modified_ = true;\n");
+            jj.write("    super.deserialize(a_, tag);\n");
+            jj.write("  }\n");
+
+            jj.write("  public String toString() {\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    return super.toString();\n");
+            jj.write("  }\n");
+
+            jj.write("  public int compareTo (Object peer_) throws ClassCastException {\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    return super.compareTo(peer_);\n");
+            jj.write("  }\n");
+
+            jj.write("  public boolean equals(Object peer_) {\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    return super.equals(peer_);\n");
+            jj.write("  }\n");
+
+            jj.write("  public int hashCode() {\n");
+            jj.write("    decodeAll_();\n");
+            jj.write("    return super.hashCode();\n");
+            jj.write("  }\n");
+
+            jj.write("}\n");
+        }
+    }
+
     public void genCsharpCode(File outputDirectory) throws IOException {
         if (!outputDirectory.exists()) {
             // create the pkg directory
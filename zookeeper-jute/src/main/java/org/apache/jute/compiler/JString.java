@@ -45,4 +45,12 @@ public String genJavaReadWrapper(String fname, String tag, boolean decl) {
     public String genJavaWriteWrapper(String fname, String tag) {
         return "        a_.writeString(" + fname + ",\"" + tag + "\");\n";
     }
+
+    String genJavaSizeMethod(String fname) {
+        return "    size_ += BinaryOutputArchive.stringSize(" + fname + ");\n";
+    }
+
+    String genJavaSkipMethod() {
+        return "    ByteBufferInputArchive.skipBuffer(bb_);\n";
+    }
 }
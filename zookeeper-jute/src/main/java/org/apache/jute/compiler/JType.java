@@ -129,6 +129,17 @@ String genJavaWriteMethod(String fname, String tag) {
         return "    a_.write" + mMethodSuffix + "(" + fname + ",\"" + tag + "\");\n";
     }
 
+    /**
+     * @return the statements adding the serialized size of the field to size_
+     */
+    abstract String genJavaSizeMethod(String fname);
+
+    /**
+     * @return the statements moving the position of the ByteBuffer bb_ past
+     *         a serialized value of the type
+     */
+    abstract String genJavaSkipMethod();
+
     String genJavaReadMethod(String fname, String tag) {
         return "    " + fname + "=a_.read" + mMethodSuffix + "(\"" + tag + "\");\n";
     }
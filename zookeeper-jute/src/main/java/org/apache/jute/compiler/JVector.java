@@ -107,6 +107,34 @@ public String genJavaWriteMethod(String fname, String tag) {
         return genJavaWriteWrapper(fname, tag);
     }
 
+    String genJavaSizeMethod(String fname) {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      size_ += 4;\n");
+        ret.append("      if (" + fname + "!= null) {\n");
+        ret.append("          int " + getId("len") + " = " + fname + ".size();\n");
+        ret.append("          for(int " + getId("vidx") + " = 0; " + getId("vidx") + "<" + getId("len") + "; " + getId("vidx") + "++) {\n");
+        ret.append("            " + mElement.getJavaWrapperType() + " " + getId("e") + " = (" + mElement.getJavaWrapperType() + ") " + fname + ".get(" + getId("vidx") + ");\n");
+        ret.append(mElement.genJavaSizeMethod(getId("e")));
+        ret.append("          }\n");
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
+
+    String genJavaSkipMethod() {
+        StringBuilder ret = new StringBuilder("    {\n");
+        incrLevel();
+        ret.append("      int " + getId("len") + " = bb_.getInt();\n");
+        ret.append("      for(int " + getId("vidx") + " = 0; " + getId("vidx") + "<" + getId("len") + "; " + getId("vidx") + "++) {\n");
+        ret.append(mElement.genJavaSkipMethod());
+        ret.append("      }\n");
+        ret.append("    }\n");
+        decrLevel();
+        return ret.toString();
+    }
+
     public JType getElementType() {
         return mElement;
     }
@@ -20,8 +20,10 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Java Code generator front-end for Hadoop record I/O.
@@ -29,6 +31,7 @@
 class JavaGenerator {
     private List<JRecord> mRecList;
     private final File outputDirectory;
+    private final Set<String> viewModules;
 
     /**
      * Creates a new instance of JavaGenerator.
@@ -40,8 +43,24 @@ class JavaGenerator {
      */
     JavaGenerator(String name, List<JFile> incl,
                   List<JRecord> records, File outputDirectory) {
+        this(name, incl, records, outputDirectory, Collections.emptySet());
+    }
+
+    /**
+     * Creates a new instance of JavaGenerator.
+     *
+     * @param name            possibly full pathname to the file
+     * @param incl            included files (as JFile)
+     * @param records         List of records defined within this file
+     * @param outputDirectory
+     * @param viewModules     the modules whose records also get a lazily
+     *                        decoded view
+     */
+    JavaGenerator(String name, List<JFile> incl,
+                  List<JRecord> records, File outputDirectory, Set<String> viewModules) {
         mRecList = records;
         this.outputDirectory = outputDirectory;
+        this.viewModules = viewModules;
     }
 
     /**
@@ -51,7 +70,11 @@ class JavaGenerator {
     void genCode() throws IOException {
         for (Iterator<JRecord> i = mRecList.iterator(); i.hasNext(); ) {
             JRecord rec = i.next();
-            rec.genJavaCode(outputDirectory);
+            boolean views = viewModules.contains(rec.getJavaPackage());
+            rec.genJavaCode(outputDirectory, views);
+            if (views) {
+                rec.genJavaViewCode(outputDirectory);
+            }
         }
     }
 }
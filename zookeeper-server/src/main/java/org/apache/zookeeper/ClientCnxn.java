@@ -20,7 +20,6 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ConnectException;
@@ -45,7 +44,7 @@
 import javax.security.auth.login.LoginException;
 import javax.security.sasl.SaslException;
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.AllChildrenNumberCallback;
@@ -304,8 +303,14 @@ static class Packet {
 
         public void createBB() {
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+                int size = 4;
+                if (requestHeader != null) {
+                    size += requestHeader.serializedSize();
+                }
+                if (request != null) {
+                    size += Math.max(request.serializedSize(), 0);
+                }
+                ByteBufferOutputArchive boa = new ByteBufferOutputArchive(ByteBuffer.allocate(size));
                 boa.writeInt(-1, "len"); // We'll fill this in later
                 if (requestHeader != null) {
                     requestHeader.serialize(boa, "header");
@@ -315,9 +320,9 @@ public void createBB() {
                 } else if (request != null) {
                     request.serialize(boa, "request");
                 }
-                baos.close();
-                this.bb = ByteBuffer.wrap(baos.toByteArray());
-                this.bb.putInt(this.bb.capacity() - 4);
+                this.bb = boa.getBuffer();
+                this.bb.flip();
+                this.bb.putInt(this.bb.remaining() - 4);
                 this.bb.rewind();
             } catch (IOException e) {
                 LOG.warn("Unexpected exception", e);
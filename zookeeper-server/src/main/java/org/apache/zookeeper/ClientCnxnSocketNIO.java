@@ -28,7 +28,10 @@
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -36,6 +39,7 @@
 import org.apache.zookeeper.ClientCnxn.Packet;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,9 +55,48 @@ public class ClientCnxnSocketNIO extends ClientCnxnSocket {
 
     private SocketAddress remoteSocketAddress;
 
+    /**
+     * Upper bound in bytes of a gathering write, 0 to write the packets
+     * one at a time.
+     */
+    private final int writeBatchBytes;
+
+    /**
+     * How long a batch smaller than writeBatchBytes waits for more packets.
+     */
+    private final long writeLingerMs;
+
+    /**
+     * Elapsed time at which the current batch stops waiting for more
+     * packets, 0 when no batch is waiting.
+     */
+    private long lingerDeadline;
+
+    /**
+     * Number of packets in the batch that is waiting for more packets.
+     */
+    private int lingerPackets;
+
+    private final List<Packet> batch = new ArrayList<>();
+
+    private ByteBuffer[] batchBuffers = new ByteBuffer[16];
+
     ClientCnxnSocketNIO(ZKClientConfig clientConfig) throws IOException {
         this.clientConfig = clientConfig;
         initProperties();
+        try {
+            writeBatchBytes = clientConfig.getInt(
+                ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES,
+                ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES_DEFAULT);
+            writeLingerMs = clientConfig.getLong(
+                ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_LINGER_MS,
+                ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_LINGER_MS_DEFAULT);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid write batching configuration", e);
+        }
+        if (writeBatchBytes > 0) {
+            LOG.info("Batching writes up to {} bytes with {} ms linger", writeBatchBytes, writeLingerMs);
+        }
     }
 
     @Override
@@ -103,6 +146,10 @@ void doIO(Queue<Packet> pendingQueue, ClientCnxn cnxn) throws InterruptedExcepti
             }
         }
         if (sockKey.isWritable()) {
+            if (isBatchingWrites()) {
+                doBatchedWrite(sock, pendingQueue, cnxn);
+                return;
+            }
             Packet p = findSendablePacket(outgoingQueue, sendThread.tunnelAuthInProgress());
 
             if (p != null) {
@@ -154,6 +201,98 @@ void doIO(Queue<Packet> pendingQueue, ClientCnxn cnxn) throws InterruptedExcepti
         }
     }
 
+    /**
+     * Batching only starts once the session is established and any SASL
+     * authentication has completed, the connection setup keeps writing one
+     * packet at a time.
+     */
+    private boolean isBatchingWrites() {
+        return writeBatchBytes > 0 && initialized && !sendThread.tunnelAuthInProgress();
+    }
+
+    private boolean isLingering() {
+        return lingerDeadline != 0 && now < lingerDeadline;
+    }
+
+    /**
+     * Whether a lingering batch has to be reconsidered, either because its
+     * linger time is over or because more packets were queued since.
+     */
+    private boolean isLingerOver() {
+        return !isLingering() || outgoingQueue.size() > lingerPackets;
+    }
+
+    /**
+     * Write the packets at the head of outgoingQueue with a single gathering
+     * write of at most writeBatchBytes, unless fewer bytes are queued and the
+     * batch may still wait for more packets.
+     */
+    private void doBatchedWrite(SocketChannel sock, Queue<Packet> pendingQueue, ClientCnxn cnxn) throws IOException {
+        int bytes = 0;
+        for (Packet p : outgoingQueue) {
+            // If we already started writing p, p.bb will already exist
+            if (p.bb == null) {
+                if ((p.requestHeader != null)
+                    && (p.requestHeader.getType() != OpCode.ping)
+                    && (p.requestHeader.getType() != OpCode.auth)) {
+                    p.requestHeader.setXid(cnxn.getXid());
+                }
+                p.createBB();
+            }
+            batch.add(p);
+            bytes += p.bb.remaining();
+            if (bytes >= writeBatchBytes) {
+                break;
+            }
+        }
+        if (batch.isEmpty()) {
+            lingerDeadline = 0;
+            disableWrite();
+            return;
+        }
+        if (bytes < writeBatchBytes && writeLingerMs > 0) {
+            if (lingerDeadline == 0) {
+                lingerDeadline = now + writeLingerMs;
+            }
+            if (isLingering()) {
+                lingerPackets = batch.size();
+                batch.clear();
+                disableWrite();
+                return;
+            }
+        }
+        lingerDeadline = 0;
+        if (batchBuffers.length < batch.size()) {
+            batchBuffers = new ByteBuffer[Math.max(batch.size(), 2 * batchBuffers.length)];
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batchBuffers[i] = batch.get(i).bb;
+        }
+        updateLastSend();
+        sock.write(batchBuffers, 0, batch.size());
+        for (Packet p : batch) {
+            if (p.bb.hasRemaining()) {
+                break;
+            }
+            sentCount.getAndIncrement();
+            outgoingQueue.removeFirstOccurrence(p);
+            if (p.requestHeader != null
+                && p.requestHeader.getType() != OpCode.ping
+                && p.requestHeader.getType() != OpCode.auth) {
+                synchronized (pendingQueue) {
+                    pendingQueue.add(p);
+                }
+            }
+        }
+        Arrays.fill(batchBuffers, 0, batch.size(), null);
+        batch.clear();
+        if (outgoingQueue.isEmpty()) {
+            disableWrite();
+        } else {
+            enableWrite();
+        }
+    }
+
     private Packet findSendablePacket(LinkedBlockingDeque<Packet> outgoingQueue, boolean tunneledAuthInProgres) {
         if (outgoingQueue.isEmpty()) {
             return null;
@@ -274,6 +413,7 @@ void connect(InetSocketAddress addr) throws IOException {
             throw e;
         }
         initialized = false;
+        lingerDeadline = 0;
 
         /*
          * Reset incomingBuffer
@@ -329,6 +469,10 @@ void doTransport(
         int waitTimeOut,
         Queue<Packet> pendingQueue,
         ClientCnxn cnxn) throws IOException, InterruptedException {
+        if (lingerDeadline != 0) {
+            // wake up when the lingering batch has to be written
+            waitTimeOut = (int) Math.max(1, Math.min(waitTimeOut, lingerDeadline - Time.currentElapsedTime()));
+        }
         selector.select(waitTimeOut);
         Set<SelectionKey> selected;
         synchronized (this) {
@@ -350,7 +494,7 @@ void doTransport(
                 doIO(pendingQueue, cnxn);
             }
         }
-        if (sendThread.getZkState().isConnected()) {
+        if (sendThread.getZkState().isConnected() && isLingerOver()) {
             if (findSendablePacket(outgoingQueue, sendThread.tunnelAuthInProgress()) != null) {
                 enableWrite();
             }
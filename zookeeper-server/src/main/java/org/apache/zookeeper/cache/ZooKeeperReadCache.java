@@ -0,0 +1,477 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-through cache of the data and children of the znodes under a base
+ * path, kept up to date by a persistent recursive watch on that path.
+ *
+ * <p>Reads of a path under the base path are served from the cache when
+ * possible, otherwise they are read from the server and cached. Every
+ * created, deleted or changed znode notified by the watch drops the cached
+ * entries of the znode and of its parent. The cache is bounded by an
+ * estimate of its memory usage, the least recently used entries being
+ * evicted first.
+ *
+ * <p>While the client is disconnected, reads are passed through to the
+ * server. The watch does not report the changes made while the client was
+ * disconnected, so after a reconnection every cached entry is checked
+ * against the current {@link Stat} of its znode the next time it is read,
+ * and read again from the server if the znode changed.
+ *
+ * <p>ACL changes are not notified by the watch, so the ACL version of the
+ * cached stats may be out of date, and reads are not checked again against
+ * the ACLs once cached. The cache requires the watches to be reset
+ * automatically on reconnection, see
+ * {@link ZKClientConfig#DISABLE_AUTO_WATCH_RESET}.
+ */
+@InterfaceAudience.Public
+public class ZooKeeperReadCache implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperReadCache.class);
+
+    /**
+     * Estimated size in bytes of the bookkeeping of an entry and of a child
+     * name, on top of their contents.
+     */
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int CHILD_OVERHEAD = 48;
+
+    private final ZooKeeper zk;
+    private final String basePath;
+    private final long maxBytes;
+    private final Watcher watcher = this::process;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // the reads from the server in flight by path, guarded by this, a read
+    // is only cached if its znode wasn't invalidated while it was in flight
+    private final Map<String, PendingRead> pendingReads = new HashMap<>();
+    // incremented on every disconnection, entries cached in an older
+    // generation are checked against the server before being used
+    private long generation;
+
+    private volatile boolean connected;
+    private volatile boolean started;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private static final class Entry {
+
+        byte[] data;
+        Stat dataStat;
+        long dataGeneration;
+        List<String> children;
+        Stat childrenStat;
+        long childrenGeneration;
+        int weight;
+
+    }
+
+    private static final class PendingRead {
+
+        int readers;
+        // incremented by every invalidation of the path
+        long invalidations;
+
+    }
+
+    /**
+     * @param zk the client the reads are made with
+     * @param basePath the root of the cached znodes
+     * @param maxBytes the estimated memory size the cache is bounded to
+     */
+    public ZooKeeperReadCache(ZooKeeper zk, String basePath, long maxBytes) {
+        PathUtils.validatePath(basePath);
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.zk = zk;
+        this.basePath = basePath;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add the persistent recursive watch of the cache, reads are passed
+     * through to the server until the cache is started.
+     */
+    public void start() throws KeeperException, InterruptedException {
+        ZKClientConfig clientConfig = zk.getClientConfig();
+        if (clientConfig != null && clientConfig.getBoolean(ZKClientConfig.DISABLE_AUTO_WATCH_RESET)) {
+            throw new IllegalStateException("The read cache requires automatic watch reset, "
+                                            + ZKClientConfig.DISABLE_AUTO_WATCH_RESET + " is set");
+        }
+        zk.addWatch(basePath, watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        connected = zk.getState().isConnected();
+        started = true;
+        LOG.info("Started read cache of {} bounded to {} bytes", basePath, maxBytes);
+    }
+
+    /**
+     * Remove the watch of the cache and drop the cached entries, later reads
+     * are passed through to the server.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            zk.removeWatches(basePath, watcher, Watcher.WatcherType.Any, !zk.getState().isConnected());
+        } catch (KeeperException e) {
+            LOG.warn("Failed to remove the watch of the read cache of {}", basePath, e);
+        }
+        clear();
+    }
+
+    /**
+     * Return the data and the stat of the node of the given path, see
+     * {@link ZooKeeper#getData(String, boolean, Stat)}.
+     */
+    public byte[] getData(String path, Stat stat) throws KeeperException, InterruptedException {
+        if (!isCached(path)) {
+            return zk.getData(path, false, stat);
+        }
+        Stat cachedStat = null;
+        PendingRead pending;
+        long startInvalidations;
+        long startGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.data != null) {
+                if (entry.dataGeneration == generation) {
+                    hits.increment();
+                    copyStat(entry.dataStat, stat);
+                    return entry.data.clone();
+                }
+                cachedStat = entry.dataStat;
+            }
+            pending = startRead(path);
+            startInvalidations = pending.invalidations;
+            startGeneration = generation;
+        }
+        try {
+            if (cachedStat != null) {
+                Stat current = zk.exists(path, false);
+                synchronized (this) {
+                    Entry entry = entries.get(path);
+                    if (current != null && current.equals(cachedStat)
+                        && isUnchanged(pending, startInvalidations, startGeneration)
+                        && entry != null && entry.dataStat == cachedStat) {
+                        entry.dataGeneration = startGeneration;
+                        hits.increment();
+                        revalidations.increment();
+                        copyStat(entry.dataStat, stat);
+                        return entry.data.clone();
+                    }
+                }
+            }
+            misses.increment();
+            Stat readStat = new Stat();
+            byte[] data = zk.getData(path, false, readStat);
+            synchronized (this) {
+                if (data != null && isUnchanged(pending, startInvalidations, startGeneration)) {
+                    Entry entry = entries.computeIfAbsent(path, p -> new Entry());
+                    entry.data = data.clone();
+                    entry.dataStat = readStat;
+                    entry.dataGeneration = startGeneration;
+                    updateWeight(path, entry);
+                }
+            }
+            copyStat(readStat, stat);
+            return data;
+        } finally {
+            endRead(path, pending);
+        }
+    }
+
+    /**
+     * Return the children and the stat of the node of the given path, see
+     * {@link ZooKeeper#getChildren(String, boolean, Stat)}.
+     */
+    public List<String> getChildren(String path, Stat stat) throws KeeperException, InterruptedException {
+        if (!isCached(path)) {
+            return zk.getChildren(path, false, stat);
+        }
+        Stat cachedStat = null;
+        PendingRead pending;
+        long startInvalidations;
+        long startGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.children != null) {
+                if (entry.childrenGeneration == generation) {
+                    hits.increment();
+                    copyStat(entry.childrenStat, stat);
+                    return new ArrayList<>(entry.children);
+                }
+                cachedStat = entry.childrenStat;
+            }
+            pending = startRead(path);
+            startInvalidations = pending.invalidations;
+            startGeneration = generation;
+        }
+        try {
+            if (cachedStat != null) {
+                Stat current = zk.exists(path, false);
+                synchronized (this) {
+                    Entry entry = entries.get(path);
+                    if (current != null && current.equals(cachedStat)
+                        && isUnchanged(pending, startInvalidations, startGeneration)
+                        && entry != null && entry.childrenStat == cachedStat) {
+                        entry.childrenGeneration = startGeneration;
+                        hits.increment();
+                        revalidations.increment();
+                        copyStat(entry.childrenStat, stat);
+                        return new ArrayList<>(entry.children);
+                    }
+                }
+            }
+            misses.increment();
+            Stat readStat = new Stat();
+            List<String> children = zk.getChildren(path, false, readStat);
+            synchronized (this) {
+                if (isUnchanged(pending, startInvalidations, startGeneration)) {
+                    Entry entry = entries.computeIfAbsent(path, p -> new Entry());
+                    entry.children = new ArrayList<>(children);
+                    entry.childrenStat = readStat;
+                    entry.childrenGeneration = startGeneration;
+                    updateWeight(path, entry);
+                }
+            }
+            copyStat(readStat, stat);
+            return children;
+        } finally {
+            endRead(path, pending);
+        }
+    }
+
+    private boolean isCached(String path) {
+        return started && connected
+               && (basePath.equals("/") || path.equals(basePath) || path.startsWith(basePath + "/"));
+    }
+
+    // must be called with the lock held
+    private PendingRead startRead(String path) {
+        PendingRead pending = pendingReads.computeIfAbsent(path, p -> new PendingRead());
+        pending.readers++;
+        return pending;
+    }
+
+    private synchronized void endRead(String path, PendingRead pending) {
+        if (--pending.readers == 0) {
+            pendingReads.remove(path);
+        }
+    }
+
+    // must be called with the lock held
+    private boolean isUnchanged(PendingRead pending, long startInvalidations, long startGeneration) {
+        return started && connected && pending.invalidations == startInvalidations && generation == startGeneration;
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        if (from != null && to != null) {
+            to.setAversion(from.getAversion());
+            to.setCtime(from.getCtime());
+            to.setCversion(from.getCversion());
+            to.setCzxid(from.getCzxid());
+            to.setMtime(from.getMtime());
+            to.setMzxid(from.getMzxid());
+            to.setPzxid(from.getPzxid());
+            to.setVersion(from.getVersion());
+            to.setEphemeralOwner(from.getEphemeralOwner());
+            to.setDataLength(from.getDataLength());
+            to.setNumChildren(from.getNumChildren());
+        }
+    }
+
+    // must be called with the lock held
+    private void updateWeight(String path, Entry entry) {
+        int weight = ENTRY_OVERHEAD + 2 * path.length();
+        if (entry.data != null) {
+            weight += entry.data.length;
+        }
+        if (entry.children != null) {
+            for (String child : entry.children) {
+                weight += CHILD_OVERHEAD + 2 * child.length();
+            }
+        }
+        bytes += weight - entry.weight;
+        entry.weight = weight;
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= iter.next().getValue().weight;
+            iter.remove();
+            evictions.increment();
+        }
+    }
+
+    private synchronized void invalidate(String path) {
+        PendingRead pending = pendingReads.get(path);
+        if (pending != null) {
+            pending.invalidations++;
+        }
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            bytes -= entry.weight;
+            invalidations.increment();
+        }
+    }
+
+    private synchronized void clear() {
+        for (PendingRead pending : pendingReads.values()) {
+            pending.invalidations++;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void process(WatchedEvent event) {
+        String path = event.getPath();
+        switch (event.getType()) {
+        case None:
+            switch (event.getState()) {
+            case SyncConnected:
+            case ConnectedReadOnly:
+                connected = true;
+                break;
+            case Disconnected:
+                synchronized (this) {
+                    connected = false;
+                    generation++;
+                }
+                break;
+            case Expired:
+            case Closed:
+                connected = false;
+                clear();
+                break;
+            default:
+                break;
+            }
+            break;
+        case NodeCreated:
+        case NodeDeleted:
+            invalidate(path);
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash > 0) {
+                invalidate(path.substring(0, lastSlash));
+            } else if (path.length() > 1) {
+                invalidate("/");
+            }
+            break;
+        case NodeDataChanged:
+            invalidate(path);
+            break;
+        case PersistentWatchRemoved:
+            LOG.warn("The watch of the read cache of {} was removed, reads are passed through to the server", basePath);
+            started = false;
+            clear();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cacheable reads that were read from the server
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of hits on entries that had to be checked against
+     *         the server after a reconnection
+     */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to keep the cache within its bound
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of entries dropped because their znode changed
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return the ratio of the cacheable reads served from the cache, 0 if
+     *         there were none
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the number of cached znodes
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory size of the cached entries
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+}
@@ -64,6 +64,18 @@ public class ZKClientConfig extends ZKConfig {
      * Feature is disabled by default.
      */
     public static final long ZOOKEEPER_REQUEST_TIMEOUT_DEFAULT = 0;
+    /**
+     * Maximum number of bytes the NIO client coalesces into a single gathering
+     * write. Feature is disabled by default.
+     */
+    public static final String ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES = "zookeeper.client.writeBatchBytes";
+    public static final int ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES_DEFAULT = 0;
+    /**
+     * Maximum time in milliseconds a write batch smaller than
+     * {@link #ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES} waits for more packets.
+     */
+    public static final String ZOOKEEPER_CLIENT_WRITE_LINGER_MS = "zookeeper.client.writeLingerMs";
+    public static final long ZOOKEEPER_CLIENT_WRITE_LINGER_MS_DEFAULT = 0;
 
     public ZKClientConfig() {
         super();
@@ -85,6 +97,8 @@ public ZKClientConfig(String configPath) throws ConfigException {
     private void initFromJavaSystemProperties() {
         setProperty(ZOOKEEPER_REQUEST_TIMEOUT, System.getProperty(ZOOKEEPER_REQUEST_TIMEOUT));
         setProperty(ZOOKEEPER_SERVER_PRINCIPAL, System.getProperty(ZOOKEEPER_SERVER_PRINCIPAL));
+        setProperty(ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES, System.getProperty(ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES));
+        setProperty(ZOOKEEPER_CLIENT_WRITE_LINGER_MS, System.getProperty(ZOOKEEPER_CLIENT_WRITE_LINGER_MS));
     }
 
     @Override
@@ -22,7 +22,7 @@
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import javax.annotation.Nonnull;
-import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.ByteBufferInputArchive;
 import org.apache.jute.Record;
 
 public class ByteBufferInputStream extends InputStream {
@@ -74,9 +74,7 @@ public long skip(long n) throws IOException {
     }
 
     public static void byteBuffer2Record(ByteBuffer bb, Record record) throws IOException {
-        BinaryInputArchive ia;
-        ia = BinaryInputArchive.getArchive(new ByteBufferInputStream(bb));
-        record.deserialize(ia, "request");
+        record.deserialize(new ByteBufferInputArchive(bb), "request");
     }
 
 }
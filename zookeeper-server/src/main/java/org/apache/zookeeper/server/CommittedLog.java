@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+
+/**
+ * The committed proposals kept in memory for learner syncs, in zxid order,
+ * in a ring buffer. It keeps track of the serialized size of the proposals,
+ * so that it can be bounded by bytes, and finds a proposal by zxid by its
+ * position: zxids are consecutive within an epoch, so the position is
+ * usually the distance to the first zxid, otherwise it is searched.
+ *
+ * Not thread safe, see {@link ZKDatabase#getLogLock()}.
+ */
+public class CommittedLog extends AbstractQueue<Proposal> {
+
+    /**
+     * Approximate size of the objects of a proposal besides its data
+     */
+    static final int PROPOSAL_OVERHEAD = 128;
+
+    private Proposal[] proposals = new Proposal[16];
+    private int head;
+    private int size;
+    private long bytes;
+
+    /**
+     * The size a proposal is accounted for: the length of its packet data,
+     * the serialized request, plus {@link #PROPOSAL_OVERHEAD}. The decoded
+     * header and txn the proposal also retains through its request are not
+     * measured, they take roughly as much again as the data, so the heap
+     * used by the log is about twice {@link #getBytes()} for large txns.
+     */
+    static long sizeOf(Proposal p) {
+        byte[] data = p.packet.getData();
+        return PROPOSAL_OVERHEAD + (data == null ? 0 : data.length);
+    }
+
+    @Override
+    public boolean offer(Proposal p) {
+        if (size == proposals.length) {
+            Proposal[] grown = new Proposal[proposals.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = at(i);
+            }
+            proposals = grown;
+            head = 0;
+        }
+        proposals[(head + size) & (proposals.length - 1)] = p;
+        size++;
+        bytes += sizeOf(p);
+        return true;
+    }
+
+    @Override
+    public Proposal poll() {
+        if (size == 0) {
+            return null;
+        }
+        Proposal p = proposals[head];
+        proposals[head] = null;
+        head = (head + 1) & (proposals.length - 1);
+        size--;
+        bytes -= sizeOf(p);
+        return p;
+    }
+
+    @Override
+    public Proposal peek() {
+        return size == 0 ? null : proposals[head];
+    }
+
+    public Proposal peekLast() {
+        return size == 0 ? null : at(size - 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the serialized size of the proposals, plus an approximate
+     *         overhead per proposal
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void clear() {
+        proposals = new Proposal[16];
+        head = 0;
+        size = 0;
+        bytes = 0;
+    }
+
+    private Proposal at(int index) {
+        return proposals[(head + index) & (proposals.length - 1)];
+    }
+
+    private long zxidAt(int index) {
+        return at(index).packet.getZxid();
+    }
+
+    /**
+     * @return the position of the first proposal whose zxid is at least the
+     *         given one, size() if there is none
+     */
+    int indexOf(long zxid) {
+        if (size == 0) {
+            return 0;
+        }
+        long distance = zxid - zxidAt(0);
+        if (distance >= 0 && distance < size && zxidAt((int) distance) == zxid) {
+            return (int) distance;
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (zxidAt(mid) < zxid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the proposal with the given zxid, null if it is not in the log
+     */
+    public Proposal get(long zxid) {
+        int index = indexOf(zxid);
+        return index < size && zxidAt(index) == zxid ? at(index) : null;
+    }
+
+    @Override
+    public Iterator<Proposal> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate from the proposal before the first one whose zxid is at least
+     * the given one, so that the caller sees where the zxid would be.
+     */
+    public Iterator<Proposal> iteratorFrom(long zxid) {
+        return iterator(Math.max(indexOf(zxid) - 1, 0));
+    }
+
+    private Iterator<Proposal> iterator(final int start) {
+        return new Iterator<Proposal>() {
+            int next = start;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Proposal next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return at(next++);
+            }
+        };
+    }
+
+}
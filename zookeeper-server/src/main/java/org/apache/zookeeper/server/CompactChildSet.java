@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of child names backed by a sorted array, used by {@link DataNode}
+ * when the compact data tree is enabled.
+ * <p>
+ * Compared to a HashSet this avoids the per entry node and the hash table,
+ * which dominates the heap for trees with millions of znodes. Lookups are
+ * binary searches, and inserts in sorted order (which is what snapshot
+ * loading produces) are appends. This class is not thread safe, callers
+ * synchronize on the owning DataNode.
+ */
+class CompactChildSet extends AbstractSet<String> {
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] elements;
+    private int size;
+
+    CompactChildSet() {
+        this.elements = EMPTY;
+    }
+
+    CompactChildSet(int initialCapacity) {
+        this.elements = initialCapacity == 0 ? EMPTY : new String[initialCapacity];
+    }
+
+    @Override
+    public boolean add(String child) {
+        int index = indexOf(child);
+        if (index >= 0) {
+            return false;
+        }
+        int insertAt = -(index + 1);
+        if (size == elements.length) {
+            int newCapacity = Math.max(4, size + (size >> 1));
+            elements = Arrays.copyOf(elements, newCapacity);
+        }
+        System.arraycopy(elements, insertAt, elements, insertAt + 1, size - insertAt);
+        elements[insertAt] = child;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int index = indexOf((String) o);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && indexOf((String) o) >= 0;
+    }
+
+    /**
+     * Return the instance of the given child name held by this set, so
+     * that callers can share it instead of keeping another copy.
+     *
+     * @param child the child name to look up
+     * @return the stored instance, or the given name if it's not a member
+     */
+    String intern(String child) {
+        int index = indexOf(child);
+        return index >= 0 ? elements[index] : child;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        elements = EMPTY;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int cursor = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size;
+            }
+
+            @Override
+            public String next() {
+                if (cursor >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = cursor++;
+                return elements[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                removeAt(last);
+                cursor = last;
+                last = -1;
+            }
+        };
+    }
+
+    private int indexOf(String child) {
+        // fast path for appends in sorted order
+        if (size > 0 && child.compareTo(elements[size - 1]) > 0) {
+            return -(size + 1);
+        }
+        return Arrays.binarySearch(elements, 0, size, child);
+    }
+
+    private void removeAt(int index) {
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(elements, index + 1, elements, index, moved);
+        }
+        elements[--size] = null;
+        if (size == 0) {
+            elements = EMPTY;
+        } else if (elements.length > 16 && size < (elements.length >> 2)) {
+            elements = Arrays.copyOf(elements, elements.length >> 1);
+        }
+    }
+
+}
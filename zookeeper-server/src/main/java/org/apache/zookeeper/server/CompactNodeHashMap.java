@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.util.AdHash;
+
+/**
+ * A {@link NodeHashMap} which doesn't keep the full path of every node.
+ * <p>
+ * Each entry is keyed by a {@link PathKey} holding a reference to the key of
+ * its parent and the last segment of the path, the segment being the same
+ * String instance kept in the parent's children set. Keys hash exactly like
+ * the full path String, so lookups by path don't need to build the key
+ * chain, they only compare the segments from the leaf up to the root.
+ * <p>
+ * The full path is only rebuilt when iterating the entries, which happens
+ * for the infrequent whole tree operations like computing the data size.
+ */
+public class CompactNodeHashMap implements NodeHashMap {
+
+    private final ConcurrentHashMap<PathKey, PathKey> nodes;
+    private final boolean digestEnabled;
+    private final DigestCalculator digestCalculator;
+
+    private final AdHash hash;
+
+    public CompactNodeHashMap(DigestCalculator digestCalculator) {
+        this.digestCalculator = digestCalculator;
+        nodes = new ConcurrentHashMap<>();
+        hash = new AdHash();
+        digestEnabled = ZooKeeperServer.isDigestEnabled();
+    }
+
+    @Override
+    public DataNode put(String path, DataNode node) {
+        DataNode oldNode = putWithoutDigest(path, node);
+        addDigest(path, node);
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public DataNode putWithoutDigest(String path, DataNode node) {
+        PathKey existing = nodes.get(PathKey.lookup(path));
+        if (existing != null) {
+            DataNode oldNode = existing.node;
+            existing.node = node;
+            return oldNode;
+        }
+        PathKey key = newKey(path);
+        key.node = node;
+        existing = nodes.putIfAbsent(key, key);
+        if (existing != null) {
+            DataNode oldNode = existing.node;
+            existing.node = node;
+            return oldNode;
+        }
+        return null;
+    }
+
+    @Override
+    public DataNode get(String path) {
+        PathKey key = nodes.get(PathKey.lookup(path));
+        return key == null ? null : key.node;
+    }
+
+    @Override
+    public DataNode remove(String path) {
+        PathKey key = nodes.remove(PathKey.lookup(path));
+        if (key == null) {
+            return null;
+        }
+        DataNode oldNode = key.node;
+        removeDigest(path, oldNode);
+        return oldNode;
+    }
+
+    @Override
+    public Set<Map.Entry<String, DataNode>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DataNode>>() {
+            @Override
+            public Iterator<Map.Entry<String, DataNode>> iterator() {
+                final Iterator<PathKey> keys = nodes.values().iterator();
+                return new Iterator<Map.Entry<String, DataNode>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, DataNode> next() {
+                        PathKey key = keys.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(key.toPath(), key.node);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return nodes.size();
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        nodes.clear();
+        hash.clear();
+    }
+
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public void preChange(String path, DataNode node) {
+        removeDigest(path, node);
+    }
+
+    @Override
+    public void postChange(String path, DataNode node) {
+        // we just made a change, so make sure the digest is
+        // invalidated
+        node.digestCached = false;
+        addDigest(path, node);
+    }
+
+    private void addDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    private void removeDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.removeDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    @Override
+    public long getDigest() {
+        return hash.getHash();
+    }
+
+    /**
+     * Build the key for the given path, sharing the key of the parent and
+     * the child name stored in the parent node when they are available.
+     */
+    private PathKey newKey(String path) {
+        if (path.isEmpty()) {
+            return new PathKey(null, "", 0);
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash < 0) {
+            // not a valid znode path, keep it as a single segment under
+            // a detached root so the lookups still match
+            return new PathKey(new PathKey(null, "", 0), path, path.hashCode(), true);
+        }
+        String parentPath = path.substring(0, lastSlash);
+        String segment = path.substring(lastSlash + 1);
+        PathKey parent = nodes.get(PathKey.lookup(parentPath));
+        if (parent == null) {
+            // the parent isn't in the map, chain detached keys instead
+            parent = newKey(parentPath);
+        } else {
+            DataNode parentNode = parent.node;
+            if (parentNode != null) {
+                segment = parentNode.internChild(segment);
+            }
+        }
+        return new PathKey(parent, segment, path.hashCode());
+    }
+
+    /**
+     * The key of an entry, which is also stored as its value to allow
+     * getting the canonical key of the parent when adding a new node.
+     */
+    static final class PathKey {
+
+        final PathKey parent;
+        final String segment;
+        final int hash;
+        // a path without any '/', which doesn't have a separator before
+        // the segment
+        final boolean unrooted;
+        // a throw-away key holding the full path as its segment, used to
+        // look up an entry without building the key chain
+        final boolean lookup;
+        volatile DataNode node;
+
+        PathKey(PathKey parent, String segment, int hash) {
+            this(parent, segment, hash, false);
+        }
+
+        PathKey(PathKey parent, String segment, int hash, boolean unrooted) {
+            this(parent, segment, hash, unrooted, false);
+        }
+
+        private PathKey(PathKey parent, String segment, int hash, boolean unrooted, boolean lookup) {
+            this.parent = parent;
+            this.segment = segment;
+            this.hash = hash;
+            this.unrooted = unrooted;
+            this.lookup = lookup;
+        }
+
+        static PathKey lookup(String path) {
+            return new PathKey(null, path, path.hashCode(), false, true);
+        }
+
+        /**
+         * Check if the full path of this key is the given path, walking
+         * from the leaf segment up to the root.
+         */
+        boolean matches(String path) {
+            if (lookup) {
+                return segment.equals(path);
+            }
+            int end = path.length();
+            for (PathKey key = this; key.parent != null; key = key.parent) {
+                String seg = key.segment;
+                int start = end - seg.length();
+                if (key.unrooted) {
+                    return start == 0 && path.regionMatches(0, seg, 0, seg.length());
+                }
+                if (start < 1
+                    || path.charAt(start - 1) != '/'
+                    || !path.regionMatches(start, seg, 0, seg.length())) {
+                    return false;
+                }
+                end = start - 1;
+            }
+            return end == 0;
+        }
+
+        String toPath() {
+            if (parent == null) {
+                return segment;
+            }
+            if (unrooted) {
+                return segment;
+            }
+            return parent.toPath() + '/' + segment;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            if (hash != other.hash) {
+                return false;
+            }
+            if (lookup) {
+                return other.matches(segment);
+            }
+            if (other.lookup) {
+                return matches(other.segment);
+            }
+            if (unrooted != other.unrooted || !segment.equals(other.segment)) {
+                return false;
+            }
+            if (parent == null || other.parent == null) {
+                return parent == other.parent;
+            }
+            return parent.equals(other.parent);
+        }
+
+        @Override
+        public String toString() {
+            return toPath();
+        }
+
+    }
+
+}
@@ -33,7 +33,10 @@
  * This class contains the data for a node in the data tree.
  * <p>
  * A data node contains a reference to its parent, a byte array as its data, an
- * array of ACLs, a stat object, and a set of its children's paths.
+ * array of ACLs, a stat object, and a set of its children's paths. When the
+ * compact data tree is enabled the children are kept in a sorted array
+ * instead of a HashSet, and when an {@link OffHeapDataStore} is used large
+ * payloads are kept in direct memory instead of the data array.
  *
  */
 @SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
@@ -49,6 +52,12 @@ public class DataNode implements Record {
     /** the data for this datanode */
     byte[] data;
 
+    /**
+     * the data for this datanode when it is kept off-heap, in which case
+     * data is null
+     */
+    private OffHeapDataStore.Slot dataSlot;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
@@ -100,12 +109,30 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<>(8);
+            if (ZooKeeperServer.isCompactDataTreeEnabled()) {
+                children = new CompactChildSet();
+            } else {
+                // let's be conservative on the typical number of children
+                children = new HashSet<>(8);
+            }
         }
         return children.add(child);
     }
 
+    /**
+     * Return the instance of the child name stored in the children set, so
+     * that the compact node map can share it instead of keeping a copy.
+     *
+     * @param child the child name
+     * @return the stored instance if available, otherwise the given name
+     */
+    synchronized String internChild(String child) {
+        if (children instanceof CompactChildSet) {
+            return ((CompactChildSet) children).intern(child);
+        }
+        return child;
+    }
+
     /**
      * Method that removes a child from the children set
      *
@@ -151,7 +178,7 @@ public synchronized void copyStat(Stat to) {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(getClientEphemeralOwner(stat));
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -182,7 +209,7 @@ public synchronized void deserialize(InputArchive archive, String tag) throws IO
 
     public synchronized void serialize(OutputArchive archive, String tag) throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(getData(), "data");
         archive.writeLong(acl, "acl");
         stat.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
@@ -204,8 +231,76 @@ public void setDigest(long digest) {
         this.digest = digest;
     }
 
+    /**
+     * Get the data of this node. Data kept off-heap is copied to the heap.
+     */
     public synchronized byte[] getData() {
+        if (dataSlot != null) {
+            return dataSlot.copy();
+        }
         return data;
     }
 
+    public synchronized int getDataLength() {
+        if (dataSlot != null) {
+            return dataSlot.length();
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    /**
+     * Replace the data of this node, keeping it off-heap if the store
+     * accepts it.
+     *
+     * @param data the new data
+     * @param store the off-heap store, or null to keep the data on heap
+     */
+    synchronized void setData(byte[] data, OffHeapDataStore store) {
+        OffHeapDataStore.Slot lastSlot = dataSlot;
+        dataSlot = store == null ? null : store.store(data);
+        this.data = dataSlot == null ? data : null;
+        if (lastSlot != null) {
+            lastSlot.release();
+        }
+    }
+
+    /**
+     * Move the data of this node back to the heap and release its off-heap
+     * slot, called when the node is removed from the tree. Readers which
+     * looked up the node before its removal still see its data.
+     */
+    synchronized void releaseData() {
+        if (dataSlot != null) {
+            data = dataSlot.copy();
+            dataSlot.release();
+            dataSlot = null;
+        }
+    }
+
+    /**
+     * Release the off-heap slot of this node without keeping its data, called
+     * when the whole tree is discarded. Readers which retained the slot keep
+     * it until they release it.
+     */
+    synchronized void discardData() {
+        if (dataSlot != null) {
+            dataSlot.release();
+            dataSlot = null;
+        }
+    }
+
+    /**
+     * Take a reference to the off-heap slot of this node, which the caller
+     * must release once done with it.
+     *
+     * @return the retained slot, or null if the data is on heap
+     */
+    synchronized OffHeapDataStore.Slot retainDataSlot() {
+        if (dataSlot == null) {
+            return null;
+        }
+        dataSlot.retain();
+        return dataSlot;
+    }
+
 }
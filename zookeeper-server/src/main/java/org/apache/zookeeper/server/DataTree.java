@@ -18,13 +18,18 @@
 
 package org.apache.zookeeper.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -33,7 +38,16 @@
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Index;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -60,6 +74,7 @@
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.server.watch.IWatchManager;
 import org.apache.zookeeper.server.watch.WatchManagerFactory;
 import org.apache.zookeeper.server.watch.WatcherMode;
@@ -189,6 +204,19 @@ public class DataTree {
 
     private final DigestCalculator digestCalculator;
 
+    // Keeps the large payloads off-heap if set
+    private final OffHeapDataStore offHeapDataStore;
+
+    // the paths changed since the last snapshot, null if the changes are not tracked
+    private volatile Set<String> dirtyPaths;
+
+    // the watch triggers of the txn being applied ahead by the current thread
+    private final ThreadLocal<List<Runnable>> deferredWatchTriggers = new ThreadLocal<>();
+
+    // the highest zxid applied ahead, the digest of the tree only matches the
+    // digest of a txn once that txn is completed
+    private final AtomicLong maxZxidAppliedAhead = new AtomicLong();
+
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
         HashSet<String> ret = ephemerals.get(sessionId);
@@ -242,7 +270,7 @@ public long approximateDataSize() {
         for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
             DataNode value = entry.getValue();
             synchronized (value) {
-                result += getNodeSize(entry.getKey(), value.data);
+                result += getNodeSize(entry.getKey(), value.getDataLength());
             }
         }
         return result;
@@ -252,7 +280,11 @@ public long approximateDataSize() {
      * Get the size of the node based on path and data length.
      */
     private static long getNodeSize(String path, byte[] data) {
-        return (path == null ? 0 : path.length()) + (data == null ? 0 : data.length);
+        return getNodeSize(path, data == null ? 0 : data.length);
+    }
+
+    private static long getNodeSize(String path, int dataLength) {
+        return (path == null ? 0 : path.length()) + dataLength;
     }
 
     public long cachedApproximateDataSize() {
@@ -280,9 +312,26 @@ public DataTree() {
         this(new DigestCalculator());
     }
 
+    /**
+     * @param offHeapDataStore the store used to keep large payloads off-heap,
+     *                         or null to keep all the data on heap
+     */
+    public DataTree(OffHeapDataStore offHeapDataStore) {
+        this(new DigestCalculator(), offHeapDataStore);
+    }
+
     DataTree(DigestCalculator digestCalculator) {
+        this(digestCalculator, null);
+    }
+
+    DataTree(DigestCalculator digestCalculator, OffHeapDataStore offHeapDataStore) {
         this.digestCalculator = digestCalculator;
-        nodes = new NodeHashMapImpl(digestCalculator);
+        this.offHeapDataStore = offHeapDataStore;
+        if (ZooKeeperServer.isCompactDataTreeEnabled()) {
+            nodes = new CompactNodeHashMap(digestCalculator);
+        } else {
+            nodes = new NodeHashMapImpl(digestCalculator);
+        }
 
         // rather than fight it, let root have an alias
         nodes.put("", root);
@@ -389,11 +438,12 @@ public void updateQuotaStat(String lastPrefix, long bytesDiff, int countDiff) {
         }
 
         synchronized (statNode) {
-            StatsTrack updatedStat = new StatsTrack(statNode.data);
+            StatsTrack updatedStat = new StatsTrack(statNode.getData());
             updatedStat.setCount(updatedStat.getCount() + countDiff);
             updatedStat.setBytes(updatedStat.getBytes() + bytesDiff);
-            statNode.data = updatedStat.getStatsBytes();
+            statNode.setData(updatedStat.getStatsBytes(), null);
         }
+        markDirty(statNodePath);
     }
 
     /**
@@ -479,9 +529,12 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 parent.stat.setPzxid(zxid);
             }
             DataNode child = new DataNode(data, acls, stat);
+            if (offHeapDataStore != null) {
+                child.setData(data, offHeapDataStore);
+            }
             parent.addChild(childName);
             nodes.postChange(parentName, parent);
-            nodeDataSize.addAndGet(getNodeSize(path, child.data));
+            nodeDataSize.addAndGet(getNodeSize(path, data));
             nodes.put(path, child);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
@@ -498,6 +551,8 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 child.copyStat(outputStat);
             }
         }
+        markDirty(parentName);
+        markDirty(path);
         // now check if its one of the zookeeper node child
         if (parentName.startsWith(quotaZookeeper)) {
             // now check if it's the limit node
@@ -518,8 +573,10 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             updateQuotaStat(lastPrefix, bytes, 1);
         }
         updateWriteStat(path, bytes);
-        dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
-        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged);
+        triggerWatches(() -> {
+            dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
+            childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged);
+        });
     }
 
     /**
@@ -554,35 +611,25 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             }
             nodes.postChange(parentName, parent);
         }
+        markDirty(parentName);
 
         DataNode node = nodes.get(path);
         if (node == null) {
             throw new NoNodeException();
         }
         nodes.remove(path);
+        markDirty(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
-            nodeDataSize.addAndGet(-getNodeSize(path, node.data));
+            nodeDataSize.addAndGet(-getNodeSize(path, node.getDataLength()));
+            node.releaseData();
         }
 
         // Synchronized to sync the containers and ttls change, probably
         // only need to sync on containers and ttls, will update it in a
         // separate patch.
         synchronized (parent) {
-            long owner = node.stat.getEphemeralOwner();
-            EphemeralType ephemeralType = EphemeralType.get(owner);
-            if (ephemeralType == EphemeralType.CONTAINER) {
-                containers.remove(path);
-            } else if (ephemeralType == EphemeralType.TTL) {
-                ttls.remove(path);
-            } else if (owner != 0) {
-                Set<String> nodes = ephemerals.get(owner);
-                if (nodes != null) {
-                    synchronized (nodes) {
-                        nodes.remove(path);
-                    }
-                }
-            }
+            untrackNodeOwner(path, node.stat.getEphemeralOwner());
         }
 
         if (parentName.startsWith(procZookeeper) && Quotas.limitNode.equals(childName)) {
@@ -597,7 +644,7 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             // ok we have some match and need to update
             long bytes;
             synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
+                bytes = -node.getDataLength();
             }
             updateQuotaStat(lastPrefix, bytes, -1);
         }
@@ -615,9 +662,11 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
                 "childWatches.triggerWatch " + parentName);
         }
 
-        WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted);
-        childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
-        childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+        triggerWatches(() -> {
+            WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted);
+            childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
+            childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+        });
     }
 
     public Stat setData(String path, byte[] data, int version, long zxid, long time) throws NoNodeException {
@@ -626,33 +675,47 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         if (n == null) {
             throw new NoNodeException();
         }
-        byte[] lastData;
+        int lastDataLength;
         synchronized (n) {
-            lastData = n.data;
+            lastDataLength = n.getDataLength();
             nodes.preChange(path, n);
-            n.data = data;
+            n.setData(data, offHeapDataStore);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
             n.copyStat(s);
             nodes.postChange(path, n);
         }
+        markDirty(path);
 
         // first do a quota check if the path is in a quota subtree.
         String lastPrefix = getMaxPrefixWithQuota(path);
-        long bytesDiff = (data == null ? 0 : data.length) - (lastData == null ? 0 : lastData.length);
+        long bytesDiff = (data == null ? 0 : data.length) - lastDataLength;
         // now update if the path is in a quota subtree.
         long dataBytes = data == null ? 0 : data.length;
         if (lastPrefix != null) {
             updateQuotaStat(lastPrefix, bytesDiff, 0);
         }
-        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastData));
+        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastDataLength));
 
         updateWriteStat(path, dataBytes);
-        dataWatches.triggerWatch(path, EventType.NodeDataChanged);
+        triggerWatches(() -> dataWatches.triggerWatch(path, EventType.NodeDataChanged));
         return s;
     }
 
+    /**
+     * Trigger the watches of a change, or defer them to the completion of
+     * the txn when it's applied ahead.
+     */
+    private void triggerWatches(Runnable triggers) {
+        List<Runnable> deferred = deferredWatchTriggers.get();
+        if (deferred == null) {
+            triggers.run();
+        } else {
+            deferred.add(triggers);
+        }
+    }
+
     /**
      * If there is a quota set, return the appropriate prefix for that quota
      * Else return null
@@ -689,12 +752,43 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws NoNodeExce
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            data = n.data;
+            data = n.getData();
         }
         updateReadStat(path, data == null ? 0 : data.length);
         return data;
     }
 
+    /**
+     * Same as {@link #getData(String, Stat, Watcher)}, but data kept off-heap
+     * is not copied: the returned response refers to the off-heap payload
+     * and must be released once it has been sent.
+     */
+    public GetDataResponse getDataResponse(String path, Watcher watcher) throws NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new NoNodeException();
+        }
+        Stat stat = new Stat();
+        OffHeapDataStore.Slot slot;
+        byte[] data = null;
+        synchronized (n) {
+            n.copyStat(stat);
+            if (watcher != null) {
+                dataWatches.addWatch(path, watcher);
+            }
+            slot = n.retainDataSlot();
+            if (slot == null) {
+                data = n.getData();
+            }
+        }
+        if (slot != null) {
+            updateReadStat(path, slot.length());
+            return new OffHeapGetDataResponse(slot, stat);
+        }
+        updateReadStat(path, data == null ? 0 : data.length);
+        return new GetDataResponse(data, stat);
+    }
+
     public Stat statNode(String path, Watcher watcher) throws NoNodeException {
         if (watcher != null) {
             dataWatches.addWatch(path, watcher);
@@ -751,16 +845,17 @@ public Stat setACL(String path, List<ACL> acl, int version) throws NoNodeExcepti
         if (n == null) {
             throw new NoNodeException();
         }
+        Stat stat = new Stat();
         synchronized (n) {
-            Stat stat = new Stat();
             aclCache.removeUsage(n.acl);
             nodes.preChange(path, n);
             n.stat.setAversion(version);
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
             nodes.postChange(path, n);
-            return stat;
         }
+        markDirty(path);
+        return stat;
     }
 
     public List<ACL> getACL(String path, Stat stat) throws NoNodeException {
@@ -804,6 +899,11 @@ public static class ProcessTxnResult {
 
         public List<ProcessTxnResult> multiResult;
 
+        /**
+         * The watches to trigger when a txn applied ahead is completed
+         */
+        List<Runnable> deferredWatchTriggers;
+
         /**
          * Equality is defined as the clientId and the cxid being the same. This
          * allows us to use hash tables to track completion of transactions.
@@ -844,7 +944,111 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn) {
         return this.processTxn(header, txn, false);
     }
 
+    /**
+     * Apply a committed txn ahead of its turn, possibly concurrently with
+     * other txns which don't touch the same nodes. The watches it triggers,
+     * the lastProcessedZxid and the digest are left to
+     * {@link #completeTxnAhead}, which must be called for the txns in zxid
+     * order before any other txn is processed.
+     */
+    public ProcessTxnResult applyTxnAhead(TxnHeader header, Record txn) {
+        List<Runnable> triggers = new ArrayList<>();
+        deferredWatchTriggers.set(triggers);
+        try {
+            ProcessTxnResult rc = applyTxn(header, txn);
+            rc.deferredWatchTriggers = triggers;
+            return rc;
+        } finally {
+            deferredWatchTriggers.remove();
+            maxZxidAppliedAhead.accumulateAndGet(header.getZxid(), Math::max);
+        }
+    }
+
+    /**
+     * Complete a txn applied by {@link #applyTxnAhead}. The tree only has the
+     * digest of a txn when no txn after it is applied ahead yet, so the digest
+     * is only logged and compared for the last txn applied ahead. The other
+     * txns, whose tree state never existed as such, are counted as skipped.
+     */
+    public void completeTxnAhead(TxnHeader header, Record txn, TxnDigest digest, ProcessTxnResult rc) {
+        for (Runnable triggers : rc.deferredWatchTriggers) {
+            triggers.run();
+        }
+        rc.deferredWatchTriggers = null;
+
+        if (rc.zxid > lastProcessedZxid) {
+            lastProcessedZxid = rc.zxid;
+        }
+
+        boolean lastAppliedAhead = rc.zxid >= maxZxidAppliedAhead.get();
+        if (digestFromLoadedSnapshot != null) {
+            if (lastAppliedAhead) {
+                compareSnapshotDigests(rc.zxid);
+            } else if (rc.zxid >= digestFromLoadedSnapshot.zxid) {
+                // the tree is already past the txn of the snapshot digest
+                digestFromLoadedSnapshot = null;
+            }
+        } else if (lastAppliedAhead) {
+            logZxidDigest(rc.zxid, getTreeDigest());
+            compareDigest(header, txn, digest);
+        } else if (ZooKeeperServer.isDigestEnabled() && digest != null) {
+            ServerMetrics.getMetrics().APPLY_AHEAD_DIGEST_SKIPPED.add(1);
+        }
+    }
+
     public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTxn) {
+        ProcessTxnResult rc = applyTxn(header, txn);
+
+        /*
+         * Things we can only update after the whole txn is applied to data
+         * tree.
+         *
+         * If we update the lastProcessedZxid with the first sub txn in multi
+         * and there is a snapshot in progress, it's possible that the zxid
+         * associated with the snapshot only include partial of the multi op.
+         *
+         * When loading snapshot, it will only load the txns after the zxid
+         * associated with snapshot file, which could cause data inconsistency
+         * due to missing sub txns.
+         *
+         * To avoid this, we only update the lastProcessedZxid when the whole
+         * multi-op txn is applied to DataTree.
+         */
+        if (!isSubTxn) {
+            /*
+             * A snapshot might be in progress while we are modifying the data
+             * tree. If we set lastProcessedZxid prior to making corresponding
+             * change to the tree, then the zxid associated with the snapshot
+             * file will be ahead of its contents. Thus, while restoring from
+             * the snapshot, the restore method will not apply the transaction
+             * for zxid associated with the snapshot file, since the restore
+             * method assumes that transaction to be present in the snapshot.
+             *
+             * To avoid this, we first apply the transaction and then modify
+             * lastProcessedZxid.  During restore, we correctly handle the
+             * case where the snapshot contains data ahead of the zxid associated
+             * with the file.
+             */
+            if (rc.zxid > lastProcessedZxid) {
+                lastProcessedZxid = rc.zxid;
+            }
+
+            if (digestFromLoadedSnapshot != null) {
+                compareSnapshotDigests(rc.zxid);
+            } else {
+                // only start recording digest when we're not in fuzzy state
+                logZxidDigest(rc.zxid, getTreeDigest());
+            }
+        }
+
+        return rc;
+    }
+
+    /**
+     * Apply the changes of a txn to the nodes, without advancing the
+     * lastProcessedZxid or logging the digest.
+     */
+    private ProcessTxnResult applyTxn(TxnHeader header, Record txn) {
         ProcessTxnResult rc = new ProcessTxnResult();
 
         try {
@@ -1064,48 +1268,6 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTx
             LOG.debug("Ignoring processTxn failure hdr: {} : error: {}", header.getType(), rc.err);
         }
 
-        /*
-         * Things we can only update after the whole txn is applied to data
-         * tree.
-         *
-         * If we update the lastProcessedZxid with the first sub txn in multi
-         * and there is a snapshot in progress, it's possible that the zxid
-         * associated with the snapshot only include partial of the multi op.
-         *
-         * When loading snapshot, it will only load the txns after the zxid
-         * associated with snapshot file, which could cause data inconsistency
-         * due to missing sub txns.
-         *
-         * To avoid this, we only update the lastProcessedZxid when the whole
-         * multi-op txn is applied to DataTree.
-         */
-        if (!isSubTxn) {
-            /*
-             * A snapshot might be in progress while we are modifying the data
-             * tree. If we set lastProcessedZxid prior to making corresponding
-             * change to the tree, then the zxid associated with the snapshot
-             * file will be ahead of its contents. Thus, while restoring from
-             * the snapshot, the restore method will not apply the transaction
-             * for zxid associated with the snapshot file, since the restore
-             * method assumes that transaction to be present in the snapshot.
-             *
-             * To avoid this, we first apply the transaction and then modify
-             * lastProcessedZxid.  During restore, we correctly handle the
-             * case where the snapshot contains data ahead of the zxid associated
-             * with the file.
-             */
-            if (rc.zxid > lastProcessedZxid) {
-                lastProcessedZxid = rc.zxid;
-            }
-
-            if (digestFromLoadedSnapshot != null) {
-                compareSnapshotDigests(rc.zxid);
-            } else {
-                // only start recording digest when we're not in fuzzy state
-                logZxidDigest(rc.zxid, getTreeDigest());
-            }
-        }
-
         return rc;
     }
 
@@ -1196,7 +1358,7 @@ private void getCounts(String path, Counts counts) {
         int len;
         synchronized (node) {
             children = node.getChildren().toArray(new String[0]);
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1226,9 +1388,10 @@ private void updateQuotaForPath(String path) {
         }
         synchronized (node) {
             nodes.preChange(statPath, node);
-            node.data = statsTrack.getStatsBytes();
+            node.setData(statsTrack.getStatsBytes(), null);
             nodes.postChange(statPath, node);
         }
+        markDirty(statPath);
     }
 
     /**
@@ -1283,6 +1446,14 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+        serializeNode(oa, path, null);
+    }
+
+    /**
+     * @param chunks the writer splitting the nodes in chunks, oa being its
+     *               archive, or null when the nodes are written as a stream
+     */
+    private void serializeNode(OutputArchive oa, StringBuilder path, NodeChunkWriter chunks) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
         if (node == null) {
@@ -1294,18 +1465,21 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             StatPersisted statCopy = new StatPersisted();
             copyStatPersisted(node.stat, statCopy);
             //we do not need to make a copy of node.data because the contents
-            //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
+            //are never changed, only off-heap data is copied to the heap
+            nodeCopy = new DataNode(node.getData(), node.acl, statCopy);
             children = node.getChildren().toArray(new String[0]);
         }
         serializeNodeData(oa, pathString, nodeCopy);
+        if (chunks != null) {
+            chunks.nodeWritten();
+        }
         path.append('/');
         int off = path.length();
         for (String child : children) {
             // Since this is single buffer being reused, we need to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
-            serializeNode(oa, path);
+            serializeNode(oa, path, chunks);
         }
     }
 
@@ -1328,48 +1502,263 @@ public void serializeNodes(OutputArchive oa) throws IOException {
         }
     }
 
+    /**
+     * Serialize the nodes in chunks of about chunkSize bytes. Every chunk is
+     * written as its node count, the serialized nodes and their CRC32, and
+     * a chunk without nodes marks the end of the nodes. This allows the
+     * chunks to be decoded independently by {@link #deserializeChunked}.
+     */
+    public void serializeNodesChunked(OutputArchive oa, int chunkSize) throws IOException {
+        NodeChunkWriter chunks = new NodeChunkWriter(oa, chunkSize);
+        serializeNode(chunks.archive, new StringBuilder(), chunks);
+        chunks.flush();
+        // we need to check if clear had been called in between the snapshot.
+        if (root != null) {
+            oa.writeInt(0, "count");
+        }
+    }
+
     public void serialize(OutputArchive oa, String tag) throws IOException {
         serializeAcls(oa);
         serializeNodes(oa);
     }
 
-    public void deserialize(InputArchive ia, String tag) throws IOException {
-        aclCache.deserialize(ia);
+    /**
+     * Same as {@link #serialize(OutputArchive, String)}, with the nodes
+     * written by {@link #serializeNodesChunked(OutputArchive, int)}.
+     */
+    public void serializeChunked(OutputArchive oa, String tag, int chunkSize) throws IOException {
+        serializeAcls(oa);
+        serializeNodesChunked(oa, chunkSize);
+    }
+
+    /**
+     * Drop the nodes and what is derived from them before loading a snapshot,
+     * which may be a retry after a partially loaded corrupt snapshot.
+     */
+    private void clearNodes() {
+        releaseOffHeapData();
         nodes.clear();
         pTrie.clear();
         nodeDataSize.set(0);
+        ephemerals.clear();
+        containers.clear();
+        ttls.clear();
+    }
+
+    public void deserialize(InputArchive ia, String tag) throws IOException {
+        aclCache.deserialize(ia);
+        clearNodes();
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
-            synchronized (node) {
-                aclCache.addUsage(node.acl);
+            prepareDeserializedNode(path, node);
+            try {
+                linkDeserializedNode(path, node);
+            } catch (IOException e) {
+                node.discardData();
+                throw e;
             }
-            int lastSlash = path.lastIndexOf('/');
-            if (lastSlash == -1) {
-                root = node;
-            } else {
-                String parentPath = path.substring(0, lastSlash);
-                DataNode parent = nodes.get(parentPath);
-                if (parent == null) {
-                    throw new IOException(
-                            "Invalid Datatree, unable to find parent " + parentPath + " of path " + path);
+            path = ia.readString("path");
+        }
+        finishDeserialize();
+    }
+
+    /**
+     * Same as {@link #deserialize(InputArchive, String)} for the trees written
+     * by {@link #serializeChunked(OutputArchive, String, int)}. The chunks are
+     * read on this thread and decoded on a pool of the given number of
+     * threads, while the decoded chunks are linked into the tree in order.
+     */
+    public void deserializeChunked(InputArchive ia, String tag, int threads) throws IOException {
+        aclCache.deserialize(ia);
+        clearNodes();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Deque<Future<NodeChunk>> decoding = new ArrayDeque<>();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        boolean loaded = false;
+        try {
+            int count = ia.readInt("count");
+            while (count > 0) {
+                final int nodeCount = count;
+                final byte[] chunk = ia.readBuffer("chunk");
+                final long checksum = ia.readLong("checksum");
+                decoding.add(pool.submit(() -> abandoned.get() ? null : decodeNodeChunk(chunk, nodeCount, checksum)));
+                // bound the decoded chunks kept in memory
+                if (decoding.size() > threads * 2) {
+                    linkNodeChunk(decoding.poll());
                 }
-                parent.addChild(path.substring(lastSlash + 1));
-                long owner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(owner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (owner != 0) {
-                    HashSet<String> list = ephemerals.computeIfAbsent(owner, k -> new HashSet<>());
-                    list.add(path);
+                count = ia.readInt("count");
+            }
+            while (!decoding.isEmpty()) {
+                linkNodeChunk(decoding.poll());
+            }
+            loaded = true;
+        } finally {
+            // on failure, skip the chunks not decoded yet and wait for the
+            // ones being decoded, so that they don't touch the tree once it's
+            // reused to load an older snapshot, then release their slots
+            abandoned.set(!loaded);
+            pool.shutdown();
+            awaitTermination(pool);
+            for (Future<NodeChunk> future : decoding) {
+                discardNodeChunk(future);
+            }
+        }
+        finishDeserialize();
+    }
+
+    private static void awaitTermination(ForkJoinPool pool) throws IOException {
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Waiting for the snapshot chunks to be decoded");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding snapshot", e);
+        }
+    }
+
+    private NodeChunk decodeNodeChunk(byte[] chunk, int count, long checksum) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(chunk);
+        if (crc.getValue() != checksum) {
+            throw new IOException("CRC corruption in snapshot chunk");
+        }
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(chunk));
+        NodeChunk decoded = new NodeChunk(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                String path = ia.readString("path");
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                decoded.paths[i] = path;
+                decoded.nodes[i] = node;
+                prepareDeserializedNode(path, node);
+                // cache the digest now, so that it's not computed when linking
+                digestCalculator.calculateDigest(path, node);
+            }
+        } catch (IOException | RuntimeException e) {
+            decoded.discardData(0);
+            throw e;
+        }
+        return decoded;
+    }
+
+    private void linkNodeChunk(Future<NodeChunk> future) throws IOException {
+        NodeChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to decode snapshot chunk", e.getCause());
+        }
+        for (int i = 0; i < chunk.paths.length; i++) {
+            try {
+                linkDeserializedNode(chunk.paths[i], chunk.nodes[i]);
+            } catch (IOException e) {
+                // the nodes linked before are released with the tree
+                chunk.discardData(i);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Release the off-heap slots of a chunk which won't be linked.
+     */
+    private static void discardNodeChunk(Future<NodeChunk> future) {
+        NodeChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            // a chunk which failed to decode released its own slots
+            return;
+        }
+        if (chunk != null) {
+            chunk.discardData(0);
+        }
+    }
+
+    /**
+     * Do the part of loading a node which doesn't depend on the other nodes,
+     * which is thread safe.
+     */
+    private void prepareDeserializedNode(String path, DataNode node) {
+        if (offHeapDataStore != null) {
+            node.setData(node.data, offHeapDataStore);
+        }
+        synchronized (node) {
+            aclCache.addUsage(node.acl);
+        }
+        if (path.lastIndexOf('/') == -1) {
+            return;
+        }
+        trackNodeOwner(path, node.stat.getEphemeralOwner());
+    }
+
+    private void trackNodeOwner(String path, long owner) {
+        EphemeralType ephemeralType = EphemeralType.get(owner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.add(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.add(path);
+        } else if (owner != 0) {
+            HashSet<String> list = ephemerals.computeIfAbsent(owner, k -> new HashSet<>());
+            synchronized (list) {
+                list.add(path);
+            }
+        }
+    }
+
+    private void untrackNodeOwner(String path, long owner) {
+        EphemeralType ephemeralType = EphemeralType.get(owner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.remove(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.remove(path);
+        } else if (owner != 0) {
+            Set<String> nodes = ephemerals.get(owner);
+            if (nodes != null) {
+                synchronized (nodes) {
+                    nodes.remove(path);
                 }
             }
-            path = ia.readString("path");
         }
+    }
+
+    /**
+     * Add a loaded node to the tree, its parent must have been added before.
+     */
+    private void linkDeserializedNode(String path, DataNode node) throws IOException {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            nodes.put(path, node);
+            root = node;
+        } else {
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException(
+                        "Invalid Datatree, unable to find parent " + parentPath + " of path " + path);
+            }
+            // add the child name before the node, so the compact node
+            // map can share it with the parent
+            parent.addChild(path.substring(lastSlash + 1));
+            nodes.put(path, node);
+        }
+    }
+
+    private void finishDeserialize() {
         // have counted digest for root node with "", ignore here to avoid
         // counting twice for root node
         nodes.putWithoutDigest("/", root);
@@ -1384,6 +1773,320 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.purgeUnused();
     }
 
+    /**
+     * Buffers the serialized nodes and writes them as a chunk when the
+     * buffer reaches the chunk size.
+     */
+    private static class NodeChunkWriter {
+
+        private final OutputArchive oa;
+        private final int chunkSize;
+        private final ByteArrayOutputStream buffer;
+        final OutputArchive archive;
+        private int count;
+
+        NodeChunkWriter(OutputArchive oa, int chunkSize) {
+            this.oa = oa;
+            this.chunkSize = chunkSize;
+            this.buffer = new ByteArrayOutputStream(chunkSize + chunkSize / 4);
+            this.archive = BinaryOutputArchive.getArchive(buffer);
+        }
+
+        void nodeWritten() throws IOException {
+            count++;
+            if (buffer.size() >= chunkSize) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            byte[] chunk = buffer.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(chunk);
+            oa.writeInt(count, "count");
+            oa.writeBuffer(chunk, "chunk");
+            oa.writeLong(crc.getValue(), "checksum");
+            buffer.reset();
+            count = 0;
+        }
+
+    }
+
+    private static class NodeChunk {
+
+        final String[] paths;
+        final DataNode[] nodes;
+
+        NodeChunk(int count) {
+            paths = new String[count];
+            nodes = new DataNode[count];
+        }
+
+        void discardData(int from) {
+            for (int i = from; i < nodes.length; i++) {
+                if (nodes[i] != null) {
+                    nodes[i].discardData();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Start tracking the paths changed in the tree, or start a new set of
+     * changed paths if they are already tracked.
+     *
+     * @return the paths changed since the previous call, or null if the
+     * changes were not tracked
+     */
+    public Set<String> resetDirtyPaths() {
+        Set<String> previous = dirtyPaths;
+        dirtyPaths = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        return previous;
+    }
+
+    private void markDirty(String path) {
+        Set<String> dirty = dirtyPaths;
+        if (dirty == null) {
+            return;
+        }
+        // the root is kept as "" in the snapshots
+        if (rootZookeeper.equals(path)) {
+            path = "";
+        }
+        dirty.add(path);
+        // the set might have been reset by a snapshot in between, make sure
+        // the change is not missed by the next one
+        Set<String> current = dirtyPaths;
+        if (current != dirty) {
+            current.add(path);
+        }
+    }
+
+    /**
+     * Serialize the current state of the given paths, the paths of the
+     * deleted nodes are written without a node. Parents are written before
+     * their children, so the nodes can be applied in order by
+     * {@link #applyDeltas(List)}.
+     */
+    public void serializeDelta(OutputArchive oa, Set<String> paths) throws IOException {
+        String[] sorted = paths.toArray(new String[0]);
+        Arrays.sort(sorted);
+        oa.writeInt(sorted.length, "count");
+        for (String path : sorted) {
+            oa.writeString(path, "path");
+            DataNode node = getNode(path);
+            if (node == null) {
+                oa.writeBool(false, "exists");
+                continue;
+            }
+            byte[] data;
+            List<ACL> acl;
+            StatPersisted stat = new StatPersisted();
+            synchronized (node) {
+                data = node.getData();
+                acl = aclCache.convertLong(node.acl);
+                copyStatPersisted(node.stat, stat);
+            }
+            oa.writeBool(true, "exists");
+            oa.writeBuffer(data, "data");
+            oa.startVector(acl, "acl");
+            if (acl != null) {
+                for (ACL entry : acl) {
+                    oa.writeRecord(entry, "aclEntry");
+                }
+            }
+            oa.endVector(acl, "acl");
+            oa.writeRecord(stat, "stat");
+        }
+        ZxidDigest zxidDigest = ZooKeeperServer.isDigestEnabled() ? lastProcessedZxidDigest : null;
+        oa.writeBool(zxidDigest != null, "hasDigest");
+        if (zxidDigest != null) {
+            zxidDigest.serialize(oa);
+        }
+    }
+
+    /**
+     * Read the nodes written by {@link #serializeDelta(OutputArchive, Set)},
+     * without changing the tree.
+     *
+     * @param zxid the zxid of the delta snapshot
+     */
+    public Delta deserializeDelta(InputArchive ia, long zxid) throws IOException {
+        int count = ia.readInt("count");
+        List<DeltaNode> deltaNodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String path = ia.readString("path");
+            if (!ia.readBool("exists")) {
+                deltaNodes.add(new DeltaNode(path, null, null, null));
+                continue;
+            }
+            byte[] data = ia.readBuffer("data");
+            List<ACL> acl = null;
+            Index index = ia.startVector("acl");
+            if (index != null) {
+                acl = new ArrayList<>();
+                while (!index.done()) {
+                    ACL entry = new ACL();
+                    ia.readRecord(entry, "aclEntry");
+                    acl.add(entry);
+                    index.incr();
+                }
+            }
+            ia.endVector("acl");
+            StatPersisted stat = new StatPersisted();
+            ia.readRecord(stat, "stat");
+            deltaNodes.add(new DeltaNode(path, data, acl, stat));
+        }
+        ZxidDigest zxidDigest = null;
+        if (ia.readBool("hasDigest")) {
+            zxidDigest = new ZxidDigest();
+            zxidDigest.deserialize(ia);
+            // same as for the snapshots, a digest older than the delta
+            // can't be compared
+            if (zxidDigest.zxid < zxid) {
+                zxidDigest = null;
+            }
+        }
+        return new Delta(deltaNodes, zxidDigest);
+    }
+
+    /**
+     * Layer the given deltas, oldest first, onto the tree loaded from the
+     * snapshot they were taken after.
+     */
+    public void applyDeltas(List<Delta> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        for (Delta delta : deltas) {
+            for (DeltaNode deltaNode : delta.nodes) {
+                applyDeltaNode(deltaNode);
+            }
+        }
+        nodeDataSize.set(approximateDataSize());
+        pTrie.clear();
+        setupQuota();
+        aclCache.purgeUnused();
+        if (ZooKeeperServer.isDigestEnabled()) {
+            digestFromLoadedSnapshot = deltas.get(deltas.size() - 1).digest;
+        }
+    }
+
+    private void applyDeltaNode(DeltaNode deltaNode) {
+        String path = deltaNode.path;
+        DataNode node = nodes.get(path);
+        if (deltaNode.stat == null) {
+            if (node != null && !path.isEmpty()) {
+                removeSubtree(path, node);
+            }
+            return;
+        }
+        Long acl = aclCache.convertAcls(deltaNode.acl);
+        if (node != null) {
+            long owner;
+            synchronized (node) {
+                owner = node.stat.getEphemeralOwner();
+                aclCache.removeUsage(node.acl);
+                nodes.preChange(path, node);
+                node.acl = acl;
+                node.setData(deltaNode.data, offHeapDataStore);
+                copyStatPersisted(deltaNode.stat, node.stat);
+                nodes.postChange(path, node);
+            }
+            if (!path.isEmpty()) {
+                untrackNodeOwner(path, owner);
+                trackNodeOwner(path, deltaNode.stat.getEphemeralOwner());
+            }
+            return;
+        }
+        int lastSlash = path.lastIndexOf('/');
+        String parentPath = path.substring(0, lastSlash);
+        DataNode parent = nodes.get(parentPath);
+        if (parent == null) {
+            // the parent was deleted by the time it was written, the node
+            // will be recreated when replaying the txns after the delta
+            LOG.debug("Skipping node {} of delta snapshot, its parent doesn't exist", path);
+            aclCache.removeUsage(acl);
+            return;
+        }
+        DataNode child = new DataNode(deltaNode.data, acl, deltaNode.stat);
+        if (offHeapDataStore != null) {
+            child.setData(deltaNode.data, offHeapDataStore);
+        }
+        synchronized (parent) {
+            parent.addChild(path.substring(lastSlash + 1));
+        }
+        nodes.put(path, child);
+        trackNodeOwner(path, deltaNode.stat.getEphemeralOwner());
+    }
+
+    private void removeSubtree(String path, DataNode node) {
+        String[] children;
+        synchronized (node) {
+            children = node.getChildren().toArray(new String[0]);
+        }
+        for (String child : children) {
+            String childPath = path + "/" + child;
+            DataNode childNode = nodes.get(childPath);
+            if (childNode != null) {
+                removeSubtree(childPath, childNode);
+            }
+        }
+        int lastSlash = path.lastIndexOf('/');
+        DataNode parent = nodes.get(path.substring(0, lastSlash));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.removeChild(path.substring(lastSlash + 1));
+            }
+        }
+        nodes.remove(path);
+        synchronized (node) {
+            aclCache.removeUsage(node.acl);
+            node.releaseData();
+        }
+        untrackNodeOwner(path, node.stat.getEphemeralOwner());
+    }
+
+    /**
+     * The nodes of a delta snapshot, read by {@link #deserializeDelta}.
+     */
+    public static class Delta {
+
+        private final List<DeltaNode> nodes;
+        private final ZxidDigest digest;
+
+        Delta(List<DeltaNode> nodes, ZxidDigest digest) {
+            this.nodes = nodes;
+            this.digest = digest;
+        }
+
+        public int size() {
+            return nodes.size();
+        }
+
+    }
+
+    private static class DeltaNode {
+
+        final String path;
+        final byte[] data;
+        final List<ACL> acl;
+        // null if the node was deleted
+        final StatPersisted stat;
+
+        DeltaNode(String path, byte[] data, List<ACL> acl, StatPersisted stat) {
+            this.path = path;
+            this.data = data;
+            this.acl = acl;
+            this.stat = stat;
+        }
+
+    }
+
     /**
      * Summary of the watches on the datatree.
      * @param writer the output to write to
@@ -1456,6 +2159,19 @@ public void shutdownWatcher() {
         childWatches.shutdown();
     }
 
+    /**
+     * Return the off-heap slots of all the nodes to their store, called once
+     * this tree is discarded so that the store can be reused by a new tree.
+     */
+    public void releaseOffHeapData() {
+        if (offHeapDataStore == null) {
+            return;
+        }
+        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
+            entry.getValue().discardData();
+        }
+    }
+
     /**
      * Returns a mapping of session ID to ephemeral znodes.
      *
@@ -1551,6 +2267,7 @@ public void setCversionPzxid(String path, int newCversion, long zxid) throws NoN
                 nodes.postChange(path, node);
             }
         }
+        markDirty(path);
     }
 
     public boolean containsWatcher(String path, WatcherType type, Watcher watcher) {
@@ -55,6 +55,15 @@ public class DigestCalculator {
      * @return the digest calculated from the given params
      */
     long calculateDigest(String path, byte[] data, StatPersisted stat) {
+        return calculateDigest(path, data == null ? null : ByteBuffer.wrap(data), stat);
+    }
+
+    /**
+     * Same as {@link #calculateDigest(String, byte[], StatPersisted)}, with
+     * the data in a ByteBuffer so that off-heap payloads don't need to be
+     * copied to the heap.
+     */
+    long calculateDigest(String path, ByteBuffer data, StatPersisted stat) {
 
         if (!ZooKeeperServer.isDigestEnabled()) {
             return 0;
@@ -97,7 +106,7 @@ long calculateDigest(String path, byte[] data, StatPersisted stat) {
         CRC32 crc = new CRC32();
         crc.update(path.getBytes());
         if (data != null) {
-            crc.update(data);
+            crc.update(data.duplicate());
         }
         crc.update(b);
         return crc.getValue();
@@ -108,7 +117,16 @@ long calculateDigest(String path, byte[] data, StatPersisted stat) {
      */
     long calculateDigest(String path, DataNode node) {
         if (!node.isDigestCached()) {
-            node.setDigest(calculateDigest(path, node.getData(), node.stat));
+            OffHeapDataStore.Slot slot = node.retainDataSlot();
+            if (slot == null) {
+                node.setDigest(calculateDigest(path, node.getData(), node.stat));
+            } else {
+                try {
+                    node.setDigest(calculateDigest(path, slot.view(), node.stat));
+                } finally {
+                    slot.release();
+                }
+            }
             node.setDigestCached(true);
         }
         return node.getDigest();
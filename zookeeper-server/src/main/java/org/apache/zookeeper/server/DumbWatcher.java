@@ -63,6 +63,7 @@ public void close(DisconnectReason reason) {
     @Override
     public int sendResponse(ReplyHeader h, Record r, String tag,
                              String cacheKey, Stat stat, int opCode) throws IOException {
+        releaseResponse(r);
         return 0;
     }
 
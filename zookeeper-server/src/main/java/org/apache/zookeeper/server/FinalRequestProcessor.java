@@ -94,17 +94,40 @@
  * This RequestProcessor counts on ZooKeeperServer to populate the
  * outstandingRequests member of ZooKeeperServer.
  */
-public class FinalRequestProcessor implements RequestProcessor {
+public class FinalRequestProcessor implements ApplyAheadProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(FinalRequestProcessor.class);
 
+    /**
+     * The number of threads applying the txns of consecutive committed
+     * requests which don't conflict, see {@link ParallelTxnApplier}. 0 applies
+     * them one at a time.
+     */
+    public static final String APPLY_NUM_THREADS = "zookeeper.finalRequestProcessor.numApplyThreads";
+
+    private static final int numApplyThreads = Integer.getInteger(APPLY_NUM_THREADS, 0);
+
+    static {
+        LOG.info("{} = {}", APPLY_NUM_THREADS, numApplyThreads);
+    }
+
     private final RequestPathMetricsCollector requestPathMetricsCollector;
 
+    private final ParallelTxnApplier txnApplier;
+
     ZooKeeperServer zks;
 
     public FinalRequestProcessor(ZooKeeperServer zks) {
         this.zks = zks;
         this.requestPathMetricsCollector = zks.getRequestPathMetricsCollector();
+        this.txnApplier = numApplyThreads > 0 ? new ParallelTxnApplier(zks, numApplyThreads) : null;
+    }
+
+    @Override
+    public void applyAhead(List<Request> committedRequests) throws RequestProcessorException {
+        if (txnApplier != null && committedRequests.size() > 1) {
+            txnApplier.applyAhead(committedRequests);
+        }
     }
 
     private ProcessTxnResult applyRequest(Request request) {
@@ -281,7 +304,7 @@ public void processRequest(Request request) {
                             subResult = new GetChildrenResult(((GetChildrenResponse) rec).getChildren());
                             break;
                         case OpCode.getData:
-                            rec = handleGetDataRequest(readOp.toRequestRecord(), cnxn, request.authInfo);
+                            rec = handleGetDataRequest(readOp.toRequestRecord(), cnxn, request.authInfo, false);
                             GetDataResponse gdr = (GetDataResponse) rec;
                             subResult = new GetDataResult(gdr.getData(), gdr.getStat());
                             break;
@@ -375,7 +398,7 @@ public void processRequest(Request request) {
                 lastOp = "GETD";
                 GetDataRequest getDataRequest = request.readRequestRecord(GetDataRequest::new);
                 path = getDataRequest.getPath();
-                rsp = handleGetDataRequest(getDataRequest, cnxn, request.authInfo);
+                rsp = handleGetDataRequest(getDataRequest, cnxn, request.authInfo, true);
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -630,7 +653,11 @@ private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id
         return new GetChildrenResponse(children);
     }
 
-    private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException, IOException {
+    /**
+     * @param zeroCopy whether the response may refer to data kept off-heap
+     *                 instead of a copy, only when it's sent as is
+     */
+    private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> authInfo, boolean zeroCopy) throws KeeperException, IOException {
         GetDataRequest getDataRequest = (GetDataRequest) request;
         String path = getDataRequest.getPath();
         DataNode n = zks.getZKDatabase().getNode(path);
@@ -638,6 +665,9 @@ private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> au
             throw new KeeperException.NoNodeException();
         }
         zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(n), ZooDefs.Perms.READ, authInfo, path, null);
+        if (zeroCopy) {
+            return zks.getZKDatabase().getDataResponse(path, getDataRequest.getWatch() ? cnxn : null);
+        }
         Stat stat = new Stat();
         byte[] b = zks.getZKDatabase().getData(path, stat, getDataRequest.getWatch() ? cnxn : null);
         return new GetDataResponse(b, stat);
@@ -656,6 +686,9 @@ private boolean connClosedByClient(Request request) {
 
     public void shutdown() {
         // we are the final link in the chain
+        if (txnApplier != null) {
+            txnApplier.shutdown();
+        }
         LOG.info("shutdown of request processor complete");
     }
 
@@ -76,6 +76,10 @@ public class NIOServerCnxn extends ServerCnxn {
 
     private final Queue<ByteBuffer> outgoingBuffers = new LinkedBlockingQueue<>();
 
+    // callbacks of the queued packets which need to know when they are sent,
+    // in the order of their callbackSentinel in outgoingBuffers
+    private final Queue<Runnable> sentCallbacks = new LinkedBlockingQueue<>();
+
     private int sessionTimeout;
 
     /**
@@ -155,6 +159,33 @@ public void sendBuffer(ByteBuffer... buffers) {
         requestInterestOpsUpdate();
     }
 
+    @Override
+    void sendBuffer(Runnable onSent, ByteBuffer... buffers) {
+        synchronized (outgoingBuffers) {
+            if (sock.isOpen()) {
+                sentCallbacks.add(onSent);
+                for (ByteBuffer buffer : buffers) {
+                    outgoingBuffers.add(buffer);
+                }
+                outgoingBuffers.add(packetSentinel);
+                outgoingBuffers.add(callbackSentinel);
+                onSent = null;
+            }
+        }
+        if (onSent != null) {
+            onSent.run();
+            return;
+        }
+        requestInterestOpsUpdate();
+    }
+
+    private void runSentCallback() {
+        Runnable onSent = sentCallbacks.poll();
+        if (onSent != null) {
+            onSent.run();
+        }
+    }
+
     /**
      * When read on socket failed, this is typically because client closed the
      * connection. In most cases, the client does this when the server doesn't
@@ -173,18 +204,28 @@ private void handleFailedRead() throws EndOfStreamException {
                                        DisconnectReason.UNABLE_TO_READ_FROM_CLIENT);
     }
 
-    /** Read the request payload (everything following the length prefix) */
+    /**
+     * Read the request payload (everything following the length prefix).
+     * Once the connection is established, keep reading the requests that are
+     * already available on the socket, up to maxRequestsPerRead per read
+     * event, instead of waiting for the selector to report them one by one.
+     */
     private void readPayload() throws IOException, InterruptedException, ClientCnxnLimitException {
-        if (incomingBuffer.remaining() != 0) { // have we read length bytes?
-            int rc = sock.read(incomingBuffer); // sock is non-blocking, so ok
-            if (rc < 0) {
-                handleFailedRead();
+        int requests = 0;
+        while (true) {
+            if (incomingBuffer.remaining() != 0) { // have we read length bytes?
+                int rc = sock.read(incomingBuffer); // sock is non-blocking, so ok
+                if (rc < 0) {
+                    handleFailedRead();
+                }
             }
-        }
 
-        if (incomingBuffer.remaining() == 0) { // have we read length bytes?
+            if (incomingBuffer.remaining() != 0) {
+                return;
+            }
             incomingBuffer.flip();
             packetReceived(4 + incomingBuffer.remaining());
+            boolean wasInitialized = initialized;
             if (!initialized) {
                 readConnectRequest();
             } else {
@@ -192,6 +233,17 @@ private void readPayload() throws IOException, InterruptedException, ClientCnxnL
             }
             lenBuffer.clear();
             incomingBuffer = lenBuffer;
+
+            if (++requests >= factory.maxRequestsPerRead || !wasInitialized
+                || !getReadInterest() || !isSocketOpen()) {
+                return;
+            }
+            // a closed stream is reported by the next read event
+            if (sock.read(lenBuffer) < 0 || lenBuffer.remaining() != 0) {
+                return;
+            }
+            lenBuffer.flip();
+            readLength(sk);
         }
     }
 
@@ -248,6 +300,9 @@ void handleWrite(SelectionKey k) throws IOException {
                 if (bb == packetSentinel) {
                     packetSent();
                 }
+                if (bb == callbackSentinel) {
+                    runSentCallback();
+                }
                 if (bb.remaining() > 0) {
                     break;
                 }
@@ -297,6 +352,9 @@ void handleWrite(SelectionKey k) throws IOException {
                 if (bb == packetSentinel) {
                     packetSent();
                 }
+                if (bb == callbackSentinel) {
+                    runSentCallback();
+                }
                 if (sent < bb.remaining()) {
                     /*
                      * We only partially sent this buffer, so we update
@@ -621,6 +679,12 @@ private void close() {
         }
 
         closeSock();
+
+        // the queued packets won't be sent
+        Runnable onSent;
+        while ((onSent = sentCallbacks.poll()) != null) {
+            onSent.run();
+        }
     }
 
     /**
@@ -683,6 +747,8 @@ public static void closeSock(SocketChannel sock) {
 
     private static final ByteBuffer packetSentinel = ByteBuffer.allocate(0);
 
+    private static final ByteBuffer callbackSentinel = ByteBuffer.allocate(0);
+
     @Override
     public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, Stat stat, int opCode) {
         int responseSize = 0;
@@ -690,9 +756,10 @@ public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, St
             ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
             responseSize = bb[0].getInt();
             bb[0].rewind();
-            sendBuffer(bb);
+            sendResponseBuffers(r, bb);
             decrOutstandingAndCheckThrottle(h);
         } catch (Exception e) {
+            releaseResponse(r);
             LOG.warn("Unexpected exception. Destruction averted.", e);
         }
         return responseSize;
@@ -23,6 +23,8 @@
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -33,6 +35,7 @@
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -46,8 +49,11 @@
  * NIO non-blocking socket calls. Communication between threads is handled via
  * queues.
  *
- *   - 1   accept thread, which accepts new connections and assigns to a
- *         selector thread
+ *   - 1-K accept threads, which accept new connections and assign them to a
+ *         selector thread. With K accept shards, K listen sockets are bound
+ *         to the client port with SO_REUSEPORT so that the kernel spreads the
+ *         incoming connections across them, and each accept thread assigns
+ *         its connections to its own share of the selector threads.
  *   - 1-N selector threads, each of which selects on 1/N of the connections.
  *         The reason the factory supports more than one selector thread is that
  *         with large numbers of connections, select() itself can become a
@@ -80,6 +86,18 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     public static final String ZOOKEEPER_NIO_DIRECT_BUFFER_BYTES = "zookeeper.nio.directBufferBytes";
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT = "zookeeper.nio.shutdownTimeout";
+    /**
+     * Default: 1. Number of listen sockets bound with SO_REUSEPORT, each with
+     * its own accept thread and share of the selector threads. Only used on
+     * Linux, with a JVM supporting SO_REUSEPORT.
+     */
+    public static final String ZOOKEEPER_NIO_NUM_ACCEPT_SHARDS = "zookeeper.nio.numAcceptShards";
+    /**
+     * Default: 1. Maximum number of requests read from a connection per read
+     * event, as long as the connection has complete requests available and is
+     * not throttled.
+     */
+    public static final String ZOOKEEPER_NIO_MAX_REQUESTS_PER_READ = "zookeeper.nio.maxRequestsPerRead";
 
     static {
         Thread.setDefaultUncaughtExceptionHandler((t, e) -> LOG.error("Thread {} died", t, e));
@@ -151,11 +169,11 @@ protected void fastCloseSock(SocketChannel sc) {
     }
 
     /**
-     * There is a single AcceptThread which accepts new connections and assigns
-     * them to a SelectorThread using a simple round-robin scheme to spread
-     * them across the SelectorThreads. It enforces maximum number of
-     * connections per IP and attempts to cope with running out of file
-     * descriptors by briefly sleeping before retrying.
+     * There is an AcceptThread per accept shard which accepts new connections
+     * and assigns them to a SelectorThread of the shard using a simple
+     * round-robin scheme to spread them across the SelectorThreads. It
+     * enforces maximum number of connections per IP and attempts to cope with
+     * running out of file descriptors by briefly sleeping before retrying.
      */
     private class AcceptThread extends AbstractSelectThread {
 
@@ -165,9 +183,12 @@ private class AcceptThread extends AbstractSelectThread {
         private final Collection<SelectorThread> selectorThreads;
         private Iterator<SelectorThread> selectorIterator;
         private volatile boolean reconfiguring = false;
+        // the key of the metrics of the shard
+        private final String shard;
 
-        public AcceptThread(ServerSocketChannel ss, InetSocketAddress addr, Set<SelectorThread> selectorThreads) throws IOException {
-            super("NIOServerCxnFactory.AcceptThread:" + addr);
+        public AcceptThread(ServerSocketChannel ss, InetSocketAddress addr, int shard, Collection<SelectorThread> selectorThreads) throws IOException {
+            super("NIOServerCxnFactory.AcceptThread:" + addr + (shard > 0 ? "-" + shard : ""));
+            this.shard = String.valueOf(shard);
             this.acceptSocket = ss;
             this.acceptKey = acceptSocket.register(selector, SelectionKey.OP_ACCEPT);
             this.selectorThreads = Collections.unmodifiableList(new ArrayList<SelectorThread>(selectorThreads));
@@ -278,14 +299,17 @@ private boolean doAccept() {
                     selectorIterator = selectorThreads.iterator();
                 }
                 SelectorThread selectorThread = selectorIterator.next();
+                ServerMetrics.getMetrics().NIO_SELECTOR_ACCEPTED_QUEUE_SIZE.add(shard, selectorThread.acceptedQueue.size());
                 if (!selectorThread.addAcceptedConnection(sc)) {
                     throw new IOException("Unable to add connection to selector queue"
                                           + (stopped ? " (shutdown in progress)" : ""));
                 }
+                ServerMetrics.getMetrics().NIO_CONNECTIONS_ACCEPTED.add(shard, 1);
                 acceptErrorLogger.flush();
             } catch (IOException e) {
                 // accept, maxClientCnxns, configureBlocking
                 ServerMetrics.getMetrics().CONNECTION_REJECTED.add(1);
+                ServerMetrics.getMetrics().NIO_CONNECTIONS_REJECTED.add(shard, 1);
                 acceptErrorLogger.rateLimitLog("Error accepting new connection: " + e.getMessage());
                 fastCloseSock(sc);
             }
@@ -601,6 +625,7 @@ public static ByteBuffer getDirectBuffer() {
     private int numSelectorThreads;
     private int numWorkerThreads;
     private long workerShutdownTimeoutMS;
+    int maxRequestsPerRead = 1;
 
     /**
      * Construct a new server connection factory which will accept an unlimited number
@@ -612,8 +637,10 @@ public NIOServerCnxnFactory() {
 
     private volatile boolean stopped = true;
     private ConnectionExpirerThread expirerThread;
-    private AcceptThread acceptThread;
+    private final List<AcceptThread> acceptThreads = new ArrayList<>();
     private final Set<SelectorThread> selectorThreads = new HashSet<>();
+    private int numAcceptShards;
+    private SocketOption<Boolean> reusePort;
 
     @Override
     public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean secure) throws IOException {
@@ -641,13 +668,34 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
             throw new IOException("numSelectorThreads must be at least 1");
         }
 
+        numAcceptShards = Integer.getInteger(ZOOKEEPER_NIO_NUM_ACCEPT_SHARDS, 1);
+        if (numAcceptShards < 1) {
+            throw new IOException("numAcceptShards must be at least 1");
+        }
+        if (numAcceptShards > 1) {
+            reusePort = getReusePortOption();
+            if (reusePort == null) {
+                LOG.warn("SO_REUSEPORT is not supported, using 1 accept shard instead of {}", numAcceptShards);
+                numAcceptShards = 1;
+            } else if (numSelectorThreads < numAcceptShards) {
+                LOG.info("Using {} selector threads, one per accept shard", numAcceptShards);
+                numSelectorThreads = numAcceptShards;
+            }
+        }
+
         numWorkerThreads = Integer.getInteger(ZOOKEEPER_NIO_NUM_WORKER_THREADS, 2 * numCores);
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT, 5000);
+        maxRequestsPerRead = Integer.getInteger(ZOOKEEPER_NIO_MAX_REQUESTS_PER_READ, 1);
+        if (maxRequestsPerRead < 1) {
+            throw new IOException("maxRequestsPerRead must be at least 1");
+        }
 
         String logMsg = "Configuring NIO connection handler with "
             + (sessionlessCnxnTimeout / 1000) + "s sessionless connection timeout, "
+            + numAcceptShards + " accept shard(s), "
             + numSelectorThreads + " selector thread(s), "
-            + (numWorkerThreads > 0 ? numWorkerThreads : "no") + " worker threads, and "
+            + (numWorkerThreads > 0 ? numWorkerThreads : "no") + " worker threads, "
+            + maxRequestsPerRead + " request(s) per read, and "
             + (directBufferBytes == 0 ? "gathered writes." : ("" + (directBufferBytes / 1024) + " kB direct buffers."));
         LOG.info(logMsg);
         for (int i = 0; i < numSelectorThreads; ++i) {
@@ -655,20 +703,77 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
         }
 
         listenBacklog = backlog;
-        this.ss = ServerSocketChannel.open();
-        ss.socket().setReuseAddress(true);
-        LOG.info("binding to port {}", addr);
-        if (listenBacklog == -1) {
-            ss.socket().bind(addr);
-        } else {
-            ss.socket().bind(addr, listenBacklog);
+        bind(addr);
+    }
+
+    /**
+     * Open the listen sockets of the accept shards and their accept threads.
+     */
+    private void bind(InetSocketAddress addr) throws IOException {
+        acceptThreads.clear();
+        for (int shard = 0; shard < numAcceptShards; shard++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            if (numAcceptShards > 1) {
+                channel.setOption(reusePort, true);
+            }
+            LOG.info("binding to port {}", addr);
+            try {
+                if (listenBacklog == -1) {
+                    channel.socket().bind(addr);
+                } else {
+                    channel.socket().bind(addr, listenBacklog);
+                }
+            } catch (IOException e) {
+                tryClose(channel);
+                for (AcceptThread thread : acceptThreads) {
+                    tryClose(thread.acceptSocket);
+                }
+                throw e;
+            }
+            if (shard == 0) {
+                this.ss = channel;
+                if (addr.getPort() == 0) {
+                    // We're likely bound to a different port than was requested, so log that too
+                    LOG.info("bound to port {}", ss.getLocalAddress());
+                    // the other shards share the port
+                    addr = new InetSocketAddress(addr.getAddress(), ss.socket().getLocalPort());
+                }
+            }
+            channel.configureBlocking(false);
+            List<SelectorThread> shardSelectorThreads = new ArrayList<>();
+            for (SelectorThread thread : selectorThreads) {
+                if (thread.id % numAcceptShards == shard) {
+                    shardSelectorThreads.add(thread);
+                }
+            }
+            acceptThreads.add(new AcceptThread(channel, addr, shard, shardSelectorThreads));
         }
-        if (addr.getPort() == 0) {
-            // We're likely bound to a different port than was requested, so log that too
-            LOG.info("bound to port {}", ss.getLocalAddress());
+    }
+
+    /**
+     * @return the SO_REUSEPORT option if the platform spreads the connections
+     *         across the sockets sharing a port, null otherwise
+     */
+    SocketOption<Boolean> getReusePortOption() {
+        if (!System.getProperty("os.name").startsWith("Linux")) {
+            return null;
+        }
+        try {
+            // the option only exists since Java 9
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                return channel.supportedOptions().contains(option) ? option : null;
+            }
+        } catch (NoSuchFieldException | IllegalAccessException | IOException e) {
+            return null;
         }
-        ss.configureBlocking(false);
-        acceptThread = new AcceptThread(ss, addr, selectorThreads);
+    }
+
+    // for testing
+    int getNumAcceptShards() {
+        return numAcceptShards;
     }
 
     private void tryClose(ServerSocketChannel s) {
@@ -681,27 +786,28 @@ private void tryClose(ServerSocketChannel s) {
 
     @Override
     public void reconfigure(InetSocketAddress addr) {
-        ServerSocketChannel oldSS = ss;
+        List<AcceptThread> oldAcceptThreads = new ArrayList<>(acceptThreads);
         try {
-            acceptThread.setReconfiguring();
-            tryClose(oldSS);
-            acceptThread.wakeupSelector();
-            try {
-                acceptThread.join();
-            } catch (InterruptedException e) {
-                LOG.error("Error joining old acceptThread when reconfiguring client port.", e);
-                Thread.currentThread().interrupt();
+            for (AcceptThread acceptThread : oldAcceptThreads) {
+                acceptThread.setReconfiguring();
+                tryClose(acceptThread.acceptSocket);
+                acceptThread.wakeupSelector();
+                try {
+                    acceptThread.join();
+                } catch (InterruptedException e) {
+                    LOG.error("Error joining old acceptThread when reconfiguring client port.", e);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            bind(addr);
+            for (AcceptThread acceptThread : acceptThreads) {
+                acceptThread.start();
             }
-            this.ss = ServerSocketChannel.open();
-            ss.socket().setReuseAddress(true);
-            LOG.info("binding to port {}", addr);
-            ss.socket().bind(addr);
-            ss.configureBlocking(false);
-            acceptThread = new AcceptThread(ss, addr, selectorThreads);
-            acceptThread.start();
         } catch (IOException e) {
             LOG.error("Error reconfiguring client port to {}", addr, e);
-            tryClose(oldSS);
+            for (AcceptThread acceptThread : oldAcceptThreads) {
+                tryClose(acceptThread.acceptSocket);
+            }
         }
     }
 
@@ -732,8 +838,10 @@ public void start() {
             }
         }
         // ensure thread is started once and only once
-        if (acceptThread.getState() == Thread.State.NEW) {
-            acceptThread.start();
+        for (AcceptThread acceptThread : acceptThreads) {
+            if (acceptThread.getState() == Thread.State.NEW) {
+                acceptThread.start();
+            }
         }
         if (expirerThread.getState() == Thread.State.NEW) {
             expirerThread.start();
@@ -860,13 +968,12 @@ public void stop() {
         stopped = true;
 
         // Stop queuing connection attempts
-        try {
-            ss.close();
-        } catch (IOException e) {
-            LOG.warn("Error closing listen socket", e);
-        }
-
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
+            try {
+                acceptThread.acceptSocket.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing listen socket", e);
+            }
             if (acceptThread.isAlive()) {
                 acceptThread.wakeupSelector();
             } else {
@@ -915,7 +1022,7 @@ public void shutdown() {
 
     @Override
     public void join() throws InterruptedException {
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
             acceptThread.join();
         }
         for (SelectorThread thread : selectorThreads) {
@@ -20,6 +20,8 @@
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
@@ -40,6 +42,7 @@
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
@@ -188,16 +191,50 @@ public int sendResponse(ReplyHeader h, Record r, String tag,
         // cacheKey and stat are used in caching, which is not
         // implemented here. Implementation example can be found in NIOServerCnxn.
         if (closingChannel || !channel.isOpen()) {
+            releaseResponse(r);
             return 0;
         }
-        ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
-        int responseSize = bb[0].getInt();
-        bb[0].rewind();
-        sendBuffer(bb);
+        if (r instanceof OffHeapGetDataResponse || isCachedResponse(r, cacheKey, stat, opCode)) {
+            ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
+            int responseSize = bb[0].getInt();
+            bb[0].rewind();
+            sendResponseBuffers(r, bb);
+            decrOutstandingAndCheckThrottle(h);
+            return responseSize;
+        }
+        ByteBuf buf = serializeDirect(h, r);
+        int responseSize = buf.readableBytes() - 4;
+        ServerStats serverStats = serverStats();
+        if (serverStats != null) {
+            serverStats.updateClientResponseSize(responseSize);
+        }
+        channel.writeAndFlush(buf).addListener(onSendBufferDoneListener);
         decrOutstandingAndCheckThrottle(h);
         return responseSize;
     }
 
+    /**
+     * Serialize a response, length included, straight into a pooled direct
+     * buffer which is released once written to the channel.
+     */
+    private ByteBuf serializeDirect(ReplyHeader h, Record r) throws IOException {
+        ByteBuf buf = channel.alloc().directBuffer(ZooKeeperServer.intBufferStartingSizeBytes);
+        try {
+            ByteBufOutputStream out = new ByteBufOutputStream(buf);
+            // the length is filled in once the response is serialized
+            out.writeInt(0);
+            BinaryOutputArchive boa = new BinaryOutputArchive(out);
+            boa.writeRecord(h, null);
+            if (r != null) {
+                boa.writeRecord(r, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+        return buf.setInt(0, buf.readableBytes() - 4);
+    }
+
     @Override
     public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
@@ -220,6 +257,16 @@ public void sendBuffer(ByteBuffer... buffers) {
         channel.writeAndFlush(Unpooled.wrappedBuffer(buffers)).addListener(onSendBufferDoneListener);
     }
 
+    @Override
+    void sendBuffer(Runnable onSent, ByteBuffer... buffers) {
+        channel.writeAndFlush(Unpooled.wrappedBuffer(buffers)).addListener(f -> {
+            onSent.run();
+            if (f.isSuccess()) {
+                packetSent();
+            }
+        });
+    }
+
     /**
      * This class wraps the sendBuffer method of NIOServerCnxn. It is
      * responsible for chunking up the response to a client. Rather
@@ -493,47 +540,56 @@ private void receiveMessage(ByteBuf message) {
                         bb = null;
                     }
                 } else {
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("message readable {} bblenrem {}", message.readableBytes(), bbLen.remaining());
-                        ByteBuffer dat = bbLen.duplicate();
-                        dat.flip();
-                        LOG.trace("0x{} bbLen {}", Long.toHexString(sessionId), ByteBufUtil.hexDump(Unpooled.wrappedBuffer(dat)));
-                    }
+                    int len;
+                    if (bbLen.position() == 0 && message.readableBytes() >= 4) {
+                        len = message.readInt();
+                    } else {
+                        if (LOG.isTraceEnabled()) {
+                            LOG.trace("message readable {} bblenrem {}", message.readableBytes(), bbLen.remaining());
+                            ByteBuffer dat = bbLen.duplicate();
+                            dat.flip();
+                            LOG.trace("0x{} bbLen {}", Long.toHexString(sessionId), ByteBufUtil.hexDump(Unpooled.wrappedBuffer(dat)));
+                        }
 
-                    if (message.readableBytes() < bbLen.remaining()) {
-                        bbLen.limit(bbLen.position() + message.readableBytes());
-                    }
-                    message.readBytes(bbLen);
-                    bbLen.limit(bbLen.capacity());
-                    if (bbLen.remaining() == 0) {
+                        if (message.readableBytes() < bbLen.remaining()) {
+                            bbLen.limit(bbLen.position() + message.readableBytes());
+                        }
+                        message.readBytes(bbLen);
+                        bbLen.limit(bbLen.capacity());
+                        if (bbLen.remaining() != 0) {
+                            continue;
+                        }
                         bbLen.flip();
 
                         if (LOG.isTraceEnabled()) {
                             LOG.trace("0x{} bbLen {}", Long.toHexString(sessionId), ByteBufUtil.hexDump(Unpooled.wrappedBuffer(bbLen)));
                         }
-                        int len = bbLen.getInt();
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("0x{} bbLen len is {}", Long.toHexString(sessionId), len);
-                        }
-
+                        len = bbLen.getInt();
                         bbLen.clear();
-                        if (!initialized) {
-                            if (checkFourLetterWord(channel, message, len)) {
-                                return;
-                            }
-                        }
-                        if (len < 0 || len > BinaryInputArchive.maxBuffer) {
-                            throw new IOException("Len error " + len);
-                        }
-                        ZooKeeperServer zks = this.zkServer;
-                        if (zks == null || !zks.isRunning()) {
-                            LOG.info("Closing connection to {} because the server is not ready",
-                                    getRemoteSocketAddress());
-                            close(DisconnectReason.IO_EXCEPTION);
+                    }
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("0x{} bbLen len is {}", Long.toHexString(sessionId), len);
+                    }
+                    if (!initialized) {
+                        if (checkFourLetterWord(channel, message, len)) {
                             return;
                         }
-                        // checkRequestSize will throw IOException if request is rejected
-                        zks.checkRequestSizeWhenReceivingMessage(len);
+                    }
+                    if (len < 0 || len > BinaryInputArchive.maxBuffer) {
+                        throw new IOException("Len error " + len);
+                    }
+                    ZooKeeperServer zks = this.zkServer;
+                    if (zks == null || !zks.isRunning()) {
+                        LOG.info("Closing connection to {} because the server is not ready",
+                                getRemoteSocketAddress());
+                        close(DisconnectReason.IO_EXCEPTION);
+                        return;
+                    }
+                    // checkRequestSize will throw IOException if request is rejected
+                    zks.checkRequestSizeWhenReceivingMessage(len);
+                    if (message.readableBytes() >= len) {
+                        receiveFrame(zks, message, len);
+                    } else {
                         bb = ByteBuffer.allocate(len);
                     }
                 }
@@ -550,6 +606,36 @@ private void receiveMessage(ByteBuf message) {
         }
     }
 
+    /**
+     * Decode a request received whole straight from the message it came in,
+     * instead of copying it to an intermediate buffer first. Only the body of
+     * a request is copied, since it is read after the message is released.
+     * @param message the message, positioned at the request.
+     * @param len the length of the request.
+     */
+    private void receiveFrame(ZooKeeperServer zks, ByteBuf message, int len) throws IOException, ClientCnxnLimitException {
+        packetReceived(4 + len);
+        int end = message.readerIndex() + len;
+        BinaryInputArchive bia = new BinaryInputArchive(new ByteBufInputStream(message, len));
+        if (initialized) {
+            RequestHeader h = new RequestHeader();
+            h.deserialize(bia, "request");
+            byte[] body = new byte[end - message.readerIndex()];
+            message.readBytes(body);
+            zks.processPacket(this, h, RequestRecord.fromBytes(body));
+        } else {
+            LOG.debug("got conn req request from {}", getRemoteSocketAddress());
+            ConnectRequest request;
+            try {
+                request = protocolManager.deserializeConnectRequest(bia);
+            } finally {
+                message.readerIndex(end);
+            }
+            zks.processConnectRequest(this, request);
+            initialized = true;
+        }
+    }
+
     /**
      * An event that triggers a change in the channel's read setting.
      * Used for throttling. By using an enum we can treat the two values as
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A slab allocator keeping znode payloads in direct memory, so that large
+ * payloads don't end up in the old generation of the heap.
+ * <p>
+ * Payloads are rounded up to a power of two size class, and every size class
+ * carves its slots out of its own direct chunks, recycling the released slots
+ * through a free list. Payloads larger than a chunk get a dedicated direct
+ * buffer which is reclaimed by the GC once released.
+ * <p>
+ * Every {@link Slot} is reference counted. The owning {@link DataNode} holds
+ * one reference, and readers which hand the payload to the network retain
+ * another one until it has been written out, so a slot is never reused while
+ * its content is still being sent.
+ */
+public class OffHeapDataStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapDataStore.class);
+
+    public static final String OFF_HEAP_DATA_ENABLED = "zookeeper.offHeapData.enabled";
+
+    public static final String OFF_HEAP_DATA_MIN_SIZE = "zookeeper.offHeapData.minSize";
+    public static final int DEFAULT_OFF_HEAP_DATA_MIN_SIZE = 4096;
+
+    public static final String OFF_HEAP_DATA_CHUNK_SIZE = "zookeeper.offHeapData.chunkSize";
+    public static final int DEFAULT_OFF_HEAP_DATA_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final int minDataSize;
+    private final int chunkSize;
+    private final int minSizeClassShift;
+    private final SizeClass[] sizeClasses;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * @param minDataSize payloads smaller than this stay on the heap
+     * @param chunkSize the size of the direct chunks, payloads larger than
+     *                  this get a dedicated buffer
+     */
+    public OffHeapDataStore(int minDataSize, int chunkSize) {
+        if (minDataSize <= 0 || chunkSize < minDataSize) {
+            throw new IllegalArgumentException(
+                "Invalid off-heap data store sizes, minSize=" + minDataSize + " chunkSize=" + chunkSize);
+        }
+        this.minDataSize = minDataSize;
+        this.chunkSize = chunkSize;
+        this.minSizeClassShift = ceilLog2(minDataSize);
+        int maxSizeClassShift = 31 - Integer.numberOfLeadingZeros(chunkSize);
+        int count = Math.max(0, maxSizeClassShift - minSizeClassShift + 1);
+        this.sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            sizeClasses[i] = new SizeClass(1 << (minSizeClassShift + i));
+        }
+    }
+
+    /**
+     * Create the store configured by the zookeeper.offHeapData.* system
+     * properties, or return null if it is disabled.
+     */
+    public static OffHeapDataStore fromSystemProperties() {
+        if (!Boolean.getBoolean(OFF_HEAP_DATA_ENABLED)) {
+            return null;
+        }
+        int minSize = Integer.getInteger(OFF_HEAP_DATA_MIN_SIZE, DEFAULT_OFF_HEAP_DATA_MIN_SIZE);
+        int chunkSize = Integer.getInteger(OFF_HEAP_DATA_CHUNK_SIZE, DEFAULT_OFF_HEAP_DATA_CHUNK_SIZE);
+        LOG.info("Keeping znode data of at least {} bytes off-heap, {}={}", minSize, OFF_HEAP_DATA_CHUNK_SIZE, chunkSize);
+        return new OffHeapDataStore(minSize, chunkSize);
+    }
+
+    /**
+     * Copy the data into direct memory.
+     *
+     * @param data the payload
+     * @return the slot holding the payload, or null if the payload should
+     *         stay on the heap
+     */
+    public Slot store(byte[] data) {
+        if (data == null || data.length < minDataSize) {
+            return null;
+        }
+        Slot slot;
+        int index = ceilLog2(data.length) - minSizeClassShift;
+        if (index < sizeClasses.length) {
+            slot = sizeClasses[index].allocate(data.length);
+        } else {
+            reservedBytes.addAndGet(data.length);
+            slot = new Slot(this, null, ByteBuffer.allocateDirect(data.length), 0, data.length);
+        }
+        ByteBuffer dst = slot.buffer.duplicate();
+        dst.position(slot.offset);
+        dst.put(data);
+        usedBytes.addAndGet(data.length);
+        return slot;
+    }
+
+    /**
+     * @return the bytes of payload currently held by the store
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the bytes of direct memory allocated by the store
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    private void free(Slot slot) {
+        usedBytes.addAndGet(-slot.length);
+        if (slot.sizeClass != null) {
+            slot.sizeClass.free(slot);
+        } else {
+            // dedicated buffer, reclaimed by the GC
+            reservedBytes.addAndGet(-slot.length);
+        }
+    }
+
+    private static int ceilLog2(int value) {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+
+    private final class SizeClass {
+
+        private final int slotSize;
+        private final int slotsPerChunk;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        // free slots, encoded as chunk index and slot index within the chunk
+        private long[] freeSlots = new long[16];
+        private int freeCount;
+        private int nextSlot;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerChunk = chunkSize / slotSize;
+        }
+
+        synchronized Slot allocate(int length) {
+            int chunkIndex;
+            int slotIndex;
+            if (freeCount > 0) {
+                long encoded = freeSlots[--freeCount];
+                chunkIndex = (int) (encoded >>> 32);
+                slotIndex = (int) encoded;
+            } else {
+                if (chunks.isEmpty() || nextSlot == slotsPerChunk) {
+                    chunks.add(ByteBuffer.allocateDirect(slotsPerChunk * slotSize));
+                    reservedBytes.addAndGet((long) slotsPerChunk * slotSize);
+                    nextSlot = 0;
+                }
+                chunkIndex = chunks.size() - 1;
+                slotIndex = nextSlot++;
+            }
+            return new Slot(OffHeapDataStore.this, this, chunks.get(chunkIndex), chunkIndex, slotIndex, length);
+        }
+
+        synchronized void free(Slot slot) {
+            if (freeCount == freeSlots.length) {
+                long[] grown = new long[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+                freeSlots = grown;
+            }
+            freeSlots[freeCount++] = ((long) slot.chunkIndex << 32) | slot.offset / slotSize;
+        }
+
+    }
+
+    /**
+     * A reference counted payload kept in direct memory.
+     */
+    public static final class Slot {
+
+        private static final AtomicIntegerFieldUpdater<Slot> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(Slot.class, "refCnt");
+
+        private final OffHeapDataStore store;
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        private final int chunkIndex;
+        private final int offset;
+        private final int length;
+        private volatile int refCnt = 1;
+
+        private Slot(OffHeapDataStore store, SizeClass sizeClass, ByteBuffer chunk, int chunkIndex, int slotIndex, int length) {
+            this.store = store;
+            this.sizeClass = sizeClass;
+            this.buffer = chunk;
+            this.chunkIndex = chunkIndex;
+            this.offset = slotIndex * sizeClass.slotSize;
+            this.length = length;
+        }
+
+        private Slot(OffHeapDataStore store, SizeClass sizeClass, ByteBuffer buffer, int offset, int length) {
+            this.store = store;
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+            this.chunkIndex = -1;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return a copy of the payload on the heap
+         */
+        public byte[] copy() {
+            byte[] data = new byte[length];
+            ByteBuffer src = buffer.duplicate();
+            src.position(offset);
+            src.get(data);
+            return data;
+        }
+
+        /**
+         * @return a read-only view of the payload, only valid as long as a
+         *         reference to this slot is held
+         */
+        public ByteBuffer view() {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Take another reference to this slot, must be called while a
+         * reference is already held, typically under the owning node lock.
+         */
+        public void retain() {
+            if (REF_CNT.getAndIncrement(this) <= 0) {
+                throw new IllegalStateException("Retaining a released off-heap slot");
+            }
+        }
+
+        /**
+         * Drop a reference, returning the memory to the store once there
+         * are no references left.
+         */
+        public void release() {
+            int cnt = REF_CNT.decrementAndGet(this);
+            if (cnt == 0) {
+                store.free(this);
+            } else if (cnt < 0) {
+                throw new IllegalStateException("Off-heap slot released too many times");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+
+/**
+ * A GetDataResponse whose data stays in an {@link OffHeapDataStore} slot, so
+ * that the connection can write it to the socket without copying it to the
+ * heap. The response holds a reference to the slot until {@link #release()}
+ * is called, which the connection does once the response has been written
+ * out or dropped.
+ */
+public class OffHeapGetDataResponse extends GetDataResponse {
+
+    private final OffHeapDataStore.Slot slot;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    OffHeapGetDataResponse(OffHeapDataStore.Slot slot, Stat stat) {
+        super(null, stat);
+        this.slot = slot;
+    }
+
+    /**
+     * @return a read-only view of the data, valid until the response is released
+     */
+    public ByteBuffer getDataBuffer() {
+        return slot.view();
+    }
+
+    public int getDataLength() {
+        return slot.length();
+    }
+
+    @Override
+    public byte[] getData() {
+        return slot.copy();
+    }
+
+    @Override
+    public void serialize(OutputArchive a, String tag) throws IOException {
+        a.startRecord(this, tag);
+        a.writeBuffer(getData(), "data");
+        a.writeRecord(getStat(), "stat");
+        a.endRecord(this, tag);
+    }
+
+    /**
+     * Release the reference to the off-heap slot, only the first call has
+     * an effect.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            slot.release();
+        }
+    }
+
+}
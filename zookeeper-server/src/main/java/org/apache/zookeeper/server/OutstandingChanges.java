@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The change records of the txns prepared by the PrepRequestProcessor and
+ * not yet applied to the DataTree, in zxid order, with the last change of
+ * each path.
+ *
+ * Records are only added and rolled back by the PrepRequestProcessor, at
+ * the tail, and trimmed by the FinalRequestProcessor at the head once their
+ * txn is applied to the DataTree. The records rolled back are always newer
+ * than the ones being trimmed, so neither needs a lock and the lookups by
+ * path are lock-free. A txn is applied to the DataTree before its records are
+ * trimmed, so a path without a record is up to date in the DataTree.
+ */
+class OutstandingChanges implements Iterable<ChangeRecord> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutstandingChanges.class);
+
+    private final ConcurrentLinkedDeque<ChangeRecord> changes = new ConcurrentLinkedDeque<>();
+    private final ConcurrentHashMap<String, ChangeRecord> changesForPath = new ConcurrentHashMap<>();
+
+    /**
+     * @return the last change of the path, or null if the DataTree is up to
+     *         date for this path
+     */
+    ChangeRecord get(String path) {
+        return changesForPath.get(path);
+    }
+
+    /**
+     * @return the last change, or null if there is none
+     */
+    ChangeRecord peekLast() {
+        return changes.peekLast();
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Iterate over the changes in zxid order. Changes trimmed concurrently
+     * may be skipped, they are applied to the DataTree already.
+     */
+    @Override
+    public Iterator<ChangeRecord> iterator() {
+        return changes.iterator();
+    }
+
+    /**
+     * Add a change, must be called by the PrepRequestProcessor
+     */
+    void add(ChangeRecord c) {
+        changes.addLast(c);
+        changesForPath.put(c.path, c);
+        ServerMetrics.getMetrics().OUTSTANDING_CHANGES_QUEUED.add(1);
+    }
+
+    /**
+     * Remove the changes up to zxid, once its txn is applied to the DataTree.
+     * Must be called by the FinalRequestProcessor.
+     */
+    void trimTo(long zxid) {
+        ChangeRecord cr;
+        while ((cr = changes.peekFirst()) != null && cr.zxid <= zxid) {
+            changes.pollFirst();
+            ServerMetrics.getMetrics().OUTSTANDING_CHANGES_REMOVED.add(1);
+            if (cr.zxid < zxid) {
+                LOG.warn(
+                    "Zxid outstanding 0x{} is less than current 0x{}",
+                    Long.toHexString(cr.zxid),
+                    Long.toHexString(zxid));
+            }
+            cr.trimmed = true;
+            changesForPath.remove(cr.path, cr);
+        }
+    }
+
+    /**
+     * Remove the changes of zxid, the last txn prepared, and restore the
+     * previous changes of their paths which are still outstanding. Must be
+     * called by the PrepRequestProcessor.
+     *
+     * @param zxid the zxid of the failed txn
+     * @param pendingChangeRecords the changes of the paths before the txn
+     */
+    void rollback(long zxid, Map<String, ChangeRecord> pendingChangeRecords) {
+        ChangeRecord c;
+        while ((c = changes.peekLast()) != null && c.zxid == zxid) {
+            changes.pollLast();
+            // Remove all outstanding changes for paths of this multi.
+            // Previous records will be added back later.
+            changesForPath.remove(c.path);
+        }
+
+        for (ChangeRecord pending : pendingChangeRecords.values()) {
+            // the previous changes which were trimmed meanwhile are applied
+            // to the DataTree, they must not be restored
+            if (pending.trimmed) {
+                continue;
+            }
+            changesForPath.put(pending.path, pending);
+            if (pending.trimmed) {
+                changesForPath.remove(pending.path, pending);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.RequestProcessor.RequestProcessorException;
+import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+
+/**
+ * Applies the txns of consecutive committed requests to the DataTree ahead
+ * of their processing by the FinalRequestProcessor, on a pool of threads.
+ *
+ * The txns are grouped by the nodes they change: the node itself, and the
+ * parent of a created or deleted node. The txns of a group are applied in
+ * zxid order by a single thread, while groups which share no node are
+ * applied concurrently. The txns which change the sessions or many nodes at
+ * once (createSession, closeSession, multi, reconfig), or the nodes under
+ * /zookeeper, are barriers: all the groups before them are applied first,
+ * and they are applied alone.
+ *
+ * Only the changes of the nodes are made out of order. Triggering the
+ * watches, advancing the lastProcessedZxid, checking the digest, trimming
+ * the outstanding changes and adding the committed proposal are left to the
+ * completion of each txn, when the requests are processed in order. So
+ * clients see the watch events and responses in zxid order, and the tree
+ * never reports a zxid before all the txns up to it are applied.
+ *
+ * The tree digest after a txn only exists once no later txn is applied, so
+ * the digest is only compared for the last txn of each batch. The txns it
+ * isn't compared for are counted by apply_ahead_digest_skipped; a mismatch
+ * is still detected by the end of the batch.
+ */
+class ParallelTxnApplier {
+
+    private final ZooKeeperServer zks;
+
+    private final WorkerService workerPool;
+
+    ParallelTxnApplier(ZooKeeperServer zks, int numThreads) {
+        this.zks = zks;
+        this.workerPool = new WorkerService("ApplyWork", numThreads, false);
+    }
+
+    private static class Group {
+
+        final List<Request> requests = new ArrayList<>();
+        final List<String> nodes = new ArrayList<>();
+
+    }
+
+    /**
+     * Apply the txns of the committed requests, the requests without a txn
+     * are left to be processed as usual.
+     */
+    void applyAhead(List<Request> requests) throws RequestProcessorException {
+        List<Group> groups = new ArrayList<>();
+        Map<String, Group> groupOfNode = new HashMap<>();
+        for (Request request : requests) {
+            if (request.getHdr() == null || request.isThrottled()) {
+                continue;
+            }
+            String[] nodes = nodesChanged(request);
+            if (nodes == null) {
+                applyGroups(groups);
+                groups.clear();
+                groupOfNode.clear();
+                zks.applyTxnAhead(request);
+                continue;
+            }
+
+            Group group = null;
+            for (String node : nodes) {
+                Group other = groupOfNode.get(node);
+                if (other == null || other == group) {
+                    continue;
+                }
+                if (group == null) {
+                    group = other;
+                } else {
+                    // the two groups don't conflict, so their txns may be
+                    // applied one group after the other
+                    Group from = other.requests.size() > group.requests.size() ? group : other;
+                    group = from == group ? other : group;
+                    group.requests.addAll(from.requests);
+                    group.nodes.addAll(from.nodes);
+                    for (String n : from.nodes) {
+                        groupOfNode.put(n, group);
+                    }
+                    from.requests.clear();
+                }
+            }
+            if (group == null) {
+                group = new Group();
+                groups.add(group);
+            }
+            group.requests.add(request);
+            for (String node : nodes) {
+                if (groupOfNode.put(node, group) != group) {
+                    group.nodes.add(node);
+                }
+            }
+        }
+        applyGroups(groups);
+    }
+
+    /**
+     * @return the nodes changed by the txn of the request, or null if it
+     *         can't be applied concurrently with any other txn
+     */
+    private static String[] nodesChanged(Request request) {
+        if (request.type == OpCode.createSession || request.type == OpCode.closeSession) {
+            return null;
+        }
+        String path;
+        boolean parentChanged = false;
+        switch (request.getHdr().getType()) {
+        case OpCode.create:
+        case OpCode.create2:
+            path = ((CreateTxn) request.getTxn()).getPath();
+            parentChanged = true;
+            break;
+        case OpCode.createTTL:
+            path = ((CreateTTLTxn) request.getTxn()).getPath();
+            parentChanged = true;
+            break;
+        case OpCode.createContainer:
+            path = ((CreateContainerTxn) request.getTxn()).getPath();
+            parentChanged = true;
+            break;
+        case OpCode.delete:
+        case OpCode.deleteContainer:
+            path = ((DeleteTxn) request.getTxn()).getPath();
+            parentChanged = true;
+            break;
+        case OpCode.setData:
+            path = ((SetDataTxn) request.getTxn()).getPath();
+            break;
+        case OpCode.setACL:
+            path = ((SetACLTxn) request.getTxn()).getPath();
+            break;
+        case OpCode.check:
+            path = ((CheckVersionTxn) request.getTxn()).getPath();
+            break;
+        case OpCode.error:
+            return new String[0];
+        default:
+            return null;
+        }
+        // the quota and config nodes are also changed by the txns of the
+        // nodes they apply to
+        if (path.startsWith(Quotas.procZookeeper)) {
+            return null;
+        }
+        if (!parentChanged) {
+            return new String[] {path};
+        }
+        return new String[] {path, path.substring(0, path.lastIndexOf('/'))};
+    }
+
+    private void applyGroups(List<Group> groups) throws RequestProcessorException {
+        List<Group> toApply = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            if (!group.requests.isEmpty()) {
+                toApply.add(group);
+            }
+        }
+        if (toApply.isEmpty()) {
+            return;
+        }
+
+        CountDownLatch applied = new CountDownLatch(toApply.size() - 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 1; i < toApply.size(); i++) {
+            workerPool.schedule(new ApplyWorkRequest(toApply.get(i), applied, failure));
+        }
+        try {
+            for (Request request : toApply.get(0).requests) {
+                zks.applyTxnAhead(request);
+            }
+        } finally {
+            try {
+                applied.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new RequestProcessorException("Failed to apply the committed txns", failure.get());
+        }
+        ServerMetrics.getMetrics().APPLY_AHEAD_GROUPS.add(toApply.size());
+    }
+
+    void shutdown() {
+        workerPool.stop();
+    }
+
+    private class ApplyWorkRequest extends WorkerService.WorkRequest {
+
+        private final Group group;
+        private final CountDownLatch applied;
+        private final AtomicReference<Throwable> failure;
+
+        ApplyWorkRequest(Group group, CountDownLatch applied, AtomicReference<Throwable> failure) {
+            this.group = group;
+            this.applied = applied;
+            this.failure = failure;
+        }
+
+        @Override
+        public void doWork() {
+            try {
+                for (Request request : group.requests) {
+                    zks.applyTxnAhead(request);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                applied.countDown();
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            // the pool is stopped, the server is shutting down: the group is
+            // dropped and the batch fails instead of being applied
+            failure.compareAndSet(null, new IllegalStateException("The apply workers are stopped"));
+            applied.countDown();
+        }
+
+    }
+
+}
@@ -18,21 +18,18 @@
 
 package org.apache.zookeeper.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.DeleteContainerRequest;
@@ -101,8 +98,23 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements Req
      */
     private static boolean failCreate = false;
 
+    /**
+     * The number of worker threads preparing the requests before they are
+     * sequenced, see {@link PrepWorkRequest}. 0 prepares them all on the
+     * sequencing thread.
+     */
+    public static final String PREP_NUM_WORKER_THREADS = "zookeeper.prepRequestProcessor.numWorkerThreads";
+
+    private static final int numWorkerThreads = Integer.getInteger(PREP_NUM_WORKER_THREADS, 0);
+
+    static {
+        LOG.info("{} = {}", PREP_NUM_WORKER_THREADS, numWorkerThreads);
+    }
+
     LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<>();
 
+    private final WorkerService workerPool;
+
     private final RequestProcessor nextProcessor;
     private final boolean digestEnabled;
     private DigestCalculator digestCalculator;
@@ -114,6 +126,11 @@ public enum DigestOpCode {
     }
 
     public PrepRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
+        this(zks, nextProcessor, numWorkerThreads);
+    }
+
+    // visible for testing
+    PrepRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor, int workerThreads) {
         super(
             "ProcessThread(sid:" + zks.getServerId()
             + " cport:" + zks.getClientPort()
@@ -124,6 +141,8 @@ public PrepRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor)
         if (this.digestEnabled) {
             this.digestCalculator = new DigestCalculator();
         }
+        // the requests of a session are prepared in order by the same thread
+        this.workerPool = workerThreads > 0 ? new WorkerService("PrepWork", workerThreads, true) : null;
     }
 
     /**
@@ -163,24 +182,27 @@ public void run() {
     }
 
     private ChangeRecord getRecordForPath(String path) throws KeeperException.NoNodeException {
-        ChangeRecord lastChange = null;
-        synchronized (zks.outstandingChanges) {
-            lastChange = zks.outstandingChangesForPath.get(path);
-            if (lastChange == null) {
-                DataNode n = zks.getZKDatabase().getNode(path);
-                if (n != null) {
-                    Set<String> children;
-                    synchronized (n) {
-                        children = n.getChildren();
-                    }
-                    lastChange = new ChangeRecord(-1, path, n.stat, children.size(), zks.getZKDatabase().aclForNode(n));
+        // the outstanding changes are trimmed after they are applied to the
+        // tree, so the node is up to date when there is no change for it
+        ChangeRecord lastChange = zks.outstandingChanges.get(path);
+        if (lastChange == null) {
+            DataNode n = zks.getZKDatabase().getNode(path);
+            if (n != null) {
+                StatPersisted stat = new StatPersisted();
+                int childCount;
+                byte[] data;
+                synchronized (n) {
+                    DataTree.copyStatPersisted(n.stat, stat);
+                    childCount = n.getChildren().size();
+                    data = n.getData();
+                }
+                lastChange = new ChangeRecord(-1, path, stat, childCount, zks.getZKDatabase().aclForNode(n));
 
-                    if (digestEnabled) {
-                        lastChange.precalculatedDigest = new PrecalculatedDigest(
-                                digestCalculator.calculateDigest(path, n), 0);
-                    }
-                    lastChange.data = n.getData();
+                if (digestEnabled) {
+                    lastChange.precalculatedDigest = new PrecalculatedDigest(
+                            digestCalculator.calculateDigest(path, n), 0);
                 }
+                lastChange.data = data;
             }
         }
         if (lastChange == null || lastChange.stat == null) {
@@ -190,17 +212,11 @@ private ChangeRecord getRecordForPath(String path) throws KeeperException.NoNode
     }
 
     private ChangeRecord getOutstandingChange(String path) {
-        synchronized (zks.outstandingChanges) {
-            return zks.outstandingChangesForPath.get(path);
-        }
+        return zks.outstandingChanges.get(path);
     }
 
     protected void addChangeRecord(ChangeRecord c) {
-        synchronized (zks.outstandingChanges) {
-            zks.outstandingChanges.add(c);
-            zks.outstandingChangesForPath.put(c.path, c);
-            ServerMetrics.getMetrics().OUTSTANDING_CHANGES_QUEUED.add(1);
-        }
+        zks.outstandingChanges.add(c);
     }
 
     /**
@@ -258,40 +274,7 @@ private Map<String, ChangeRecord> getPendingChanges(MultiOperationRecord multiRe
      * @param pendingChangeRecords
      */
     void rollbackPendingChanges(long zxid, Map<String, ChangeRecord> pendingChangeRecords) {
-        synchronized (zks.outstandingChanges) {
-            // Grab a list iterator starting at the END of the list so we can iterate in reverse
-            Iterator<ChangeRecord> iter = zks.outstandingChanges.descendingIterator();
-            while (iter.hasNext()) {
-                ChangeRecord c = iter.next();
-                if (c.zxid == zxid) {
-                    iter.remove();
-                    // Remove all outstanding changes for paths of this multi.
-                    // Previous records will be added back later.
-                    zks.outstandingChangesForPath.remove(c.path);
-                } else {
-                    break;
-                }
-            }
-
-            // we don't need to roll back any records because there is nothing left.
-            if (zks.outstandingChanges.isEmpty()) {
-                return;
-            }
-
-            long firstZxid = zks.outstandingChanges.peek().zxid;
-
-            for (ChangeRecord c : pendingChangeRecords.values()) {
-                // Don't apply any prior change records less than firstZxid.
-                // Note that previous outstanding requests might have been removed
-                // once they are completed.
-                if (c.zxid < firstZxid) {
-                    continue;
-                }
-
-                // add previously existing records back.
-                zks.outstandingChangesForPath.put(c.path, c);
-            }
-        }
+        zks.outstandingChanges.rollback(zxid, pendingChangeRecords);
     }
 
     /**
@@ -358,7 +341,7 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             String path = deleteRequest.getPath();
             String parentPath = getParentPathAndValidate(path);
             ChangeRecord parentRecord = getRecordForPath(parentPath);
-            zks.checkACL(request.cnxn, parentRecord.acl, ZooDefs.Perms.DELETE, request.authInfo, path, null);
+            checkACL(request, parentRecord.acl, ZooDefs.Perms.DELETE, path, null);
             ChangeRecord nodeRecord = getRecordForPath(path);
             checkAndIncVersion(nodeRecord.stat.getVersion(), deleteRequest.getVersion(), path);
             if (nodeRecord.childCount > 0) {
@@ -383,7 +366,7 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             path = setDataRequest.getPath();
             validatePath(path, request.sessionId);
             nodeRecord = getRecordForPath(path);
-            zks.checkACL(request.cnxn, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, path, null);
+            checkACL(request, nodeRecord.acl, ZooDefs.Perms.WRITE, path, null);
             zks.checkQuota(path, nodeRecord.data, setDataRequest.getData(), OpCode.setData);
             int newVersion = checkAndIncVersion(nodeRecord.stat.getVersion(), setDataRequest.getVersion(), path);
             request.setTxn(new SetDataTxn(path, setDataRequest.getData(), newVersion));
@@ -551,9 +534,11 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             SetACLRequest setAclRequest = (SetACLRequest) record;
             path = setAclRequest.getPath();
             validatePath(path, request.sessionId);
-            List<ACL> listACL = fixupACL(path, request.authInfo, setAclRequest.getAcl());
+            List<ACL> listACL = request.getPreparedAcl() != null
+                ? request.getPreparedAcl()
+                : fixupACL(path, request.authInfo, setAclRequest.getAcl());
             nodeRecord = getRecordForPath(path);
-            zks.checkACL(request.cnxn, nodeRecord.acl, ZooDefs.Perms.ADMIN, request.authInfo, path, listACL);
+            checkACL(request, nodeRecord.acl, ZooDefs.Perms.ADMIN, path, listACL);
             newVersion = checkAndIncVersion(nodeRecord.stat.getAversion(), setAclRequest.getVersion(), path);
             request.setTxn(new SetACLTxn(path, listACL, newVersion));
             nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
@@ -576,41 +561,44 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             // this request is the last of the session so it should be ok
             //zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
             long startTime = Time.currentElapsedTime();
-            synchronized (zks.outstandingChanges) {
-                // need to move getEphemerals into zks.outstandingChanges
-                // synchronized block, otherwise there will be a race
-                // condition with the on flying deleteNode txn, and we'll
-                // delete the node again here, which is not correct
-                Set<String> es = zks.getZKDatabase().getEphemerals(request.sessionId);
-                for (ChangeRecord c : zks.outstandingChanges) {
-                    if (c.stat == null) {
-                        // Doing a delete
-                        es.remove(c.path);
-                    } else if (c.stat.getEphemeralOwner() == request.sessionId) {
-                        es.add(c.path);
-                    }
-                }
-                for (String path2Delete : es) {
-                    if (digestEnabled) {
-                        parentPath = getParentPathAndValidate(path2Delete);
-                        parentRecord = getRecordForPath(parentPath);
-                        parentRecord = parentRecord.duplicate(request.getHdr().getZxid());
-                        parentRecord.stat.setPzxid(request.getHdr().getZxid());
-                        parentRecord.precalculatedDigest = precalculateDigest(
-                                DigestOpCode.UPDATE, parentPath, parentRecord.data, parentRecord.stat);
-                        addChangeRecord(parentRecord);
-                    }
-                    nodeRecord = new ChangeRecord(
-                            request.getHdr().getZxid(), path2Delete, null, 0, null);
-                    nodeRecord.precalculatedDigest = precalculateDigest(
-                            DigestOpCode.REMOVE, path2Delete);
-                    addChangeRecord(nodeRecord);
+            // the outstanding changes must be read before the ephemerals
+            // of the tree: a change trimmed in between is applied to the
+            // tree already, so replaying the changes read on the
+            // ephemerals of the tree doesn't miss an on flying deleteNode
+            // txn, and we don't delete the node again here
+            List<ChangeRecord> changes = new ArrayList<>();
+            for (ChangeRecord c : zks.outstandingChanges) {
+                changes.add(c);
+            }
+            Set<String> es = zks.getZKDatabase().getEphemerals(request.sessionId);
+            for (ChangeRecord c : changes) {
+                if (c.stat == null) {
+                    // Doing a delete
+                    es.remove(c.path);
+                } else if (c.stat.getEphemeralOwner() == request.sessionId) {
+                    es.add(c.path);
                 }
-                if (ZooKeeperServer.isCloseSessionTxnEnabled()) {
-                    request.setTxn(new CloseSessionTxn(new ArrayList<String>(es)));
+            }
+            for (String path2Delete : es) {
+                if (digestEnabled) {
+                    parentPath = getParentPathAndValidate(path2Delete);
+                    parentRecord = getRecordForPath(parentPath);
+                    parentRecord = parentRecord.duplicate(request.getHdr().getZxid());
+                    parentRecord.stat.setPzxid(request.getHdr().getZxid());
+                    parentRecord.precalculatedDigest = precalculateDigest(
+                            DigestOpCode.UPDATE, parentPath, parentRecord.data, parentRecord.stat);
+                    addChangeRecord(parentRecord);
                 }
-                zks.sessionTracker.setSessionClosing(request.sessionId);
+                nodeRecord = new ChangeRecord(
+                        request.getHdr().getZxid(), path2Delete, null, 0, null);
+                nodeRecord.precalculatedDigest = precalculateDigest(
+                        DigestOpCode.REMOVE, path2Delete);
+                addChangeRecord(nodeRecord);
+            }
+            if (ZooKeeperServer.isCloseSessionTxnEnabled()) {
+                request.setTxn(new CloseSessionTxn(new ArrayList<String>(es)));
             }
+            zks.sessionTracker.setSessionClosing(request.sessionId);
             ServerMetrics.getMetrics().CLOSE_SESSION_PREP_TIME.add(Time.currentElapsedTime() - startTime);
             break;
         case OpCode.check:
@@ -619,7 +607,7 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             path = checkVersionRequest.getPath();
             validatePath(path, request.sessionId);
             nodeRecord = getRecordForPath(path);
-            zks.checkACL(request.cnxn, nodeRecord.acl, ZooDefs.Perms.READ, request.authInfo, path, null);
+            checkACL(request, nodeRecord.acl, ZooDefs.Perms.READ, path, null);
             request.setTxn(new CheckVersionTxn(
                 path,
                 checkAndIncVersion(nodeRecord.stat.getVersion(), checkVersionRequest.getVersion(), path)));
@@ -661,10 +649,12 @@ private void pRequest2TxnCreate(int type, Request request, Record record) throws
         validateCreateRequest(path, createMode, request, ttl);
         String parentPath = validatePathForCreate(path, request.sessionId);
 
-        List<ACL> listACL = fixupACL(path, request.authInfo, acl);
+        List<ACL> listACL = request.getPreparedAcl() != null
+            ? request.getPreparedAcl()
+            : fixupACL(path, request.authInfo, acl);
         ChangeRecord parentRecord = getRecordForPath(parentPath);
 
-        zks.checkACL(request.cnxn, parentRecord.acl, ZooDefs.Perms.CREATE, request.authInfo, path, listACL);
+        checkACL(request, parentRecord.acl, ZooDefs.Perms.CREATE, path, listACL);
         int parentCVersion = parentRecord.stat.getCversion();
         if (createMode.isSequential()) {
             path = path + String.format(Locale.ENGLISH, "%010d", parentCVersion);
@@ -717,6 +707,19 @@ private void pRequest2TxnCreate(int type, Request request, Record record) throws
         addChangeRecord(nodeRecord);
     }
 
+    /**
+     * Check the ACL of a node for a request, unless a worker already
+     * authorized the request against this very ACL. The ACL lists of the
+     * nodes in the tree are shared and never modified, while the change
+     * records have their own copies, so the same list means the same ACL.
+     */
+    private void checkACL(Request request, List<ACL> acl, int perm, String path, List<ACL> setAcls) throws KeeperException.NoAuthException {
+        if (acl != null && acl == request.getCheckedAcl()) {
+            return;
+        }
+        zks.checkACL(request.cnxn, acl, perm, request.authInfo, path, setAcls);
+    }
+
     private void validatePath(String path, long sessionId) throws BadArgumentsException {
         try {
             PathUtils.validatePath(path);
@@ -861,12 +864,7 @@ private void pRequestHelper(Request request) {
                     // TODO: I don't want to have to serialize it here and then
                     //       immediately deserialize in next processor. But I'm
                     //       not sure how else to get the txn stored into our list.
-                    try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
-                        txn.serialize(boa, "request");
-                        ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
-                        txns.add(new Txn(type, bb.array()));
-                    }
+                    txns.add(new Txn(type, ByteBufferOutputArchive.serialize(txn)));
                 }
 
                 request.setTxn(new MultiTxn(txns));
@@ -1031,17 +1029,137 @@ public static List<ACL> fixupACL(String path, List<Id> authInfo, List<ACL> acls)
 
     public void processRequest(Request request) {
         request.prepQueueStartTime = Time.currentElapsedTime();
-        submittedRequests.add(request);
+        if (workerPool != null && request != Request.requestOfDeath) {
+            workerPool.schedule(new PrepWorkRequest(request), request.sessionId);
+        } else {
+            submittedRequests.add(request);
+        }
         ServerMetrics.getMetrics().PREP_PROCESSOR_QUEUED.add(1);
     }
 
     public void shutdown() {
         LOG.info("Shutting down");
+        if (workerPool != null) {
+            workerPool.stop();
+        }
         submittedRequests.clear();
         submittedRequests.add(Request.requestOfDeath);
         nextProcessor.shutdown();
     }
 
+    /**
+     * Prepares a request on a worker thread before it's queued to the
+     * sequencing thread, which assigns the zxids. The work done here doesn't
+     * depend on the outstanding changes: decoding the request, fixing up the
+     * ACL it sets and authorizing it against the ACL of the node in the tree.
+     * The sequencing thread skips what was done, and redoes whatever failed
+     * here to fail the request in order. The requests of a session are
+     * prepared by the same thread, so they stay in order.
+     */
+    private class PrepWorkRequest extends WorkerService.WorkRequest {
+
+        private final Request request;
+
+        PrepWorkRequest(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void doWork() {
+            try {
+                if (!request.isThrottled()) {
+                    prepare(request);
+                }
+            } catch (Exception e) {
+                LOG.debug("Preparing {} failed, it's prepared by the sequencing thread", request, e);
+            } finally {
+                submittedRequests.add(request);
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            submittedRequests.add(request);
+        }
+
+    }
+
+    private void prepare(Request request) throws IOException, KeeperException {
+        String path;
+        String aclPath;
+        int perm;
+        List<ACL> setAcls = null;
+        switch (request.type) {
+        case OpCode.createContainer:
+        case OpCode.create:
+        case OpCode.create2:
+        case OpCode.createTTL: {
+            List<ACL> acl;
+            if (request.type == OpCode.createTTL) {
+                CreateTTLRequest createTtlRequest = request.readRequestRecord(CreateTTLRequest::new);
+                path = createTtlRequest.getPath();
+                acl = createTtlRequest.getAcl();
+            } else {
+                CreateRequest createRequest = request.readRequestRecord(CreateRequest::new);
+                path = createRequest.getPath();
+                acl = createRequest.getAcl();
+            }
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash <= 0) {
+                return;
+            }
+            setAcls = fixupACL(path, request.authInfo, acl);
+            request.setPreparedAcl(setAcls);
+            aclPath = path.substring(0, lastSlash);
+            perm = ZooDefs.Perms.CREATE;
+            break;
+        }
+        case OpCode.delete: {
+            path = request.readRequestRecord(DeleteRequest::new).getPath();
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash <= 0) {
+                return;
+            }
+            aclPath = path.substring(0, lastSlash);
+            perm = ZooDefs.Perms.DELETE;
+            break;
+        }
+        case OpCode.setData:
+            path = request.readRequestRecord(SetDataRequest::new).getPath();
+            aclPath = path;
+            perm = ZooDefs.Perms.WRITE;
+            break;
+        case OpCode.setACL: {
+            SetACLRequest setAclRequest = request.readRequestRecord(SetACLRequest::new);
+            path = setAclRequest.getPath();
+            setAcls = fixupACL(path, request.authInfo, setAclRequest.getAcl());
+            request.setPreparedAcl(setAcls);
+            aclPath = path;
+            perm = ZooDefs.Perms.ADMIN;
+            break;
+        }
+        case OpCode.check:
+            path = request.readRequestRecord(CheckVersionRequest::new).getPath();
+            aclPath = path;
+            perm = ZooDefs.Perms.READ;
+            break;
+        case OpCode.multi:
+            request.readRequestRecord(MultiOperationRecord::new);
+            return;
+        case OpCode.deleteContainer:
+            request.readRequestRecord(DeleteContainerRequest::new);
+            return;
+        default:
+            return;
+        }
+        DataNode node = zks.getZKDatabase().getNode(aclPath);
+        if (node != null) {
+            List<ACL> acl = zks.getZKDatabase().aclForNode(node);
+            zks.checkACL(request.cnxn, acl, perm, request.authInfo, path, setAcls);
+            request.setCheckedAcl(acl);
+        }
+    }
+
     /**
      * Calculate the node digest and tree digest after the change.
      *
@@ -1097,14 +1215,14 @@ private PrecalculatedDigest precalculateDigest(
      */
     private long getCurrentTreeDigest() {
         long digest;
-        synchronized (zks.outstandingChanges) {
-            if (zks.outstandingChanges.isEmpty()) {
-                digest = zks.getZKDatabase().getDataTree().getTreeDigest();
-                LOG.debug("Digest got from data tree is: {}", digest);
-            } else {
-                digest = zks.outstandingChanges.peekLast().precalculatedDigest.treeDigest;
-                LOG.debug("Digest got from outstandingChanges is: {}", digest);
-            }
+        // the last change is trimmed after it's applied to the tree
+        ChangeRecord last = zks.outstandingChanges.peekLast();
+        if (last == null) {
+            digest = zks.getZKDatabase().getDataTree().getTreeDigest();
+            LOG.debug("Digest got from data tree is: {}", digest);
+        } else {
+            digest = last.precalculatedDigest.treeDigest;
+            LOG.debug("Digest got from outstandingChanges is: {}", digest);
         }
         return digest;
     }
@@ -28,7 +28,9 @@
 import java.util.List;
 import java.util.Set;
 import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.server.persistence.FileDeltaSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.TxnLogIndex;
 import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
@@ -139,6 +141,13 @@ public boolean accept(File f) {
         List<File> files = new ArrayList<>();
         if (logs != null) {
             files.addAll(Arrays.asList(logs));
+            // along with their zxid indexes
+            for (File log : logs) {
+                File index = TxnLogIndex.getIndexFile(log);
+                if (index != null && index.exists()) {
+                    files.add(index);
+                }
+            }
         }
 
         // add all non-excluded snapshot files to the deletion list
@@ -147,6 +156,12 @@ public boolean accept(File f) {
             files.addAll(Arrays.asList(snapshots));
         }
 
+        // the delta snapshots are only useful on top of the retained snapshots
+        File[] deltaSnapshots = txnLog.getSnapDir().listFiles(new MyFileFilter(FileDeltaSnap.DELTA_FILE_PREFIX));
+        if (deltaSnapshots != null) {
+            files.addAll(Arrays.asList(deltaSnapshots));
+        }
+
         // remove the old files
         for (File f : files) {
             final String msg = String.format(
@@ -27,9 +27,11 @@
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.metrics.Summary;
 import org.apache.zookeeper.metrics.SummarySet;
+import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.quorum.LearnerHandler;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.AuthUtil;
@@ -187,6 +189,45 @@ public int getLargeRequestSize() {
         return largeRequestSize;
     }
 
+    /**
+     * Set by the PrepRequestProcessor workers: the fixed up ACL of a create
+     * or setACL request, and the ACL of the node the request was already
+     * authorized against.
+     */
+    private List<ACL> preparedAcl;
+
+    private List<ACL> checkedAcl;
+
+    public List<ACL> getPreparedAcl() {
+        return preparedAcl;
+    }
+
+    public void setPreparedAcl(List<ACL> preparedAcl) {
+        this.preparedAcl = preparedAcl;
+    }
+
+    public List<ACL> getCheckedAcl() {
+        return checkedAcl;
+    }
+
+    public void setCheckedAcl(List<ACL> checkedAcl) {
+        this.checkedAcl = checkedAcl;
+    }
+
+    /**
+     * The result of the txn when it was applied ahead by the
+     * ParallelTxnApplier, the txn is then only completed in order.
+     */
+    private ProcessTxnResult txnResultAhead;
+
+    public ProcessTxnResult getTxnResultAhead() {
+        return txnResultAhead;
+    }
+
+    public void setTxnResultAhead(ProcessTxnResult txnResultAhead) {
+        this.txnResultAhead = txnResultAhead;
+    }
+
     public Object getOwner() {
         return owner;
     }
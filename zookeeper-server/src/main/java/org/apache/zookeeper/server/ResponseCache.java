@@ -18,54 +18,161 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.Counter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
+/**
+ * Cache of serialized read responses, keyed by path and validated against
+ * the stat of the node, so an entry is only served while the node's mzxid
+ * and pzxid (and the rest of the stat) are unchanged.
+ *
+ * Hits are lock-free reads of a ConcurrentHashMap. The cache is split in
+ * shards by path, each with its own CLOCK eviction and TinyLFU admission:
+ * a frequency sketch of the recent accesses decides whether a new entry is
+ * worth evicting the next victim, so a scan of cold paths doesn't flush
+ * the popular ones. Only misses take the lock of their shard.
+ *
+ * The sketch is shared by the readers of a shard and isn't synchronized, so
+ * only one in ACCESS_SAMPLE_RATE reads, hits and misses alike, is recorded
+ * in it: the hit path then mostly only reads shared memory. Responses larger
+ * than the bytes bound of a shard are never cached, they are counted.
+ */
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
+
+    private static final int MAX_SHARDS = 64;
+    // rough per entry overhead, accounted against the bytes bound
+    private static final int ENTRY_OVERHEAD = 64;
+    // one in this many reads is recorded in the frequency sketch
+    private static final int ACCESS_SAMPLE_RATE = 8;
+
     private final int cacheSize;
+    private final long cacheBytes;
+    private final Supplier<Counter> evictions;
+    private final Supplier<Counter> oversized;
+    private final String requestType;
+    private int accessSampleRate = ACCESS_SAMPLE_RATE;
+    private volatile boolean oversizedLogged;
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
+        final String key;
+        final Stat stat;
+        final byte[] data;
+        volatile boolean referenced;
+        boolean removed;
+
+        Entry(String key, byte[] data, Stat stat) {
+            this.key = key;
+            this.data = data;
+            this.stat = stat;
+        }
+
+        long weight() {
+            return ENTRY_OVERHEAD + 2L * key.length() + data.length;
+        }
     }
 
-    private final Map<String, Entry> cache;
+    private final ConcurrentHashMap<String, Entry> cache;
+    private final Shard[] shards;
 
     public ResponseCache(int cacheSize, String requestType) {
+        this(cacheSize, 0, requestType, null, null);
+    }
+
+    /**
+     * @param cacheSize the max number of entries, the cache is disabled when not positive
+     * @param cacheBytes the max size of the entries in bytes, no bound when not positive
+     * @param requestType the type of the cached requests, for logging
+     * @param evictions the counter of the evicted entries, may be null
+     * @param oversized the counter of the responses too large to be cached, may be null
+     */
+    public ResponseCache(int cacheSize, long cacheBytes, String requestType,
+                         Supplier<Counter> evictions, Supplier<Counter> oversized) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("{} response cache size is initialized with value {}.", requestType, cacheSize);
+        this.cacheBytes = cacheBytes;
+        this.requestType = requestType;
+        this.evictions = evictions;
+        this.oversized = oversized;
+        int shardCount = 1;
+        int maxShards = Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors() * 2);
+        // keep enough entries per shard for the admission to be meaningful
+        while (shardCount * 2 <= maxShards && shardCount * 2 * 16 <= cacheSize) {
+            shardCount *= 2;
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(
+                Math.max(1, (cacheSize + shardCount - 1) / shardCount),
+                cacheBytes > 0 ? (cacheBytes + shardCount - 1) / shardCount : Long.MAX_VALUE);
+        }
+        cache = new ConcurrentHashMap<>(Math.max(16, cacheSize / 4));
+        LOG.info("{} response cache size is initialized with value {}, {} bytes, {} shards.",
+                 requestType, cacheSize, cacheBytes, shardCount);
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
     public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+        if (!isEnabled()) {
+            return;
+        }
+        int hash = spread(path.hashCode());
+        shardFor(hash).put(new Entry(path, data, stat), hash);
+    }
+
+    // for testing
+    void setAccessSampleRate(int accessSampleRate) {
+        this.accessSampleRate = accessSampleRate;
+    }
+
+    /**
+     * Record a read of the path in the frequency sketch, for one in
+     * accessSampleRate reads.
+     */
+    private void recordAccess(String key) {
+        if (accessSampleRate > 1 && ThreadLocalRandom.current().nextInt(accessSampleRate) != 0) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        shardFor(hash).sketch.increment(hash);
     }
 
     public byte[] get(String key, Stat stat) {
         Entry entry = cache.get(key);
         if (entry == null) {
+            if (isEnabled()) {
+                recordAccess(key);
+            }
             return null;
         }
         if (!stat.equals(entry.stat)) {
             // The node has been modified, invalidate cache.
-            cache.remove(key);
+            int hash = spread(key.hashCode());
+            shardFor(hash).remove(entry);
             return null;
         } else {
+            // the reference bit is only written when it's not set yet, so
+            // it doesn't dirty the entry on every hit
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            recordAccess(key);
             return entry.data;
         }
     }
@@ -74,17 +181,190 @@ public boolean isEnabled() {
         return cacheSize > 0;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    private void rejectOversized(long weight, long maxBytes) {
+        if (oversized != null) {
+            oversized.get().add(1);
+        }
+        if (!oversizedLogged) {
+            oversizedLogged = true;
+            LOG.info("Not caching a {} response of {} bytes, larger than the {} bytes of a cache shard,"
+                     + " further ones are only counted", requestType, weight, maxBytes);
+        }
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[hash & (shards.length - 1)];
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The entries of one shard, in the order of the CLOCK hand. Entries
+     * removed from the map are dropped when the hand reaches them.
+     */
+    private class Shard {
+
+        private final int maxEntries;
+        private final long maxBytes;
+        private final FrequencySketch sketch;
+        private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+        private int entries;
+        private long bytes;
+
+        Shard(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.sketch = new FrequencySketch(maxEntries);
+        }
+
+        synchronized void put(Entry entry, int hash) {
+            long weight = entry.weight();
+            if (weight > maxBytes) {
+                rejectOversized(weight, maxBytes);
+                return;
+            }
+            Entry existing = cache.get(entry.key);
+            // a newer serialization of a node which is already cached is
+            // always admitted, the miss which led to a new one was already
+            // recorded by get
+            boolean admitted = existing != null;
+            if (admitted) {
+                unlink(existing);
+            }
+            int frequency = sketch.frequency(hash);
+            while (entries + 1 > maxEntries || bytes + weight > maxBytes) {
+                Entry victim = nextVictim();
+                if (victim == null) {
+                    break;
+                }
+                // the most recent entry wins the ties
+                if (!admitted && frequency < sketch.frequency(spread(victim.key.hashCode()))) {
+                    // the victim stays where the hand is
+                    clock.addFirst(victim);
+                    return;
+                }
+                cache.remove(victim.key, victim);
+                unlink(victim);
+                if (evictions != null) {
+                    evictions.get().add(1);
+                }
+            }
+            cache.put(entry.key, entry);
+            clock.addLast(entry);
+            entries++;
+            bytes += weight;
+        }
 
-        private int cacheSize;
+        synchronized void remove(Entry entry) {
+            if (!entry.removed && cache.remove(entry.key, entry)) {
+                unlink(entry);
+            }
+        }
+
+        /**
+         * Advance the hand to the first entry which wasn't referenced since
+         * the previous sweep, clearing the references on the way.
+         */
+        private Entry nextVictim() {
+            Entry entry;
+            while ((entry = clock.pollFirst()) != null) {
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.addLast(entry);
+                    continue;
+                }
+                return entry;
+            }
+            return null;
+        }
+
+        private void unlink(Entry entry) {
+            entry.removed = true;
+            entries--;
+            bytes -= entry.weight();
+            if (clock.size() > 2 * entries + 16) {
+                // drop the entries which were invalidated before the hand reached them
+                for (Iterator<Entry> it = clock.iterator(); it.hasNext();) {
+                    if (it.next().removed) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters, halved periodically so that the
+     * frequencies reflect the recent accesses. Saturated counters are not
+     * written. The updates are not synchronized, a lost increment only makes
+     * the estimate a bit lower.
+     */
+    private static class FrequencySketch {
+
+        private static final int[] SEEDS = {0x97cb3127, 0xb1c2ab1f, 0x85ebca6b, 0xc2b2ae35};
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            int size = 16;
+            while (size < maxEntries * 4 && size < (1 << 24)) {
+                size <<= 1;
+            }
+            table = new byte[size];
+            mask = size - 1;
+            sampleSize = 10 * Math.max(16, maxEntries);
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (table[index] < 15) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[index(hash, i)]);
+            }
+            return frequency;
         }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+        private void reset() {
+            additions = 0;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
         }
 
     }
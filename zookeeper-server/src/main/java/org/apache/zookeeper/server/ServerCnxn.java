@@ -18,7 +18,6 @@
 
 package org.apache.zookeeper.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -35,7 +34,7 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.WatchedEvent;
@@ -187,15 +186,15 @@ public int sendResponse(ReplyHeader h, Record r, String tag) throws IOException
     }
 
     protected byte[] serializeRecord(Record record) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-        bos.writeRecord(record, null);
-        return baos.toByteArray();
+        return ByteBufferOutputArchive.serialize(record);
     }
 
     protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                                      String cacheKey, Stat stat, int opCode) throws IOException {
         byte[] header = serializeRecord(h);
+        if (r instanceof OffHeapGetDataResponse) {
+            return serializeOffHeap(header, (OffHeapGetDataResponse) r);
+        }
         byte[] data = null;
         if (r != null) {
             ResponseCache cache = null;
@@ -255,6 +254,71 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
         return buffers;
     }
 
+    /**
+     * @return whether the serialized response is looked up in, and put in,
+     *         a response cache by {@link #serialize}
+     */
+    boolean isCachedResponse(Record r, String cacheKey, Stat stat, int opCode) {
+        if (r == null || stat == null || cacheKey == null || cacheKey.endsWith(Quotas.statNode)) {
+            return false;
+        }
+        switch (opCode) {
+            case OpCode.getData:
+                return isEnabled(zkServer.getReadResponseCache());
+            case OpCode.getChildren2:
+                return isEnabled(zkServer.getGetChildrenResponseCache());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isEnabled(ResponseCache cache) {
+        return cache != null && cache.isEnabled();
+    }
+
+    /**
+     * Serialize a response whose data is kept off-heap, only the parts around
+     * the data are serialized and the data itself is sent from where it is.
+     * The response is not cached, since that would copy the data to the heap.
+     */
+    private ByteBuffer[] serializeOffHeap(byte[] header, OffHeapGetDataResponse r) throws IOException {
+        byte[] stat = serializeRecord(r.getStat());
+        int dataLength = r.getDataLength();
+        int packetLength = header.length + 4 + dataLength + stat.length;
+        ServerStats serverStats = serverStats();
+        if (serverStats != null) {
+            serverStats.updateClientResponseSize(packetLength);
+        }
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
+        lengthBuffer.rewind();
+        ByteBuffer dataLengthBuffer = ByteBuffer.allocate(4).putInt(dataLength);
+        dataLengthBuffer.rewind();
+        return new ByteBuffer[] {
+            lengthBuffer, ByteBuffer.wrap(header), dataLengthBuffer, r.getDataBuffer(), ByteBuffer.wrap(stat)
+        };
+    }
+
+    /**
+     * Queue the buffers of a serialized response. If the response refers to
+     * off-heap data, it is released once the buffers have been written out.
+     */
+    void sendResponseBuffers(Record r, ByteBuffer... buffers) {
+        if (r instanceof OffHeapGetDataResponse) {
+            sendBuffer(((OffHeapGetDataResponse) r)::release, buffers);
+        } else {
+            sendBuffer(buffers);
+        }
+    }
+
+    /**
+     * Release the off-heap data referred by a response which won't be sent.
+     */
+    static void releaseResponse(Record r) {
+        if (r instanceof OffHeapGetDataResponse) {
+            ((OffHeapGetDataResponse) r).release();
+        }
+    }
+
     /* notify the client the session is closing and close/cleanup socket */
     public abstract void sendCloseSession();
 
@@ -279,6 +343,26 @@ public boolean removeAuthInfo(Id id) {
 
     abstract void sendBuffer(ByteBuffer... buffers);
 
+    /**
+     * Queue the buffers and run the callback once they have been written
+     * out, or dropped because the connection is closed. This implementation
+     * copies the buffers to the heap and runs the callback right away,
+     * connections which know when their buffers are written override it.
+     */
+    void sendBuffer(Runnable onSent, ByteBuffer... buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            copy.put(buffer.duplicate());
+        }
+        copy.flip();
+        onSent.run();
+        sendBuffer(copy);
+    }
+
     abstract void enableRecv();
 
     void disableRecv() {
@@ -87,10 +87,16 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         LOOKING_COUNT = metricsContext.getCounter("looking_count");
         DIFF_COUNT = metricsContext.getCounter("diff_count");
         SNAP_COUNT = metricsContext.getCounter("snap_count");
+        LEARNER_SYNC_COMMITTED_LOG_HIT = metricsContext.getCounter("learner_sync_committed_log_hit");
+        LEARNER_SYNC_TXN_LOG = metricsContext.getCounter("learner_sync_txn_log");
+        LEARNER_SYNC_COMMITTED_LOG_MISS = metricsContext.getCounter("learner_sync_committed_log_miss");
         COMMIT_COUNT = metricsContext.getCounter("commit_count");
         CONNECTION_REQUEST_COUNT = metricsContext.getCounter("connection_request_count");
         CONNECTION_TOKEN_DEFICIT = metricsContext.getSummary("connection_token_deficit", DetailLevel.BASIC);
         CONNECTION_REJECTED = metricsContext.getCounter("connection_rejected");
+        NIO_CONNECTIONS_ACCEPTED = metricsContext.getCounterSet("nio_connections_accepted");
+        NIO_CONNECTIONS_REJECTED = metricsContext.getCounterSet("nio_connections_rejected");
+        NIO_SELECTOR_ACCEPTED_QUEUE_SIZE = metricsContext.getSummarySet("nio_selector_accepted_queue_size", DetailLevel.BASIC);
 
         INFLIGHT_SNAP_COUNT = metricsContext.getSummary("inflight_snap_count", DetailLevel.BASIC);
         INFLIGHT_DIFF_COUNT = metricsContext.getSummary("inflight_diff_count", DetailLevel.BASIC);
@@ -118,6 +124,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
+        RESPONSE_PACKET_CACHE_OVERSIZED = metricsContext.getCounter("response_packet_cache_oversized");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_OVERSIZED = metricsContext.getCounter("response_packet_get_children_cache_oversized");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -168,6 +178,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         COMMITS_QUEUED = metricsContext.getCounter("request_commit_queued");
         READS_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("read_commit_proc_issued", DetailLevel.BASIC);
         WRITES_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_issued", DetailLevel.BASIC);
+        APPLY_AHEAD_GROUPS = metricsContext.getSummary("apply_ahead_groups", DetailLevel.BASIC);
+        APPLY_AHEAD_DIGEST_SKIPPED = metricsContext.getCounter("apply_ahead_digest_skipped");
 
         THROTTLED_OPS = metricsContext.getCounter("throttled_ops");
 
@@ -231,6 +243,15 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         SYNC_PROCESS_TIME = metricsContext.getSummary("sync_process_time", DetailLevel.BASIC);
 
         BATCH_SIZE = metricsContext.getSummary("sync_processor_batch_size", DetailLevel.BASIC);
+        BATCH_BYTES = metricsContext.getSummary("sync_processor_batch_bytes", DetailLevel.BASIC);
+        BATCH_SYNC_TIME = metricsContext.getSummary("sync_processor_batch_sync_time_ms", DetailLevel.ADVANCED);
+        BATCH_LATENCY = metricsContext.getSummary("sync_processor_batch_latency_ms", DetailLevel.ADVANCED);
+        BATCHES_IN_FLIGHT = metricsContext.getSummary("sync_processor_batches_in_flight", DetailLevel.ADVANCED);
+
+        TXNLOG_BLOCK_RAW_BYTES = metricsContext.getSummary("txnlog_block_raw_bytes", DetailLevel.BASIC);
+        TXNLOG_BLOCK_COMPRESSED_BYTES = metricsContext.getSummary("txnlog_block_compressed_bytes", DetailLevel.BASIC);
+        TXNLOG_COMPRESS_TIME = metricsContext.getSummary("txnlog_compress_time_us", DetailLevel.ADVANCED);
+        TXNLOG_DECOMPRESS_TIME = metricsContext.getSummary("txnlog_decompress_time_us", DetailLevel.ADVANCED);
 
         QUORUM_ACK_LATENCY = metricsContext.getSummary("quorum_ack_latency", DetailLevel.ADVANCED);
         ACK_LATENCY = metricsContext.getSummarySet("ack_latency", DetailLevel.ADVANCED);
@@ -338,6 +359,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter LOOKING_COUNT;
     public final Counter DIFF_COUNT;
     public final Counter SNAP_COUNT;
+
+    /*
+     * Learner syncs served from the committedLog, from the txnlog and the
+     * committedLog, or needing a snapshot
+     */
+    public final Counter LEARNER_SYNC_COMMITTED_LOG_HIT;
+    public final Counter LEARNER_SYNC_TXN_LOG;
+    public final Counter LEARNER_SYNC_COMMITTED_LOG_MISS;
     public final Counter COMMIT_COUNT;
     public final Counter CONNECTION_REQUEST_COUNT;
 
@@ -356,6 +385,11 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary CONNECTION_TOKEN_DEFICIT;
     public final Counter CONNECTION_REJECTED;
 
+    // NIO accept shards, keyed by shard
+    public final CounterSet NIO_CONNECTIONS_ACCEPTED;
+    public final CounterSet NIO_CONNECTIONS_REJECTED;
+    public final SummarySet NIO_SELECTOR_ACCEPTED_QUEUE_SIZE;
+
     public final Summary INFLIGHT_SNAP_COUNT;
     public final Summary INFLIGHT_DIFF_COUNT;
 
@@ -392,6 +426,26 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
     public final Summary BATCH_SIZE;
 
+    /**
+     * Group commit: size in bytes of the txns of a batch, time taken to sync
+     * a batch, time between the first request of a batch being queued and the
+     * batch being released to the next processor, and number of batches
+     * written and not yet synced when a batch is written.
+     */
+    public final Summary BATCH_BYTES;
+    public final Summary BATCH_SYNC_TIME;
+    public final Summary BATCH_LATENCY;
+    public final Summary BATCHES_IN_FLIGHT;
+
+    /**
+     * Compressed txn logs: size in bytes of the txns of a block before and
+     * after compression, and time taken to compress and decompress a block.
+     */
+    public final Summary TXNLOG_BLOCK_RAW_BYTES;
+    public final Summary TXNLOG_BLOCK_COMPRESSED_BYTES;
+    public final Summary TXNLOG_COMPRESS_TIME;
+    public final Summary TXNLOG_DECOMPRESS_TIME;
+
     public final Summary QUORUM_ACK_LATENCY;
     public final SummarySet ACK_LATENCY;
     public final Counter PROPOSAL_COUNT;
@@ -414,12 +468,16 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
 
     /*
-     * Response cache hit and miss metrics.
+     * Response cache hit, miss and eviction metrics.
      */
     public final Counter RESPONSE_PACKET_CACHE_HITS;
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_CACHE_OVERSIZED;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_OVERSIZED;
 
     /**
      * Learner handler quorum packet metrics.
@@ -450,6 +508,12 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter COMMITS_QUEUED;
     public final Summary READS_ISSUED_IN_COMMIT_PROC;
     public final Summary WRITES_ISSUED_IN_COMMIT_PROC;
+    public final Summary APPLY_AHEAD_GROUPS;
+    /**
+     * Number of txns applied ahead whose digest wasn't compared, because
+     * later txns of their batch were applied before them completed
+     */
+    public final Counter APPLY_AHEAD_DIGEST_SKIPPED;
 
     // Request op throttling related
     public final Counter THROTTLED_OPS;
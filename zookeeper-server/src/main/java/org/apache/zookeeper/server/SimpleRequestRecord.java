@@ -19,12 +19,11 @@
 package org.apache.zookeeper.server;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.function.Supplier;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 
 public class SimpleRequestRecord implements RequestRecord {
@@ -50,10 +49,8 @@ public byte[] readBytes() {
             return bytes;
         }
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
-            record.serialize(boa, "request");
-            bytes = baos.toByteArray();
+        try {
+            bytes = ByteBufferOutputArchive.serialize(record);
             return bytes;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
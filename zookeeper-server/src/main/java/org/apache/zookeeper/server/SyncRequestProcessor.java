@@ -21,6 +21,8 @@
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
@@ -28,7 +30,9 @@
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.persistence.TxnLog.FlushedTxns;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +52,12 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * With group commit enabled, the batches are written to the log on this
+ * thread and synced to disk on a separate thread, which passes the requests
+ * of a batch to the next processor once it's synced. The next batch is
+ * appended while the previous one is synced, and is written as soon as the
+ * previous one is synced, or when it reaches the batch limits.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -85,11 +95,24 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Syncs the written batches when group commit is enabled, null otherwise.
+     */
+    private final LogSyncThread logSyncThread;
+
+    /**
+     * The number of batches written and not synced yet.
+     */
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         this.toFlush = new ArrayDeque<>(zks.getMaxBatchSize());
+        this.logSyncThread = ZooKeeperServer.isGroupCommitEnabled()
+            ? new LogSyncThread("LogSyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener())
+            : null;
     }
 
     /**
@@ -125,10 +148,18 @@ private long getRemainingDelay() {
     private boolean shouldFlush() {
         long flushDelay = zks.getFlushDelay();
         long maxBatchSize = zks.getMaxBatchSize();
+        long maxBatchBytes = zks.getMaxBatchBytes();
         if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
             return true;
         }
-        return (maxBatchSize > 0) && (toFlush.size() >= maxBatchSize);
+        if ((maxBatchBytes > 0) && (zks.getZKDatabase().getUnflushedSize() >= maxBatchBytes)) {
+            return true;
+        }
+        if ((maxBatchSize > 0) && (toFlush.size() >= maxBatchSize)) {
+            return true;
+        }
+        // with group commit, write the batch as soon as the previous one is synced
+        return (logSyncThread != null) && (batchesInFlight.get() == 0);
     }
 
     /**
@@ -159,6 +190,9 @@ public void run() {
             // in the ensemble take a snapshot at the same time
             resetSnapshotStats();
             lastFlushTime = Time.currentElapsedTime();
+            if (logSyncThread != null) {
+                logSyncThread.start();
+            }
             while (true) {
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
@@ -200,7 +234,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && batchesInFlight.get() == 0) {
                     // optimization for read heavy workloads
                     // iff this is a read or a throttled request(which doesn't need to be written to the disk),
                     // and there are no pending flushes (writes), then just pass this to the next processor
@@ -231,6 +265,11 @@ private void flush() throws IOException, RequestProcessorException {
 
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
+        if (logSyncThread != null) {
+            writeBatch();
+            return;
+        }
+
         long flushStartTime = Time.currentElapsedTime();
         zks.getZKDatabase().commit();
         ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
@@ -238,12 +277,9 @@ private void flush() throws IOException, RequestProcessorException {
         if (this.nextProcessor == null) {
             this.toFlush.clear();
         } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
-                long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
-                ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
-                this.nextProcessor.processRequest(i);
-            }
+            List<Request> requests = new ArrayList<>(this.toFlush);
+            this.toFlush.clear();
+            passToNextProcessor(requests);
             if (this.nextProcessor instanceof Flushable) {
                 ((Flushable) this.nextProcessor).flush();
             }
@@ -251,12 +287,55 @@ private void flush() throws IOException, RequestProcessorException {
         lastFlushTime = Time.currentElapsedTime();
     }
 
+    /**
+     * Pass the flushed requests to the next processor in order, it may apply
+     * the txns of consecutive writes ahead together.
+     */
+    private void passToNextProcessor(List<Request> requests) throws RequestProcessorException {
+        int appliedUpTo = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            if (i >= appliedUpTo && nextProcessor instanceof ApplyAheadProcessor) {
+                int end = i;
+                while (end < requests.size() && requests.get(end).getHdr() != null) {
+                    end++;
+                }
+                if (end - i > 1) {
+                    ((ApplyAheadProcessor) nextProcessor).applyAhead(requests.subList(i, end));
+                }
+                appliedUpTo = Math.max(end, i + 1);
+            }
+            Request request = requests.get(i);
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(
+                Time.currentElapsedTime() - request.syncQueueStartTime);
+            nextProcessor.processRequest(request);
+        }
+    }
+
+    /**
+     * Write the batch to the log and hand it to the LogSyncThread.
+     */
+    private void writeBatch() throws IOException {
+        long batchBytes = zks.getZKDatabase().getUnflushedSize();
+        long flushStartTime = Time.currentElapsedTime();
+        FlushedTxns txns = zks.getZKDatabase().flush();
+        ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+        ServerMetrics.getMetrics().BATCH_BYTES.add(batchBytes);
+        ServerMetrics.getMetrics().BATCHES_IN_FLIGHT.add(batchesInFlight.incrementAndGet());
+
+        logSyncThread.add(new Batch(txns, new ArrayList<>(toFlush)));
+        toFlush.clear();
+        lastFlushTime = Time.currentElapsedTime();
+    }
+
     public void shutdown() {
         LOG.info("Shutting down");
         queuedRequests.add(REQUEST_OF_DEATH);
         try {
             this.join();
             this.flush();
+            if (logSyncThread != null) {
+                logSyncThread.shutdown();
+            }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
@@ -278,4 +357,74 @@ public void processRequest(final Request request) {
         ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUED.add(1);
     }
 
+    private static class Batch {
+
+        final FlushedTxns txns;
+        final List<Request> requests;
+
+        Batch(FlushedTxns txns, List<Request> requests) {
+            this.txns = txns;
+            this.requests = requests;
+        }
+
+    }
+
+    /**
+     * Syncs the batches in order and passes their requests to the next
+     * processor.
+     */
+    private class LogSyncThread extends ZooKeeperCriticalThread {
+
+        private final Batch batchOfDeath = new Batch(null, null);
+
+        private final BlockingQueue<Batch> batches = new LinkedBlockingQueue<>();
+
+        LogSyncThread(String threadName, ZooKeeperServerListener listener) {
+            super(threadName, listener);
+        }
+
+        void add(Batch batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = batches.take();
+                    if (batch == batchOfDeath) {
+                        break;
+                    }
+                    long syncStartTime = Time.currentElapsedTime();
+                    batch.txns.sync();
+                    long now = Time.currentElapsedTime();
+                    ServerMetrics.getMetrics().BATCH_SYNC_TIME.add(now - syncStartTime);
+                    if (!batch.requests.isEmpty()) {
+                        ServerMetrics.getMetrics().BATCH_LATENCY.add(now - batch.requests.get(0).syncQueueStartTime);
+                    }
+                    if (nextProcessor != null) {
+                        passToNextProcessor(batch.requests);
+                        if (nextProcessor instanceof Flushable) {
+                            ((Flushable) nextProcessor).flush();
+                        }
+                    }
+                    // after the requests are passed on, so that requests which
+                    // bypass the batches can't overtake them
+                    batchesInFlight.decrementAndGet();
+                }
+            } catch (Throwable t) {
+                handleException(this.getName(), t);
+            }
+            LOG.info("LogSyncThread exited!");
+        }
+
+        void shutdown() throws InterruptedException {
+            batches.add(batchOfDeath);
+            if (isAlive()) {
+                join();
+            }
+        }
+
+    }
+
 }
@@ -22,14 +22,12 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -48,11 +46,13 @@
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
 import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
@@ -93,8 +93,17 @@ public class ZKDatabase {
     public static final String COMMIT_LOG_COUNT = "zookeeper.commitLogCount";
     public static final int DEFAULT_COMMIT_LOG_COUNT = 500;
     public int commitLogCount;
-    protected Queue<Proposal> committedLog = new ArrayDeque<>();
+
+    /**
+     * Bound the committedLog by the serialized size of the proposals instead
+     * of their count, disabled if not positive
+     */
+    public static final String COMMIT_LOG_BYTES = "zookeeper.commitLogBytes";
+    public long commitLogBytes;
+    protected CommittedLog committedLog = new CommittedLog();
     protected ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+    // shared by the successive data trees, which release their slots when cleared
+    private final OffHeapDataStore offHeapDataStore = OffHeapDataStore.fromSystemProperties();
     private volatile boolean initialized = false;
 
     /**
@@ -153,6 +162,9 @@ public ZKDatabase(FileTxnSnapLog snapLog) {
             commitLogCount = DEFAULT_COMMIT_LOG_COUNT;
         }
         LOG.info("{}={}", COMMIT_LOG_COUNT, commitLogCount);
+
+        commitLogBytes = Long.getLong(COMMIT_LOG_BYTES, 0);
+        LOG.info("{}={}", COMMIT_LOG_BYTES, commitLogBytes);
     }
 
     /**
@@ -177,6 +189,7 @@ public void clear() {
          * datatree.
          */
         dataTree.shutdownWatcher();
+        dataTree.releaseOffHeapData();
         dataTree = createDataTree();
         sessionsWithTimeouts.clear();
         WriteLock lock = logLock.writeLock();
@@ -240,6 +253,28 @@ public synchronized Collection<Proposal> getCommittedLog() {
         return Collections.unmodifiableCollection(result);
     }
 
+    /**
+     * Iterate the committedLog from the proposal before the first one whose
+     * zxid is at least the given one. The read lock of {@link #getLogLock()}
+     * must be held while iterating.
+     */
+    public Iterator<Proposal> getCommittedLogFrom(long zxid) {
+        return committedLog.iteratorFrom(zxid);
+    }
+
+    /**
+     * @return the serialized size of the proposals in the committedLog
+     */
+    public long getCommittedLogBytes() {
+        ReadLock rl = logLock.readLock();
+        rl.lock();
+        try {
+            return committedLog.getBytes();
+        } finally {
+            rl.unlock();
+        }
+    }
+
     /**
      * get the last processed zxid from a datatree
      * @return the last processed zxid of a datatree
@@ -321,7 +356,21 @@ public void addCommittedProposal(Request request) {
         WriteLock wl = logLock.writeLock();
         try {
             wl.lock();
-            if (committedLog.size() > commitLogCount) {
+            byte[] data = SerializeUtils.serializeRequest(request);
+            QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+            Proposal p = new Proposal();
+            p.packet = pp;
+            p.request = request;
+
+            if (commitLogBytes > 0) {
+                long size = CommittedLog.sizeOf(p);
+                while (!committedLog.isEmpty() && committedLog.getBytes() + size > commitLogBytes) {
+                    committedLog.remove();
+                }
+                if (!committedLog.isEmpty()) {
+                    minCommittedLog = committedLog.peek().packet.getZxid();
+                }
+            } else if (committedLog.size() > commitLogCount) {
                 committedLog.remove();
                 minCommittedLog = committedLog.peek().packet.getZxid();
             }
@@ -330,11 +379,6 @@ public void addCommittedProposal(Request request) {
                 maxCommittedLog = request.zxid;
             }
 
-            byte[] data = SerializeUtils.serializeRequest(request);
-            QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
-            Proposal p = new Proposal();
-            p.packet = pp;
-            p.request = request;
             committedLog.add(p);
             maxCommittedLog = p.packet.getZxid();
         } finally {
@@ -382,7 +426,9 @@ public Iterator<Proposal> getProposalsFromTxnLog(long startZxid, long sizeLimit)
         TxnIterator itr = null;
         try {
 
-            itr = snapLog.readTxnLog(startZxid, false);
+            // start at the txn before startZxid, which is needed to tell
+            // whether the learner has to truncate its log
+            itr = snapLog.readTxnLogBefore(startZxid);
 
             // If we cannot guarantee that this is strictly the starting txn
             // after a given zxid, we should fail.
@@ -485,6 +531,22 @@ public ProcessTxnResult processTxn(TxnHeader hdr, Record txn, TxnDigest digest)
         return dataTree.processTxn(hdr, txn, digest);
     }
 
+    /**
+     * apply a committed txn ahead of its turn, see
+     * {@link DataTree#applyTxnAhead(TxnHeader, Record)}
+     */
+    public ProcessTxnResult applyTxnAhead(TxnHeader hdr, Record txn) {
+        return dataTree.applyTxnAhead(hdr, txn);
+    }
+
+    /**
+     * complete, in zxid order, a txn applied ahead and perform digest
+     * comparision.
+     */
+    public void completeTxnAhead(TxnHeader hdr, Record txn, TxnDigest digest, ProcessTxnResult rc) {
+        dataTree.completeTxnAhead(hdr, txn, digest, rc);
+    }
+
     /**
      * stat the path
      * @param path the path for which stat is to be done
@@ -516,6 +578,18 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws KeeperExce
         return dataTree.getData(path, stat, watcher);
     }
 
+    /**
+     * get the data and stat of a node as a response, without copying data
+     * kept off-heap
+     * @param path the path being queried
+     * @param watcher the watcher function
+     * @return the response, to be released once sent if it refers to off-heap data
+     * @throws KeeperException.NoNodeException
+     */
+    public GetDataResponse getDataResponse(String path, Watcher watcher) throws KeeperException.NoNodeException {
+        return dataTree.getDataResponse(path, watcher);
+    }
+
     /**
      * set watches on the datatree
      * @param relativeZxid the relative zxid that client has seen
@@ -658,6 +732,48 @@ public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream
         initialized = true;
     }
 
+    /**
+     * Deserialize a snapshot file streamed by the leader. The snapshot is fuzzy
+     * like on restore: the txns after snapZxid are applied on top of it.
+     *
+     * @param ia the input archive to deserialize from
+     * @param is the CheckInputStream to check integrity
+     * @param snapZxid the zxid in the name of the snapshot file
+     *
+     * @throws IOException
+     */
+    public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream is, final long snapZxid) throws IOException {
+        clear();
+
+        final DataTree dataTree = getDataTree();
+        FileSnap.deserialize(dataTree, getSessionWithTimeOuts(), ia);
+        SnapStream.checkSealIntegrity(is, ia);
+
+        if (dataTree.deserializeZxidDigest(ia, snapZxid)) {
+            SnapStream.checkSealIntegrity(is, ia);
+        }
+
+        if (dataTree.deserializeLastProcessedZxid(ia)) {
+            SnapStream.checkSealIntegrity(is, ia);
+        }
+        dataTree.lastProcessedZxid = snapZxid;
+
+        if (dataTree.getDigestFromLoadedSnapshot() != null) {
+            dataTree.compareSnapshotDigests(dataTree.lastProcessedZxid);
+        }
+
+        initialized = true;
+    }
+
+    /**
+     * Find the most recent valid snapshot file.
+     *
+     * @return the most recent snapshot file, or null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot() throws IOException {
+        return snapLog.findMostRecentSnapshot();
+    }
 
     /**
      * serialize the snapshot
@@ -698,6 +814,23 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * write the appended transactions to the underlying transaction log,
+     * they are durable once the returned transactions are synced
+     * @return the transactions to be synced
+     * @throws IOException
+     */
+    public TxnLog.FlushedTxns flush() throws IOException {
+        return this.snapLog.flush();
+    }
+
+    /**
+     * the size of the transactions appended and not flushed yet
+     */
+    public long getUnflushedSize() {
+        return this.snapLog.getUnflushedSize();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
@@ -765,7 +898,7 @@ public boolean removeWatch(String path, WatcherType type, Watcher watcher) {
 
     // visible for testing
     public DataTree createDataTree() {
-        return new DataTree();
+        return new DataTree(offHeapDataStore);
     }
 
     /**
@@ -20,17 +20,13 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -44,7 +40,7 @@
 import java.util.zip.CheckedInputStream;
 import javax.security.sasl.SaslException;
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.Environment;
@@ -127,6 +123,9 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     public static final String ZOOKEEPER_DIGEST_ENABLED = "zookeeper.digest.enabled";
     private static boolean digestEnabled;
 
+    public static final String ZOOKEEPER_COMPACT_DATA_TREE_ENABLED = "zookeeper.compactDataTree.enabled";
+    private static boolean compactDataTreeEnabled;
+
     public static final String ZOOKEEPER_SERIALIZE_LAST_PROCESSED_ZXID_ENABLED = "zookeeper.serializeLastProcessedZxid.enabled";
     private static boolean serializeLastProcessedZxidEnabled;
 
@@ -161,6 +160,9 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         digestEnabled = Boolean.parseBoolean(System.getProperty(ZOOKEEPER_DIGEST_ENABLED, "true"));
         LOG.info("{} = {}", ZOOKEEPER_DIGEST_ENABLED, digestEnabled);
 
+        compactDataTreeEnabled = Boolean.parseBoolean(System.getProperty(ZOOKEEPER_COMPACT_DATA_TREE_ENABLED, "false"));
+        LOG.info("{} = {}", ZOOKEEPER_COMPACT_DATA_TREE_ENABLED, compactDataTreeEnabled);
+
         closeSessionTxnEnabled = Boolean.parseBoolean(
                 System.getProperty(CLOSE_SESSION_TXN_ENABLED, "true"));
         LOG.info("{} = {}", CLOSE_SESSION_TXN_ENABLED, closeSessionTxnEnabled);
@@ -239,9 +241,7 @@ protected enum State {
     private static final long superSecret = 0XB3415C00L;
 
     private final AtomicInteger requestsInProcess = new AtomicInteger(0);
-    final Deque<ChangeRecord> outstandingChanges = new ArrayDeque<>();
-    // this data structure must be accessed under the outstandingChanges lock
-    final Map<String, ChangeRecord> outstandingChangesForPath = new HashMap<>();
+    final OutstandingChanges outstandingChanges = new OutstandingChanges();
 
     protected ServerCnxnFactory serverCnxnFactory;
     protected ServerCnxnFactory secureServerCnxnFactory;
@@ -257,6 +257,10 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String MAX_BATCH_BYTES = "zookeeper.maxBatchBytes";
+    private static volatile long maxBatchBytes;
+    public static final String GROUP_COMMIT_ENABLED = "zookeeper.groupCommit.enabled";
+    private static boolean groupCommitEnabled;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -268,12 +272,18 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheSizeInBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheSizeInBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setMaxBatchBytes(Long.getLong(MAX_BATCH_BYTES, 0));
+
+        groupCommitEnabled = Boolean.getBoolean(GROUP_COMMIT_ENABLED);
+        LOG.info("{} = {}", GROUP_COMMIT_ENABLED, groupCommitEnabled);
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -370,11 +380,17 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         readResponseCache = new ResponseCache(Integer.getInteger(
             GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getData");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_DATA_RESPONSE_CACHE_BYTES, 0), "getData",
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS,
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_OVERSIZED);
 
         getChildrenResponseCache = new ResponseCache(Integer.getInteger(
             GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getChildren");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_CHILDREN_RESPONSE_CACHE_BYTES, 0), "getChildren",
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS,
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_OVERSIZED);
 
         this.initialConfig = initialConfig;
 
@@ -549,8 +565,16 @@ public void loadData() throws IOException, InterruptedException {
         takeSnapshot();
     }
 
+    /**
+     * Takes a snapshot on the server, which is a delta snapshot holding the
+     * nodes changed since the previous one when enabled by
+     * {@link FileTxnSnapLog#ZOOKEEPER_SNAPSHOT_DELTA_COUNT}.
+     *
+     * @return the snapshot or delta snapshot file
+     * @throws IOException
+     */
     public File takeSnapshot() throws IOException {
-        return takeSnapshot(false);
+        return takeSnapshot(false, true, false, true);
     }
 
     public File takeSnapshot(boolean syncSnap) throws IOException {
@@ -567,14 +591,19 @@ public File takeSnapshot(boolean syncSnap) throws IOException {
      * @return file snapshot file object
      * @throws IOException
      */
-    public synchronized File takeSnapshot(boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits) throws IOException {
+    public File takeSnapshot(boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits) throws IOException {
+        return takeSnapshot(syncSnap, isSevere, fastForwardFromEdits, false);
+    }
+
+    private synchronized File takeSnapshot(
+        boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits, boolean allowDelta) throws IOException {
         long start = Time.currentElapsedTime();
         File snapFile = null;
         try {
             if (fastForwardFromEdits) {
                 zkDb.fastForwardDataBase();
             }
-            snapFile = txnLogFactory.save(zkDb.getDataTree(), zkDb.getSessionWithTimeOuts(), syncSnap);
+            snapFile = txnLogFactory.save(zkDb.getDataTree(), zkDb.getSessionWithTimeOuts(), syncSnap, allowDelta);
         } catch (IOException e) {
             if (isSevere) {
                 LOG.error("Severe unrecoverable error, exiting", e);
@@ -1072,6 +1101,9 @@ static class ChangeRecord {
 
         List<ACL> acl; /* Make sure to create a new object when changing */
 
+        /* Set once the record is removed from the outstanding changes */
+        volatile boolean trimmed;
+
         ChangeRecord duplicate(long zxid) {
             StatPersisted stat = new StatPersisted();
             if (this.stat != null) {
@@ -1167,12 +1199,11 @@ public void finishSessionInit(ServerCnxn cnxn, boolean valid) {
                 // longer valid
                 valid ? generatePasswd(cnxn.getSessionId()) : new byte[16],
                 this instanceof ReadOnlyZooKeeperServer);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+            ByteBufferOutputArchive bos = new ByteBufferOutputArchive(ByteBuffer.allocate(4 + rsp.serializedSize()));
             bos.writeInt(-1, "len");
             rsp.serialize(bos, "connect");
-            baos.close();
-            ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
+            ByteBuffer bb = bos.getBuffer();
+            bb.flip();
             bb.putInt(bb.remaining() - 4).rewind();
             cnxn.sendBuffer(bb);
 
@@ -1613,6 +1644,24 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    static void setMaxBatchBytes(long bytes) {
+        LOG.info("{}={}", MAX_BATCH_BYTES, bytes);
+        maxBatchBytes = bytes;
+    }
+
+    public static boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    public static void setGroupCommitEnabled(boolean enabled) {
+        groupCommitEnabled = enabled;
+        LOG.info("{} = {}", GROUP_COMMIT_ENABLED, enabled);
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -1864,7 +1913,14 @@ public ProcessTxnResult processTxn(TxnHeader hdr, Record txn) {
     // entry point for FinalRequestProcessor.java
     public ProcessTxnResult processTxn(Request request) {
         TxnHeader hdr = request.getHdr();
-        processTxnForSessionEvents(request, hdr, request.getTxn());
+        ProcessTxnResult rc = request.getTxnResultAhead();
+        if (rc != null) {
+            // applied ahead with its session events, see applyTxnAhead
+            request.setTxnResultAhead(null);
+            getZKDatabase().completeTxnAhead(hdr, request.getTxn(), request.getTxnDigest(), rc);
+        } else {
+            processTxnForSessionEvents(request, hdr, request.getTxn());
+        }
 
         final boolean writeRequest = (hdr != null);
         final boolean quorumRequest = request.isQuorum();
@@ -1873,35 +1929,33 @@ public ProcessTxnResult processTxn(Request request) {
         if (!writeRequest && !quorumRequest) {
             return new ProcessTxnResult();
         }
-        synchronized (outstandingChanges) {
-            ProcessTxnResult rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
-
-            // request.hdr is set for write requests, which are the only ones
-            // that add to outstandingChanges.
-            if (writeRequest) {
-                long zxid = hdr.getZxid();
-                while (!outstandingChanges.isEmpty()
-                        && outstandingChanges.peek().zxid <= zxid) {
-                    ChangeRecord cr = outstandingChanges.remove();
-                    ServerMetrics.getMetrics().OUTSTANDING_CHANGES_REMOVED.add(1);
-                    if (cr.zxid < zxid) {
-                        LOG.warn(
-                            "Zxid outstanding 0x{} is less than current 0x{}",
-                            Long.toHexString(cr.zxid),
-                            Long.toHexString(zxid));
-                    }
-                    if (outstandingChangesForPath.get(cr.path) == cr) {
-                        outstandingChangesForPath.remove(cr.path);
-                    }
-                }
-            }
+        if (rc == null) {
+            rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
+        }
 
-            // do not add non quorum packets to the queue.
-            if (quorumRequest) {
-                getZKDatabase().addCommittedProposal(request);
-            }
-            return rc;
+        // request.hdr is set for write requests, which are the only ones
+        // that add to outstandingChanges. They are trimmed once the txn is
+        // applied, so that a path without a change is up to date in the tree.
+        if (writeRequest) {
+            outstandingChanges.trimTo(hdr.getZxid());
         }
+
+        // do not add non quorum packets to the queue.
+        if (quorumRequest) {
+            getZKDatabase().addCommittedProposal(request);
+        }
+        return rc;
+    }
+
+    /**
+     * Apply the txn of a committed request ahead of its turn, see
+     * {@link ParallelTxnApplier}. It is completed when the request is
+     * processed by {@link #processTxn(Request)}, in order.
+     */
+    void applyTxnAhead(Request request) {
+        TxnHeader hdr = request.getHdr();
+        processTxnForSessionEvents(request, hdr, request.getTxn());
+        request.setTxnResultAhead(getZKDatabase().applyTxnAhead(hdr, request.getTxn()));
     }
 
     private void processTxnForSessionEvents(Request request, TxnHeader hdr, Record txn) {
@@ -1984,6 +2038,7 @@ protected void registerMetrics() {
         rootContext.registerGauge("ephemerals_count", zkdb.getDataTree()::getEphemeralsCount);
 
         rootContext.registerGauge("approximate_data_size", zkdb.getDataTree()::cachedApproximateDataSize);
+        rootContext.registerGauge("committed_log_bytes", zkdb::getCommittedLogBytes);
 
         rootContext.registerGauge("global_sessions", zkdb::getSessionCount);
         rootContext.registerGauge("local_sessions", this.getSessionTracker()::getLocalSessionCount);
@@ -2033,6 +2088,7 @@ protected void unregisterMetrics() {
         rootContext.unregisterGauge("watch_count");
         rootContext.unregisterGauge("ephemerals_count");
         rootContext.unregisterGauge("approximate_data_size");
+        rootContext.unregisterGauge("committed_log_bytes");
 
         rootContext.unregisterGauge("global_sessions");
         rootContext.unregisterGauge("local_sessions");
@@ -2177,7 +2233,7 @@ private void checkQuota(String lastPrefix, long bytesDiff, long countDiff, Strin
             return;
         }
         synchronized (node) {
-            limitStats = new StatsTrack(node.data);
+            limitStats = new StatsTrack(node.getData());
         }
         //check the quota
         boolean checkCountQuota = countDiff != 0 && (limitStats.getCount() > -1 || limitStats.getCountHardLimit() > -1);
@@ -2198,7 +2254,7 @@ private void checkQuota(String lastPrefix, long bytesDiff, long countDiff, Strin
             return;
         }
         synchronized (node) {
-            currentStats = new StatsTrack(node.data);
+            currentStats = new StatsTrack(node.getData());
         }
 
         //check the Count Quota
@@ -2242,6 +2298,16 @@ public static void setDigestEnabled(boolean digestEnabled) {
         ZooKeeperServer.digestEnabled = digestEnabled;
     }
 
+    public static boolean isCompactDataTreeEnabled() {
+        return compactDataTreeEnabled;
+    }
+
+    // @VisibleForTesting
+    public static void setCompactDataTreeEnabled(boolean compactDataTreeEnabled) {
+        LOG.info("{} = {}", ZOOKEEPER_COMPACT_DATA_TREE_ENABLED, compactDataTreeEnabled);
+        ZooKeeperServer.compactDataTreeEnabled = compactDataTreeEnabled;
+    }
+
     public static boolean isSerializeLastProcessedZxidEnabled() {
         return serializeLastProcessedZxidEnabled;
     }
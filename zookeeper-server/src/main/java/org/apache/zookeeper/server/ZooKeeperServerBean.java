@@ -409,6 +409,16 @@ public void setMaxBatchSize(int size) {
         ZooKeeperServer.setMaxBatchSize(size);
     }
 
+    @Override
+    public long getMaxBatchBytes() {
+        return zks.getMaxBatchBytes();
+    }
+
+    @Override
+    public void setMaxBatchBytes(long bytes) {
+        ZooKeeperServer.setMaxBatchBytes(bytes);
+    }
+
     public boolean getRequestStaleConnectionCheck() {
         return Request.getStaleConnectionCheck();
     }
@@ -244,6 +244,9 @@ public interface ZooKeeperServerMXBean {
     int getMaxBatchSize();
     void setMaxBatchSize(int size);
 
+    long getMaxBatchBytes();
+    void setMaxBatchBytes(long bytes);
+
     /**
      * @return Current maxCnxns allowed to a single ZooKeeper server
      */
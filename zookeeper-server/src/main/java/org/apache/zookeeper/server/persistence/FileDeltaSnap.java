@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.Nonnull;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class stores and loads the delta snapshots. A delta snapshot holds
+ * the sessions and the nodes changed since the previous snapshot or delta
+ * snapshot, and records the zxid of the snapshot it was taken after. When
+ * restoring, the chain of deltas of the loaded snapshot is layered onto it
+ * before replaying the transaction log.
+ */
+public class FileDeltaSnap {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileDeltaSnap.class);
+    private static final int VERSION = 1;
+    private static final long dbId = -1;
+    public static final int DELTA_MAGIC = ByteBuffer.wrap("ZKDS".getBytes()).getInt();
+
+    public static final String DELTA_FILE_PREFIX = "delta";
+
+    private final File snapDir;
+    private volatile boolean close = false;
+
+    public FileDeltaSnap(@Nonnull File snapDir) {
+        this.snapDir = snapDir;
+    }
+
+    /**
+     * layer the delta snapshots taken after the given snapshot onto the
+     * datatree, in order, stopping at the first invalid one
+     * @param dt the datatree loaded from the snapshot
+     * @param sessions the sessions loaded from the snapshot
+     * @param snapZxid the zxid of the snapshot
+     * @return the number of delta snapshots applied
+     */
+    public int deserialize(DataTree dt, Map<Long, Integer> sessions, long snapZxid) {
+        List<DataTree.Delta> deltas = new ArrayList<>();
+        Map<Long, Integer> lastSessions = null;
+        long lastZxid = -1;
+        for (File f : findDeltas(snapZxid)) {
+            long zxid = Util.getZxidFromName(f.getName(), DELTA_FILE_PREFIX);
+            try (CheckedInputStream snapIS = SnapStream.getInputStream(f)) {
+                InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+                FileHeader header = new FileHeader();
+                header.deserialize(ia, "fileheader");
+                if (header.getMagic() != DELTA_MAGIC) {
+                    throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + DELTA_MAGIC);
+                }
+                long baseZxid = ia.readLong("baseZxid");
+                if (baseZxid != snapZxid) {
+                    LOG.info("Skipping delta snapshot {} taken after snapshot 0x{}", f, Long.toHexString(baseZxid));
+                    continue;
+                }
+                Map<Long, Integer> deltaSessions = new HashMap<>();
+                DataTree.Delta delta = SerializeUtils.deserializeDeltaSnapshot(dt, ia, deltaSessions, zxid);
+                SnapStream.checkSealIntegrity(snapIS, ia);
+                LOG.info("Read delta snapshot {} with {} nodes", f, delta.size());
+                deltas.add(delta);
+                lastSessions = deltaSessions;
+                lastZxid = zxid;
+            } catch (IOException e) {
+                // the later deltas depend on this one, the txn log covers them
+                LOG.warn("problem reading delta snapshot file {}, ignoring it and the later ones", f, e);
+                break;
+            }
+        }
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+        dt.applyDeltas(deltas);
+        sessions.clear();
+        sessions.putAll(lastSessions);
+        dt.lastProcessedZxid = lastZxid;
+        if (dt.getDigestFromLoadedSnapshot() != null) {
+            dt.compareSnapshotDigests(dt.lastProcessedZxid);
+        }
+        return deltas.size();
+    }
+
+    /**
+     * serialize the sessions and the current state of the given paths into
+     * a delta snapshot
+     * @param dt the datatree to be serialized
+     * @param sessions the sessions to be serialized
+     * @param paths the paths changed since the previous snapshot
+     * @param snapZxid the zxid of the snapshot the delta is taken after
+     * @param deltaSnap the file to store the delta snapshot into
+     * @param fsync sync the file immediately after write
+     */
+    public synchronized void serialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        Set<String> paths,
+        long snapZxid,
+        File deltaSnap,
+        boolean fsync) throws IOException {
+        if (close) {
+            throw new IOException("FileDeltaSnap has already been closed");
+        }
+        try (CheckedOutputStream snapOS = SnapStream.getOutputStream(deltaSnap, fsync)) {
+            OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
+            FileHeader header = new FileHeader(DELTA_MAGIC, VERSION, dbId);
+            header.serialize(oa, "fileheader");
+            oa.writeLong(snapZxid, "baseZxid");
+            SerializeUtils.serializeDeltaSnapshot(dt, oa, sessions, paths);
+            SnapStream.sealStream(snapOS, oa);
+        }
+    }
+
+    /**
+     * delete the delta snapshots newer than the given zxid
+     * @param zxid the zxid the database is truncated to
+     */
+    public void truncate(long zxid) {
+        for (File f : Util.sortDataDir(snapDir.listFiles(), DELTA_FILE_PREFIX, false)) {
+            long deltaZxid = Util.getZxidFromName(f.getName(), DELTA_FILE_PREFIX);
+            if (deltaZxid <= zxid) {
+                break;
+            }
+            if (f.delete()) {
+                LOG.info("Deleted delta snapshot {}", f);
+            } else {
+                LOG.warn("Could not delete delta snapshot {}", f);
+            }
+        }
+    }
+
+    /**
+     * find the delta snapshots which may have been taken after the snapshot
+     * of the given zxid, the oldest first
+     */
+    private List<File> findDeltas(long snapZxid) {
+        List<File> deltas = new ArrayList<>();
+        for (File f : Util.sortDataDir(snapDir.listFiles(), DELTA_FILE_PREFIX, true)) {
+            if (Util.getZxidFromName(f.getName(), DELTA_FILE_PREFIX) >= snapZxid) {
+                deltas.add(f);
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * synchronized close just so that if serialize is in place
+     * the close operation will block and will wait till serialize
+     * is done and will set the close flag
+     */
+    public synchronized void close() {
+        close = true;
+    }
+
+}
@@ -48,12 +48,34 @@ public class FileSnap implements SnapShot {
     SnapshotInfo lastSnapshotInfo = null;
     private volatile boolean close = false;
     private static final int VERSION = 2;
+    // snapshots with the nodes split in independently checksummed chunks
+    private static final int CHUNKED_VERSION = 3;
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
 
+    /**
+     * The size in bytes of the node chunks of the snapshots written, 0 writes
+     * the nodes as a single stream readable by the older versions.
+     */
+    public static final String SNAPSHOT_CHUNK_SIZE = "zookeeper.snapshot.chunkSize";
+
+    /**
+     * The number of threads decoding the node chunks of a snapshot.
+     */
+    public static final String SNAPSHOT_LOAD_THREADS = "zookeeper.snapshot.loadThreads";
+
+    private static int chunkSize = Integer.getInteger(SNAPSHOT_CHUNK_SIZE, 0);
+
+    private static int loadThreads = Integer.getInteger(
+        SNAPSHOT_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+
+    static {
+        LOG.info("{} = {}, {} = {}", SNAPSHOT_CHUNK_SIZE, chunkSize, SNAPSHOT_LOAD_THREADS, loadThreads);
+    }
+
     public FileSnap(@Nonnull File snapDir) {
         this.snapDir = snapDir;
     }
@@ -138,7 +160,23 @@ public static void deserialize(DataTree dt, Map<Long, Integer> sessions, InputAr
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        if (header.getVersion() >= CHUNKED_VERSION) {
+            SerializeUtils.deserializeChunkedSnapshot(dt, ia, sessions, Math.max(1, loadThreads));
+        } else {
+            SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        }
+    }
+
+    public static void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    public static void setLoadThreads(int threads) {
+        loadThreads = threads;
     }
 
     /**
@@ -229,7 +267,11 @@ protected void serialize(
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        if (header.getVersion() >= CHUNKED_VERSION) {
+            SerializeUtils.serializeChunkedSnapshot(dt, oa, sessions, chunkSize);
+        } else {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        }
     }
 
     /**
@@ -247,7 +289,7 @@ public synchronized void serialize(
         if (!close) {
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                FileHeader header = new FileHeader(SNAP_MAGIC, chunkSize > 0 ? CHUNKED_VERSION : VERSION, dbId);
                 serialize(dt, sessions, oa, header);
                 SnapStream.sealStream(snapOS, oa);
 
@@ -21,6 +21,8 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,6 +33,7 @@
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
@@ -43,6 +46,7 @@
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.ServerStats;
@@ -94,6 +98,22 @@
  * ZeroPad:
  *     0 padded to EOF (filled during preallocation stage)
  * </pre></blockquote>
+ * <p>
+ * When the log is compressed, the version of the FileHeader is 3 and the
+ * txns are written in compressed blocks instead:
+ * <blockquote><pre>
+ * LogFile:
+ *     FileHeader codec BlockList ZeroPad
+ *
+ * codec:
+ *     id 4bytes, see {@link TxnLogCodec}
+ *
+ * BlockList:
+ *     Block || Block BlockList
+ *
+ * Block:
+ *     See {@link TxnLogBlock}, its uncompressed bytes are a TxnList
+ * </pre></blockquote>
  */
 public class FileTxnLog implements TxnLog, Closeable {
 
@@ -103,8 +123,49 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     public static final int VERSION = 2;
 
+    // the version of the logs whose txns are compressed
+    public static final int COMPRESSED_VERSION = 3;
+
     public static final String LOG_FILE_PREFIX = "log";
 
+    /**
+     * Whether the iterators read the log files through memory mappings,
+     * disabled by default. A mapping is released once its log has been read
+     * or the iterator is closed, or when garbage collected before Java 9.
+     */
+    public static final String TXN_LOG_MMAP_ENABLED = "zookeeper.txnLogMmap.enabled";
+
+    private static final boolean txnLogMmapEnabled;
+
+    /**
+     * The codec the txns of the new log files are compressed with, they are
+     * not compressed by default.
+     */
+    public static final String TXN_LOG_COMPRESSION_METHOD = "zookeeper.txnLogCompression.method";
+
+    /**
+     * The size of the txns (KB) compressed together in a block, the txns
+     * written by each commit of the log are compressed together up to that
+     * size.
+     */
+    public static final String TXN_LOG_COMPRESSION_BLOCK_SIZE = "zookeeper.txnLogCompression.blockSizeInKb";
+
+    private static volatile TxnLogCodec txnLogCodec;
+
+    private static final int compressionBlockSize;
+
+    // the size of the file header
+    static final int FILE_HEADER_SIZE = 4 + 4 + 8;
+
+    // the checksum, the length and the end of record marker of a txn entry
+    static final int TXN_ENTRY_OVERHEAD = 8 + 4 + 1;
+
+    // the end of the zxid in the txn header
+    static final int TXN_HEADER_ZXID_END = 8 + 4 + 8;
+
+    // the offset of the zxid in a txn entry
+    static final int TXN_ENTRY_ZXID_OFFSET = 8 + 4 + TXN_HEADER_ZXID_END - 8;
+
     static final String FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "fsync.warningthresholdms";
     static final String ZOOKEEPER_FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "zookeeper." + FSYNC_WARNING_THRESHOLD_MS_PROPERTY;
 
@@ -144,6 +205,16 @@ public class FileTxnLog implements TxnLog, Closeable {
             logSize = logSize * 1024;
             txnLogSizeLimit = logSize;
         }
+
+        txnLogMmapEnabled = Boolean.parseBoolean(System.getProperty(TXN_LOG_MMAP_ENABLED, "false"));
+        LOG.info("{} = {}", TXN_LOG_MMAP_ENABLED, txnLogMmapEnabled);
+
+        txnLogCodec = TxnLogCodec.fromString(System.getProperty(TXN_LOG_COMPRESSION_METHOD, TxnLogCodec.NONE.getName()));
+        LOG.info("{} = {}", TXN_LOG_COMPRESSION_METHOD, txnLogCodec.getName());
+        compressionBlockSize = (int) Math.min(
+            Long.getLong(TXN_LOG_COMPRESSION_BLOCK_SIZE, 64) * 1024,
+            TxnLogBlock.MAX_BLOCK_SIZE);
+        LOG.info("{} = {}", TXN_LOG_COMPRESSION_BLOCK_SIZE, compressionBlockSize / 1024);
     }
 
     long lastZxidSeen;
@@ -158,10 +229,20 @@ public class FileTxnLog implements TxnLog, Closeable {
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
 
-    private ServerStats serverStats;
+    private volatile ServerStats serverStats;
 
     private volatile long syncElapsedMS = -1L;
 
+    // the size of the txns appended since the last commit or flush
+    private long unflushedSize;
+
+    // the index of the log file being written and the offset of the next txn
+    private TxnLogIndex writeIndex;
+    private long writeOffset;
+
+    // the block of txns to compress, when the log being written is compressed
+    private TxnLogBlock writeBlock;
+
     /**
      * A running total of all complete log files
      * This does not include the current file being written to
@@ -195,6 +276,18 @@ public synchronized void setServerStats(ServerStats serverStats) {
         this.serverStats = serverStats;
     }
 
+    /**
+     * Set the codec the txns of the log files created from now on are
+     * compressed with
+     */
+    public static void setTxnLogCodec(TxnLogCodec codec) {
+        txnLogCodec = codec;
+    }
+
+    public static TxnLogCodec getTxnLogCodec() {
+        return txnLogCodec;
+    }
+
     /**
      * Set log size limit
      */
@@ -235,10 +328,13 @@ protected Checksum makeChecksumAlgorithm() {
      */
     public synchronized void rollLog() throws IOException {
         if (logStream != null) {
+            writeBlock();
+            writeBlock = null;
             this.logStream.flush();
             prevLogsRunningTotal += getCurrentLogSize();
             this.logStream = null;
             oa = null;
+            writeIndex.closeIndexFile();
 
             // Roll over the current log file into the running total
         }
@@ -250,7 +346,9 @@ public synchronized void rollLog() throws IOException {
      */
     public synchronized void close() throws IOException {
         if (logStream != null) {
+            writeBlock();
             logStream.close();
+            writeIndex.closeIndexFile();
         }
         for (FileOutputStream log : streamsToFlush) {
             log.close();
@@ -288,26 +386,62 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
             fos = new FileOutputStream(logFileWrite);
             logStream = new BufferedOutputStream(fos);
             oa = BinaryOutputArchive.getArchive(logStream);
-            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
-            fhdr.serialize(oa, "fileheader");
+            TxnLogCodec codec = txnLogCodec;
+            if (codec == TxnLogCodec.NONE) {
+                FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
+                fhdr.serialize(oa, "fileheader");
+                writeBlock = null;
+            } else {
+                FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, COMPRESSED_VERSION, dbId);
+                fhdr.serialize(oa, "fileheader");
+                oa.writeInt(codec.getId(), "codec");
+                writeBlock = new TxnLogBlock(codec);
+            }
             // Make sure that the magic number is written before padding.
             logStream.flush();
             filePadding.setCurrentSize(fos.getChannel().position());
             streamsToFlush.add(fos);
+            writeIndex = TxnLogIndex.create(logFileWrite);
+            writeOffset = fos.getChannel().position();
         }
-        filePadding.padFile(fos.getChannel());
         byte[] buf = Util.marshallTxnEntry(hdr, txn, digest);
         if (buf == null || buf.length == 0) {
             throw new IOException("Faulty serialization for header " + "and txn");
         }
         Checksum crc = makeChecksumAlgorithm();
         crc.update(buf, 0, buf.length);
+        unflushedSize += buf.length;
+        if (writeBlock != null) {
+            writeBlock.append(hdr.getZxid(), crc.getValue(), buf);
+            if (writeBlock.size() >= compressionBlockSize) {
+                writeBlock();
+            }
+            return true;
+        }
+        filePadding.padFile(fos.getChannel());
         oa.writeLong(crc.getValue(), "txnEntryCRC");
         Util.writeTxnBytes(oa, buf);
+        writeIndex.add(hdr.getZxid(), writeOffset);
+        writeOffset += TXN_ENTRY_OVERHEAD + buf.length;
 
         return true;
     }
 
+    /**
+     * compress the txns appended to the block being filled, if any, and
+     * write them to the log
+     */
+    private void writeBlock() throws IOException {
+        if (writeBlock == null || writeBlock.isEmpty()) {
+            return;
+        }
+        filePadding.padFile(fos.getChannel());
+        long firstZxid = writeBlock.getFirstZxid();
+        int len = writeBlock.writeTo(new DataOutputStream(logStream));
+        writeIndex.add(firstZxid, writeOffset);
+        writeOffset += TxnLogBlock.BLOCK_OVERHEAD + len;
+    }
+
     /**
      * Find the log file that starts at, or just before, the snapshot. Return
      * this and all subsequent logs. Results are ordered by zxid of file,
@@ -375,37 +509,81 @@ public long getLastLoggedZxid() {
      */
     public synchronized void commit() throws IOException {
         if (logStream != null) {
+            writeBlock();
             logStream.flush();
+            writeIndex.flush();
         }
+        unflushedSize = 0;
         for (FileOutputStream log : streamsToFlush) {
             log.flush();
             if (forceSync) {
-                long startSyncNS = System.nanoTime();
+                sync(log);
+            }
+        }
+        while (streamsToFlush.size() > 1) {
+            streamsToFlush.poll().close();
+        }
+        rollLogIfSizeLimitReached();
+    }
 
-                FileChannel channel = log.getChannel();
-                channel.force(false);
+    /**
+     * write the appended txns to the log files, the rolled
+     * over logs are closed once the returned txns are synced
+     */
+    public synchronized FlushedTxns flush() throws IOException {
+        if (logStream != null) {
+            writeBlock();
+            logStream.flush();
+            writeIndex.flush();
+        }
+        unflushedSize = 0;
+        List<FileOutputStream> streams = new ArrayList<>(streamsToFlush);
+        List<FileOutputStream> rolled = new ArrayList<>();
+        while (streamsToFlush.size() > 1) {
+            rolled.add(streamsToFlush.poll());
+        }
+        rollLogIfSizeLimitReached();
+        return () -> {
+            if (forceSync) {
+                for (FileOutputStream log : streams) {
+                    sync(log);
+                }
+            }
+            for (FileOutputStream log : rolled) {
+                log.close();
+            }
+        };
+    }
 
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
+    public synchronized long getUnflushedSize() {
+        return unflushedSize;
+    }
 
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
+    private void sync(FileOutputStream log) throws IOException {
+        long startSyncNS = System.nanoTime();
+
+        FileChannel channel = log.getChannel();
+        channel.force(false);
 
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            ServerStats stats = serverStats;
+            if (stats != null) {
+                stats.incrementFsyncThresholdExceedCount();
             }
-        }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.poll().close();
+
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                channel.size());
         }
 
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    private void rollLogIfSizeLimitReached() throws IOException {
         // Roll the log file if we exceed the size limit
         if (txnLogSizeLimit > 0) {
             long logSize = getCurrentLogSize();
@@ -448,25 +626,52 @@ public TxnIterator read(long zxid, boolean fastForward) throws IOException {
         return new FileTxnIterator(logDir, zxid, fastForward);
     }
 
+    /**
+     * start reading the transactions from the last one before the given
+     * zxid, or from the starting txn of the txnlog that may contain the zxid
+     * if there is none before it in that txnlog.
+     *
+     * @param zxid the zxid to start reading transactions before
+     * @return returns an iterator to iterate through the transaction logs
+     */
+    public TxnIterator readBefore(long zxid) throws IOException {
+        return new FileTxnIterator(logDir, zxid, FileTxnIterator.Start.BEFORE_ZXID, txnLogMmapEnabled);
+    }
+
     /**
      * truncate the current transaction logs
      * @param zxid the zxid to truncate the logs to
      * @return true if successful false if not
      */
     public boolean truncate(long zxid) throws IOException {
-        try (FileTxnIterator itr = new FileTxnIterator(this.logDir, zxid)) {
-            PositionInputStream input = itr.inputStream;
-            if (input == null) {
+        // read the logs through streams, so that no mapping of the files
+        // outlives the iterator
+        try (FileTxnIterator itr = new FileTxnIterator(this.logDir, zxid, FileTxnIterator.Start.ZXID, false)) {
+            if (!itr.isOpen()) {
                 throw new IOException("No log files found to truncate! This could "
                                       + "happen if you still have snapshots from an old setup or "
                                       + "log files were deleted accidentally or dataLogDir was changed in zoo.cfg.");
             }
-            long pos = input.getPosition();
-            // now, truncate at the current position
-            RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
-            raf.setLength(pos);
-            raf.close();
+            TxnLogBlockInputStream blocks = itr.blockStream;
+            if (blocks != null) {
+                // the log is compressed, the block of the current txn is
+                // rewritten with the txns up to it
+                try (RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw")) {
+                    raf.setLength(blocks.getBlockOffset());
+                    raf.seek(blocks.getBlockOffset());
+                    TxnLogBlock.write(raf, blocks.getCodec(), blocks.getBlockBytes(), blocks.getBlockPosition(),
+                                      blocks.getBlockFirstZxid(), itr.getHeader().getZxid());
+                }
+            } else {
+                long pos = itr.getPosition();
+                // now, truncate at the current position
+                RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
+                raf.setLength(pos);
+                raf.close();
+            }
+            TxnLogIndex.remove(itr.logFile);
             while (itr.goToNextLog()) {
+                TxnLogIndex.remove(itr.logFile);
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
                 }
@@ -598,6 +803,18 @@ public void reset() {
      */
     public static class FileTxnIterator implements TxnLog.TxnIterator {
 
+        /**
+         * where the iterator starts in the log that may contain the zxid
+         */
+        enum Start {
+            // the first txn of the log
+            LOG,
+            // the txn of the zxid
+            ZXID,
+            // the last txn before the zxid
+            BEFORE_ZXID
+        }
+
         File logDir;
         long zxid;
         TxnHeader hdr;
@@ -608,6 +825,13 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         static final String CRC_ERROR = "CRC check failed";
 
         PositionInputStream inputStream = null;
+        // the current log file, when the logs are memory mapped
+        ByteBuffer mappedLog = null;
+        // the codec of the current log file
+        TxnLogCodec codec = TxnLogCodec.NONE;
+        // the blocks of the current log file, when it's compressed
+        TxnLogBlockInputStream blockStream = null;
+        private final boolean mmap;
         //stored files is the list of files greater than
         //the zxid we are looking for.
         private ArrayList<File> storedFiles;
@@ -623,11 +847,25 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
          * @throws IOException
          */
         public FileTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+            this(logDir, zxid, fastForward ? Start.ZXID : Start.LOG, txnLogMmapEnabled);
+        }
+
+        /**
+         * create an iterator over a transaction database directory
+         * @param logDir the transaction database directory
+         * @param zxid the zxid to start reading from
+         * @param start where the iterator should point to
+         * @param mmap true if the log files should be memory mapped, else they
+         *        are read through streams
+         * @throws IOException
+         */
+        FileTxnIterator(File logDir, long zxid, Start start, boolean mmap) throws IOException {
             this.logDir = logDir;
             this.zxid = zxid;
-            init();
+            this.mmap = mmap;
+            init(start);
 
-            if (fastForward && hdr != null) {
+            if (start == Start.ZXID && hdr != null) {
                 while (hdr.getZxid() < zxid) {
                     if (!next()) {
                         break;
@@ -652,6 +890,15 @@ public FileTxnIterator(File logDir, long zxid) throws IOException {
          * @throws IOException
          */
         void init() throws IOException {
+            init(Start.LOG);
+        }
+
+        /**
+         * initialize to the zxid specified, seeking in the log that may
+         * contain it unless the iterator starts at the beginning of the log
+         * @throws IOException
+         */
+        void init(Start start) throws IOException {
             storedFiles = new ArrayList<>();
             List<File> files = Util.sortDataDir(
                 FileTxnLog.getLogFiles(logDir.listFiles(), 0),
@@ -666,7 +913,9 @@ void init() throws IOException {
                     break;
                 }
             }
-            goToNextLog();
+            if (goToNextLog() && start != Start.LOG) {
+                seek(zxid, start == Start.BEFORE_ZXID);
+            }
             next();
         }
 
@@ -690,7 +939,12 @@ public long getStorageSize() {
         private boolean goToNextLog() throws IOException {
             if (storedFiles.size() > 0) {
                 this.logFile = storedFiles.remove(storedFiles.size() - 1);
-                ia = createInputArchive(this.logFile);
+                if (mmap && logFile.length() <= Integer.MAX_VALUE) {
+                    mappedLog = mapLog(this.logFile);
+                }
+                if (mappedLog == null) {
+                    ia = createInputArchive(this.logFile);
+                }
                 return true;
             }
             return false;
@@ -710,6 +964,7 @@ protected void inStreamCreated(InputArchive ia, InputStream is) throws IOExcepti
                                       + " has invalid magic number "
                                       + header.getMagic() + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            codec = TxnLogCodec.read(header, ia);
         }
 
         /**
@@ -723,11 +978,106 @@ protected InputArchive createInputArchive(File logFile) throws IOException {
                 LOG.debug("Created new input stream: {}", logFile);
                 ia = BinaryInputArchive.getArchive(inputStream);
                 inStreamCreated(ia, inputStream);
+                if (codec != TxnLogCodec.NONE) {
+                    // the txns are read from the uncompressed blocks
+                    blockStream = new TxnLogBlockInputStream(
+                        new DataInputStream(inputStream), codec, inputStream.getPosition());
+                    ia = BinaryInputArchive.getArchive(blockStream);
+                }
                 LOG.debug("Created new input archive: {}", logFile);
             }
             return ia;
         }
 
+        /**
+         * Map the log file and read its header, the returned buffer is
+         * positioned at the first txn. Compressed logs are not mapped.
+         * @param logFile the file to read.
+         * @return the mapping of the file, null if it's compressed
+         * @throws IOException
+         */
+        private ByteBuffer mapLog(File logFile) throws IOException {
+            ByteBuffer log;
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+                log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            LOG.debug("Mapped log file: {}", logFile);
+            try {
+                ByteBufferInputStream is = new ByteBufferInputStream(log);
+                inStreamCreated(BinaryInputArchive.getArchive(is), is);
+            } catch (IOException | RuntimeException e) {
+                Util.unmap(log);
+                throw e;
+            }
+            if (codec != TxnLogCodec.NONE) {
+                Util.unmap(log);
+                return null;
+            }
+            return log;
+        }
+
+        /**
+         * Release the mapping of the current log, the txns read from it are
+         * copies so they stay valid.
+         */
+        private void unmapLog() {
+            if (mappedLog != null) {
+                Util.unmap(mappedLog);
+                mappedLog = null;
+            }
+        }
+
+        /**
+         * Move the current log to the closest indexed txn before the given
+         * zxid, and when the log is mapped or compressed, skip the txns or
+         * blocks before the zxid without decoding them.
+         * @param zxid the zxid to seek to
+         * @param before true if the iterator should point to the last txn
+         *        before the zxid, else to the txn of the zxid
+         */
+        private void seek(long zxid, boolean before) throws IOException {
+            long indexed = TxnLogIndex.getOffset(logFile, before ? zxid - 1 : zxid);
+            if (indexed >= 0) {
+                if (mappedLog != null) {
+                    mappedLog.position((int) indexed);
+                } else if (blockStream != null) {
+                    blockStream.seek(indexed);
+                } else {
+                    while (inputStream.getPosition() < indexed) {
+                        if (inputStream.skip(indexed - inputStream.getPosition()) <= 0) {
+                            throw new EOFException("Failed to seek " + logFile);
+                        }
+                    }
+                }
+            }
+            if (blockStream != null) {
+                blockStream.skipBlocks(zxid, before);
+                return;
+            }
+            ByteBuffer log = mappedLog;
+            if (log == null) {
+                return;
+            }
+            int previous = -1;
+            while (log.remaining() >= TXN_ENTRY_ZXID_OFFSET + 8) {
+                int offset = log.position();
+                int len = log.getInt(offset + 8);
+                if (len < TXN_HEADER_ZXID_END || len > log.remaining() - TXN_ENTRY_OVERHEAD
+                    || log.get(offset + 12 + len) != 'B') {
+                    // let next() handle the end of the log
+                    break;
+                }
+                if (log.getLong(offset + TXN_ENTRY_ZXID_OFFSET) >= zxid) {
+                    break;
+                }
+                previous = offset;
+                log.position(offset + TXN_ENTRY_OVERHEAD + len);
+            }
+            if (before && previous >= 0) {
+                log.position(previous);
+            }
+        }
+
         /**
          * create a checksum algorithm
          * @return the checksum algorithm
@@ -742,6 +1092,9 @@ protected Checksum makeChecksumAlgorithm() {
          * false if not.
          */
         public boolean next() throws IOException {
+            if (mappedLog != null) {
+                return nextMapped();
+            }
             if (ia == null) {
                 return false;
             }
@@ -767,6 +1120,7 @@ public boolean next() throws IOException {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
                 inputStream = null;
+                blockStream = null;
                 ia = null;
                 hdr = null;
                 // this means that the file has ended
@@ -783,6 +1137,76 @@ public boolean next() throws IOException {
             return true;
         }
 
+        /**
+         * Read the next txn of the mapped log. The entry is copied out of the
+         * mapping, the txn must not keep a reference to the mapping since
+         * accessing it after the file is truncated or unmapped would crash.
+         */
+        private boolean nextMapped() throws IOException {
+            ByteBuffer log = mappedLog;
+            try {
+                if (log.remaining() < 12) {
+                    throw new EOFException("Failed to read " + logFile);
+                }
+                long crcValue = log.getLong();
+                int len = log.getInt();
+                if (len < -1) {
+                    throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + len);
+                }
+                // Since we preallocate, we define EOF to be an
+                // empty transaction
+                if (len <= 0 || len >= log.remaining()) {
+                    throw new EOFException("Failed to read " + logFile);
+                }
+                if (log.get(log.position() + len) != 'B') {
+                    LOG.error("Last transaction was partial.");
+                    throw new EOFException("Failed to read " + logFile);
+                }
+                byte[] bytes = new byte[len];
+                log.get(bytes);
+                log.position(log.position() + 1);
+                // validate CRC
+                Checksum crc = makeChecksumAlgorithm();
+                crc.update(bytes, 0, len);
+                if (crcValue != crc.getValue()) {
+                    throw new IOException(CRC_ERROR);
+                }
+                TxnLogEntry logEntry = SerializeUtils.deserializeTxn(bytes);
+                hdr = logEntry.getHeader();
+                record = logEntry.getTxn();
+                digest = logEntry.getDigest();
+            } catch (EOFException e) {
+                LOG.debug("EOF exception", e);
+                unmapLog();
+                hdr = null;
+                // this means that the file has ended
+                // we should go to the next file
+                if (!goToNextLog()) {
+                    return false;
+                }
+                // if we went to the next log file, we should call next() again
+                return next();
+            } catch (IOException e) {
+                unmapLog();
+                throw e;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if a log file is being read
+         */
+        boolean isOpen() {
+            return mappedLog != null || inputStream != null;
+        }
+
+        /**
+         * @return the offset in the current log file after the current txn
+         */
+        long getPosition() {
+            return mappedLog != null ? mappedLog.position() : inputStream.getPosition();
+        }
+
         /**
          * return the current header
          * @return the current header that
@@ -810,6 +1234,8 @@ public TxnDigest getDigest() {
          * and release the resources.
          */
         public void close() throws IOException {
+            unmapLog();
+            blockStream = null;
             if (inputStream != null) {
                 inputStream.close();
             }
@@ -24,6 +24,7 @@
 import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException;
@@ -59,8 +60,15 @@ public class FileTxnSnapLog {
     final File snapDir;
     TxnLog txnLog;
     SnapShot snapLog;
+    FileDeltaSnap deltaSnapLog;
     private final boolean autoCreateDB;
     private final boolean trustEmptySnapshot;
+    private final int maxDeltaSnapshots;
+    // the zxid of the snapshot the next delta snapshot is taken after, -1
+    // when the next snapshot needs to be a full one
+    private volatile long deltaBaseZxid = -1;
+    // the number of delta snapshots taken after that snapshot
+    private volatile int deltaSnapshotCount;
     public static final int VERSION = 2;
     public static final String version = "version-";
 
@@ -76,6 +84,12 @@ public class FileTxnSnapLog {
 
     public static final String ZOOKEEPER_SNAPSHOT_TRUST_EMPTY = "zookeeper.snapshot.trust.empty";
 
+    /**
+     * The number of delta snapshots taken between two full snapshots, 0
+     * disables the delta snapshots.
+     */
+    public static final String ZOOKEEPER_SNAPSHOT_DELTA_COUNT = "zookeeper.snapshot.deltaCount";
+
     private static final String EMPTY_SNAPSHOT_WARNING = "No snapshot found, but there are log entries. ";
 
     /**
@@ -123,6 +137,9 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
         trustEmptySnapshot = Boolean.getBoolean(ZOOKEEPER_SNAPSHOT_TRUST_EMPTY);
         LOG.info("{} : {}", ZOOKEEPER_SNAPSHOT_TRUST_EMPTY, trustEmptySnapshot);
 
+        maxDeltaSnapshots = Integer.getInteger(ZOOKEEPER_SNAPSHOT_DELTA_COUNT, 0);
+        LOG.info("{} : {}", ZOOKEEPER_SNAPSHOT_DELTA_COUNT, maxDeltaSnapshots);
+
         if (!this.dataDir.exists()) {
             if (!enableAutocreate) {
                 throw new DatadirException(String.format(
@@ -168,6 +185,7 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
 
         txnLog = new FileTxnLog(this.dataDir);
         snapLog = new FileSnap(this.snapDir);
+        deltaSnapLog = new FileDeltaSnap(this.snapDir);
 
         autoCreateDB = Boolean.parseBoolean(
             System.getProperty(ZOOKEEPER_DB_AUTOCREATE, ZOOKEEPER_DB_AUTOCREATE_DEFAULT));
@@ -252,6 +270,16 @@ public boolean shouldForceWriteInitialSnapshotAfterLeaderElection() {
     public long restore(DataTree dt, Map<Long, Integer> sessions, PlayBackListener listener) throws IOException {
         long snapLoadingStartTime = Time.currentElapsedTime();
         long deserializeResult = snapLog.deserialize(dt, sessions);
+        deltaBaseZxid = -1;
+        if (deserializeResult != -1L) {
+            deltaSnapshotCount = deltaSnapLog.deserialize(dt, sessions, deserializeResult);
+            if (maxDeltaSnapshots > 0) {
+                // track the changes replayed from the txn log as well, the
+                // next delta snapshot is taken after the same snapshot
+                dt.resetDirtyPaths();
+                deltaBaseZxid = deserializeResult;
+            }
+        }
         ServerMetrics.getMetrics().STARTUP_SNAP_LOAD_TIME.add(Time.currentElapsedTime() - snapLoadingStartTime);
         FileTxnLog txnLog = new FileTxnLog(dataDir);
         boolean trustEmptyDB;
@@ -402,6 +430,19 @@ public TxnIterator readTxnLog(long zxid, boolean fastForward) throws IOException
         return txnLog.read(zxid, fastForward);
     }
 
+    /**
+     * Get TxnIterator for iterating through txnlog starting at the last txn
+     * before a given zxid, as found through the zxid index of the txnlog
+     *
+     * @param zxid the zxid to start reading before
+     * @return TxnIterator
+     * @throws IOException
+     */
+    public TxnIterator readTxnLogBefore(long zxid) throws IOException {
+        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        return txnLog.readBefore(zxid);
+    }
+
     /**
      * process the transaction on the datatree
      * @param hdr the hdr of the transaction
@@ -475,11 +516,46 @@ public File save(
         DataTree dataTree,
         ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
         boolean syncSnap) throws IOException {
+        return save(dataTree, sessionsWithTimeouts, syncSnap, false);
+    }
+
+    /**
+     * save the datatree and the sessions into a snapshot, or into a delta
+     * snapshot holding the nodes changed since the previous one if allowed
+     * and enabled by {@value #ZOOKEEPER_SNAPSHOT_DELTA_COUNT}
+     * @param dataTree the datatree to be serialized onto disk
+     * @param sessionsWithTimeouts the session timeouts to be
+     * serialized onto disk
+     * @param syncSnap sync the snapshot immediately after write
+     * @param allowDelta whether a delta snapshot may be written
+     * @return the snapshot or delta snapshot file
+     * @throws IOException
+     */
+    public File save(
+        DataTree dataTree,
+        ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
+        boolean syncSnap,
+        boolean allowDelta) throws IOException {
         long lastZxid = dataTree.lastProcessedZxid;
+        if (maxDeltaSnapshots > 0) {
+            // the changes made from now on go to the next delta snapshot
+            Set<String> dirtyPaths = dataTree.resetDirtyPaths();
+            long baseZxid = deltaBaseZxid;
+            // the paths aren't tracked if this tree wasn't loaded from or
+            // saved into the last snapshot
+            if (allowDelta && dirtyPaths != null && baseZxid != -1 && deltaSnapshotCount < maxDeltaSnapshots) {
+                return saveDelta(dataTree, sessionsWithTimeouts, syncSnap, dirtyPaths, baseZxid, lastZxid);
+            }
+            deltaBaseZxid = -1;
+        }
         File snapshotFile = new File(snapDir, Util.makeSnapshotName(lastZxid));
         LOG.info("Snapshotting: 0x{} to {}", Long.toHexString(lastZxid), snapshotFile);
         try {
             snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            if (maxDeltaSnapshots > 0) {
+                deltaSnapshotCount = 0;
+                deltaBaseZxid = lastZxid;
+            }
             return snapshotFile;
         } catch (IOException e) {
             if (snapshotFile.length() == 0) {
@@ -503,6 +579,29 @@ public File save(
         }
     }
 
+    private File saveDelta(
+        DataTree dataTree,
+        ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
+        boolean syncSnap,
+        Set<String> dirtyPaths,
+        long baseZxid,
+        long lastZxid) throws IOException {
+        File deltaFile = new File(snapDir, Util.makeDeltaSnapshotName(lastZxid));
+        LOG.info("Snapshotting {} changed nodes: 0x{} to {}", dirtyPaths.size(), Long.toHexString(lastZxid), deltaFile);
+        try {
+            deltaSnapLog.serialize(dataTree, sessionsWithTimeouts, dirtyPaths, baseZxid, deltaFile, syncSnap);
+            deltaSnapshotCount++;
+            return deltaFile;
+        } catch (IOException e) {
+            // the changed paths are lost, take a full snapshot next time
+            deltaBaseZxid = -1;
+            if (deltaFile.exists() && !deltaFile.delete()) {
+                LOG.warn("Could not delete delta snapshot file: {}", deltaFile.getAbsolutePath());
+            }
+            throw e;
+        }
+    }
+
     /**
      * truncate the transaction logs the zxid
      * specified
@@ -518,6 +617,7 @@ public boolean truncateLog(long zxid) {
             // truncate it
             try (FileTxnLog truncLog = new FileTxnLog(dataDir)) {
                 boolean truncated = truncLog.truncate(zxid);
+                deltaSnapLog.truncate(zxid);
 
                 // re-open the txnLog and snapLog
                 // I'd rather just close/reopen this object itself, however that
@@ -525,6 +625,7 @@ public boolean truncateLog(long zxid) {
                 // objects holding a reference to this object.
                 txnLog = new FileTxnLog(dataDir);
                 snapLog = new FileSnap(snapDir);
+                deltaSnapLog = new FileDeltaSnap(snapDir);
 
                 return truncated;
             }
@@ -600,6 +701,23 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * write the transactions to the logs without syncing them
+     * @return the transactions to be synced
+     * @throws IOException
+     */
+    public TxnLog.FlushedTxns flush() throws IOException {
+        return txnLog.flush();
+    }
+
+    /**
+     * the size of the transactions appended and not flushed yet
+     * @return the size in bytes
+     */
+    public long getUnflushedSize() {
+        return txnLog.getUnflushedSize();
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
@@ -631,6 +749,11 @@ public void close() throws IOException {
             snapSlogToClose.close();
         }
         snapLog = null;
+        FileDeltaSnap deltaSnapLogToClose = deltaSnapLog;
+        if (deltaSnapLogToClose != null) {
+            deltaSnapLogToClose.close();
+        }
+        deltaSnapLog = null;
     }
 
     @SuppressWarnings("serial")
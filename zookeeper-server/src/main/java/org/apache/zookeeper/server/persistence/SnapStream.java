@@ -101,26 +101,39 @@ public static StreamMode fromString(String name) {
      */
     public static CheckedInputStream getInputStream(File file) throws IOException {
         FileInputStream fis = new FileInputStream(file);
-        InputStream is;
         try {
-            switch (getStreamMode(file.getName())) {
-                case GZIP:
-                    is = new GZIPInputStream(fis);
-                    break;
-                case SNAPPY:
-                    is = new SnappyInputStream(fis);
-                    break;
-                case CHECKED:
-                default:
-                    is = new BufferedInputStream(fis);
-            }
-            return new CheckedInputStream(is, new Adler32());
+            return getInputStream(fis, getStreamMode(file.getName()));
         } catch (IOException e) {
             fis.close();
             throw e;
         }
     }
 
+    /**
+     * Return the CheckedInputStream reading a snapshot written with the
+     * given stream mode, like a snapshot file streamed by the leader.
+     *
+     * @param in the InputStream the snapshot is read from
+     * @param mode the stream mode of the snapshot
+     * @return the specific InputStream
+     * @throws IOException
+     */
+    public static CheckedInputStream getInputStream(InputStream in, StreamMode mode) throws IOException {
+        InputStream is;
+        switch (mode) {
+            case GZIP:
+                is = new GZIPInputStream(in);
+                break;
+            case SNAPPY:
+                is = new SnappyInputStream(in);
+                break;
+            case CHECKED:
+            default:
+                is = new BufferedInputStream(in);
+        }
+        return new CheckedInputStream(is, new Adler32());
+    }
+
     /**
      * Return the OutputStream based on predefined stream mode.
      *
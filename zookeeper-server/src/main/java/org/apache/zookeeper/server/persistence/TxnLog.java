@@ -101,6 +101,22 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * write the appended transactions to the log files
+     * without forcing them to the disk, more transactions
+     * can be appended while they are synced
+     * @return the written transactions to be synced
+     * @throws IOException
+     */
+    FlushedTxns flush() throws IOException;
+
+    /**
+     * the size of the transactions appended since the
+     * last commit or flush
+     * @return the size in bytes of the unflushed transactions
+     */
+    long getUnflushedSize();
+
     /**
      *
      * @return transaction log's elapsed sync time in milliseconds
@@ -122,6 +138,20 @@ public interface TxnLog extends Closeable {
      */
     long getTotalLogSize();
 
+    /**
+     * the transactions written by {@link #flush()}
+     */
+    interface FlushedTxns {
+
+        /**
+         * force the transactions to the disk, this
+         * can be called concurrently with appends
+         * @throws IOException
+         */
+        void sync() throws IOException;
+
+    }
+
     /**
      * an iterating interface for reading
      * transaction logs.
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.ServerMetrics;
+
+/**
+ * A block of txn entries of a compressed transaction log, being filled by
+ * the log writer. The entries are kept in the same format as in an
+ * uncompressed log until the block is compressed and written to the log.
+ * <p>
+ * The format of a block is as follows:
+ * <blockquote><pre>
+ * Block:
+ *     checksum rawLen firstZxid lastZxid compressedLen Bytes 0x42
+ *
+ * checksum: 8bytes Adler32 calculated across rawLen, firstZxid, lastZxid
+ *   and the compressed bytes
+ * rawLen: 4bytes the length of the entries once uncompressed
+ * firstZxid: 8bytes the zxid of the first txn of the block
+ * lastZxid: 8bytes the zxid of the last txn of the block
+ * compressedLen: 4bytes
+ * </pre></blockquote>
+ */
+class TxnLogBlock {
+
+    // the size of the header of a block, before the compressed bytes
+    static final int BLOCK_HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+
+    // the header and the end of record marker of a block
+    static final int BLOCK_OVERHEAD = BLOCK_HEADER_SIZE + 1;
+
+    // the offset of the first zxid in a block
+    static final int BLOCK_FIRST_ZXID_OFFSET = 8 + 4;
+
+    // the largest size of the txns of a block before it's written
+    static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private final TxnLogCodec codec;
+    private final Buffer raw = new Buffer();
+    private final OutputArchive rawArchive = BinaryOutputArchive.getArchive(raw);
+    private long firstZxid = -1;
+    private long lastZxid = -1;
+
+    TxnLogBlock(TxnLogCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Add a txn entry to the block.
+     */
+    void append(long zxid, long crcValue, byte[] entry) throws IOException {
+        rawArchive.writeLong(crcValue, "txnEntryCRC");
+        Util.writeTxnBytes(rawArchive, entry);
+        if (firstZxid < 0) {
+            firstZxid = zxid;
+        }
+        lastZxid = zxid;
+    }
+
+    boolean isEmpty() {
+        return raw.size() == 0;
+    }
+
+    /**
+     * @return the length of the entries of the block
+     */
+    int size() {
+        return raw.size();
+    }
+
+    long getFirstZxid() {
+        return firstZxid;
+    }
+
+    /**
+     * Compress the block and write it, the block is then emptied.
+     * @return the compressed length of the block
+     */
+    int writeTo(DataOutput out) throws IOException {
+        int len = write(out, codec, raw.getBuffer(), raw.size(), firstZxid, lastZxid);
+        raw.reset();
+        firstZxid = -1;
+        lastZxid = -1;
+        return len;
+    }
+
+    /**
+     * Compress the given entries and write them as a block.
+     * @return the compressed length of the block
+     */
+    static int write(DataOutput out, TxnLogCodec codec, byte[] entries, int len, long firstZxid, long lastZxid) throws IOException {
+        long start = System.nanoTime();
+        byte[] compressed = new byte[codec.maxCompressedLength(len)];
+        int compressedLen = codec.compress(entries, len, compressed);
+        ServerMetrics.getMetrics().TXNLOG_COMPRESS_TIME.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        ServerMetrics.getMetrics().TXNLOG_BLOCK_RAW_BYTES.add(len);
+        ServerMetrics.getMetrics().TXNLOG_BLOCK_COMPRESSED_BYTES.add(compressedLen);
+
+        out.writeLong(checksum(len, firstZxid, lastZxid, compressed, compressedLen));
+        out.writeInt(len);
+        out.writeLong(firstZxid);
+        out.writeLong(lastZxid);
+        out.writeInt(compressedLen);
+        out.write(compressed, 0, compressedLen);
+        out.writeByte('B');
+        return compressedLen;
+    }
+
+    /**
+     * @return the largest raw or compressed length of a block, the last txn
+     * of a block may take it past the block size of the writer
+     */
+    static int getMaxBlockLength() {
+        long rawLen = MAX_BLOCK_SIZE + 2L * BinaryInputArchive.maxBuffer + FileTxnLog.TXN_ENTRY_OVERHEAD;
+        return (int) Math.min(Integer.MAX_VALUE, rawLen + rawLen / 128 + 64);
+    }
+
+    static long checksum(int rawLen, long firstZxid, long lastZxid, byte[] compressed, int compressedLen) {
+        Checksum crc = new Adler32();
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8);
+        header.putInt(rawLen).putLong(firstZxid).putLong(lastZxid);
+        crc.update(header.array(), 0, header.capacity());
+        crc.update(compressed, 0, compressedLen);
+        return crc.getValue();
+    }
+
+    /**
+     * Exposes the buffer so that it's compressed without being copied.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+}
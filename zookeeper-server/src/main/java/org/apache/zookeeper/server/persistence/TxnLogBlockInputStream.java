@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the blocks of a compressed transaction log and presents their txn
+ * entries as they are found in an uncompressed log, so that they are read the
+ * same way. The stream ends at the end of the log or of the last complete
+ * block, see {@link TxnLogBlock} for the format of the blocks.
+ */
+public class TxnLogBlockInputStream extends InputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogBlockInputStream.class);
+
+    private final DataInput source;
+    private final TxnLogCodec codec;
+
+    // the offset in the log of the next block to read from the source
+    private long nextOffset;
+    // a block read ahead of the current one
+    private Block pending;
+    private boolean eof;
+
+    // the current block and the uncompressed entries
+    private long blockOffset = -1;
+    private long blockFirstZxid;
+    private byte[] raw = new byte[0];
+    private int rawLen;
+    private int pos;
+
+    /**
+     * @param source the log, positioned at a block
+     * @param codec the codec of the log
+     * @param offset the offset of the block in the log
+     */
+    public TxnLogBlockInputStream(DataInput source, TxnLogCodec codec, long offset) {
+        this.source = source;
+        this.codec = codec;
+        this.nextOffset = offset;
+    }
+
+    /**
+     * @param source the log, positioned at a block
+     * @param codec the codec of the log
+     */
+    public TxnLogBlockInputStream(DataInput source, TxnLogCodec codec) {
+        this(source, codec, 0);
+    }
+
+    public TxnLogCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the offset in the log of the current block, relative to the
+     * position of the source when the stream was created if its offset was
+     * not given, -1 if no block has been read yet
+     */
+    public long getBlockOffset() {
+        return blockOffset;
+    }
+
+    /**
+     * @return the zxid of the first txn of the current block
+     */
+    public long getBlockFirstZxid() {
+        return blockFirstZxid;
+    }
+
+    /**
+     * @return the number of uncompressed bytes read from the current block
+     */
+    public int getBlockPosition() {
+        return pos;
+    }
+
+    /**
+     * @return the uncompressed entries of the current block, only the first
+     * {@link #getBlockPosition()} bytes of which have been read
+     */
+    byte[] getBlockBytes() {
+        return raw;
+    }
+
+    /**
+     * Skip to the block at the given offset of the log, before any block is
+     * read.
+     */
+    public void seek(long offset) throws IOException {
+        if (blockOffset >= 0 || pending != null || offset < nextOffset) {
+            throw new IllegalStateException("Unable to seek to " + offset + " from " + nextOffset);
+        }
+        while (nextOffset < offset) {
+            int skipped = source.skipBytes((int) Math.min(offset - nextOffset, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("Failed to seek to " + offset);
+            }
+            nextOffset += skipped;
+        }
+    }
+
+    /**
+     * Skip the blocks before the one which may contain the zxid without
+     * decompressing them, before any block is read.
+     * @param zxid the zxid to skip to
+     * @param before true if the block containing the last txn before the zxid
+     *        should be the next one read, else the block which may contain
+     *        the zxid
+     */
+    public void skipBlocks(long zxid, boolean before) throws IOException {
+        Block previous = null;
+        while (true) {
+            Block block = readBlock();
+            if (block == null) {
+                if (before && previous != null) {
+                    load(previous);
+                }
+                return;
+            }
+            if (before && block.firstZxid >= zxid) {
+                pending = block;
+                if (previous != null) {
+                    load(previous);
+                }
+                return;
+            }
+            if (block.lastZxid >= zxid) {
+                pending = block;
+                return;
+            }
+            previous = block;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == rawLen && !nextBlock()) {
+            return -1;
+        }
+        return raw[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == rawLen && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, rawLen - pos);
+        System.arraycopy(raw, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return rawLen - pos;
+    }
+
+    private boolean nextBlock() throws IOException {
+        Block block = pending;
+        pending = null;
+        if (block == null) {
+            block = readBlock();
+        }
+        if (block == null) {
+            return false;
+        }
+        load(block);
+        return true;
+    }
+
+    private void load(Block block) throws IOException {
+        long start = System.nanoTime();
+        if (raw.length < block.rawLen) {
+            raw = new byte[Math.max(block.rawLen, raw.length * 2)];
+        }
+        codec.decompress(block.compressed, block.compressed.length, raw, block.rawLen);
+        ServerMetrics.getMetrics().TXNLOG_DECOMPRESS_TIME.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        blockOffset = block.offset;
+        blockFirstZxid = block.firstZxid;
+        rawLen = block.rawLen;
+        pos = 0;
+    }
+
+    /**
+     * Read the next block from the log, without decompressing it.
+     * @return the block, null at the end of the log
+     */
+    private Block readBlock() throws IOException {
+        if (eof) {
+            return null;
+        }
+        Block block = new Block();
+        block.offset = nextOffset;
+        long crcValue;
+        try {
+            crcValue = source.readLong();
+            block.rawLen = source.readInt();
+            // Since we preallocate, we define EOF to be an
+            // empty block
+            if (block.rawLen == 0) {
+                eof = true;
+                return null;
+            }
+            block.firstZxid = source.readLong();
+            block.lastZxid = source.readLong();
+            int len = source.readInt();
+            checkLength(block.rawLen);
+            checkLength(len);
+            block.compressed = new byte[len];
+            source.readFully(block.compressed);
+            if (source.readByte() != 'B') {
+                LOG.error("Last block was partial.");
+                eof = true;
+                return null;
+            }
+        } catch (EOFException e) {
+            LOG.debug("EOF exception", e);
+            eof = true;
+            return null;
+        }
+        if (crcValue != TxnLogBlock.checksum(block.rawLen, block.firstZxid, block.lastZxid, block.compressed, block.compressed.length)) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+        nextOffset += TxnLogBlock.BLOCK_OVERHEAD + block.compressed.length;
+        return block;
+    }
+
+    private static void checkLength(int len) throws IOException {
+        // a block holds at least one txn, which may be as large as the
+        // maximum buffer
+        if (len < 0 || len > TxnLogBlock.getMaxBlockLength()) {
+            throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + len);
+        }
+    }
+
+    private static class Block {
+
+        long offset;
+        int rawLen;
+        long firstZxid;
+        long lastZxid;
+        byte[] compressed;
+
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.jute.InputArchive;
+
+/**
+ * The codecs the blocks of txns of a compressed transaction log can be
+ * compressed with. The codec of a log is recorded after its file header, see
+ * {@link FileTxnLog}.
+ */
+public enum TxnLogCodec {
+
+    /**
+     * The txns are not compressed, the log is written in the original format.
+     */
+    NONE(0, "none") {
+        @Override
+        public int maxCompressedLength(int len) {
+            return len;
+        }
+
+        @Override
+        public int compress(byte[] src, int len, byte[] dst) {
+            System.arraycopy(src, 0, dst, 0, len);
+            return len;
+        }
+
+        @Override
+        public void decompress(byte[] src, int len, byte[] dst, int rawLen) throws IOException {
+            if (len != rawLen) {
+                throw new IOException("Corrupted block: length " + len + " != " + rawLen);
+            }
+            System.arraycopy(src, 0, dst, 0, len);
+        }
+    },
+
+    /**
+     * The LZ4 block format, compressed greedily with a single hash table
+     * probe per position.
+     */
+    LZ4(1, "lz4") {
+        private static final int MIN_MATCH = 4;
+        // the last match must start 12 bytes before the end of the block,
+        // and the last 5 bytes are always literals
+        private static final int MF_LIMIT = 12;
+        private static final int LAST_LITERALS = 5;
+        private static final int MAX_OFFSET = 65535;
+        private static final int HASH_LOG = 12;
+        private static final int RUN_MASK = 15;
+
+        @Override
+        public int maxCompressedLength(int len) {
+            return len + len / 255 + 16;
+        }
+
+        @Override
+        public int compress(byte[] src, int len, byte[] dst) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int anchor = 0;
+            int op = 0;
+            int ip = 0;
+            int mfLimit = len - MF_LIMIT;
+            int matchLimit = len - LAST_LITERALS;
+            int attempts = 0;
+            while (ip < mfLimit) {
+                int seq = readInt(src, ip);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    // skip faster through incompressible data
+                    ip += 1 + (attempts++ >>> 6);
+                    continue;
+                }
+                attempts = 0;
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+                ip += matchLen;
+                anchor = ip;
+                if (ip - 2 < mfLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+            int literals = len - anchor;
+            op = writeLength(dst, op, literals, literals << 4);
+            System.arraycopy(src, anchor, dst, op, literals);
+            return op + literals;
+        }
+
+        @Override
+        public void decompress(byte[] src, int len, byte[] dst, int rawLen) throws IOException {
+            int ip = 0;
+            int op = 0;
+            while (true) {
+                if (ip >= len) {
+                    throw new IOException("Corrupted LZ4 block: truncated sequence");
+                }
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == RUN_MASK) {
+                    int b;
+                    do {
+                        if (ip >= len) {
+                            throw new IOException("Corrupted LZ4 block: truncated length");
+                        }
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > len - ip || literals > rawLen - op) {
+                    throw new IOException("Corrupted LZ4 block: literals out of bounds");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == len) {
+                    // the last sequence only has literals
+                    break;
+                }
+                if (len - ip < 2) {
+                    throw new IOException("Corrupted LZ4 block: truncated offset");
+                }
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (offset == 0 || offset > op) {
+                    throw new IOException("Corrupted LZ4 block: offset " + offset + " out of bounds");
+                }
+                int matchLen = token & RUN_MASK;
+                if (matchLen == RUN_MASK) {
+                    int b;
+                    do {
+                        if (ip >= len) {
+                            throw new IOException("Corrupted LZ4 block: truncated length");
+                        }
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (matchLen > rawLen - op) {
+                    throw new IOException("Corrupted LZ4 block: match out of bounds");
+                }
+                int ref = op - offset;
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    // the match overlaps the bytes it produces
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+            if (op != rawLen) {
+                throw new IOException("Corrupted LZ4 block: length " + op + " != " + rawLen);
+            }
+        }
+
+        private int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLen, byte[] dst, int op) {
+            int tokenPos = op;
+            op = writeLength(dst, op, literals, literals << 4);
+            System.arraycopy(src, anchor, dst, op, literals);
+            op += literals;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int len = matchLen - MIN_MATCH;
+            if (len >= RUN_MASK) {
+                dst[tokenPos] |= RUN_MASK;
+                len -= RUN_MASK;
+                while (len >= 255) {
+                    dst[op++] = (byte) 255;
+                    len -= 255;
+                }
+                dst[op++] = (byte) len;
+            } else {
+                dst[tokenPos] |= len;
+            }
+            return op;
+        }
+
+        /**
+         * Write the token with the given literal length, followed by the
+         * extra bytes of the length when it doesn't fit in the token.
+         */
+        private int writeLength(byte[] dst, int op, int len, int token) {
+            if (len >= RUN_MASK) {
+                dst[op++] = (byte) (RUN_MASK << 4);
+                len -= RUN_MASK;
+                while (len >= 255) {
+                    dst[op++] = (byte) 255;
+                    len -= 255;
+                }
+                dst[op++] = (byte) len;
+            } else {
+                dst[op++] = (byte) token;
+            }
+            return op;
+        }
+
+        private int readInt(byte[] b, int i) {
+            return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+        }
+
+        private int hash(int seq) {
+            return (seq * -1640531535) >>> (32 - HASH_LOG);
+        }
+    },
+
+    /**
+     * The deflate format of the JDK, at its fastest level.
+     */
+    DEFLATE(2, "deflate") {
+        @Override
+        public int maxCompressedLength(int len) {
+            // the zlib bound, along with its header and trailer
+            return len + (len >>> 12) + (len >>> 14) + (len >>> 25) + 13 + 6;
+        }
+
+        @Override
+        public int compress(byte[] src, int len, byte[] dst) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(src, 0, len);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished() && n < dst.length) {
+                    n += deflater.deflate(dst, n, dst.length - n);
+                }
+                return n;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decompress(byte[] src, int len, byte[] dst, int rawLen) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, 0, len);
+                int n = 0;
+                byte[] excess = new byte[1];
+                while (!inflater.finished()) {
+                    // once rawLen bytes are inflated, the trailer is still
+                    // to be read and nothing more must be produced
+                    int inflated = n < rawLen ? inflater.inflate(dst, n, rawLen - n) : inflater.inflate(excess);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != rawLen || !inflater.finished()) {
+                    throw new IOException("Corrupted deflate block: length " + n + " != " + rawLen);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted deflate block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private final int id;
+    private final String name;
+
+    TxnLogCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * @return the id of the codec recorded in the log files
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the largest size of the given number of bytes once compressed
+     */
+    public abstract int maxCompressedLength(int len);
+
+    /**
+     * Compress the first len bytes of src into dst, which must hold at least
+     * {@link #maxCompressedLength(int)} bytes.
+     * @return the number of bytes written to dst
+     */
+    public abstract int compress(byte[] src, int len, byte[] dst);
+
+    /**
+     * Decompress the first len bytes of src into the first rawLen bytes of
+     * dst.
+     * @throws IOException if the compressed bytes are corrupted
+     */
+    public abstract void decompress(byte[] src, int len, byte[] dst, int rawLen) throws IOException;
+
+    public static TxnLogCodec fromId(int id) throws IOException {
+        for (TxnLogCodec c : values()) {
+            if (c.id == id) {
+                return c;
+            }
+        }
+        throw new IOException("Unsupported txn log codec " + id);
+    }
+
+    public static TxnLogCodec fromString(String name) {
+        for (TxnLogCodec c : values()) {
+            if (c.name.equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported txn log codec " + name);
+    }
+
+    /**
+     * Read the codec of a log file following its header, the logs written
+     * before the compressed format are not compressed.
+     * @param header the file header which has been read from ia
+     */
+    public static TxnLogCodec read(FileHeader header, InputArchive ia) throws IOException {
+        if (header.getVersion() < FileTxnLog.COMPRESSED_VERSION) {
+            return NONE;
+        }
+        return fromId(ia.readInt("codec"));
+    }
+
+}
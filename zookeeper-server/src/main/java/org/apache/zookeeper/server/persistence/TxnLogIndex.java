@@ -0,0 +1,471 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.common.AtomicFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index of the zxids in a transaction log file, mapping the zxid of
+ * a txn to the offset of its entry in the file, or the first zxid of a block
+ * to the offset of the block when the log is compressed. An entry is kept for at most
+ * one txn every {@link #getIndexInterval()} bytes, so the readers seek to the
+ * closest indexed txn before the zxid they are looking for and only scan
+ * from there.
+ * <p>
+ * The index of log.&lt;zxid&gt; is stored next to it in logindex.&lt;zxid&gt;, which
+ * is written by the log writer as txns are appended. The index of a log
+ * file without one, written by an older server, is rebuilt by scanning the
+ * txn headers of the log the first time it's needed. The indexes are only
+ * hints: the readers check that the indexed txn is found at its offset, and
+ * drop the index otherwise.
+ * <p>
+ * The format of an index file is as follows:
+ * <blockquote><pre>
+ * IndexFile:
+ *     magic 4bytes (ZKLI)
+ *     version 4bytes
+ *     Entry*
+ *
+ * Entry:
+ *     zxid 8bytes
+ *     offset 8bytes
+ * </pre></blockquote>
+ */
+public class TxnLogIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    public static final String LOG_INDEX_FILE_PREFIX = "logindex";
+
+    public static final int INDEX_MAGIC = ByteBuffer.wrap("ZKLI".getBytes()).getInt();
+
+    public static final int VERSION = 1;
+
+    public static final String TXN_LOG_INDEX_INTERVAL = "zookeeper.txnLogIndexIntervalInKb";
+
+    private static final long indexInterval;
+
+    private static final ConcurrentMap<File, TxnLogIndex> indexes = new ConcurrentHashMap<>();
+
+    static {
+        indexInterval = Long.getLong(TXN_LOG_INDEX_INTERVAL, 64) * 1024;
+        LOG.info("{} = {}", TXN_LOG_INDEX_INTERVAL, indexInterval / 1024);
+    }
+
+    private long[] zxids = new long[16];
+    private long[] offsets = new long[16];
+    private int size;
+
+    // the index file being written along with the log, null otherwise
+    private DataOutputStream out;
+
+    public static long getIndexInterval() {
+        return indexInterval;
+    }
+
+    /**
+     * Get the index file of the given log file.
+     * @return the index file, null if the name of the log file has no zxid
+     */
+    public static File getIndexFile(File logFile) {
+        long zxid = Util.getZxidFromName(logFile.getName(), FileTxnLog.LOG_FILE_PREFIX);
+        if (zxid == -1) {
+            return null;
+        }
+        return new File(logFile.getParentFile(), LOG_INDEX_FILE_PREFIX + "." + Long.toHexString(zxid));
+    }
+
+    /**
+     * Get the index of the log file, it's read from the index file, or
+     * rebuilt from the log if there is none.
+     */
+    static TxnLogIndex get(File logFile) {
+        return indexes.computeIfAbsent(logFile.getAbsoluteFile(), TxnLogIndex::load);
+    }
+
+    /**
+     * Find the offset of the closest indexed txn not after the given zxid in
+     * the log file, after checking that the txn is found there.
+     * @return the offset, -1 if there is none
+     */
+    public static long getOffset(File logFile, long zxid) throws IOException {
+        TxnLogIndex index = get(logFile);
+        long offset = index.findOffset(logFile, zxid);
+        if (offset == -2) {
+            invalidate(logFile, index);
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * Same as {@link #getOffset(File, long)} for the tools reading a log
+     * which may be in use: the index file is read if there is one, else the
+     * log is indexed in memory, and nothing is written to the log directory.
+     */
+    public static long getOffsetReadOnly(File logFile, long zxid) throws IOException {
+        TxnLogIndex index = load(logFile, false);
+        return Math.max(index.findOffset(logFile, zxid), -1);
+    }
+
+    /**
+     * @return the offset of the closest indexed txn not after the zxid which
+     *         is found in the log, -1 if there is none and -2 if the index
+     *         doesn't match the log
+     */
+    private long findOffset(File logFile, long zxid) throws IOException {
+        for (int pos = floor(zxid); pos >= 0; pos--) {
+            long offset = getOffset(pos);
+            long indexedZxid = readZxid(logFile, offset);
+            if (indexedZxid == getZxid(pos)) {
+                return offset;
+            }
+            if (indexedZxid > 0) {
+                return -2;
+            }
+            // the txn is not flushed to the log yet
+        }
+        return -1;
+    }
+
+    /**
+     * Start the index of a log file being created, the entries are written
+     * to its index file as they are added. The indexes of the log files which
+     * have been deleted are dropped.
+     */
+    static TxnLogIndex create(File logFile) {
+        Iterator<File> it = indexes.keySet().iterator();
+        while (it.hasNext()) {
+            if (!it.next().exists()) {
+                it.remove();
+            }
+        }
+        TxnLogIndex index = new TxnLogIndex();
+        File indexFile = getIndexFile(logFile);
+        if (indexFile == null) {
+            indexes.put(logFile.getAbsoluteFile(), index);
+            return index;
+        }
+        try {
+            index.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            index.out.writeInt(INDEX_MAGIC);
+            index.out.writeInt(VERSION);
+        } catch (IOException e) {
+            LOG.warn("Unable to write the index file {}", indexFile, e);
+            index.closeIndexFile();
+        }
+        indexes.put(logFile.getAbsoluteFile(), index);
+        return index;
+    }
+
+    /**
+     * Drop the index of a log file which has been truncated or deleted, along
+     * with its index file.
+     */
+    static void remove(File logFile) {
+        indexes.remove(logFile.getAbsoluteFile());
+        deleteIndexFile(logFile);
+    }
+
+    /**
+     * Drop the index of a log file if it's still the given one, when it has
+     * been found not to match the log.
+     */
+    static void invalidate(File logFile, TxnLogIndex index) {
+        LOG.warn("Dropping the zxid index of {} which doesn't match the log", logFile);
+        if (indexes.remove(logFile.getAbsoluteFile(), index)) {
+            deleteIndexFile(logFile);
+        }
+    }
+
+    private static void deleteIndexFile(File logFile) {
+        File indexFile = getIndexFile(logFile);
+        if (indexFile != null && indexFile.exists() && !indexFile.delete()) {
+            LOG.warn("Unable to delete the index file {}", indexFile);
+        }
+    }
+
+    private static TxnLogIndex load(File logFile) {
+        return load(logFile, true);
+    }
+
+    /**
+     * Read the index file of the log, or rebuild the index from the log if
+     * there is none, writing the rebuilt index to its file if persist is set.
+     */
+    private static TxnLogIndex load(File logFile, boolean persist) {
+        File indexFile = getIndexFile(logFile);
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                return read(indexFile);
+            } catch (IOException e) {
+                LOG.warn("Unable to read the index file {}, rebuilding it", indexFile, e);
+            }
+        }
+        TxnLogIndex index = new TxnLogIndex();
+        try {
+            index.rebuild(logFile);
+            if (persist && indexFile != null) {
+                index.write(indexFile);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to rebuild the index of {}", logFile, e);
+        }
+        return index;
+    }
+
+    private static TxnLogIndex read(File indexFile) throws IOException {
+        TxnLogIndex index = new TxnLogIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            int magic = in.readInt();
+            if (magic != INDEX_MAGIC) {
+                throw new IOException("Index file " + indexFile + " has invalid magic number " + magic);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Index file " + indexFile + " has unsupported version " + version);
+            }
+            while (true) {
+                long zxid;
+                long offset;
+                try {
+                    zxid = in.readLong();
+                    offset = in.readLong();
+                } catch (EOFException e) {
+                    // the last entry may be partial if the server crashed
+                    break;
+                }
+                index.append(zxid, offset);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Index the log by reading the headers of its txns, without checking nor
+     * decoding them.
+     */
+    private void rebuild(File logFile) throws IOException {
+        LOG.info("Rebuilding the zxid index of {}", logFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            FileHeader header = new FileHeader();
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(in);
+            header.deserialize(ia, "fileheader");
+            if (header.getMagic() != FileTxnLog.TXNLOG_MAGIC) {
+                throw new IOException("Transaction log: " + logFile + " has invalid magic number " + header.getMagic());
+            }
+            if (TxnLogCodec.read(header, ia) != TxnLogCodec.NONE) {
+                rebuildBlocks(in);
+                return;
+            }
+            long offset = FileTxnLog.FILE_HEADER_SIZE;
+            while (true) {
+                in.readLong();
+                int len = in.readInt();
+                if (len < FileTxnLog.TXN_HEADER_ZXID_END) {
+                    // the end of the log
+                    break;
+                }
+                // the session id and cxid, before the zxid
+                skipFully(in, FileTxnLog.TXN_HEADER_ZXID_END - 8);
+                long zxid = in.readLong();
+                skipFully(in, len - FileTxnLog.TXN_HEADER_ZXID_END);
+                if (in.readByte() != 'B') {
+                    break;
+                }
+                add(zxid, offset);
+                offset += FileTxnLog.TXN_ENTRY_OVERHEAD + len;
+            }
+        } catch (EOFException e) {
+            // the end of the log
+        }
+    }
+
+    /**
+     * Index the blocks of a compressed log by their first zxid.
+     */
+    private void rebuildBlocks(DataInputStream in) throws IOException {
+        long offset = FileTxnLog.FILE_HEADER_SIZE + 4;
+        while (true) {
+            in.readLong();
+            if (in.readInt() == 0) {
+                // the end of the log
+                break;
+            }
+            long firstZxid = in.readLong();
+            in.readLong();
+            int len = in.readInt();
+            if (len < 0) {
+                break;
+            }
+            skipFully(in, len);
+            if (in.readByte() != 'B') {
+                break;
+            }
+            add(firstZxid, offset);
+            offset += TxnLogBlock.BLOCK_OVERHEAD + len;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    private synchronized void write(File indexFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new AtomicFileOutputStream(indexFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(zxids[i]);
+                out.writeLong(offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Read the zxid of the txn entry, or the first zxid of the block when the
+     * log is compressed, at the given offset of the log file, 0 if the log is
+     * padded there and -1 if it ends before.
+     */
+    private static long readZxid(File logFile, long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            if (raf.length() < FileTxnLog.FILE_HEADER_SIZE) {
+                return -1;
+            }
+            // the version follows the magic number in the file header
+            raf.seek(4);
+            int zxidOffset = raf.readInt() >= FileTxnLog.COMPRESSED_VERSION
+                ? TxnLogBlock.BLOCK_FIRST_ZXID_OFFSET
+                : FileTxnLog.TXN_ENTRY_ZXID_OFFSET;
+            if (offset + zxidOffset + 8 > raf.length()) {
+                return -1;
+            }
+            raf.seek(offset + zxidOffset);
+            return raf.readLong();
+        }
+    }
+
+    /**
+     * Record the offset of the txn entry with the given zxid, it's only kept
+     * if it's at least the index interval past the last indexed entry.
+     */
+    synchronized void add(long zxid, long offset) {
+        if (size > 0 && (offset < offsets[size - 1] + indexInterval || zxid <= zxids[size - 1])) {
+            return;
+        }
+        append(zxid, offset);
+        if (out != null) {
+            try {
+                out.writeLong(zxid);
+                out.writeLong(offset);
+            } catch (IOException e) {
+                LOG.warn("Unable to write to the index file", e);
+                closeIndexFile();
+            }
+        }
+    }
+
+    private void append(long zxid, long offset) {
+        if (size > 0 && zxid <= zxids[size - 1]) {
+            return;
+        }
+        if (size == zxids.length) {
+            zxids = Arrays.copyOf(zxids, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        zxids[size] = zxid;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Flush the index file, it's not synced since the index can be rebuilt.
+     */
+    synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("Unable to write to the index file", e);
+                closeIndexFile();
+            }
+        }
+    }
+
+    /**
+     * Close the index file once the log is no longer written to.
+     */
+    synchronized void closeIndexFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close the index file", e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Find the indexed txn with the greatest zxid not greater than the given
+     * zxid.
+     * @return the position of the txn in the index, -1 if there is none
+     */
+    synchronized int floor(long zxid) {
+        int pos = Arrays.binarySearch(zxids, 0, size, zxid);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    synchronized long getZxid(int pos) {
+        return zxids[pos];
+    }
+
+    synchronized long getOffset(int pos) {
+        return offsets[pos];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+}
@@ -22,6 +22,7 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,6 +31,7 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.Date;
@@ -109,6 +111,9 @@ Options getOptions() {
     private FilePadding filePadding = new FilePadding();
     private boolean force = false;
 
+    // dump mode, the zxid to start dumping from
+    private long startZxid = -1L;
+
     // chop mode
     private long zxid = -1L;
 
@@ -187,10 +192,32 @@ public void dump(Scanner scanner) throws Exception {
         System.out.println("ZooKeeper Transactional Log File with dbid " + fhdr.getDbid()
                            + " txnlog format version " + fhdr.getVersion());
 
+        TxnLogCodec codec = TxnLogCodec.read(fhdr, logStream);
+        if (codec != TxnLogCodec.NONE) {
+            System.out.println("Txns are compressed with " + codec.getName());
+        }
+
         if (recoveryMode) {
+            // the recovered log is not compressed
+            fhdr.setVersion(FileTxnLog.VERSION);
             fhdr.serialize(recoveryOa, "fileheader");
             recoveryFos.flush();
             filePadding.setCurrentSize(recoveryFos.getChannel().position());
+        } else if (startZxid >= 0) {
+            // seek to the closest indexed txn or block, the txns before the
+            // zxid are skipped from there
+            long offset = TxnLogIndex.getOffsetReadOnly(txnLogFile, startZxid);
+            if (offset > 0) {
+                txnFis.getChannel().position(offset);
+            }
+        }
+        if (codec != TxnLogCodec.NONE) {
+            TxnLogBlockInputStream blocks = new TxnLogBlockInputStream(
+                new DataInputStream(new BufferedInputStream(txnFis)), codec, txnFis.getChannel().position());
+            if (startZxid >= 0) {
+                blocks.skipBlocks(startZxid, false);
+            }
+            logStream = BinaryInputArchive.getArchive(blocks);
         }
 
         int count = 0;
@@ -210,6 +237,13 @@ public void dump(Scanner scanner) throws Exception {
                 System.out.println("EOF reached after " + count + " txns.");
                 return;
             }
+            // the zxid follows the session id and cxid in the txn header
+            if (startZxid >= 0 && ByteBuffer.wrap(bytes).getLong(12) < startZxid) {
+                if (logStream.readByte("EOR") != 'B') {
+                    throw new TxnLogToolkitException(ExitCode.UNEXPECTED_ERROR.getValue(), "Last transaction was partial.");
+                }
+                continue;
+            }
             Checksum crc = new Adler32();
             crc.update(bytes, 0, bytes.length);
             if (crcValue != crc.getValue()) {
@@ -382,7 +416,8 @@ private void closeRecoveryFile() throws IOException {
         }
     }
 
-    private static TxnLogToolkit parseCommandLine(String[] args) throws TxnLogToolkitException, FileNotFoundException {
+    // visible for testing
+    static TxnLogToolkit parseCommandLine(String[] args) throws TxnLogToolkitException, FileNotFoundException {
         CommandLineParser parser = new DefaultParser();
         Options options = new Options();
 
@@ -403,7 +438,7 @@ private static TxnLogToolkit parseCommandLine(String[] args) throws TxnLogToolki
 
         // Chop mode options
         Option chopOpt = new Option("c", "chop", false, "Chop mode. Chop txn file to a zxid.");
-        Option zxidOpt = new Option("z", "zxid", true, "Used with chop. Zxid to which to chop.");
+        Option zxidOpt = new Option("z", "zxid", true, "Used with chop. Zxid to which to chop. In dump mode, zxid from which to dump.");
         options.addOption(chopOpt);
         options.addOption(zxidOpt);
 
@@ -418,7 +453,17 @@ private static TxnLogToolkit parseCommandLine(String[] args) throws TxnLogToolki
             if (cli.hasOption("chop") && cli.hasOption("zxid")) {
                 return new TxnLogToolkit(cli.getArgs()[0], cli.getOptionValue("zxid"));
             }
-            return new TxnLogToolkit(cli.hasOption("recover"), cli.hasOption("verbose"), cli.getArgs()[0], cli.hasOption("yes"));
+            if (cli.hasOption("zxid") && cli.hasOption("recover")) {
+                throw new TxnLogToolkitParseException(
+                    options,
+                    ExitCode.INVALID_INVOCATION.getValue(),
+                    "zxid can't be used in recovery mode");
+            }
+            TxnLogToolkit lt = new TxnLogToolkit(cli.hasOption("recover"), cli.hasOption("verbose"), cli.getArgs()[0], cli.hasOption("yes"));
+            if (cli.hasOption("zxid")) {
+                lt.startZxid = Long.decode(cli.getOptionValue("zxid"));
+            }
+            return lt;
         } catch (ParseException e) {
             throw new TxnLogToolkitParseException(options, ExitCode.UNEXPECTED_ERROR.getValue(), e.getMessage());
         }
@@ -18,19 +18,23 @@
 
 package org.apache.zookeeper.server.persistence;
 
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -50,6 +54,9 @@ public class Util {
     private static final String LOG_DIR = "logDir";
     private static final String DB_FORMAT_CONV = "dbFormatConversion";
 
+    // Unsafe.invokeCleaner, null when not available (before Java 9)
+    private static final MethodHandle INVOKE_CLEANER = lookupInvokeCleaner();
+
     public static String makeURIString(String dataDir, String dataLogDir, String convPolicy) {
         String uri = "file:" + SNAP_DIR + "=" + dataDir + ";" + LOG_DIR + "=" + dataLogDir;
         if (convPolicy != null) {
@@ -97,6 +104,18 @@ public static String makeSnapshotName(long zxid) {
                + SnapStream.getStreamMode().getFileExtension();
     }
 
+    /**
+     * Creates a delta snapshot file name.
+     *
+     * @param zxid used as a suffix
+     * @return file name
+     */
+    public static String makeDeltaSnapshotName(long zxid) {
+        return FileDeltaSnap.DELTA_FILE_PREFIX + "."
+               + Long.toHexString(zxid)
+               + SnapStream.getStreamMode().getFileExtension();
+    }
+
     /**
      * Extracts snapshot directory property value from the container.
      *
@@ -186,17 +205,7 @@ public static byte[] marshallTxnEntry(TxnHeader hdr, Record txn) throws IOExcept
 
     public static byte[] marshallTxnEntry(TxnHeader hdr, Record txn, TxnDigest digest)
             throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        OutputArchive boa = BinaryOutputArchive.getArchive(baos);
-
-        hdr.serialize(boa, "hdr");
-        if (txn != null) {
-            txn.serialize(boa, "txn");
-        }
-        if (digest != null) {
-            digest.serialize(boa, "digest");
-        }
-        return baos.toByteArray();
+        return ByteBufferOutputArchive.serialize(hdr, txn, digest);
     }
 
     /**
@@ -255,6 +264,42 @@ public static List<File> sortDataDir(File[] files, String prefix, boolean ascend
         return filelist;
     }
 
+    private static MethodHandle lookupInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.info("File mappings are released when garbage collected: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Release the mapping of a file right away, instead of when the buffer
+     * is garbage collected. The buffer, and any buffer derived from it, must
+     * not be accessed afterwards, doing so would crash the JVM.
+     *
+     * @param mapping the mapping of a file
+     * @return true if the mapping was released, false if it's left to the
+     *         garbage collector
+     */
+    static boolean unmap(ByteBuffer mapping) {
+        if (INVOKE_CLEANER == null || !mapping.isDirect()) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(mapping);
+            return true;
+        } catch (Throwable e) {
+            LOG.warn("Failed to unmap a file, it will be unmapped when garbage collected", e);
+            return false;
+        }
+    }
+
     /**
      * Returns true if fileName is a log file name.
      *
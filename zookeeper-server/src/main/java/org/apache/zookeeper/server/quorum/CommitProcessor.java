@@ -20,15 +20,18 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ApplyAheadProcessor;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
@@ -305,6 +308,7 @@ public void run() {
                     Set<Long> queuesToDrain = new HashSet<>();
                     long startWriteTime = Time.currentElapsedTime();
                     int commitsProcessed = 0;
+                    List<Request> writes = new ArrayList<>();
                     while (commitIsWaiting && !stopped && commitsToProcess > 0) {
 
                         // Process committed head
@@ -376,11 +380,12 @@ public void run() {
                         commitsToProcess--;
                         commitsProcessed++;
 
-                        // Process the write inline.
-                        processWrite(request);
+                        writes.add(request);
 
                         commitIsWaiting = !committedRequests.isEmpty();
                     }
+                    // Process the writes inline.
+                    processWrites(writes);
                     ServerMetrics.getMetrics().WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR
                         .add(Time.currentElapsedTime() - startWriteTime);
                     ServerMetrics.getMetrics().WRITES_ISSUED_IN_COMMIT_PROC.add(commitsProcessed);
@@ -469,6 +474,19 @@ private void sendToNextProcessor(Request request) {
         workerPool.schedule(workRequest, request.sessionId);
     }
 
+    /**
+     * Process the committed writes in order, the next processor may apply
+     * their txns ahead together.
+     */
+    private void processWrites(List<Request> writes) throws RequestProcessorException {
+        if (writes.size() > 1 && nextProcessor instanceof ApplyAheadProcessor) {
+            ((ApplyAheadProcessor) nextProcessor).applyAhead(writes);
+        }
+        for (Request request : writes) {
+            processWrite(request);
+        }
+    }
+
     private void processWrite(Request request) throws RequestProcessorException {
         processCommitMetrics(request, true);
 
@@ -21,9 +21,7 @@
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import javax.management.JMException;
 import org.apache.jute.Record;
-import org.apache.zookeeper.jmx.MBeanRegistry;
 import org.apache.zookeeper.metrics.MetricsContext;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.FinalRequestProcessor;
@@ -141,27 +139,11 @@ public Learner getLearner() {
         return getFollower();
     }
 
-    /**
-     * Process a request received from external Learner through the LearnerMaster
-     * These requests have already passed through validation and checks for
-     * session upgrade and can be injected into the middle of the pipeline.
-     *
-     * @param request received from external Learner
-     */
+    @Override
     void processObserverRequest(Request request) {
         ((FollowerRequestProcessor) firstProcessor).processRequest(request, false);
     }
 
-    boolean registerJMX(LearnerHandlerBean handlerBean) {
-        try {
-            MBeanRegistry.getInstance().register(handlerBean, jmxServerBean);
-            return true;
-        } catch (JMException e) {
-            LOG.warn("Could not register connection", e);
-        }
-        return false;
-    }
-
     @Override
     protected void registerMetrics() {
         super.registerMetrics();
@@ -21,9 +21,7 @@
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -50,6 +48,7 @@
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import javax.security.sasl.SaslException;
@@ -57,6 +56,7 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.jmx.MBeanRegistry;
+import org.apache.zookeeper.server.ApplyAheadProcessor;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.FinalRequestProcessor;
 import org.apache.zookeeper.server.Request;
@@ -338,10 +338,25 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
     static final int TRUNC = 14;
 
     /**
-     * This is for follower to download the snapshots
+     * This is for follower to download the snapshots. When the data of the
+     * packet is set, it holds the length and the name of the snapshot file
+     * which is streamed to the follower, instead of the serialized database.
      */
     static final int SNAP = 15;
 
+    /**
+     * The protocol version of the learners which can receive a snapshot
+     * file, see {@link #SNAP}
+     */
+    static final int SNAP_FILE_PROTOCOL_VERSION = 0x10001;
+
+    /**
+     * The protocol version of the leaders which take an ACK as acking every
+     * earlier proposal too, so that learners may only ack the last proposal
+     * of each batch they log
+     */
+    static final int CUMULATIVE_ACK_PROTOCOL_VERSION = 0x10002;
+
     /**
      * This tells the leader that the connecting peer is actually an observer
      */
@@ -434,6 +449,13 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
 
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<>();
 
+    // highest zxid acked by each server, a server acks the proposals in order
+    private final ConcurrentMap<Long, AtomicLong> ackedZxids = new ConcurrentHashMap<>();
+
+    // number of acks recorded since the committing thread last looked for
+    // proposals to commit
+    private final AtomicInteger pendingAcks = new AtomicInteger();
+
     // VisibleForTesting
     protected final Proposal newLeaderProposal = new Proposal();
 
@@ -560,7 +582,7 @@ private void acceptConnections() throws IOException {
 
     // when a reconfig occurs where the leader is removed or becomes an observer,
     // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;
+    volatile boolean allowedToCommit = true;
 
     /**
      * Timestamp when this leader started serving request (Quorum is running)
@@ -888,6 +910,7 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
         Proposal p = outstandingProposals.get(curZxid);
 
         while (p != null && !candidates.isEmpty()) {
+            addAcks(p, curZxid);
             for (Proposal.QuorumVerifierAcksetPair qvAckset : p.qvAcksetPairs) {
                 //reduce the set of candidates to those that acknowledged p
                 candidates.retainAll(qvAckset.getAckset());
@@ -926,6 +949,7 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         // in order to be committed, a proposal must be accepted by a quorum.
         //
         // getting a quorum from all necessary configurations.
+        addAcks(p, zxid);
         if (!p.hasAllQuorums()) {
             return false;
         }
@@ -986,16 +1010,31 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         return true;
     }
 
+    /**
+     * Add to the ack sets of the proposal the servers which acked it or a
+     * later proposal.
+     */
+    private void addAcks(Proposal p, long zxid) {
+        for (Map.Entry<Long, AtomicLong> acked : ackedZxids.entrySet()) {
+            if (acked.getValue().get() >= zxid) {
+                p.addAck(acked.getKey());
+            }
+        }
+    }
+
     /**
      * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * proposal. The ack only raises the highest zxid acked by the server,
+     * without taking the leader lock; a single thread at a time, the first
+     * one to find no other committing, then commits every proposal acked by
+     * a quorum on behalf of all the acks received meanwhile.
      *
      * @param sid is the id of the server that sent the ack
      * @param zxid is the zxid of the proposal sent out
      * @param followerAddr
      */
     @Override
-    public synchronized void processAck(long sid, long zxid, SocketAddress followerAddr) {
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
         if (!allowedToCommit) {
             return; // last op committed was a leader change - from now on
         }
@@ -1018,21 +1057,17 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             return;
         }
 
-        if (outstandingProposals.size() == 0) {
-            LOG.debug("outstanding is 0");
-            return;
-        }
-        if (lastCommitted >= zxid) {
-            LOG.debug(
-                "proposal has already been committed, pzxid: 0x{} zxid: 0x{}",
-                Long.toHexString(lastCommitted),
-                Long.toHexString(zxid));
-            // The proposal has already been committed
-            return;
-        }
         Proposal p = outstandingProposals.get(zxid);
         if (p == null) {
-            LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            if (zxid > lastProposed) {
+                LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            } else {
+                // The proposal has already been committed
+                LOG.debug(
+                    "proposal has already been committed, pzxid: 0x{} zxid: 0x{}",
+                    Long.toHexString(lastCommitted),
+                    Long.toHexString(zxid));
+            }
             return;
         }
 
@@ -1040,32 +1075,42 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             p.request.logLatency(ServerMetrics.getMetrics().ACK_LATENCY, Long.toString(sid));
         }
 
-        p.addAck(sid);
+        ackedZxids.computeIfAbsent(sid, k -> new AtomicLong(-1)).accumulateAndGet(zxid, Math::max);
 
-        boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
+        if (pendingAcks.getAndIncrement() != 0) {
+            // the committing thread will look at this ack
+            return;
+        }
+        int acks = 1;
+        do {
+            commitAcked(followerAddr);
+        } while ((acks = pendingAcks.addAndGet(-acks)) != 0);
+    }
 
-        // If p is a reconfiguration, multiple other operations may be ready to be committed,
-        // since operations wait for different sets of acks.
-        // Currently we only permit one outstanding reconfiguration at a time
-        // such that the reconfiguration and subsequent outstanding ops proposed while the reconfig is
-        // pending all wait for a quorum of old and new config, so its not possible to get enough acks
-        // for an operation without getting enough acks for preceding ops. But in the future if multiple
-        // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
-        // ops may already have enough acks and can be committed, which is what this code does.
-
-        if (hasCommitted && p.request != null && p.request.getHdr().getType() == OpCode.reconfig) {
-            long curZxid = zxid;
-            while (allowedToCommit && hasCommitted && p != null) {
-                curZxid++;
-                p = outstandingProposals.get(curZxid);
-                if (p != null) {
-                    hasCommitted = tryToCommit(p, curZxid, null);
-                }
+    /**
+     * Commit in order the outstanding proposals which have been acked by a
+     * quorum, several proposals acked at once are committed together.
+     */
+    private synchronized void commitAcked(SocketAddress followerAddr) {
+        // Proposals wait for different sets of acks while a reconfiguration
+        // is outstanding, so several may become ready to commit at once.
+        while (allowedToCommit && !outstandingProposals.isEmpty()) {
+            long zxid = lastCommitted + 1;
+            Proposal p = outstandingProposals.get(zxid);
+            if (p == null) {
+                // the first proposal of an epoch, its counter restarts at 1
+                // so it doesn't follow the last zxid committed in the
+                // previous epoch
+                zxid = Collections.min(outstandingProposals.keySet());
+                p = outstandingProposals.get(zxid);
+            }
+            if (p == null || !tryToCommit(p, zxid, followerAddr)) {
+                return;
             }
         }
     }
 
-    static class ToBeAppliedRequestProcessor implements RequestProcessor {
+    static class ToBeAppliedRequestProcessor implements ApplyAheadProcessor {
 
         private final RequestProcessor next;
 
@@ -1118,6 +1163,11 @@ public void processRequest(Request request) throws RequestProcessorException {
             }
         }
 
+        @Override
+        public void applyAhead(List<Request> committedRequests) throws RequestProcessorException {
+            ((ApplyAheadProcessor) next).applyAhead(committedRequests);
+        }
+
         /*
          * (non-Javadoc)
          *
@@ -1131,7 +1181,8 @@ public void shutdown() {
     }
 
     /**
-     * send a packet to all the followers ready to follow
+     * send a packet to all the followers ready to follow, a
+     * SerializedQuorumPacket is only serialized once for all of them
      *
      * @param qp
      *                the packet to be sent
@@ -1153,7 +1204,7 @@ void sendObserverPacket(QuorumPacket qp) {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -1164,7 +1215,7 @@ public void commit(long zxid) {
         synchronized (this) {
             lastCommitted = zxid;
         }
-        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.COMMIT, zxid, null, null);
         sendPacket(qp);
         ServerMetrics.getMetrics().COMMIT_COUNT.add(1);
     }
@@ -1179,7 +1230,7 @@ public void commitAndActivate(long zxid, long designatedLeader) {
         ByteBuffer buffer = ByteBuffer.wrap(data);
         buffer.putLong(designatedLeader);
 
-        QuorumPacket qp = new QuorumPacket(Leader.COMMITANDACTIVATE, zxid, data, null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.COMMITANDACTIVATE, zxid, data, null);
         sendPacket(qp);
     }
 
@@ -1187,7 +1238,7 @@ public void commitAndActivate(long zxid, long designatedLeader) {
      * Create an inform packet and send it to all observers.
      */
     public void inform(Proposal proposal) {
-        QuorumPacket qp = new QuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
         sendObserverPacket(qp);
     }
 
@@ -1197,7 +1248,7 @@ public static QuorumPacket buildInformAndActivePacket(long zxid, long designated
         buffer.putLong(designatedLeader);
         buffer.put(proposalData);
 
-        return new QuorumPacket(Leader.INFORMANDACTIVATE, zxid, data, null);
+        return new SerializedQuorumPacket(Leader.INFORMANDACTIVATE, zxid, data, null);
     }
 
     /**
@@ -1207,7 +1258,7 @@ public void informAndActivate(Proposal proposal, long designatedLeader) {
         sendObserverPacket(buildInformAndActivePacket(proposal.request.zxid, designatedLeader, proposal.packet.getData()));
     }
 
-    long lastProposed;
+    volatile long lastProposed;
 
     @Override
     public synchronized long getLastProposed() {
@@ -1253,7 +1304,7 @@ public Proposal propose(Request request) throws XidRolloverException {
 
         byte[] data = SerializeUtils.serializeRequest(request);
         proposalStats.setLastBufferSize(data.length);
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+        QuorumPacket pp = new SerializedQuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
 
         Proposal p = new Proposal();
         p.packet = pp;
@@ -1725,9 +1776,6 @@ public void revalidateSession(QuorumPacket qp, LearnerHandler learnerHandler) th
         DataInputStream dis = new DataInputStream(bis);
         long id = dis.readLong();
         int to = dis.readInt();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(bos);
-        dos.writeLong(id);
         boolean valid = zk.checkIfValidGlobalSession(id, to);
         if (valid) {
             try {
@@ -1746,8 +1794,10 @@ public void revalidateSession(QuorumPacket qp, LearnerHandler learnerHandler) th
                 ZooTrace.SESSION_TRACE_MASK,
                 "Session 0x" + Long.toHexString(id) + " is valid: " + valid);
         }
-        dos.writeBoolean(valid);
-        qp.setData(bos.toByteArray());
+        ByteBuffer bb = ByteBuffer.allocate(9);
+        bb.putLong(id);
+        bb.put((byte) (valid ? 1 : 0));
+        qp.setData(bb.array());
         learnerHandler.queuePacket(qp);
     }
 
@@ -24,7 +24,6 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -41,6 +40,7 @@
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedInputStream;
 import javax.net.ssl.SSLSocket;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -56,6 +56,7 @@
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.SnapStream;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.ConfigUtils;
@@ -101,6 +102,8 @@ public Socket getSocket() {
     }
 
     LearnerSender sender = null;
+    /** the buffered stream leaderIs reads from, which snapshot files are read from too */
+    protected BufferedInputStream leaderInput;
     protected InputArchive leaderIs;
     protected OutputArchive leaderOs;
     /** the protocol version of the leader */
@@ -125,12 +128,15 @@ public Socket getSocket() {
     public static final String LEARNER_CLOSE_SOCKET_ASYNC = "zookeeper.learner.closeSocketAsync";
     public static final boolean closeSocketAsync = Boolean
         .parseBoolean(ConfigUtils.getPropertyBackwardCompatibleWay(LEARNER_CLOSE_SOCKET_ASYNC));
+    public static final String LEARNER_CUMULATIVE_ACK = "zookeeper.learner.cumulativeAck";
+    private static boolean cumulativeAck = Boolean.getBoolean(LEARNER_CUMULATIVE_ACK);
 
     static {
         LOG.info("leaderConnectDelayDuringRetryMs: {}", leaderConnectDelayDuringRetryMs);
         LOG.info("TCP NoDelay set to: {}", nodelay);
         LOG.info("{} = {}", LEARNER_ASYNC_SENDING, asyncSending);
         LOG.info("{} = {}", LEARNER_CLOSE_SOCKET_ASYNC, closeSocketAsync);
+        LOG.info("{} = {}", LEARNER_CUMULATIVE_ACK, cumulativeAck);
     }
 
     final ConcurrentHashMap<Long, ServerCnxn> pendingRevalidations = new ConcurrentHashMap<>();
@@ -148,6 +154,23 @@ protected static void setAsyncSending(boolean newMode) {
     protected static boolean getAsyncSending() {
         return asyncSending;
     }
+
+    // for testing
+    protected static void setCumulativeAck(boolean newMode) {
+        cumulativeAck = newMode;
+        LOG.info("{} = {}", LEARNER_CUMULATIVE_ACK, cumulativeAck);
+    }
+    protected static boolean getCumulativeAck() {
+        return cumulativeAck;
+    }
+
+    /**
+     * @return true if only the last txn of each batch logged is acked, the
+     *         leader taking the ack for all the txns of the batch
+     */
+    boolean isCumulativeAck() {
+        return cumulativeAck && leaderProtocolVersion >= Leader.CUMULATIVE_ACK_PROTOCOL_VERSION;
+    }
     /**
      * validate a session for a client
      *
@@ -159,12 +182,10 @@ protected static boolean getAsyncSending() {
      */
     void validateSession(ServerCnxn cnxn, long clientId, int timeout) throws IOException {
         LOG.info("Revalidating client: 0x{}", Long.toHexString(clientId));
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeLong(clientId);
-        dos.writeInt(timeout);
-        dos.close();
-        QuorumPacket qp = new QuorumPacket(Leader.REVALIDATE, -1, baos.toByteArray(), null);
+        ByteBuffer bb = ByteBuffer.allocate(12);
+        bb.putLong(clientId);
+        bb.putInt(timeout);
+        QuorumPacket qp = new QuorumPacket(Leader.REVALIDATE, -1, bb.array(), null);
         pendingRevalidations.put(clientId, cnxn);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
@@ -249,17 +270,15 @@ void request(Request request) throws IOException {
             LOG.error("Throttled request sent to leader: {}. Exiting", request);
             ServiceUtils.requestSystemExit(ExitCode.UNEXPECTED_ERROR.getValue());
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream oa = new DataOutputStream(baos);
-        oa.writeLong(request.sessionId);
-        oa.writeInt(request.cxid);
-        oa.writeInt(request.type);
         byte[] payload = request.readRequestBytes();
+        ByteBuffer bb = ByteBuffer.allocate(16 + (payload != null ? payload.length : 0));
+        bb.putLong(request.sessionId);
+        bb.putInt(request.cxid);
+        bb.putInt(request.type);
         if (payload != null) {
-            oa.write(payload);
+            bb.put(payload);
         }
-        oa.close();
-        QuorumPacket qp = new QuorumPacket(Leader.REQUEST, -1, baos.toByteArray(), request.authInfo);
+        QuorumPacket qp = new QuorumPacket(Leader.REQUEST, -1, bb.array(), request.authInfo);
         writePacket(qp, true);
     }
 
@@ -349,7 +368,8 @@ protected void connectToLeader(MultipleAddresses multiAddr, String hostname) thr
 
         self.authLearner.authenticate(sock, hostname);
 
-        leaderIs = BinaryInputArchive.getArchive(new BufferedInputStream(sock.getInputStream()));
+        leaderInput = new BufferedInputStream(sock.getInputStream());
+        leaderIs = BinaryInputArchive.getArchive(leaderInput);
         bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
         leaderOs = BinaryOutputArchive.getArchive(bufferedOutput);
         if (asyncSending) {
@@ -491,7 +511,8 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getMyId(), 0x10000, self.getQuorumVerifier().getVersion());
+        int protocolVersion = leaderInput != null ? Leader.SNAP_FILE_PROTOCOL_VERSION : 0x10000;
+        LearnerInfo li = new LearnerInfo(self.getMyId(), protocolVersion, self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -535,6 +556,23 @@ protected long registerWithLeader(int pktType) throws IOException {
         }
     }
 
+    /**
+     * Read the snapshot file announced by a SNAP packet. The file is received
+     * on its own thread while it's decoded.
+     */
+    private void readSnapshotFile(QuorumPacket qp) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(qp.getData());
+        long length = data.getLong();
+        String name = new String(data.array(), data.position(), data.remaining(), UTF_8);
+        LOG.info("Reading snapshot file {} ({} bytes) from leader", name, length);
+        try (SnapshotStreamReader reader = new SnapshotStreamReader(leaderInput, length, self.getMyId())) {
+            CheckedInputStream snapIs = SnapStream.getInputStream(reader, SnapStream.getStreamMode(name));
+            InputArchive ia = BinaryInputArchive.getArchive(snapIs);
+            // db is clear as part of deserializeSnapshot()
+            zk.getZKDatabase().deserializeSnapshot(ia, snapIs, qp.getZxid());
+        }
+    }
+
     /**
      * Finally, synchronize our history with the Leader (if Follower)
      * or the LearnerMaster (if Observer).
@@ -570,9 +608,15 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
             } else if (qp.getType() == Leader.SNAP) {
                 self.setSyncMode(QuorumPeer.SyncMode.SNAP);
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
-                // The leader is going to dump the database
-                // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                if (qp.getData() != null) {
+                    // The leader is going to stream its latest snapshot file,
+                    // the txns after it follow like in a DIFF
+                    readSnapshotFile(qp);
+                } else {
+                    // The leader is going to dump the database
+                    // db is clear as part of deserializeSnapshot()
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
@@ -835,15 +879,14 @@ protected void revalidate(QuorumPacket qp) throws IOException {
 
     protected void ping(QuorumPacket qp) throws IOException {
         // Send back the ping with our session data
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(bos);
         Map<Long, Integer> touchTable = zk.getTouchSnapshot();
+        ByteBuffer bb = ByteBuffer.allocate(12 * touchTable.size());
         for (Entry<Long, Integer> entry : touchTable.entrySet()) {
-            dos.writeLong(entry.getKey());
-            dos.writeInt(entry.getValue());
+            bb.putLong(entry.getKey());
+            bb.putInt(entry.getValue());
         }
 
-        QuorumPacket pingReply = new QuorumPacket(qp.getType(), qp.getZxid(), bos.toByteArray(), qp.getAuthinfo());
+        QuorumPacket pingReply = new QuorumPacket(qp.getType(), qp.getZxid(), bb.array(), qp.getAuthinfo());
         writePacket(pingReply, true);
     }
 
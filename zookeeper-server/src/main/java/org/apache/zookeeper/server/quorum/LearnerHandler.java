@@ -18,13 +18,19 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -49,6 +55,8 @@
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -72,8 +80,18 @@ public class LearnerHandler extends ZooKeeperThread {
     public static final boolean closeSocketAsync = Boolean
         .parseBoolean(ConfigUtils.getPropertyBackwardCompatibleWay(LEADER_CLOSE_SOCKET_ASYNC));
 
+    /**
+     * Whether a snapshot sync streams the most recent snapshot file to the
+     * learners which support it, followed by the txns after it, instead of
+     * serializing the database to them. Disabled by default.
+     */
+    public static final String LEADER_SNAP_SYNC_FROM_FILE = "zookeeper.leader.snapSyncFromFile";
+
+    private static boolean snapSyncFromFile = Boolean.getBoolean(LEADER_SNAP_SYNC_FROM_FILE);
+
     static {
         LOG.info("{} = {}", LEADER_CLOSE_SOCKET_ASYNC, closeSocketAsync);
+        LOG.info("{} = {}", LEADER_SNAP_SYNC_FROM_FILE, snapSyncFromFile);
     }
 
     protected final Socket sock;
@@ -274,6 +292,13 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
      */
     private LearnerSyncThrottler syncThrottler = null;
 
+    /**
+     * The snapshot file to stream to the learner, opened when the txns after
+     * it are queued
+     */
+    private File snapFile;
+    private FileInputStream snapFileInput;
+
     LearnerHandler(Socket sock, BufferedInputStream bufferedInput, LearnerMaster learnerMaster) throws IOException {
         super("LearnerHandler-" + sock.getRemoteSocketAddress());
         this.sock = sock;
@@ -533,7 +558,7 @@ public void run() {
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
                 byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                ByteBuffer.wrap(ver).putInt(Leader.CUMULATIVE_ACK_PROTOCOL_VERSION);
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
@@ -565,25 +590,30 @@ public void run() {
                 syncThrottler.beginSync(exemptFromThrottle);
                 ServerMetrics.getMetrics().INFLIGHT_SNAP_COUNT.add(syncThrottler.getSyncInProgress());
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    messageTracker.trackSent(Leader.SNAP);
-                    bufferedOutput.flush();
+                    if (snapFile != null) {
+                        sendSnapshotFile(peerLastZxid, exemptFromThrottle);
+                    } else {
+                        long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+                        oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                        messageTracker.trackSent(Leader.SNAP);
+                        bufferedOutput.flush();
 
-                    LOG.info(
-                        "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
-                            + "snapshot sync was {} from throttle",
-                        Long.toHexString(peerLastZxid),
-                        Long.toHexString(leaderLastZxid),
-                        Long.toHexString(zxidToSend),
-                        syncThrottler.getSyncInProgress(),
-                        exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
-                    bufferedOutput.flush();
+                        LOG.info(
+                            "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
+                                + "snapshot sync was {} from throttle",
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            Long.toHexString(zxidToSend),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        // Dump data to peer
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                        oa.writeString("BenWasHere", "signature");
+                        bufferedOutput.flush();
+                    }
                 } finally {
+                    closeSnapshotFile();
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
                 }
             } else {
@@ -732,6 +762,7 @@ public void run() {
                 syncThrottler.endSync();
                 syncThrottler = null;
             }
+            closeSnapshotFile();
             String remoteAddr = getRemoteAddress();
             LOG.warn("******* GOODBYE {} ********", remoteAddr);
             messageTracker.dumpToLog(remoteAddr);
@@ -793,6 +824,7 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
         // Keep track of the latest zxid which already queued
         long currentZxid = peerLastZxid;
         boolean needSnap = true;
+        boolean syncedFromTxnLog = false;
         ZKDatabase db = learnerMaster.getZKDatabase();
         boolean txnLogSyncEnabled = db.isTxnLogSyncEnabled();
         ReentrantReadWriteLock lock = db.getLogLock();
@@ -868,7 +900,7 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             } else if ((maxCommittedLog >= peerLastZxid) && (minCommittedLog <= peerLastZxid)) {
                 // Follower is within commitLog range
                 LOG.info("Using committedLog for peer sid: {}", getSid());
-                Iterator<Proposal> itr = db.getCommittedLog().iterator();
+                Iterator<Proposal> itr = db.getCommittedLogFrom(peerLastZxid);
                 currentZxid = queueCommittedProposals(itr, peerLastZxid, null, maxCommittedLog);
                 needSnap = false;
             } else if (peerLastZxid < minCommittedLog && txnLogSyncEnabled) {
@@ -895,9 +927,10 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                         needOpPacket = true;
                     } else {
                         LOG.debug("Queueing committedLog 0x{}", Long.toHexString(currentZxid));
-                        Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
+                        Iterator<Proposal> committedLogItr = db.getCommittedLogFrom(currentZxid);
                         currentZxid = queueCommittedProposals(committedLogItr, currentZxid, null, maxCommittedLog);
                         needSnap = false;
+                        syncedFromTxnLog = true;
                     }
                 }
                 // closing the resources
@@ -919,6 +952,12 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             }
             if (needSnap) {
                 currentZxid = db.getDataTreeLastProcessedZxid();
+                if (snapSyncFromFile && getVersion() >= Leader.SNAP_FILE_PROTOCOL_VERSION) {
+                    long queuedZxid = queueSnapshotFileSync(db, minCommittedLog, maxCommittedLog, txnLogSyncEnabled);
+                    if (queuedZxid != -1) {
+                        currentZxid = queuedZxid;
+                    }
+                }
             }
 
             LOG.debug("Start forwarding 0x{} for peer sid: {}", Long.toHexString(currentZxid), getSid());
@@ -934,9 +973,151 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             needSnap = true;
         }
 
+        if (needSnap) {
+            ServerMetrics.getMetrics().LEARNER_SYNC_COMMITTED_LOG_MISS.add(1);
+        } else if (syncedFromTxnLog) {
+            ServerMetrics.getMetrics().LEARNER_SYNC_TXN_LOG.add(1);
+        } else {
+            ServerMetrics.getMetrics().LEARNER_SYNC_COMMITTED_LOG_HIT.add(1);
+        }
         return needSnap;
     }
 
+    /**
+     * Prepare a snapshot sync from the most recent snapshot file: open it and
+     * queue the txns after it, from the txnlog and the committedLog. The
+     * snapshot is fuzzy, the learner applies these txns on top of it like on
+     * restore. Must be called with the log lock held.
+     *
+     * @return the last zxid queued, or -1 if the database has to be
+     *         serialized to the learner instead
+     */
+    private long queueSnapshotFileSync(ZKDatabase db, long minCommittedLog, long maxCommittedLog, boolean txnLogSyncEnabled) {
+        long snapZxid = -1;
+        try {
+            File file = db.findMostRecentSnapshot();
+            if (file == null) {
+                return -1;
+            }
+            snapZxid = Util.getZxidFromName(file.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+            if (snapZxid == -1 || snapZxid > maxCommittedLog) {
+                return -1;
+            }
+            // PurgeTxnLog always retains the most recent snapshots, but a
+            // few newer ones may be taken while this one is being sent. An
+            // open stream doesn't stop the purge from deleting the file, it
+            // only keeps its content readable on POSIX filesystems, so fall
+            // back to serializing the database if it's already gone.
+            snapFileInput = new FileInputStream(file);
+            snapFile = file;
+            // the txns are sent after the SNAP packet, not after a DIFF or TRUNC
+            needOpPacket = false;
+
+            long currentZxid = snapZxid;
+            if (snapZxid < minCommittedLog) {
+                if (!txnLogSyncEnabled) {
+                    closeSnapshotFile();
+                    needOpPacket = true;
+                    return -1;
+                }
+                Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid, db.calculateTxnLogSizeLimit());
+                try {
+                    currentZxid = queueCommittedProposals(txnLogItr, snapZxid, minCommittedLog, null);
+                } finally {
+                    if (txnLogItr instanceof TxnLogProposalIterator) {
+                        ((TxnLogProposalIterator) txnLogItr).close();
+                    }
+                }
+                if (currentZxid < minCommittedLog) {
+                    LOG.info(
+                        "Not streaming snapshot 0x{} to peer sid: {}, txnlog ends at 0x{} before committedLog 0x{}",
+                        Long.toHexString(snapZxid),
+                        getSid(),
+                        Long.toHexString(currentZxid),
+                        Long.toHexString(minCommittedLog));
+                    queuedPackets.clear();
+                    closeSnapshotFile();
+                    needOpPacket = true;
+                    return -1;
+                }
+            }
+            currentZxid = queueCommittedProposals(db.getCommittedLogFrom(currentZxid), currentZxid, null, null);
+            LOG.info(
+                "Streaming snapshot {} with txns up to 0x{} to peer sid: {}",
+                file.getName(),
+                Long.toHexString(currentZxid),
+                getSid());
+            return currentZxid;
+        } catch (IOException e) {
+            LOG.warn("Not streaming snapshot 0x{} to peer sid: {}", Long.toHexString(snapZxid), getSid(), e);
+            queuedPackets.clear();
+            closeSnapshotFile();
+            needOpPacket = true;
+            return -1;
+        }
+    }
+
+    /**
+     * Send the snapshot file prepared by {@link #queueSnapshotFileSync}. The
+     * SNAP packet holds the length and the name of the file, followed by its
+     * content and the signature.
+     */
+    private void sendSnapshotFile(long peerLastZxid, boolean exemptFromThrottle) throws IOException {
+        long snapZxid = Util.getZxidFromName(snapFile.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        FileChannel channel = snapFileInput.getChannel();
+        long length = channel.size();
+        byte[] name = snapFile.getName().getBytes(UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(8 + name.length);
+        data.putLong(length).put(name);
+        oa.writeRecord(new QuorumPacket(Leader.SNAP, snapZxid, data.array(), null), "packet");
+        messageTracker.trackSent(Leader.SNAP);
+        bufferedOutput.flush();
+
+        LOG.info(
+            "Sending snapshot file {} ({} bytes) last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                + "{} concurrent snapshot sync, snapshot sync was {} from throttle",
+            snapFile.getName(),
+            length,
+            Long.toHexString(peerLastZxid),
+            Long.toHexString(leaderLastZxid),
+            syncThrottler.getSyncInProgress(),
+            exemptFromThrottle ? "exempt" : "not exempt");
+        // plain sockets have no channel, in that case the file is copied
+        // through the socket's output stream
+        WritableByteChannel target = sock.getChannel() != null
+            ? sock.getChannel()
+            : Channels.newChannel(sock.getOutputStream());
+        long position = 0;
+        while (position < length) {
+            position += channel.transferTo(position, length - position, target);
+        }
+        oa.writeString("BenWasHere", "signature");
+        bufferedOutput.flush();
+    }
+
+    // visible for testing
+    File getSnapshotFile() {
+        return snapFile;
+    }
+
+    // visible for testing
+    static void setSnapSyncFromFile(boolean enabled) {
+        snapSyncFromFile = enabled;
+    }
+
+    // visible for testing
+    void closeSnapshotFile() {
+        if (snapFileInput != null) {
+            try {
+                snapFileInput.close();
+            } catch (IOException e) {
+                LOG.warn("Ignoring error closing snapshot file {}", snapFile, e);
+            }
+        }
+        snapFileInput = null;
+        snapFile = null;
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -21,8 +21,10 @@
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import javax.management.JMException;
 import org.apache.zookeeper.jmx.MBeanRegistry;
 import org.apache.zookeeper.server.DataTreeBean;
+import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ServerCnxn;
 import org.apache.zookeeper.server.SyncRequestProcessor;
 import org.apache.zookeeper.server.ZKDatabase;
@@ -52,6 +54,15 @@ public LearnerZooKeeperServer(FileTxnSnapLog logFactory, int tickTime, int minSe
      */
     public abstract Learner getLearner();
 
+    /**
+     * Process a request received from external Learner through the LearnerMaster
+     * These requests have already passed through validation and checks for
+     * session upgrade and can be injected into the middle of the pipeline.
+     *
+     * @param request received from external Learner
+     */
+    abstract void processObserverRequest(Request request);
+
     /**
      * Returns the current state of the session tracker. This is only currently
      * used by a Learner to build a ping response packet.
@@ -126,6 +137,16 @@ public void registerJMX(ZooKeeperServerBean serverBean, LocalPeerBean localPeerB
         }
     }
 
+    boolean registerJMX(LearnerHandlerBean handlerBean) {
+        try {
+            MBeanRegistry.getInstance().register(handlerBean, jmxServerBean);
+            return true;
+        } catch (JMException e) {
+            LOG.warn("Could not register connection", e);
+        }
+        return false;
+    }
+
     @Override
     protected void unregisterJMX() {
         // unregister from JMX
@@ -65,8 +65,16 @@ public class Observer extends Learner {
      */
     public static final String OBSERVER_ELECTION_DELAY_MS = "zookeeper.observer.election.DelayMs";
 
+    /**
+     * Host Observers on the observerMasterPort, relaying to them what this
+     * Observer is informed of. Default value is false.
+     */
+    public static final String OBSERVER_RELAY = "zookeeper.observer.relay";
+
     private static final long reconnectDelayMs;
 
+    private static volatile boolean relay;
+
     private static volatile long observerElectionDelayMs;
 
     static {
@@ -74,6 +82,8 @@ public class Observer extends Learner {
         LOG.info("{} = {}", OBSERVER_RECONNECT_DELAY_MS, reconnectDelayMs);
         observerElectionDelayMs = Long.getLong(OBSERVER_ELECTION_DELAY_MS, 200);
         LOG.info("{} = {}", OBSERVER_ELECTION_DELAY_MS , observerElectionDelayMs);
+        relay = Boolean.getBoolean(OBSERVER_RELAY);
+        LOG.info("{} = {}", OBSERVER_RELAY, relay);
     }
 
     /**
@@ -83,6 +93,8 @@ public class Observer extends Learner {
 
     private QuorumPeer.QuorumServer currentLearnerMaster = null;
 
+    ObserverMaster om;
+
     Observer(QuorumPeer self, ObserverZooKeeperServer observerZooKeeperServer) {
         this.self = self;
         this.zk = observerZooKeeperServer;
@@ -123,6 +135,12 @@ void observeLeader() throws Exception {
                 completedSync = true;
                 final long syncTime = Time.currentElapsedTime() - startTime;
                 ServerMetrics.getMetrics().OBSERVER_SYNC_TIME.add(syncTime);
+                if (relay && self.getObserverMasterPort() > 0) {
+                    LOG.info("Starting ObserverMaster");
+
+                    om = new ObserverMaster(self, (ObserverZooKeeperServer) zk, self.getObserverMasterPort());
+                    om.start();
+                }
                 QuorumPacket qp = new QuorumPacket();
                 while (this.isRunning() && nextLearnerMaster.get() == null) {
                     readPacket(qp);
@@ -136,6 +154,10 @@ void observeLeader() throws Exception {
                 pendingRevalidations.clear();
             }
         } finally {
+            if (om != null) {
+                om.stop();
+                om = null;
+            }
             currentLearnerMaster = null;
             zk.unregisterJMX(this);
             if (connectTime != 0) {
@@ -194,7 +216,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             LOG.error("Received an UPTODATE message after Observer started");
             break;
         case Leader.REVALIDATE:
-            revalidate(qp);
+            if (om == null || !om.revalidateLearnerSession(qp)) {
+                revalidate(qp);
+            }
             break;
         case Leader.SYNC:
             ((ObserverZooKeeperServer) zk).sync();
@@ -205,11 +229,14 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             hdr = logEntry.getHeader();
             txn = logEntry.getTxn();
             digest = logEntry.getDigest();
-            Request request = new Request(hdr.getClientId(), hdr.getCxid(), hdr.getType(), hdr, txn, 0);
+            Request request = new Request(hdr.getClientId(), hdr.getCxid(), hdr.getType(), hdr, txn, hdr.getZxid());
             request.logLatency(ServerMetrics.getMetrics().COMMIT_PROPAGATION_LATENCY);
             request.setTxnDigest(digest);
             ObserverZooKeeperServer obs = (ObserverZooKeeperServer) zk;
             obs.commitRequest(request);
+            if (om != null) {
+                om.informReceived(qp);
+            }
             break;
         case Leader.INFORMANDACTIVATE:
             // get new designated leader from (current) leader's message
@@ -224,7 +251,7 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             digest = logEntry.getDigest();
             QuorumVerifier qv = self.configFromString(new String(((SetDataTxn) txn).getData(), UTF_8));
 
-            request = new Request(hdr.getClientId(), hdr.getCxid(), hdr.getType(), hdr, txn, 0);
+            request = new Request(hdr.getClientId(), hdr.getCxid(), hdr.getType(), hdr, txn, hdr.getZxid());
             request.setTxnDigest(digest);
             obs = (ObserverZooKeeperServer) zk;
 
@@ -232,6 +259,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
 
             obs.commitRequest(request);
 
+            if (om != null) {
+                om.informReceived(qp);
+            }
             if (majorChange) {
                 throw new Exception("changes proposed in reconfig");
             }
@@ -307,5 +337,14 @@ public static void setObserverElectionDelayMs(long electionDelayMs) {
         LOG.info("{} = {}", OBSERVER_ELECTION_DELAY_MS, observerElectionDelayMs);
     }
 
+    public static boolean isRelay() {
+        return relay;
+    }
+
+    public static void setRelay(boolean enabled) {
+        relay = enabled;
+        LOG.info("{} = {}", OBSERVER_RELAY, relay);
+    }
+
 }
 
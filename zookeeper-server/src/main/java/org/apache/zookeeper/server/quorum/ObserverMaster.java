@@ -49,7 +49,9 @@
 
 /**
  * Used by Followers to host Observers. This reduces the network load on the Leader process by pushing
- * the responsibility for keeping Observers in sync off the leading peer.
+ * the responsibility for keeping Observers in sync off the leading peer. Observers may host Observers
+ * too, relaying what they are informed of, so that Observers can be chained in a tree which keeps
+ * the fan-out off the voting peers.
  *
  * It is expected that Observers will continue to perform the initial vetting of clients and requests.
  * Observers send the request to the follower where it is received by an ObserverMaster.
@@ -71,7 +73,7 @@ public class ObserverMaster extends LearnerMaster implements Runnable {
     private final AtomicLong followerCounter = new AtomicLong(-1);
 
     private QuorumPeer self;
-    private FollowerZooKeeperServer zks;
+    private LearnerZooKeeperServer zks;
     private int port;
 
     private Set<LearnerHandler> activeObservers = Collections.newSetFromMap(new ConcurrentHashMap<>());
@@ -145,7 +147,7 @@ public void run() {
         }
     };
 
-    ObserverMaster(QuorumPeer self, FollowerZooKeeperServer zks, int port) {
+    ObserverMaster(QuorumPeer self, LearnerZooKeeperServer zks, int port) {
         this.self = self;
         this.zks = zks;
         this.port = port;
@@ -353,7 +355,7 @@ public QuorumAuthServer getQuorumAuthServer() {
     }
 
     void proposalReceived(QuorumPacket qp) {
-        proposedPkts.add(new QuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+        proposedPkts.add(new SerializedQuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
     }
 
     private synchronized QuorumPacket removeProposedPacket(long zxid) {
@@ -413,6 +415,16 @@ synchronized void proposalCommitted(long zxid) {
         sendPacket(pkt);
     }
 
+    /**
+     * Relay an INFORM or INFORMANDACTIVATE packet received by an Observer.
+     */
+    synchronized void informReceived(QuorumPacket qp) {
+        // create a copy here as the qp object is reused by the Observer
+        QuorumPacket pkt = new SerializedQuorumPacket(qp.getType(), qp.getZxid(), qp.getData(), null);
+        cacheCommittedPacket(pkt);
+        sendPacket(pkt);
+    }
+
     synchronized void informAndActivate(long zxid, long suggestedLeaderId) {
         QuorumPacket pkt = removeProposedPacket(zxid);
         if (pkt == null) {
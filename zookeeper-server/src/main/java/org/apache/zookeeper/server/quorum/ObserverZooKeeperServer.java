@@ -80,6 +80,11 @@ public void commitRequest(Request request) {
         commitProcessor.commit(request);
     }
 
+    @Override
+    void processObserverRequest(Request request) {
+        ((ObserverRequestProcessor) firstProcessor).processRequest(request, false);
+    }
+
     /**
      * Set up the request processors for an Observer:
      * firstProcesor-&gt;commitProcessor-&gt;finalProcessor
@@ -119,6 +124,10 @@ public synchronized void sync() {
         }
 
         Request r = pendingSyncs.remove();
+        if (r instanceof LearnerSyncRequest) {
+            LearnerSyncRequest lsr = (LearnerSyncRequest) r;
+            lsr.fh.queuePacket(new QuorumPacket(Leader.SYNC, 0, null, null));
+        }
         commitProcessor.commit(r);
     }
 
@@ -2356,6 +2356,13 @@ private void updateRemotePeerMXBeans(Map<Long, QuorumServer> newMembers) {
         }
     }
 
+    /**
+     * The ids of the servers, voting members or relaying observers, an
+     * observer connects to, in order of preference. By default the voting
+     * members, in random order.
+     */
+    public static final String OBSERVER_LEARNER_MASTERS = "zookeeper.observer.learnerMasters";
+
     private ArrayList<QuorumServer> observerMasters = new ArrayList<>();
     private void updateObserverMasterList() {
         if (observerMasterPort <= 0) {
@@ -2363,14 +2370,36 @@ private void updateObserverMasterList() {
         }
         observerMasters.clear();
         StringBuilder sb = new StringBuilder();
-        for (QuorumServer server : quorumVerifier.getVotingMembers().values()) {
-            InetAddress address = server.addr.getReachableOrOne().getAddress();
-            InetSocketAddress addr = new InetSocketAddress(address, observerMasterPort);
-            observerMasters.add(new QuorumServer(server.id, addr));
-            sb.append(addr).append(",");
+        String learnerMasters = System.getProperty(OBSERVER_LEARNER_MASTERS, "");
+        for (String sid : learnerMasters.split(",")) {
+            if (sid.trim().isEmpty()) {
+                continue;
+            }
+            QuorumServer server = null;
+            try {
+                server = quorumVerifier.getAllMembers().get(Long.parseLong(sid.trim()));
+            } catch (NumberFormatException e) {
+                // logged below
+            }
+            if (server == null) {
+                LOG.warn("Ignoring unknown server {} in {}", sid, OBSERVER_LEARNER_MASTERS);
+            } else if (server.id != getMyId()) {
+                InetAddress address = server.addr.getReachableOrOne().getAddress();
+                InetSocketAddress addr = new InetSocketAddress(address, observerMasterPort);
+                observerMasters.add(new QuorumServer(server.id, addr));
+                sb.append(addr).append(",");
+            }
+        }
+        if (observerMasters.isEmpty()) {
+            for (QuorumServer server : quorumVerifier.getVotingMembers().values()) {
+                InetAddress address = server.addr.getReachableOrOne().getAddress();
+                InetSocketAddress addr = new InetSocketAddress(address, observerMasterPort);
+                observerMasters.add(new QuorumServer(server.id, addr));
+                sb.append(addr).append(",");
+            }
+            Collections.shuffle(observerMasters);
         }
         LOG.info("Updated learner master list to be {}", sb.toString());
-        Collections.shuffle(observerMasters);
         // Reset the internal index of the observerMaster when
         // the observerMaster List is refreshed
         nextObserverMaster = 0;
@@ -33,16 +33,25 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
 
     Learner learner;
 
+    // the highest zxid logged and not acked yet, in cumulative ack mode
+    private long unackedZxid = -1;
+
     SendAckRequestProcessor(Learner peer) {
         this.learner = peer;
     }
 
     public void processRequest(Request si) {
         if (si.type != OpCode.sync) {
+            si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
+            if (learner.isCumulativeAck()) {
+                // acked on flush, along with the rest of the batch
+                synchronized (this) {
+                    unackedZxid = Math.max(unackedZxid, si.getHdr().getZxid());
+                }
+                return;
+            }
             QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null);
             try {
-                si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
-
                 learner.writePacket(qp, false);
             } catch (IOException e) {
                 LOG.warn("Closing connection to leader, exception during packet send", e);
@@ -59,8 +68,15 @@ public void processRequest(Request si) {
     }
 
     public void flush() throws IOException {
+        QuorumPacket qp = null;
+        synchronized (this) {
+            if (unackedZxid >= 0) {
+                qp = new QuorumPacket(Leader.ACK, unackedZxid, null, null);
+                unackedZxid = -1;
+            }
+        }
         try {
-            learner.writePacket(null, true);
+            learner.writePacket(qp, true);
         } catch (IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
             try {
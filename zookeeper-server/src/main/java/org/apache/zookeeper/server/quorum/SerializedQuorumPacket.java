@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A QuorumPacket broadcast to many learners. It is serialized once, by the
+ * first LearnerHandler sending it, and the bytes are shared by all the
+ * others, which write them as they are instead of serializing the packet
+ * again. The packet must not be modified once it has been queued.
+ */
+class SerializedQuorumPacket extends QuorumPacket {
+
+    private volatile byte[] serialized;
+
+    SerializedQuorumPacket(int type, long zxid, byte[] data, List<Id> authinfo) {
+        super(type, zxid, data, authinfo);
+    }
+
+    /**
+     * Serialize the packet, concurrent callers may both do it, the result
+     * is the same.
+     */
+    byte[] getSerialized() throws IOException {
+        byte[] bytes = serialized;
+        if (bytes == null) {
+            bytes = ByteBufferOutputArchive.serialize(new QuorumPacket(getType(), getZxid(), getData(), getAuthinfo()));
+            serialized = bytes;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void serialize(OutputArchive a_, String tag) throws IOException {
+        if (!a_.writeSerialized(ByteBuffer.wrap(getSerialized()), tag)) {
+            super.serialize(a_, tag);
+        }
+    }
+
+}
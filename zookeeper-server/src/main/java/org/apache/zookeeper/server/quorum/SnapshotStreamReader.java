@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.zookeeper.server.ZooKeeperThread;
+
+/**
+ * Reads a snapshot file streamed by the leader on its own thread, so that
+ * receiving the next chunks from the socket overlaps with decoding the
+ * snapshot. Exactly length bytes are read from the leader.
+ */
+class SnapshotStreamReader extends InputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUED_CHUNKS = 64;
+    private static final byte[] EOF = new byte[0];
+
+    private final InputStream in;
+    private final long length;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final Thread reader;
+    private volatile IOException error;
+
+    private byte[] chunk;
+    private int pos;
+
+    SnapshotStreamReader(InputStream in, long length, long sid) {
+        this.in = in;
+        this.length = length;
+        this.reader = new ZooKeeperThread("SnapshotStreamReader-" + sid) {
+            @Override
+            public void run() {
+                readChunks();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readChunks() {
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+                int len = 0;
+                while (len < buf.length) {
+                    int n = in.read(buf, len, buf.length - len);
+                    if (n < 0) {
+                        throw new EOFException("Snapshot stream ended " + remaining + " bytes early");
+                    }
+                    len += n;
+                }
+                remaining -= len;
+                chunks.put(buf);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Interrupted reading the snapshot");
+        } finally {
+            try {
+                chunks.put(EOF);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (chunk == null || pos == chunk.length) {
+            if (chunk == EOF) {
+                if (error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted reading the snapshot");
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Consume the rest of the snapshot, so that the next packets can be read
+     * from the leader, and wait for the reading thread.
+     */
+    @Override
+    public void close() throws IOException {
+        while (nextChunk()) {
+            pos = chunk.length;
+        }
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted reading the snapshot");
+        }
+    }
+
+}
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.util;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * This incremental hash is used to keep track of the hash of
  * the data tree to that we can quickly validate that things
@@ -28,7 +30,10 @@
  */
 public class AdHash {
 
-    /* we use 64 bits so that we can be fast an efficient */
+    private static final AtomicLongFieldUpdater<AdHash> HASH = AtomicLongFieldUpdater.newUpdater(AdHash.class, "hash");
+
+    /* we use 64 bits so that we can be fast an efficient, the additions
+     * commute, so nodes may be changed concurrently */
     private volatile long hash;
 
     /**
@@ -38,7 +43,7 @@ public class AdHash {
      * @return the AdHash itself for chained operations
      */
     public AdHash addDigest(long digest) {
-        hash += digest;
+        HASH.addAndGet(this, digest);
         return this;
     }
 
@@ -49,7 +54,7 @@ public AdHash addDigest(long digest) {
      * @return the AdHash itself for chained operations
      */
     public AdHash removeDigest(long digest) {
-        hash -= digest;
+        HASH.addAndGet(this, -digest);
         return this;
     }
 
@@ -20,6 +20,7 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -36,6 +37,8 @@
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLogBlockInputStream;
+import org.apache.zookeeper.server.persistence.TxnLogCodec;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.apache.zookeeper.util.ServiceUtils;
 
@@ -83,6 +86,14 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                            + " txnlog format version "
                            + fhdr.getVersion());
 
+        TxnLogCodec codec = TxnLogCodec.read(fhdr, logStream);
+        if (codec != TxnLogCodec.NONE) {
+            // the txns are read from the uncompressed blocks, and the chopped
+            // log is not compressed
+            logStream = BinaryInputArchive.getArchive(new TxnLogBlockInputStream(new DataInputStream(is), codec));
+            fhdr.setVersion(FileTxnLog.VERSION);
+        }
+
         fhdr.serialize(choppedStream, "fileheader");
         int count = 0;
         boolean hasZxid = false;
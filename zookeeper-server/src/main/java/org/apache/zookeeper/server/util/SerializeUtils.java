@@ -18,13 +18,14 @@
 
 package org.apache.zookeeper.server.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import org.apache.jute.BinaryInputArchive;
+import java.util.Set;
+import org.apache.jute.ByteBufferInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -35,17 +36,18 @@
 import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.server.ZooTrace;
 import org.apache.zookeeper.server.persistence.Util;
-import org.apache.zookeeper.txn.CloseSessionTxn;
-import org.apache.zookeeper.txn.CreateContainerTxn;
-import org.apache.zookeeper.txn.CreateSessionTxn;
-import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CloseSessionTxnView;
+import org.apache.zookeeper.txn.CreateContainerTxnView;
+import org.apache.zookeeper.txn.CreateSessionTxnView;
+import org.apache.zookeeper.txn.CreateTTLTxnView;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.CreateTxnV0;
-import org.apache.zookeeper.txn.DeleteTxn;
-import org.apache.zookeeper.txn.ErrorTxn;
-import org.apache.zookeeper.txn.MultiTxn;
-import org.apache.zookeeper.txn.SetACLTxn;
-import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.CreateTxnView;
+import org.apache.zookeeper.txn.DeleteTxnView;
+import org.apache.zookeeper.txn.ErrorTxnView;
+import org.apache.zookeeper.txn.MultiTxnView;
+import org.apache.zookeeper.txn.SetACLTxnView;
+import org.apache.zookeeper.txn.SetDataTxnView;
 import org.apache.zookeeper.txn.TxnDigest;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
@@ -56,49 +58,70 @@ public class SerializeUtils {
     private static final Logger LOG = LoggerFactory.getLogger(SerializeUtils.class);
 
     public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
+        return deserializeTxn(ByteBuffer.wrap(txnBytes));
+    }
+
+    /**
+     * Deserialize a txn from the remaining bytes of the buffer, the position
+     * of the buffer is not changed. The txn is returned as a view that keeps
+     * a reference to the bytes of a heap buffer, so it's serialized again by
+     * copying them, and the buffer must not be reused afterwards. The bytes
+     * of a direct or mapped buffer are copied first, so the txn doesn't pin
+     * the buffer. The fields of the txn are decoded on first access, but
+     * their lengths are checked when the view wraps the bytes, so corrupt
+     * bytes fail here like they do with a BinaryInputArchive.
+     */
+    public static TxnLogEntry deserializeTxn(ByteBuffer txnBuffer) throws IOException {
         TxnHeader hdr = new TxnHeader();
-        final ByteArrayInputStream bais = new ByteArrayInputStream(txnBytes);
-        InputArchive ia = BinaryInputArchive.getArchive(bais);
+        final ByteBuffer bb;
+        if (txnBuffer.isDirect()) {
+            bb = ByteBuffer.allocate(txnBuffer.remaining());
+            bb.put(txnBuffer.duplicate());
+            bb.flip();
+        } else {
+            bb = txnBuffer.duplicate();
+        }
+        InputArchive ia = new ByteBufferInputArchive(bb);
 
         hdr.deserialize(ia, "hdr");
-        bais.mark(bais.available());
+        bb.mark();
         Record txn = null;
         switch (hdr.getType()) {
         case OpCode.createSession:
             // This isn't really an error txn; it just has the same
             // format. The error represents the timeout
-            txn = new CreateSessionTxn();
+            txn = new CreateSessionTxnView();
             break;
         case OpCode.closeSession:
             txn = ZooKeeperServer.isCloseSessionTxnEnabled()
-                    ?  new CloseSessionTxn() : null;
+                    ?  new CloseSessionTxnView() : null;
             break;
         case OpCode.create:
         case OpCode.create2:
-            txn = new CreateTxn();
+            txn = new CreateTxnView();
             break;
         case OpCode.createTTL:
-            txn = new CreateTTLTxn();
+            txn = new CreateTTLTxnView();
             break;
         case OpCode.createContainer:
-            txn = new CreateContainerTxn();
+            txn = new CreateContainerTxnView();
             break;
         case OpCode.delete:
         case OpCode.deleteContainer:
-            txn = new DeleteTxn();
+            txn = new DeleteTxnView();
             break;
         case OpCode.reconfig:
         case OpCode.setData:
-            txn = new SetDataTxn();
+            txn = new SetDataTxnView();
             break;
         case OpCode.setACL:
-            txn = new SetACLTxn();
+            txn = new SetACLTxnView();
             break;
         case OpCode.error:
-            txn = new ErrorTxn();
+            txn = new ErrorTxnView();
             break;
         case OpCode.multi:
-            txn = new MultiTxn();
+            txn = new MultiTxnView();
             break;
         default:
             throw new IOException("Unsupported Txn with type=" + hdr.getType());
@@ -110,7 +133,7 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
                 // perhaps this is a V0 Create
                 if (hdr.getType() == OpCode.create) {
                     CreateTxn create = (CreateTxn) txn;
-                    bais.reset();
+                    bb.reset();
                     CreateTxnV0 createv0 = new CreateTxnV0();
                     createv0.deserialize(ia, "txn");
                     // cool now make it V1. a -1 parentCVersion will
@@ -145,6 +168,31 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    /**
+     * Deserialize a snapshot written by {@link #serializeChunkedSnapshot},
+     * decoding the node chunks on the given number of threads.
+     */
+    public static void deserializeChunkedSnapshot(
+        DataTree dt, InputArchive ia, Map<Long, Integer> sessions, int threads) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeChunked(ia, "tree", threads);
+    }
+
+    /**
+     * Deserialize a delta snapshot written by {@link #serializeDeltaSnapshot},
+     * the nodes are returned to be applied by {@link DataTree#applyDeltas}.
+     */
+    public static DataTree.Delta deserializeDeltaSnapshot(
+        DataTree dt, InputArchive ia, Map<Long, Integer> sessions, long zxid) throws IOException {
+        deserializeSessions(ia, sessions);
+        return dt.deserializeDelta(ia, zxid);
+    }
+
+    private static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -158,17 +206,40 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Serialize a snapshot with the nodes split in independently decodable
+     * chunks of about chunkSize bytes.
+     */
+    public static void serializeChunkedSnapshot(
+        DataTree dt, OutputArchive oa, Map<Long, Integer> sessions, int chunkSize) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeChunked(oa, "tree", chunkSize);
+    }
+
+    /**
+     * Serialize a delta snapshot holding all the sessions and the current
+     * state of the given paths.
+     */
+    public static void serializeDeltaSnapshot(
+        DataTree dt, OutputArchive oa, Map<Long, Integer> sessions, Set<String> paths) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeDelta(oa, paths);
+    }
+
+    private static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
     public static byte[] serializeRequest(Request request) {
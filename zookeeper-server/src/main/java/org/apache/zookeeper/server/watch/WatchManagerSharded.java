@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A WatchManager whose watch tables are split in stripes by path hash, each
+ * stripe having its own lock, so that watches on different paths are added,
+ * triggered and removed concurrently.
+ *
+ * The watches of a path, and the paths of a watcher on that path, always
+ * live in the stripe of the path. Operations on a single path are atomic as
+ * with WatchManager, while triggering a recursive watch locks the stripes of
+ * the path and of its parents one after the other, and removing all the
+ * watches of a watcher visits every stripe.
+ *
+ * Unlike with WatchManager, a trigger is therefore not atomic across the
+ * stripes once recursive watches exist: a watch added on, or removed from,
+ * a parent path while the trigger is in progress may or may not see the
+ * event, and the watches of the path itself are already consumed by then.
+ * A watch added before the trigger started always sees it.
+ */
+public class WatchManagerSharded implements IWatchManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerSharded.class);
+
+    /**
+     * Number of stripes, rounded up to a power of two. Defaults to 4 times
+     * the number of cores.
+     */
+    public static final String ZOOKEEPER_WATCH_MANAGER_NUM_STRIPES = "zookeeper.watchManagerSharded.numStripes";
+
+    private static final class Stripe {
+
+        final Map<String, Set<Watcher>> watchTable = new HashMap<>();
+
+        final Map<Watcher, Set<String>> watch2Paths = new HashMap<>();
+
+    }
+
+    private final Stripe[] stripes;
+
+    private final WatcherModeManager watcherModeManager = new WatcherModeManager();
+
+    public WatchManagerSharded() {
+        this(Integer.getInteger(ZOOKEEPER_WATCH_MANAGER_NUM_STRIPES,
+                                4 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    WatchManagerSharded(int numStripes) {
+        int n = numStripes <= 1 ? 1 : Integer.highestOneBit(Math.min(numStripes, 1 << 16) - 1) << 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        LOG.info("{} = {}", ZOOKEEPER_WATCH_MANAGER_NUM_STRIPES, stripes.length);
+    }
+
+    private Stripe stripeOf(String path) {
+        int h = path.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Set<Watcher> watches : stripe.watchTable.values()) {
+                    result += watches.size();
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher) {
+        return addWatch(path, watcher, WatcherMode.DEFAULT_WATCHER_MODE);
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode) {
+        Stripe stripe = stripeOf(path);
+        synchronized (stripe) {
+            // removeWatcher(watcher) marks the cnxn stale before visiting the
+            // stripes, so either it sees this watch or the check below fails
+            if (isDeadWatcher(watcher)) {
+                LOG.debug("Ignoring addWatch with closed cnxn");
+                return false;
+            }
+
+            Set<Watcher> list = stripe.watchTable.get(path);
+            if (list == null) {
+                // don't waste memory if there are few watches on a node
+                // rehash when the 4th entry is added, doubling size thereafter
+                // seems like a good compromise
+                list = new HashSet<>(4);
+                stripe.watchTable.put(path, list);
+            }
+            list.add(watcher);
+
+            Set<String> paths = stripe.watch2Paths.get(watcher);
+            if (paths == null) {
+                paths = new HashSet<>();
+                stripe.watch2Paths.put(watcher, paths);
+            }
+
+            watcherModeManager.setWatcherMode(watcher, path, watcherMode);
+
+            return paths.add(path);
+        }
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Set<String> paths = stripe.watch2Paths.remove(watcher);
+                if (paths == null) {
+                    continue;
+                }
+                for (String p : paths) {
+                    Set<Watcher> list = stripe.watchTable.get(p);
+                    if (list != null) {
+                        list.remove(watcher);
+                        if (list.isEmpty()) {
+                            stripe.watchTable.remove(p);
+                        }
+                    }
+                    watcherModeManager.removeWatcher(watcher, p);
+                }
+            }
+        }
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet supress) {
+        WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path);
+        Set<Watcher> watchers = new HashSet<>();
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            boolean atParentPath = pathParentIterator.atParentPath();
+            Stripe stripe = stripeOf(localPath);
+            synchronized (stripe) {
+                Set<Watcher> thisWatchers = stripe.watchTable.get(localPath);
+                if (thisWatchers == null || thisWatchers.isEmpty()) {
+                    continue;
+                }
+                Iterator<Watcher> iterator = thisWatchers.iterator();
+                while (iterator.hasNext()) {
+                    Watcher watcher = iterator.next();
+                    WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, localPath);
+                    if (watcherMode.isRecursive()) {
+                        if (type != EventType.NodeChildrenChanged) {
+                            watchers.add(watcher);
+                        }
+                    } else if (!atParentPath) {
+                        watchers.add(watcher);
+                        if (!watcherMode.isPersistent()) {
+                            iterator.remove();
+                            Set<String> paths = stripe.watch2Paths.get(watcher);
+                            if (paths != null) {
+                                paths.remove(localPath);
+                                if (paths.isEmpty()) {
+                                    stripe.watch2Paths.remove(watcher);
+                                }
+                            }
+                        }
+                    }
+                }
+                if (thisWatchers.isEmpty()) {
+                    stripe.watchTable.remove(localPath);
+                }
+            }
+        }
+        if (watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK, "No watchers for " + path);
+            }
+            return null;
+        }
+
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+
+        switch (type) {
+            case NodeCreated:
+                ServerMetrics.getMetrics().NODE_CREATED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDeleted:
+                ServerMetrics.getMetrics().NODE_DELETED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDataChanged:
+                ServerMetrics.getMetrics().NODE_CHANGED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeChildrenChanged:
+                ServerMetrics.getMetrics().NODE_CHILDREN_WATCHER.add(watchers.size());
+                break;
+            default:
+                // Other types not logged.
+                break;
+        }
+
+        return new WatcherOrBitSet(watchers);
+    }
+
+    /**
+     * Merge the paths watched by each watcher across the stripes.
+     */
+    private Map<Watcher, Set<String>> watch2Paths() {
+        Map<Watcher, Set<String>> result = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry<Watcher, Set<String>> e : stripe.watch2Paths.entrySet()) {
+                    result.computeIfAbsent(e.getKey(), w -> new HashSet<>()).addAll(e.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy the watchers of each path across the stripes.
+     */
+    private Map<String, Set<Watcher>> watchTable() {
+        Map<String, Set<Watcher>> result = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry<String, Set<Watcher>> e : stripe.watchTable.entrySet()) {
+                    result.put(e.getKey(), new HashSet<>(e.getValue()));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        Map<Watcher, Set<String>> watch2Paths = watch2Paths();
+        int pathCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                pathCount += stripe.watchTable.size();
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watch2Paths.size()).append(" connections watching ").append(pathCount).append(" paths\n");
+
+        int total = 0;
+        for (Set<String> paths : watch2Paths.values()) {
+            total += paths.size();
+        }
+        sb.append("Total watches:").append(total);
+
+        return sb.toString();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, Set<Watcher>> e : watchTable().entrySet()) {
+                pwriter.println(e.getKey());
+                for (Watcher w : e.getValue()) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : watch2Paths().entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn) e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, path);
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            if (!pathParentIterator.atParentPath()) {
+                Stripe stripe = stripeOf(localPath);
+                synchronized (stripe) {
+                    if (stripe.watchTable.get(localPath) != null) {
+                        return true;    // at the leaf node, all watcher types match
+                    }
+                }
+            }
+            if (watcherMode.isRecursive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        Stripe stripe = stripeOf(path);
+        synchronized (stripe) {
+            Set<String> paths = stripe.watch2Paths.get(watcher);
+            if (paths == null || !paths.remove(path)) {
+                return false;
+            }
+            if (paths.isEmpty()) {
+                stripe.watch2Paths.remove(watcher);
+            }
+
+            Set<Watcher> list = stripe.watchTable.get(path);
+            if (list == null || !list.remove(watcher)) {
+                return false;
+            }
+
+            if (list.isEmpty()) {
+                stripe.watchTable.remove(path);
+            }
+
+            watcherModeManager.removeWatcher(watcher, path);
+
+            return true;
+        }
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<>();
+        for (Entry<Watcher, Set<String>> e : watch2Paths().entrySet()) {
+            Long id = ((ServerCnxn) e.getKey()).getSessionId();
+            id2paths.put(id, e.getValue());
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<>();
+        for (Entry<String, Set<Watcher>> e : watchTable().entrySet()) {
+            Set<Long> ids = new HashSet<>(e.getValue().size());
+            path2ids.put(e.getKey(), ids);
+            for (Watcher watcher : e.getValue()) {
+                ids.add(((ServerCnxn) watcher).getSessionId());
+            }
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        Map<Watcher, Set<String>> watch2Paths = watch2Paths();
+        int pathCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                pathCount += stripe.watchTable.size();
+            }
+        }
+        int totalWatches = 0;
+        for (Set<String> paths : watch2Paths.values()) {
+            totalWatches += paths.size();
+        }
+        return new WatchesSummary(watch2Paths.size(), pathCount, totalWatches);
+    }
+
+    @Override
+    public void shutdown() { /* do nothing */ }
+
+    @Override
+    public int getRecursiveWatchQty() {
+        return watcherModeManager.getRecursiveQty();
+    }
+
+    private PathParentIterator getPathParentIterator(String path) {
+        if (watcherModeManager.getRecursiveQty() == 0) {
+            return PathParentIterator.forPathOnly(path);
+        }
+        return PathParentIterator.forAll(path);
+    }
+}
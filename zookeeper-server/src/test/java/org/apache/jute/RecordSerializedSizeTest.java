@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+/**
+ * Checks the serializedSize() generated for every jute record against the
+ * number of bytes BinaryOutputArchive actually writes for it.
+ */
+public class RecordSerializedSizeTest {
+
+    private static final String[] STRINGS = {
+        "", "/a/b", "café", "日本語", "😀 emoji", "\u007f\u0080߿ࠀ￿"
+    };
+
+    // the only records generated with a view
+    private static final String TXN_PACKAGE = "org.apache.zookeeper.txn";
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testSerializedSizeMatchesBytesWritten() throws Exception {
+        List<Class<? extends Record>> recordClasses = findRecordClasses();
+        assertFalse("no generated records found", recordClasses.isEmpty());
+        for (Class<? extends Record> c : recordClasses) {
+            for (int i = 0; i < 20; i++) {
+                checkSize(newRecord(c, 0, false));
+            }
+            checkSize(newRecord(c, 0, true));
+        }
+    }
+
+    @Test
+    public void testViewSizeMatchesBytesWritten() throws Exception {
+        for (Class<? extends Record> c : findRecordClasses()) {
+            Class<? extends Record> viewClass = viewClassOf(c);
+            if (viewClass == null) {
+                continue;
+            }
+            for (int i = 0; i < 10; i++) {
+                byte[] bytes = serialize(newRecord(c, 0, i == 0));
+
+                Record view = viewClass.getConstructor(ByteBuffer.class).newInstance(ByteBuffer.wrap(bytes));
+                assertEquals(viewClass.getName(), bytes.length, view.serializedSize());
+                assertArrayEquals(viewClass.getName(), bytes, serialize(view));
+
+                // a modified view is sized from its decoded fields
+                Method setter = firstSetter(viewClass);
+                if (setter != null) {
+                    Record modified = viewClass.getConstructor(ByteBuffer.class).newInstance(ByteBuffer.wrap(bytes));
+                    setter.invoke(modified, valueOf(setter.getGenericParameterTypes()[0], 0, false));
+                    assertEquals(viewClass.getName(), serialize(modified).length, modified.serializedSize());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testViewsOnlyForTxnRecords() throws Exception {
+        for (Class<? extends Record> c : findRecordClasses()) {
+            Class<? extends Record> viewClass = viewClassOf(c);
+            if (!c.getPackage().getName().equals(TXN_PACKAGE)) {
+                assertNull(c.getName(), viewClass);
+                continue;
+            }
+            assertNotNull(c.getName(), viewClass);
+            assertTrue(viewClass.isAnnotationPresent(InterfaceAudience.Private.class));
+            assertTrue(RecordView.class.isAssignableFrom(viewClass));
+        }
+    }
+
+    private void checkSize(Record r) throws Exception {
+        byte[] bytes = serialize(r);
+        assertEquals(r.getClass().getName() + " " + r, bytes.length, r.serializedSize());
+        assertArrayEquals(r.getClass().getName(), bytes, ByteBufferOutputArchive.serialize(r));
+    }
+
+    private static byte[] serialize(Record r) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(r, "r");
+        return baos.toByteArray();
+    }
+
+    private Record newRecord(Class<?> c, int depth, boolean nulls) throws Exception {
+        Record r = (Record) c.getConstructor().newInstance();
+        for (Method m : c.getMethods()) {
+            if (isSetter(m)) {
+                m.invoke(r, valueOf(m.getGenericParameterTypes()[0], depth, nulls));
+            }
+        }
+        return r;
+    }
+
+    private Object valueOf(Type type, int depth, boolean nulls) throws Exception {
+        if (type instanceof ParameterizedType) {
+            if (nulls) {
+                return null;
+            }
+            Type elementType = ((ParameterizedType) type).getActualTypeArguments()[0];
+            List<Object> list = new ArrayList<>();
+            int n = depth > 1 ? 0 : random.nextInt(4);
+            for (int i = 0; i < n; i++) {
+                list.add(valueOf(elementType, depth + 1, false));
+            }
+            return list;
+        }
+        Class<?> c = (Class<?>) type;
+        if (c == int.class || c == Integer.class) {
+            return random.nextInt();
+        } else if (c == long.class || c == Long.class) {
+            return random.nextLong();
+        } else if (c == boolean.class || c == Boolean.class) {
+            return random.nextBoolean();
+        } else if (c == byte.class || c == Byte.class) {
+            return (byte) random.nextInt();
+        } else if (c == float.class || c == Float.class) {
+            return random.nextFloat();
+        } else if (c == double.class || c == Double.class) {
+            return random.nextDouble();
+        } else if (c == String.class) {
+            return nulls ? null : STRINGS[random.nextInt(STRINGS.length)];
+        } else if (c == byte[].class) {
+            if (nulls) {
+                return null;
+            }
+            byte[] b = new byte[random.nextInt(64)];
+            random.nextBytes(b);
+            return b;
+        } else if (Record.class.isAssignableFrom(c)) {
+            // nested records are always serialized, they can't be null
+            return newRecord(c, depth + 1, nulls);
+        }
+        throw new IllegalArgumentException("Unexpected field type " + type);
+    }
+
+    private static boolean isSetter(Method m) {
+        return m.getName().startsWith("set") && m.getParameterCount() == 1
+            && m.getReturnType() == void.class && !Modifier.isStatic(m.getModifiers());
+    }
+
+    private static Method firstSetter(Class<?> c) {
+        for (Method m : c.getDeclaredMethods()) {
+            if (isSetter(m) && Modifier.isPublic(m.getModifiers())) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the view of the record, null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Record> viewClassOf(Class<? extends Record> c) {
+        try {
+            return (Class<? extends Record>) Class.forName(c.getName() + "View");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the generated records, found next to Stat in a jar or a directory
+     */
+    private static List<Class<? extends Record>> findRecordClasses() throws Exception {
+        File location = new File(Stat.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        List<String> classFiles = new ArrayList<>();
+        if (location.isDirectory()) {
+            Path root = location.toPath();
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.forEach(p -> classFiles.add(root.relativize(p).toString().replace(File.separatorChar, '/')));
+            }
+        } else {
+            try (JarFile jar = new JarFile(location)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    classFiles.add(entries.nextElement().getName());
+                }
+            }
+        }
+
+        List<Class<? extends Record>> classes = new ArrayList<>();
+        for (String name : classFiles) {
+            if (name.startsWith("org/apache/zookeeper/") && name.endsWith(".class")
+                && !name.contains("$") && !name.endsWith("View.class")) {
+                Class<?> c = Class.forName(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                if (Record.class.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers())) {
+                    classes.add(c.asSubclass(Record.class));
+                }
+            }
+        }
+        return classes;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.RequestRecord;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Client writes batched into gathering writes, read by a server draining
+ * several requests per read event.
+ */
+public class ClientCnxnSocketNIOTest {
+
+    private static final int PIPELINED = 2000;
+
+    private File dataDir;
+    private RecordingServer zks;
+    private NIOServerCnxnFactory factory;
+    private ZooKeeper zk;
+
+    /**
+     * Records the xids of the requests received from clients, in the order
+     * they were read.
+     */
+    private static class RecordingServer extends ZooKeeperServer {
+
+        final List<Integer> xids = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingServer(File dataDir) throws IOException {
+            super(dataDir, dataDir, 2000);
+        }
+
+        @Override
+        public void processPacket(ServerCnxn cnxn, RequestHeader h, RequestRecord request) throws IOException {
+            if (h.getXid() > 0) {
+                xids.add(h.getXid());
+            }
+            super.processPacket(cnxn, h, request);
+        }
+
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("clientcnxnnio").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (zk != null) {
+            zk.close();
+        }
+        if (factory != null) {
+            factory.shutdown();
+        }
+        if (zks != null) {
+            zks.shutdown();
+        }
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_MAX_REQUESTS_PER_READ);
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    private void start(int maxRequestsPerRead, int writeBatchBytes, long writeLingerMs) throws Exception {
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_MAX_REQUESTS_PER_READ, Integer.toString(maxRequestsPerRead));
+        zks = new RecordingServer(dataDir);
+        factory = new NIOServerCnxnFactory();
+        factory.configure(new InetSocketAddress("127.0.0.1", 0), 10);
+        factory.startup(zks);
+
+        ZKClientConfig config = new ZKClientConfig();
+        config.setProperty(ZKClientConfig.ZOOKEEPER_CLIENT_CNXN_SOCKET, ClientCnxnSocketNIO.class.getName());
+        config.setProperty(ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_BATCH_BYTES, Integer.toString(writeBatchBytes));
+        config.setProperty(ZKClientConfig.ZOOKEEPER_CLIENT_WRITE_LINGER_MS, Long.toString(writeLingerMs));
+        CountDownLatch connected = new CountDownLatch(1);
+        zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 30000, event -> {
+            if (event.getState() == KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        }, config);
+        assertTrue("client connected", connected.await(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Send requests back to back without waiting for their responses, and
+     * check that they are all answered, in the order they were sent.
+     */
+    private void assertPipelinedRequestsAnswered() throws Exception {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 7);
+        zk.create("/pipelined", data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zks.xids.clear();
+
+        List<Integer> answered = Collections.synchronizedList(new ArrayList<>());
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(PIPELINED);
+        for (int i = 0; i < PIPELINED; i++) {
+            if (i % 2 == 0) {
+                zk.setData("/pipelined", data, -1, (rc, path, ctx, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue()) {
+                        errors.add("setData " + ctx + " " + rc);
+                    }
+                    answered.add((Integer) ctx);
+                    done.countDown();
+                }, i);
+            } else {
+                zk.getData("/pipelined", false, (rc, path, ctx, read, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue() || !Arrays.equals(data, read)) {
+                        errors.add("getData " + ctx + " " + rc);
+                    }
+                    answered.add((Integer) ctx);
+                    done.countDown();
+                }, i);
+            }
+        }
+        assertTrue("all requests answered", done.await(60, TimeUnit.SECONDS));
+        // a response out of order would have closed the connection
+        assertEquals(Collections.emptyList(), errors);
+        for (int i = 0; i < PIPELINED; i++) {
+            assertEquals(i, (int) answered.get(i));
+        }
+        assertEquals(PIPELINED / 2, zk.exists("/pipelined", false).getVersion());
+
+        // the server read every request, in xid order
+        List<Integer> xids = new ArrayList<>(zks.xids);
+        assertTrue(xids.size() >= PIPELINED);
+        for (int i = 1; i < xids.size(); i++) {
+            assertTrue("xid " + xids.get(i) + " read after " + xids.get(i - 1), xids.get(i) > xids.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testBatchedWritesKeepXidOrder() throws Exception {
+        start(1, 64 * 1024, 5);
+        assertPipelinedRequestsAnswered();
+    }
+
+    @Test
+    public void testBatchedWritesWithoutLinger() throws Exception {
+        start(1, 4 * 1024, 0);
+        assertPipelinedRequestsAnswered();
+    }
+
+    /**
+     * A batch that never fills up is written once its linger time is over.
+     */
+    @Test
+    public void testLingerFlushesPartialBatch() throws Exception {
+        long lingerMs = 500;
+        start(1, 1024 * 1024, lingerMs);
+        byte[] data = "partial".getBytes();
+        zk.create("/linger", data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        for (int i = 0; i < 3; i++) {
+            long start = Time.currentElapsedTime();
+            assertArrayEquals(data, zk.getData("/linger", false, null));
+            long elapsed = Time.currentElapsedTime() - start;
+            assertTrue("answered after " + elapsed + " ms", elapsed >= lingerMs / 2);
+        }
+    }
+
+    @Test
+    public void testServerDrainsCappedReads() throws Exception {
+        // more requests arrive in a read than are processed per read event
+        start(4, 64 * 1024, 5);
+        assertPipelinedRequestsAnswered();
+    }
+
+    @Test
+    public void testServerDrainsUnbatchedWrites() throws Exception {
+        start(64, 0, 0);
+        assertPipelinedRequestsAnswered();
+    }
+
+}
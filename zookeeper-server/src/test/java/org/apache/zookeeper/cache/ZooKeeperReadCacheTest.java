@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZooKeeperReadCacheTest {
+
+    private static final String BASE = "/base";
+
+    private ZooKeeper zk;
+    private Watcher watcher;
+    private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> children = new ConcurrentHashMap<>();
+    private final Map<String, Integer> versions = new ConcurrentHashMap<>();
+    // when set, reads of the path wait on the latch after signaling the other one
+    private final AtomicReference<String> blockedPath = new AtomicReference<>();
+    private final CountDownLatch inRead = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private Stat statOf(String path) {
+        Stat stat = new Stat();
+        stat.setVersion(versions.getOrDefault(path, 0));
+        stat.setMzxid(100 + stat.getVersion());
+        byte[] d = data.get(path);
+        stat.setDataLength(d == null ? 0 : d.length);
+        return stat;
+    }
+
+    private void blockIfNeeded(String path) throws InterruptedException {
+        if (path.equals(blockedPath.get())) {
+            inRead.countDown();
+            assertTrue(release.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        zk = mock(ZooKeeper.class);
+        when(zk.getState()).thenReturn(ZooKeeper.States.CONNECTED);
+        doAnswer(invocation -> {
+            watcher = invocation.getArgument(1);
+            return null;
+        }).when(zk).addWatch(eq(BASE), any(Watcher.class), eq(AddWatchMode.PERSISTENT_RECURSIVE));
+        when(zk.getData(anyString(), anyBoolean(), any())).thenAnswer(invocation -> {
+            String path = invocation.getArgument(0);
+            Stat stat = statOf(path);
+            byte[] d = data.get(path);
+            blockIfNeeded(path);
+            Stat out = invocation.getArgument(2);
+            if (out != null) {
+                out.setVersion(stat.getVersion());
+                out.setMzxid(stat.getMzxid());
+                out.setDataLength(stat.getDataLength());
+            }
+            return d;
+        });
+        when(zk.getChildren(anyString(), anyBoolean(), any())).thenAnswer(invocation -> {
+            String path = invocation.getArgument(0);
+            List<String> c = new ArrayList<>(children.get(path));
+            Stat out = invocation.getArgument(2);
+            if (out != null) {
+                out.setVersion(versions.getOrDefault(path, 0));
+                out.setNumChildren(c.size());
+            }
+            return c;
+        });
+        when(zk.exists(anyString(), anyBoolean())).thenAnswer(invocation -> statOf(invocation.getArgument(0)));
+    }
+
+    private ZooKeeperReadCache startCache(long maxBytes) throws Exception {
+        ZooKeeperReadCache cache = new ZooKeeperReadCache(zk, BASE, maxBytes);
+        cache.start();
+        return cache;
+    }
+
+    private void setData(String path, String value) {
+        data.put(path, value.getBytes());
+        versions.merge(path, 1, Integer::sum);
+    }
+
+    private void fire(EventType type, String path) {
+        watcher.process(new WatchedEvent(type, KeeperState.SyncConnected, path));
+    }
+
+    private void fire(KeeperState state) {
+        watcher.process(new WatchedEvent(EventType.None, state, null));
+    }
+
+    @Test
+    public void testHitAfterMiss() throws Exception {
+        setData("/base/a", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+
+        Stat stat = new Stat();
+        assertArrayEquals("v1".getBytes(), cache.getData("/base/a", stat));
+        assertEquals(1, stat.getVersion());
+        stat = new Stat();
+        assertArrayEquals("v1".getBytes(), cache.getData("/base/a", stat));
+        assertEquals(1, stat.getVersion());
+        assertEquals(2, stat.getDataLength());
+
+        verify(zk, times(1)).getData(eq("/base/a"), eq(false), any());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testPathsOutsideBasePassedThrough() throws Exception {
+        setData("/other", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+
+        cache.getData("/other", null);
+        cache.getData("/other", null);
+        cache.getData("/basement", null);
+
+        verify(zk, times(2)).getData(eq("/other"), eq(false), any());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testDataChangedInvalidates() throws Exception {
+        setData("/base/a", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+        cache.getData("/base/a", null);
+
+        setData("/base/a", "v2");
+        fire(EventType.NodeDataChanged, "/base/a");
+
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getInvalidations());
+        assertArrayEquals("v2".getBytes(), cache.getData("/base/a", null));
+    }
+
+    @Test
+    public void testCreatedAndDeletedInvalidateParent() throws Exception {
+        children.put(BASE, Arrays.asList("a"));
+        ZooKeeperReadCache cache = startCache(1 << 20);
+        assertEquals(Arrays.asList("a"), cache.getChildren(BASE, null));
+
+        children.put(BASE, Arrays.asList("a", "b"));
+        versions.merge(BASE, 1, Integer::sum);
+        fire(EventType.NodeCreated, "/base/b");
+        assertEquals(Arrays.asList("a", "b"), cache.getChildren(BASE, null));
+
+        children.put(BASE, Arrays.asList("b"));
+        versions.merge(BASE, 1, Integer::sum);
+        fire(EventType.NodeDeleted, "/base/a");
+        assertEquals(Arrays.asList("b"), cache.getChildren(BASE, null));
+
+        verify(zk, times(3)).getChildren(eq(BASE), eq(false), any());
+    }
+
+    private Thread readInBackground(ZooKeeperReadCache cache, String path, AtomicReference<byte[]> result) {
+        blockedPath.set(path);
+        Thread reader = new Thread(() -> {
+            try {
+                result.set(cache.getData(path, null));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        return reader;
+    }
+
+    @Test
+    public void testReadInFlightIsCachedWhenOtherPathInvalidated() throws Exception {
+        setData("/base/a", "v1");
+        setData("/base/b", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+
+        AtomicReference<byte[]> result = new AtomicReference<>();
+        Thread reader = readInBackground(cache, "/base/a", result);
+        assertTrue(inRead.await(30, TimeUnit.SECONDS));
+        // an unrelated change doesn't stop the read in flight from being cached
+        fire(EventType.NodeDataChanged, "/base/b");
+        release.countDown();
+        reader.join();
+        blockedPath.set(null);
+
+        assertArrayEquals("v1".getBytes(), result.get());
+        cache.getData("/base/a", null);
+        verify(zk, times(1)).getData(eq("/base/a"), eq(false), any());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testReadInFlightIsNotCachedWhenInvalidated() throws Exception {
+        setData("/base/a", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+
+        AtomicReference<byte[]> result = new AtomicReference<>();
+        Thread reader = readInBackground(cache, "/base/a", result);
+        assertTrue(inRead.await(30, TimeUnit.SECONDS));
+        // the read in flight may have been served before the change
+        setData("/base/a", "v2");
+        fire(EventType.NodeDataChanged, "/base/a");
+        release.countDown();
+        reader.join();
+        blockedPath.set(null);
+
+        assertArrayEquals("v1".getBytes(), result.get());
+        assertEquals(0, cache.getSize());
+        assertArrayEquals("v2".getBytes(), cache.getData("/base/a", null));
+        assertEquals(0, cache.getHits());
+        // the next read is cached again, the in flight reads are done
+        assertArrayEquals("v2".getBytes(), cache.getData("/base/a", null));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testRevalidationAfterReconnection() throws Exception {
+        setData("/base/a", "v1");
+        setData("/base/b", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+        cache.getData("/base/a", null);
+        cache.getData("/base/b", null);
+
+        fire(KeeperState.Disconnected);
+        when(zk.getState()).thenReturn(ZooKeeper.States.CONNECTING);
+        // reads are passed through while disconnected
+        cache.getData("/base/a", null);
+        assertEquals(0, cache.getHits());
+
+        // /base/b changed while disconnected, the watch didn't report it
+        setData("/base/b", "v2");
+        when(zk.getState()).thenReturn(ZooKeeper.States.CONNECTED);
+        fire(KeeperState.SyncConnected);
+
+        assertArrayEquals("v1".getBytes(), cache.getData("/base/a", null));
+        assertEquals(1, cache.getRevalidations());
+        assertArrayEquals("v2".getBytes(), cache.getData("/base/b", null));
+        assertEquals(1, cache.getRevalidations());
+        verify(zk, times(2)).getData(eq("/base/a"), eq(false), any());
+        verify(zk, times(2)).getData(eq("/base/b"), eq(false), any());
+
+        // both entries are current again
+        cache.getData("/base/a", null);
+        cache.getData("/base/b", null);
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    public void testEvictionWithinBound() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            data.put("/base/n" + i, new byte[1000]);
+        }
+        ZooKeeperReadCache cache = startCache(4000);
+        for (int i = 0; i < 10; i++) {
+            cache.getData("/base/n" + i, null);
+            assertTrue(cache.getBytes() <= 4000);
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(10 - cache.getEvictions(), cache.getSize());
+        // the most recently read entry is kept
+        cache.getData("/base/n9", null);
+        verify(zk, times(1)).getData(eq("/base/n9"), eq(false), any());
+    }
+
+    @Test
+    public void testExpirationAndCloseClear() throws Exception {
+        setData("/base/a", "v1");
+        ZooKeeperReadCache cache = startCache(1 << 20);
+        cache.getData("/base/a", null);
+
+        fire(KeeperState.Expired);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+
+        fire(KeeperState.SyncConnected);
+        cache.getData("/base/a", null);
+        assertEquals(1, cache.getSize());
+        cache.close();
+        assertEquals(0, cache.getSize());
+        verify(zk).removeWatches(eq(BASE), eq(watcher), eq(Watcher.WatcherType.Any), eq(false));
+
+        // passed through once closed
+        cache.getData("/base/a", null);
+        assertEquals(0, cache.getSize());
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPacket;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+
+public class CommittedLogTest {
+
+    private static Proposal proposal(long zxid, int dataLength) {
+        Proposal p = new Proposal();
+        p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, new byte[dataLength], null);
+        return p;
+    }
+
+    private static Proposal proposal(long zxid) {
+        return proposal(zxid, 10);
+    }
+
+    private static List<Long> zxids(Iterator<Proposal> it) {
+        List<Long> zxids = new ArrayList<>();
+        while (it.hasNext()) {
+            zxids.add(it.next().packet.getZxid());
+        }
+        return zxids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> zxids = new ArrayList<>();
+        for (long zxid = from; zxid <= to; zxid++) {
+            zxids.add(zxid);
+        }
+        return zxids;
+    }
+
+    private static Proposal at(CommittedLog log, int index) {
+        Iterator<Proposal> it = log.iterator();
+        for (int i = 0; i < index; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    @Test
+    public void testIndexOfOnWrappedRing() {
+        CommittedLog log = new CommittedLog();
+        for (long zxid = 1; zxid <= 12; zxid++) {
+            log.add(proposal(zxid));
+        }
+        for (int i = 0; i < 10; i++) {
+            log.remove();
+        }
+        // 11 and 12 sit at the end of the array, 13 to 24 wrap to its start
+        for (long zxid = 13; zxid <= 24; zxid++) {
+            log.add(proposal(zxid));
+        }
+        assertEquals(14, log.size());
+        for (long zxid = 11; zxid <= 24; zxid++) {
+            assertEquals(zxid - 11, log.indexOf(zxid));
+            assertEquals(zxid, log.get(zxid).packet.getZxid());
+        }
+        assertEquals(0, log.indexOf(5));
+        assertNull(log.get(5));
+        assertEquals(14, log.indexOf(25));
+        assertNull(log.get(25));
+        assertEquals(range(11, 24), zxids(log.iterator()));
+        assertEquals(11, log.peek().packet.getZxid());
+        assertEquals(24, log.peekLast().packet.getZxid());
+
+        // growing while wrapped keeps the order
+        for (long zxid = 25; zxid <= 40; zxid++) {
+            log.add(proposal(zxid));
+        }
+        assertEquals(range(11, 40), zxids(log.iterator()));
+        for (long zxid = 11; zxid <= 40; zxid++) {
+            assertEquals(zxid - 11, log.indexOf(zxid));
+        }
+    }
+
+    @Test
+    public void testZxidGapsAcrossEpochs() {
+        CommittedLog log = new CommittedLog();
+        for (long counter = 1; counter <= 5; counter++) {
+            log.add(proposal(ZxidUtils.makeZxid(1, counter)));
+        }
+        // the counter restarts at 1 in the new epoch
+        for (long counter = 1; counter <= 5; counter++) {
+            log.add(proposal(ZxidUtils.makeZxid(2, counter)));
+        }
+        for (long counter = 1; counter <= 5; counter++) {
+            assertEquals(counter - 1, log.indexOf(ZxidUtils.makeZxid(1, counter)));
+            assertEquals(counter + 4, log.indexOf(ZxidUtils.makeZxid(2, counter)));
+            assertSame(log.get(ZxidUtils.makeZxid(2, counter)), at(log, (int) counter + 4));
+        }
+        // a zxid in the gap is not in the log, the next one is the first of the new epoch
+        assertNull(log.get(ZxidUtils.makeZxid(1, 6)));
+        assertEquals(5, log.indexOf(ZxidUtils.makeZxid(1, 6)));
+        assertNull(log.get(ZxidUtils.makeZxid(2, 0)));
+        assertEquals(5, log.indexOf(ZxidUtils.makeZxid(2, 0)));
+        assertEquals(10, log.indexOf(ZxidUtils.makeZxid(3, 1)));
+    }
+
+    @Test
+    public void testZxidGapWithinRange() {
+        CommittedLog log = new CommittedLog();
+        log.add(proposal(1));
+        log.add(proposal(2));
+        log.add(proposal(4));
+        log.add(proposal(5));
+        // the distance to 4 points at 5, so it has to be searched
+        assertEquals(2, log.indexOf(4));
+        assertEquals(4, log.get(4).packet.getZxid());
+        assertEquals(2, log.indexOf(3));
+        assertNull(log.get(3));
+        assertEquals(3, log.indexOf(5));
+    }
+
+    @Test
+    public void testIteratorFromBoundaries() {
+        CommittedLog log = new CommittedLog();
+        assertFalse(log.iteratorFrom(1).hasNext());
+
+        for (long zxid = 10; zxid <= 20; zxid++) {
+            log.add(proposal(zxid));
+        }
+        // before the first proposal
+        assertEquals(range(10, 20), zxids(log.iteratorFrom(1)));
+        // at the first proposal, there is none before it
+        assertEquals(range(10, 20), zxids(log.iteratorFrom(10)));
+        // one proposal before the given zxid
+        assertEquals(range(10, 20), zxids(log.iteratorFrom(11)));
+        assertEquals(range(14, 20), zxids(log.iteratorFrom(15)));
+        assertEquals(range(19, 20), zxids(log.iteratorFrom(20)));
+        // past the last proposal
+        assertEquals(range(20, 20), zxids(log.iteratorFrom(21)));
+        assertEquals(range(20, 20), zxids(log.iteratorFrom(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testBytes() {
+        CommittedLog log = new CommittedLog();
+        log.add(proposal(1, 100));
+        log.add(proposal(2, 0));
+        Proposal noData = proposal(3);
+        noData.packet.setData(null);
+        log.add(noData);
+        assertEquals(3 * CommittedLog.PROPOSAL_OVERHEAD + 100, log.getBytes());
+        log.remove();
+        assertEquals(2 * CommittedLog.PROPOSAL_OVERHEAD, log.getBytes());
+        log.clear();
+        assertEquals(0, log.getBytes());
+        assertTrue(log.isEmpty());
+    }
+
+    private static Request request(long zxid, int dataLength) {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 0, OpCode.setData);
+        SetDataTxn txn = new SetDataTxn("/foo", new byte[dataLength], 1);
+        return new Request(0, hdr.getCxid(), hdr.getType(), hdr, txn, zxid);
+    }
+
+    @Test
+    public void testByteEvictionWithProposalOverLimit() {
+        ZKDatabase db = new ZKDatabase(null);
+        db.commitLogBytes = 4096;
+        for (long zxid = 1; zxid <= 5; zxid++) {
+            db.addCommittedProposal(request(zxid, 100));
+        }
+        assertEquals(5, db.getCommittedLog().size());
+        assertTrue(db.getCommittedLogBytes() <= db.commitLogBytes);
+
+        // larger than the whole limit, it evicts everything else but is kept
+        db.addCommittedProposal(request(6, 8192));
+        assertEquals(1, db.getCommittedLog().size());
+        assertTrue(db.getCommittedLogBytes() > db.commitLogBytes);
+        assertEquals(6, db.getminCommittedLog());
+        assertEquals(6, db.getmaxCommittedLog());
+
+        // and is evicted by the next one
+        db.addCommittedProposal(request(7, 100));
+        assertEquals(1, db.getCommittedLog().size());
+        assertTrue(db.getCommittedLogBytes() <= db.commitLogBytes);
+        assertEquals(7, db.getminCommittedLog());
+        assertEquals(7, db.getmaxCommittedLog());
+        assertEquals(7, db.getCommittedLogFrom(7).next().packet.getZxid());
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.CompactNodeHashMap.PathKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The compact data tree must behave exactly like the default one.
+ */
+public class CompactNodeHashMapTest {
+
+    private static final String[] PATHS = {
+        "/a", "/a/b", "/a/b/c", "/a/b/d", "/a/c", "/a/c/b", "/b", "/b/a", "/b/a/b", "/ab", "/ab/c", "/c"
+    };
+
+    private final boolean compactDataTreeEnabled = ZooKeeperServer.isCompactDataTreeEnabled();
+    private final boolean digestEnabled = ZooKeeperServer.isDigestEnabled();
+
+    @Before
+    public void setUp() {
+        ZooKeeperServer.setDigestEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        ZooKeeperServer.setCompactDataTreeEnabled(compactDataTreeEnabled);
+        ZooKeeperServer.setDigestEnabled(digestEnabled);
+    }
+
+    private static DataTree newTree(boolean compact) {
+        ZooKeeperServer.setCompactDataTreeEnabled(compact);
+        return new DataTree();
+    }
+
+    private static DataNode node(long zxid) {
+        StatPersisted stat = new StatPersisted();
+        stat.setCzxid(zxid);
+        stat.setMzxid(zxid);
+        return new DataNode(("data" + zxid).getBytes(), 0L, stat);
+    }
+
+    @Test
+    public void testLookupKeyEqualsBothWays() {
+        PathKey root = new PathKey(null, "", 0);
+        PathKey a = new PathKey(root, "a", "/a".hashCode());
+        PathKey ab = new PathKey(a, "b", "/a/b".hashCode());
+        for (PathKey key : new PathKey[] {root, a, ab}) {
+            PathKey lookup = PathKey.lookup(key.toPath());
+            assertEquals(key.hashCode(), lookup.hashCode());
+            assertEquals(key, lookup);
+            assertEquals(lookup, key);
+            assertEquals(lookup, PathKey.lookup(key.toPath()));
+        }
+        PathKey other = PathKey.lookup("/a/c");
+        assertNotEquals(ab, other);
+        assertNotEquals(other, ab);
+        // same segments, different separators
+        PathKey unrooted = new PathKey(root, "a", "a".hashCode(), true);
+        assertNotEquals(a, PathKey.lookup("a"));
+        assertEquals(unrooted, PathKey.lookup("a"));
+        assertEquals(PathKey.lookup("a"), unrooted);
+        assertNotEquals(unrooted, PathKey.lookup("/a"));
+        assertNotEquals(PathKey.lookup("/a"), unrooted);
+    }
+
+    @Test
+    public void testMapMatchesNodeHashMapImpl() {
+        ZooKeeperServer.setCompactDataTreeEnabled(true);
+        NodeHashMap compact = new CompactNodeHashMap(new DigestCalculator());
+        NodeHashMap plain = new NodeHashMapImpl(new DigestCalculator());
+        Random random = new Random(42);
+        // also the paths without a parent in the map or without any '/'
+        List<String> paths = new ArrayList<>();
+        Collections.addAll(paths, PATHS);
+        Collections.addAll(paths, "", "/x/y/z", "x", "/zookeeper/quota");
+        for (int i = 0; i < 2000; i++) {
+            String path = paths.get(random.nextInt(paths.size()));
+            if (random.nextInt(3) == 0) {
+                DataNode removed = plain.remove(path);
+                DataNode compactRemoved = compact.remove(path);
+                assertEquals(removed == null, compactRemoved == null);
+            } else {
+                DataNode replaced = plain.put(path, node(i));
+                DataNode compactReplaced = compact.put(path, node(i));
+                assertEquals(replaced == null, compactReplaced == null);
+            }
+            assertEquals(plain.size(), compact.size());
+            assertEquals(plain.getDigest(), compact.getDigest());
+        }
+        Map<String, DataNode> entries = new HashMap<>();
+        for (Map.Entry<String, DataNode> entry : compact.entrySet()) {
+            assertNull(entries.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(plain.size(), entries.size());
+        for (String path : paths) {
+            DataNode expected = plain.get(path);
+            if (expected == null) {
+                assertNull(compact.get(path));
+                assertFalse(entries.containsKey(path));
+            } else {
+                assertArrayEquals(expected.getData(), compact.get(path).getData());
+                assertSame(compact.get(path), entries.get(path));
+            }
+        }
+    }
+
+    /**
+     * Apply the same random changes to both trees and compare them.
+     */
+    @Test
+    public void testTreeMatchesDefaultTree() throws Exception {
+        DataTree plain = newTree(false);
+        DataTree compact = newTree(true);
+        Random random = new Random(7);
+        // the flag also selects the children set of the new nodes
+        for (int i = 1; i <= 500; i++) {
+            String path = PATHS[random.nextInt(PATHS.length)];
+            byte[] data = ("data" + i).getBytes();
+            int op = random.nextInt(3);
+            ZooKeeperServer.setCompactDataTreeEnabled(false);
+            String error = apply(plain, op, path, data, i);
+            ZooKeeperServer.setCompactDataTreeEnabled(true);
+            assertEquals(error, apply(compact, op, path, data, i));
+        }
+        assertTreesEqual(plain, compact);
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        DataTree compact = newTree(true);
+        for (int i = 0; i < PATHS.length; i++) {
+            compact.createNode(PATHS[i], ("data" + i).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, i + 1, i + 1);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compact.serialize(BinaryOutputArchive.getArchive(out), "tree");
+
+        DataTree plain = newTree(false);
+        plain.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(out.toByteArray())), "tree");
+        DataTree reloaded = newTree(true);
+        reloaded.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(out.toByteArray())), "tree");
+        assertTreesEqual(plain, reloaded);
+        assertEquals(compact.getTreeDigest(), reloaded.getTreeDigest());
+    }
+
+    private static String apply(DataTree tree, int op, String path, byte[] data, long zxid) {
+        try {
+            switch (op) {
+            case 0:
+                tree.createNode(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, zxid, zxid);
+                break;
+            case 1:
+                if (tree.getNode(path) != null && !tree.getNode(path).getChildren().isEmpty()) {
+                    return "not empty";
+                }
+                tree.deleteNode(path, zxid);
+                break;
+            default:
+                tree.setData(path, data, -1, zxid, zxid);
+                break;
+            }
+            return null;
+        } catch (KeeperException e) {
+            return e.code().name();
+        }
+    }
+
+    private static void assertTreesEqual(DataTree expected, DataTree actual) throws Exception {
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        assertEquals(expected.approximateDataSize(), actual.approximateDataSize());
+        for (String path : PATHS) {
+            if (expected.getNode(path) == null) {
+                assertNull(path, actual.getNode(path));
+                continue;
+            }
+            Stat expectedStat = new Stat();
+            Stat actualStat = new Stat();
+            assertArrayEquals(path, expected.getData(path, expectedStat, null), actual.getData(path, actualStat, null));
+            assertEquals(path, expectedStat, actualStat);
+            List<String> expectedChildren = expected.getChildren(path, null, null);
+            Collections.sort(expectedChildren);
+            assertEquals(path, expectedChildren, actual.getChildren(path, null, null));
+        }
+        assertTrue(actual.getNode("/").getChildren().contains("zookeeper"));
+    }
+
+}
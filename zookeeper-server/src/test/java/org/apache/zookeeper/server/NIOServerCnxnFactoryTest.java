@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.metric.SimpleCounterSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Clients accepted and served through several listen sockets sharing the
+ * client port, or through a single one where SO_REUSEPORT isn't available.
+ */
+public class NIOServerCnxnFactoryTest {
+
+    private static final int SHARDS = 2;
+    private static final int CLIENTS = 24;
+
+    private File dataDir;
+    private ZooKeeperServer zks;
+    private NIOServerCnxnFactory factory;
+    private final List<ZooKeeper> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("nioshards").toFile();
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_SHARDS, Integer.toString(SHARDS));
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS, "1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ZooKeeper zk : clients) {
+            zk.close();
+        }
+        if (factory != null) {
+            factory.shutdown();
+        }
+        if (zks != null) {
+            zks.shutdown();
+        }
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_SHARDS);
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS);
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    private void start(NIOServerCnxnFactory factory) throws Exception {
+        this.factory = factory;
+        zks = new ZooKeeperServer(dataDir, dataDir, 2000);
+        factory.configure(new InetSocketAddress("127.0.0.1", 0), 0);
+        factory.startup(zks);
+    }
+
+    private ZooKeeper connect() throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 30000, event -> {
+            if (event.getState() == KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        clients.add(zk);
+        assertTrue("client connected", connected.await(30, TimeUnit.SECONDS));
+        return zk;
+    }
+
+    /**
+     * Connect clients which each write a node and read back the nodes of
+     * every client connected so far.
+     */
+    private void assertClientsServed() throws Exception {
+        for (int i = 0; i < CLIENTS; i++) {
+            ZooKeeper zk = connect();
+            zk.create("/client" + i, new byte[] {(byte) i}, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            for (int j = 0; j <= i; j++) {
+                assertArrayEquals(new byte[] {(byte) j}, zk.getData("/client" + j, false, null));
+            }
+        }
+        assertEquals(CLIENTS, factory.getNumAliveConnections());
+    }
+
+    private static long accepted(int shard) {
+        Map<String, Object> values = ((SimpleCounterSet) ServerMetrics.getMetrics().NIO_CONNECTIONS_ACCEPTED).values();
+        Object value = values.get(shard + "_nio_connections_accepted");
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    @Test
+    public void testAcceptShards() throws Exception {
+        NIOServerCnxnFactory factory = new NIOServerCnxnFactory();
+        assumeTrue("SO_REUSEPORT is supported", factory.getReusePortOption() != null);
+        long[] acceptedBefore = new long[SHARDS];
+        for (int shard = 0; shard < SHARDS; shard++) {
+            acceptedBefore[shard] = accepted(shard);
+        }
+
+        start(factory);
+        assertEquals(SHARDS, factory.getNumAcceptShards());
+        assertClientsServed();
+
+        // the kernel spreads the connections across the listen sockets
+        long total = 0;
+        for (int shard = 0; shard < SHARDS; shard++) {
+            long accepted = accepted(shard) - acceptedBefore[shard];
+            assertTrue("shard " + shard + " accepted connections", accepted > 0);
+            total += accepted;
+        }
+        assertEquals(CLIENTS, total);
+    }
+
+    @Test
+    public void testFallbackWithoutReusePort() throws Exception {
+        start(new NIOServerCnxnFactory() {
+            @Override
+            SocketOption<Boolean> getReusePortOption() {
+                return null;
+            }
+        });
+        assertEquals(1, factory.getNumAcceptShards());
+        assertClientsServed();
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Requests decoded straight from the Netty ByteBuf, and responses serialized
+ * into pooled buffers or served from the response caches, round trip to a
+ * client.
+ */
+public class NettyServerCnxnTest {
+
+    // larger than the starting size of the response buffers
+    private static final int[] DATA_SIZES = {0, 1, 100, 1024, 5000, 200 * 1024};
+    private static final int PIPELINED = 2000;
+
+    private File dataDir;
+    private ZooKeeperServer zks;
+    private NettyServerCnxnFactory factory;
+    private ZooKeeper zk;
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("nettycnxn").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (zk != null) {
+            zk.close();
+        }
+        if (factory != null) {
+            factory.shutdown();
+        }
+        if (zks != null) {
+            zks.shutdown();
+        }
+        System.clearProperty(ZooKeeperServer.GET_DATA_RESPONSE_CACHE_SIZE);
+        System.clearProperty(ZooKeeperServer.GET_CHILDREN_RESPONSE_CACHE_SIZE);
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    private void startServer(int responseCacheSize) throws Exception {
+        System.setProperty(ZooKeeperServer.GET_DATA_RESPONSE_CACHE_SIZE, Integer.toString(responseCacheSize));
+        System.setProperty(ZooKeeperServer.GET_CHILDREN_RESPONSE_CACHE_SIZE, Integer.toString(responseCacheSize));
+        zks = new ZooKeeperServer(dataDir, dataDir, 2000);
+        factory = new NettyServerCnxnFactory();
+        factory.configure(new InetSocketAddress("127.0.0.1", 0), 10);
+        factory.startup(zks);
+
+        CountDownLatch connected = new CountDownLatch(1);
+        zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 30000, event -> {
+            if (event.getState() == KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        assertTrue("client connected", connected.await(30, TimeUnit.SECONDS));
+    }
+
+    private ServerCnxn connection() {
+        List<ServerCnxn> connections = new ArrayList<>();
+        factory.getConnections().forEach(connections::add);
+        assertEquals(1, connections.size());
+        assertTrue(connections.get(0) instanceof NettyServerCnxn);
+        return connections.get(0);
+    }
+
+    private static byte[] data(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Create a node per data size and read the nodes, and their parent, back
+     * twice, so that cached responses are read too.
+     */
+    private void assertRoundTrip() throws Exception {
+        Random random = new Random(42);
+        List<String> children = new ArrayList<>();
+        List<byte[]> written = new ArrayList<>();
+        zk.create("/netty", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int size : DATA_SIZES) {
+            String child = "n" + size;
+            byte[] data = data(random, size);
+            zk.create("/netty/" + child, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            children.add(child);
+            written.add(data);
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < DATA_SIZES.length; i++) {
+                String path = "/netty/" + children.get(i);
+                Stat stat = new Stat();
+                assertArrayEquals(written.get(i), zk.getData(path, false, stat));
+                assertEquals(zk.exists(path, false), stat);
+                assertEquals(DATA_SIZES[i], stat.getDataLength());
+            }
+            Stat stat = new Stat();
+            List<String> read = zk.getChildren("/netty", false, stat);
+            Collections.sort(read);
+            List<String> expected = new ArrayList<>(children);
+            Collections.sort(expected);
+            assertEquals(expected, read);
+            assertEquals(DATA_SIZES.length, stat.getNumChildren());
+        }
+
+        // a modified node is read again, not from the cache
+        byte[] data = data(random, 3000);
+        zk.setData("/netty/n1", data, -1);
+        assertArrayEquals(data, zk.getData("/netty/n1", false, null));
+    }
+
+    @Test
+    public void testRoundTripSerializedDirect() throws Exception {
+        startServer(0);
+        assertRoundTrip();
+
+        // the caches exist, but are disabled
+        ServerCnxn cnxn = connection();
+        Stat stat = zk.exists("/netty/n1", false);
+        assertFalse(zks.getReadResponseCache().isEnabled());
+        assertFalse(cnxn.isCachedResponse(new GetDataResponse(new byte[1], stat), "/netty/n1", stat, OpCode.getData));
+        assertFalse(cnxn.isCachedResponse(
+            new GetChildren2Response(Collections.emptyList(), stat), "/netty/n1", stat, OpCode.getChildren2));
+        assertEquals(0, zks.getReadResponseCache().size());
+        assertEquals(0, zks.getGetChildrenResponseCache().size());
+    }
+
+    @Test
+    public void testRoundTripCached() throws Exception {
+        startServer(100);
+        assertRoundTrip();
+
+        ServerCnxn cnxn = connection();
+        Stat stat = zk.exists("/netty/n1", false);
+        assertTrue(cnxn.isCachedResponse(new GetDataResponse(new byte[1], stat), "/netty/n1", stat, OpCode.getData));
+        assertTrue(cnxn.isCachedResponse(
+            new GetChildren2Response(Collections.emptyList(), stat), "/netty/n1", stat, OpCode.getChildren2));
+        // not for other requests
+        assertFalse(cnxn.isCachedResponse(new GetDataResponse(new byte[1], stat), "/netty/n1", stat, OpCode.exists));
+        assertTrue(zks.getReadResponseCache().size() > 0);
+        assertTrue(zks.getGetChildrenResponseCache().size() > 0);
+    }
+
+    /**
+     * Requests sent back to back arrive several to a read, and split across
+     * reads, and are answered in order.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        startServer(0);
+        byte[] data = data(new Random(7), 3000);
+        zk.create("/pipelined", data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        List<Integer> answered = Collections.synchronizedList(new ArrayList<>());
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(PIPELINED);
+        for (int i = 0; i < PIPELINED; i++) {
+            if (i % 2 == 0) {
+                zk.setData("/pipelined", data, -1, (rc, path, ctx, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue()) {
+                        errors.add("setData " + ctx + " " + rc);
+                    }
+                    answered.add((Integer) ctx);
+                    done.countDown();
+                }, i);
+            } else {
+                zk.getData("/pipelined", false, (rc, path, ctx, read, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue() || !Arrays.equals(data, read)) {
+                        errors.add("getData " + ctx + " " + rc);
+                    }
+                    answered.add((Integer) ctx);
+                    done.countDown();
+                }, i);
+            }
+        }
+        assertTrue("all requests answered", done.await(60, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), errors);
+        for (int i = 0; i < PIPELINED; i++) {
+            assertEquals(i, (int) answered.get(i));
+        }
+        assertEquals(PIPELINED / 2, zk.exists("/pipelined", false).getVersion());
+    }
+
+}
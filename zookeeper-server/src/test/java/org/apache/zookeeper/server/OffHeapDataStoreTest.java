@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+public class OffHeapDataStoreTest {
+
+    private static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    @Test
+    public void testStoreAndRelease() {
+        OffHeapDataStore store = new OffHeapDataStore(16, 1024);
+        assertEquals(null, store.store(payload(8, 1)));
+
+        OffHeapDataStore.Slot small = store.store(payload(100, 2));
+        OffHeapDataStore.Slot large = store.store(payload(4000, 3));
+        assertArrayEquals(payload(100, 2), small.copy());
+        assertArrayEquals(payload(4000, 3), large.copy());
+        assertEquals(4100, store.getUsedBytes());
+        assertEquals(1024 + 4000, store.getReservedBytes());
+
+        small.retain();
+        small.release();
+        assertEquals(4100, store.getUsedBytes());
+        small.release();
+        large.release();
+        assertEquals(0, store.getUsedBytes());
+        assertEquals(1024, store.getReservedBytes());
+
+        // the released slot is reused
+        OffHeapDataStore.Slot reused = store.store(payload(120, 4));
+        assertArrayEquals(payload(120, 4), reused.copy());
+        assertEquals(1024, store.getReservedBytes());
+    }
+
+    @Test
+    public void testDiscardedTreeReleasesItsSlots() throws Exception {
+        OffHeapDataStore store = new OffHeapDataStore(16, 1024);
+        DataTree tree = new DataTree(store);
+        for (int i = 0; i < 20; i++) {
+            tree.createNode("/n" + i, payload(100, i), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, i + 1, 0);
+        }
+        assertEquals(2000, store.getUsedBytes());
+        long reserved = store.getReservedBytes();
+
+        // a reader still holds the payload of a node of the discarded tree
+        OffHeapDataStore.Slot held = tree.getNode("/n0").retainDataSlot();
+        tree.releaseOffHeapData();
+        assertEquals(100, store.getUsedBytes());
+        assertArrayEquals(payload(100, 0), held.copy());
+        held.release();
+        assertEquals(0, store.getUsedBytes());
+
+        // a new tree on the same store reuses the chunks
+        DataTree next = new DataTree(store);
+        for (int i = 0; i < 20; i++) {
+            next.createNode("/n" + i, payload(100, i), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, i + 1, 0);
+        }
+        assertEquals(reserved, store.getReservedBytes());
+        assertArrayEquals(payload(100, 7), next.getData("/n7", new Stat(), null));
+    }
+
+    private static final int NODES = 40;
+    private static final int DATA_SIZE = 100;
+    // fills the data of the node whose snapshot bytes get corrupted
+    private static final int CORRUPT_SEED = 0x5a;
+
+    /**
+     * @return a snapshot of a tree with NODES nodes, chunked if chunkSize is positive
+     */
+    private static byte[] snapshot(int chunkSize) throws Exception {
+        DataTree tree = new DataTree();
+        for (int i = 0; i < NODES; i++) {
+            int seed = i == NODES / 2 ? CORRUPT_SEED : i;
+            tree.createNode("/n" + i, payload(DATA_SIZE, seed), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, i + 1, 0);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputArchive oa = BinaryOutputArchive.getArchive(out);
+        if (chunkSize > 0) {
+            tree.serializeChunked(oa, "tree", chunkSize);
+        } else {
+            tree.serialize(oa, "tree");
+        }
+        return out.toByteArray();
+    }
+
+    private static void load(DataTree tree, byte[] snapshot, boolean chunked) throws IOException {
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(snapshot));
+        if (chunked) {
+            tree.deserializeChunked(ia, "tree", 2);
+        } else {
+            tree.deserialize(ia, "tree");
+        }
+    }
+
+    private static void assertLoadFails(DataTree tree, byte[] snapshot, boolean chunked) {
+        try {
+            load(tree, snapshot, chunked);
+            fail("corrupt snapshot loaded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Load a corrupt snapshot, then the good one into the same tree as a
+     * retry does: only the nodes of the good one must hold slots.
+     */
+    private static void checkRetryAfterCorruptSnapshot(byte[] good, byte[] corrupt, boolean chunked) throws Exception {
+        OffHeapDataStore store = new OffHeapDataStore(16, 1024);
+        DataTree tree = new DataTree(store);
+        assertLoadFails(tree, corrupt, chunked);
+        load(tree, good, chunked);
+        assertEquals(NODES * DATA_SIZE, store.getUsedBytes());
+        assertArrayEquals(payload(DATA_SIZE, 3), tree.getData("/n3", new Stat(), null));
+        tree.releaseOffHeapData();
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    private static byte[] truncated(byte[] snapshot) {
+        return Arrays.copyOf(snapshot, snapshot.length * 3 / 4);
+    }
+
+    private static byte[] withCorruptData(byte[] snapshot) {
+        byte[] corrupt = snapshot.clone();
+        byte[] data = payload(DATA_SIZE, CORRUPT_SEED);
+        for (int i = 0; i + data.length <= corrupt.length; i++) {
+            if (Arrays.equals(data, Arrays.copyOfRange(corrupt, i, i + data.length))) {
+                corrupt[i + data.length / 2] ^= 1;
+                return corrupt;
+            }
+        }
+        throw new AssertionError("data not found in the snapshot");
+    }
+
+    @Test
+    public void testRetryAfterTruncatedSnapshotReleasesSlots() throws Exception {
+        byte[] good = snapshot(0);
+        checkRetryAfterCorruptSnapshot(good, truncated(good), false);
+    }
+
+    @Test
+    public void testRetryAfterTruncatedChunkedSnapshotReleasesSlots() throws Exception {
+        // several chunks still being decoded when the stream ends
+        byte[] good = snapshot(256);
+        checkRetryAfterCorruptSnapshot(good, truncated(good), true);
+    }
+
+    @Test
+    public void testRetryAfterCorruptChunkReleasesSlots() throws Exception {
+        byte[] good = snapshot(256);
+        checkRetryAfterCorruptSnapshot(good, withCorruptData(good), true);
+    }
+
+}
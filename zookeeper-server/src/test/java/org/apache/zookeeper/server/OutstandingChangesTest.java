@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
+import org.apache.zookeeper.txn.CloseSessionTxn;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The PrepRequestProcessor adds and rolls back changes while the
+ * FinalRequestProcessor trims them, without a lock.
+ */
+public class OutstandingChangesTest {
+
+    private static final int PATHS = 8;
+    private static final int TXNS = 200000;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static String path(long zxid) {
+        return "/p" + (zxid % PATHS);
+    }
+
+    private static ChangeRecord record(long zxid, String path) {
+        return new ChangeRecord(zxid, path, new StatPersisted(), 0, null);
+    }
+
+    /**
+     * Trim the changes up to the zxids taken from the queue, until -1.
+     */
+    private Future<?> trimmer(OutstandingChanges changes, BlockingQueue<Long> applied, AtomicLong appliedZxid) {
+        return executor.submit(() -> {
+            long zxid;
+            while ((zxid = applied.take()) != -1) {
+                // the txn is applied to the tree before its changes are trimmed
+                appliedZxid.set(zxid);
+                changes.trimTo(zxid);
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testLookupsWhileTrimming() throws Exception {
+        OutstandingChanges changes = new OutstandingChanges();
+        BlockingQueue<Long> applied = new ArrayBlockingQueue<>(1000);
+        AtomicLong appliedZxid = new AtomicLong();
+        AtomicLongArray lastAdded = new AtomicLongArray(PATHS);
+        AtomicBoolean done = new AtomicBoolean();
+
+        Future<?> trim = trimmer(changes, applied, appliedZxid);
+        Future<?> lookups = executor.submit(() -> {
+            int i = 0;
+            while (!done.get()) {
+                int p = i++ % PATHS;
+                long added = lastAdded.get(p);
+                ChangeRecord c = changes.get("/p" + p);
+                if (c == null) {
+                    // a path without a change is up to date in the tree
+                    assertTrue(appliedZxid.get() >= added);
+                } else {
+                    assertEquals("/p" + p, c.path);
+                    assertTrue(c.zxid >= added);
+                }
+            }
+            return null;
+        });
+
+        for (long zxid = 1; zxid <= TXNS; zxid++) {
+            changes.add(record(zxid, path(zxid)));
+            lastAdded.set((int) (zxid % PATHS), zxid);
+            applied.put(zxid);
+        }
+        applied.put(-1L);
+        trim.get(60, TimeUnit.SECONDS);
+        done.set(true);
+        lookups.get(60, TimeUnit.SECONDS);
+
+        assertTrue(changes.isEmpty());
+        for (int p = 0; p < PATHS; p++) {
+            assertNull(changes.get("/p" + p));
+        }
+    }
+
+    @Test
+    public void testRollbackWhileTrimming() throws Exception {
+        OutstandingChanges changes = new OutstandingChanges();
+        BlockingQueue<Long> applied = new ArrayBlockingQueue<>(1000);
+        Future<?> trim = trimmer(changes, applied, new AtomicLong());
+
+        for (long zxid = 1; zxid <= TXNS; zxid++) {
+            // a multi changing a path of its own and a shared one
+            String[] paths = {path(zxid), "/shared"};
+            Map<String, ChangeRecord> pending = new HashMap<>();
+            List<ChangeRecord> added = new ArrayList<>();
+            for (String path : paths) {
+                ChangeRecord previous = changes.get(path);
+                if (previous != null) {
+                    pending.put(path, previous);
+                }
+                ChangeRecord c = record(zxid, path);
+                changes.add(c);
+                added.add(c);
+            }
+            if (zxid % 3 == 0) {
+                changes.rollback(zxid, pending);
+                for (ChangeRecord c : added) {
+                    assertNotSame(c, changes.get(c.path));
+                    ChangeRecord restored = changes.get(c.path);
+                    if (restored != null) {
+                        assertTrue(restored.zxid < zxid);
+                    }
+                }
+            } else {
+                applied.put(zxid);
+            }
+        }
+        applied.put(-1L);
+        trim.get(60, TimeUnit.SECONDS);
+
+        // nothing trimmed meanwhile was restored by a rollback
+        assertTrue(changes.isEmpty());
+        assertNull(changes.get("/shared"));
+        for (int p = 0; p < PATHS; p++) {
+            assertNull(changes.get("/p" + p));
+        }
+    }
+
+    @Test
+    public void testIterationWhileTrimming() throws Exception {
+        OutstandingChanges changes = new OutstandingChanges();
+        BlockingQueue<Long> applied = new ArrayBlockingQueue<>(1000);
+        int txns = TXNS / 10;
+        ChangeRecord[] records = new ChangeRecord[txns + 1];
+        AtomicLong lastAdded = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+
+        Future<?> trim = trimmer(changes, applied, new AtomicLong());
+        Future<?> iterations = executor.submit(() -> {
+            while (!done.get()) {
+                long last = lastAdded.get();
+                Set<Long> seen = new HashSet<>();
+                long previous = 0;
+                for (ChangeRecord c : changes) {
+                    assertTrue(c.zxid > previous);
+                    previous = c.zxid;
+                    seen.add(c.zxid);
+                }
+                // the changes missed are applied to the tree already, which
+                // is what closeSession relies on
+                for (long zxid = 1; zxid <= last; zxid++) {
+                    if (!seen.contains(zxid)) {
+                        assertTrue(records[(int) zxid].trimmed);
+                    }
+                }
+            }
+            return null;
+        });
+
+        for (long zxid = 1; zxid <= txns; zxid++) {
+            records[(int) zxid] = record(zxid, path(zxid));
+            changes.add(records[(int) zxid]);
+            lastAdded.set(zxid);
+            applied.put(zxid);
+        }
+        applied.put(-1L);
+        trim.get(60, TimeUnit.SECONDS);
+        done.set(true);
+        iterations.get(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCloseSessionWithDeleteAppliedConcurrently() throws Exception {
+        long sessionId = 5;
+        AtomicBoolean applyDelete = new AtomicBoolean();
+        ZooKeeperServer zks = new ZooKeeperServer();
+        zks.setZKDatabase(new ZKDatabase(null) {
+            @Override
+            public Set<String> getEphemerals(long sessionId) {
+                Set<String> ephemerals = super.getEphemerals(sessionId);
+                if (applyDelete.compareAndSet(true, false)) {
+                    // the pending delete is applied and trimmed right after
+                    // the ephemerals are read: the changes must have been
+                    // read before, or the delete would be missed by both
+                    try {
+                        getDataTree().deleteNode("/e", 2);
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                    zks.outstandingChanges.trimTo(2);
+                }
+                return ephemerals;
+            }
+        });
+        zks.sessionTracker = mock(SessionTracker.class);
+        zks.getZKDatabase().getDataTree().createNode("/e", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, sessionId, 0, 1, 1);
+        zks.setZxid(1);
+        PrepRequestProcessor processor = new PrepRequestProcessor(zks, new RequestProcessor() {
+            @Override
+            public void processRequest(Request request) {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+
+        Request delete = new Request(null, sessionId, 1, OpCode.delete,
+            RequestRecord.fromRecord(new DeleteRequest("/e", -1)), new ArrayList<>());
+        processor.pRequest(delete);
+        assertEquals(OpCode.delete, delete.getHdr().getType());
+        assertEquals(2, delete.getHdr().getZxid());
+
+        applyDelete.set(true);
+        Request close = new Request(null, sessionId, 2, OpCode.closeSession, null, new ArrayList<>());
+        processor.pRequest(close);
+        assertFalse(applyDelete.get());
+        assertEquals(OpCode.closeSession, close.getHdr().getType());
+        // the node deleted meanwhile isn't deleted again
+        assertTrue(((CloseSessionTxn) close.getTxn()).getPaths2Delete().isEmpty());
+        assertNull(zks.outstandingChanges.get("/e"));
+    }
+
+}
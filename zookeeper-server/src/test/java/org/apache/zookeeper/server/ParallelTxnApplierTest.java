@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.jute.Record;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.RequestProcessor.RequestProcessorException;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Txns applied ahead by {@link ParallelTxnApplier} and completed in order
+ * leave the tree as if they were applied one at a time.
+ */
+public class ParallelTxnApplierTest {
+
+    private static final int GROUPS = 4;
+    private static final int NODES = 8;
+    private static final int CHILDREN = 16;
+
+    private ZooKeeperServer zks;
+    private DataTree dataTree;
+    private ParallelTxnApplier applier;
+    // the txns applied one at a time
+    private DataTree expected;
+    private long zxid;
+
+    @Before
+    public void setUp() throws Exception {
+        zks = new ZooKeeperServer();
+        zks.setZKDatabase(new ZKDatabase(null));
+        dataTree = zks.getZKDatabase().getDataTree();
+        expected = new DataTree();
+        for (DataTree dt : new DataTree[] {dataTree, expected}) {
+            long z = 0;
+            for (int g = 0; g < GROUPS; g++) {
+                dt.createNode("/g" + g, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, ++z, 1);
+                for (int n = 0; n < NODES; n++) {
+                    dt.createNode("/g" + g + "/n" + n, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, ++z, 1);
+                }
+            }
+            dt.lastProcessedZxid = z;
+            zxid = z;
+        }
+        applier = new ParallelTxnApplier(zks, 4);
+    }
+
+    @After
+    public void tearDown() {
+        applier.shutdown();
+    }
+
+    private Request request(int type, Record txn) {
+        zxid++;
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, type);
+        Request request = new Request(1, (int) zxid, type, hdr, txn, zxid);
+        expected.processTxn(hdr, txn);
+        request.setTxnDigest(new TxnDigest(new DigestCalculator().getDigestVersion(), expected.getTreeDigest()));
+        return request;
+    }
+
+    /**
+     * Random changes of the nodes, most of which don't conflict, with a few
+     * failing txns and barriers.
+     */
+    private List<Request> randomBatch(Random random, int size) {
+        List<Request> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String group = "/g" + random.nextInt(GROUPS);
+            String child = group + "/c" + random.nextInt(CHILDREN);
+            int op = random.nextInt(10);
+            if (op < 3) {
+                // fails if the child exists already
+                batch.add(request(OpCode.create,
+                    new CreateTxn(child, new byte[]{(byte) i}, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, -1)));
+            } else if (op < 5) {
+                // fails if the child doesn't exist
+                batch.add(request(OpCode.delete, new DeleteTxn(child)));
+            } else if (op < 8) {
+                String path = random.nextBoolean() ? group + "/n" + random.nextInt(NODES) : child;
+                batch.add(request(OpCode.setData, new SetDataTxn(path, new byte[]{(byte) i}, -1)));
+            } else if (op < 9) {
+                batch.add(request(OpCode.error, new ErrorTxn(Code.BADVERSION.intValue())));
+            } else {
+                // applied alone
+                batch.add(request(OpCode.setData, new SetDataTxn("/zookeeper", new byte[]{(byte) i}, -1)));
+            }
+        }
+        return batch;
+    }
+
+    private void applyAndComplete(List<Request> batch) throws RequestProcessorException {
+        applier.applyAhead(batch);
+        for (Request request : batch) {
+            zks.processTxn(request);
+        }
+    }
+
+    private void assertTreesEqual() throws Exception {
+        assertEquals(expected.lastProcessedZxid, dataTree.lastProcessedZxid);
+        assertEquals(expected.getTreeDigest(), dataTree.getTreeDigest());
+        List<String> paths = new ArrayList<>();
+        paths.add("/zookeeper");
+        for (int g = 0; g < GROUPS; g++) {
+            paths.add("/g" + g);
+            for (int n = 0; n < NODES; n++) {
+                paths.add("/g" + g + "/n" + n);
+            }
+            for (int c = 0; c < CHILDREN; c++) {
+                paths.add("/g" + g + "/c" + c);
+            }
+        }
+        for (String path : paths) {
+            if (expected.getNode(path) == null) {
+                assertNull(path, dataTree.getNode(path));
+                continue;
+            }
+            Stat expectedStat = new Stat();
+            Stat stat = new Stat();
+            assertArrayEquals(path, expected.getData(path, expectedStat, null), dataTree.getData(path, stat, null));
+            assertEquals(path, expectedStat, stat);
+            assertEquals(path,
+                new LinkedHashSet<>(expected.getChildren(path, null, null)),
+                new LinkedHashSet<>(dataTree.getChildren(path, null, null)));
+        }
+    }
+
+    @Test
+    public void testSameTreeAsSequentialApply() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            applyAndComplete(randomBatch(random, 2 + random.nextInt(30)));
+            assertTreesEqual();
+        }
+    }
+
+    @Test
+    public void testWatchesTriggeredInZxidOrder() throws Exception {
+        List<String> triggered = Collections.synchronizedList(new ArrayList<>());
+        Watcher watcher = event -> triggered.add(event.getPath());
+        List<String> nodes = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            for (int n = 0; n < NODES; n++) {
+                nodes.add("/g" + g + "/n" + n);
+                zks.getZKDatabase().getData("/g" + g + "/n" + n, new Stat(), watcher);
+            }
+        }
+
+        Collections.shuffle(nodes, new Random(7));
+        List<Request> batch = new ArrayList<>();
+        for (String node : nodes) {
+            batch.add(request(OpCode.setData, new SetDataTxn(node, new byte[1], -1)));
+        }
+        applier.applyAhead(batch);
+        // nothing is triggered before the txns are completed
+        assertEquals(0, triggered.size());
+        for (Request request : batch) {
+            zks.processTxn(request);
+        }
+        assertEquals(nodes, triggered);
+        assertTreesEqual();
+    }
+
+    @Test
+    public void testDigestComparedForLastTxnOfBatch() throws Exception {
+        ServerMetrics metrics = ServerMetrics.getMetrics();
+        long skipped = metrics.APPLY_AHEAD_DIGEST_SKIPPED.get();
+        long mismatches = metrics.DIGEST_MISMATCHES_COUNT.get();
+
+        List<Request> batch = randomBatch(new Random(1), 20);
+        applyAndComplete(batch);
+        assertEquals(skipped + batch.size() - 1, metrics.APPLY_AHEAD_DIGEST_SKIPPED.get());
+        assertEquals(mismatches, metrics.DIGEST_MISMATCHES_COUNT.get());
+
+        // a wrong digest in the middle of a batch isn't compared
+        batch = randomBatch(new Random(2), 20);
+        batch.get(10).setTxnDigest(new TxnDigest(new DigestCalculator().getDigestVersion(), 0));
+        applyAndComplete(batch);
+        assertEquals(mismatches, metrics.DIGEST_MISMATCHES_COUNT.get());
+
+        // the digest of the last txn is
+        batch = randomBatch(new Random(3), 20);
+        batch.get(19).setTxnDigest(new TxnDigest(new DigestCalculator().getDigestVersion(), 0));
+        applyAndComplete(batch);
+        assertEquals(mismatches + 1, metrics.DIGEST_MISMATCHES_COUNT.get());
+    }
+
+    @Test
+    public void testWorkDroppedOnShutdown() throws Exception {
+        applier.shutdown();
+        List<Request> batch = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            batch.add(request(OpCode.setData, new SetDataTxn("/g" + g + "/n0", new byte[1], -1)));
+        }
+        try {
+            applier.applyAhead(batch);
+            fail("the groups of the stopped workers are dropped");
+        } catch (RequestProcessorException e) {
+            // expected
+        }
+        // only the group applied by the calling thread is applied
+        int applied = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            if (dataTree.getNode("/g" + g + "/n0").getData().length > 0) {
+                applied++;
+            }
+        }
+        assertEquals(1, applied);
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.Record;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The preparation of the requests by the workers of
+ * {@link PrepRequestProcessor}, ahead of the sequencing thread.
+ */
+public class PrepRequestProcessorTest {
+
+    private static final Id ADMIN = new Id("digest", "admin:0000");
+    private static final Id USER = new Id("digest", "user:0000");
+    private static final List<ACL> ADMIN_ONLY = Collections.singletonList(new ACL(ZooDefs.Perms.ALL, ADMIN));
+
+    private ZooKeeperServer zks;
+    private DataTree dataTree;
+    private PrepRequestProcessor processor;
+
+    private static class NullRequestProcessor implements RequestProcessor {
+
+        @Override
+        public void processRequest(Request request) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        zks = new ZooKeeperServer();
+        zks.setZKDatabase(new ZKDatabase(null));
+        zks.sessionTracker = mock(SessionTracker.class);
+        dataTree = zks.getZKDatabase().getDataTree();
+        dataTree.createNode("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 0, 1, 1);
+        zks.setZxid(1);
+        processor = new PrepRequestProcessor(zks, new NullRequestProcessor(), 4);
+    }
+
+    @After
+    public void tearDown() {
+        processor.shutdown();
+    }
+
+    private static Request request(long sessionId, int cxid, int type, Record record, Id auth) {
+        List<Id> authInfo = new ArrayList<>();
+        authInfo.add(auth);
+        return new Request(null, sessionId, cxid, type, RequestRecord.fromRecord(record), authInfo);
+    }
+
+    private static Request setData(long sessionId, int cxid, Id auth) {
+        return request(sessionId, cxid, OpCode.setData, new SetDataRequest("/a", new byte[1], -1), auth);
+    }
+
+    /**
+     * Have the request prepared by a worker, it's queued to the sequencing
+     * thread once done.
+     */
+    private Request prepare(Request request) throws InterruptedException {
+        processor.processRequest(request);
+        Request prepared = processor.submittedRequests.poll(10, TimeUnit.SECONDS);
+        assertSame(request, prepared);
+        return prepared;
+    }
+
+    private static void assertError(Request request, Code code) {
+        assertEquals(OpCode.error, request.getHdr().getType());
+        assertEquals(code.intValue(), ((ErrorTxn) request.getTxn()).getErr());
+    }
+
+    private List<ACL> aclOf(String path) {
+        return zks.getZKDatabase().aclForNode(dataTree.getNode(path));
+    }
+
+    @Test
+    public void testPrecheckedAcl() throws Exception {
+        Request request = prepare(setData(1, 1, USER));
+        assertSame(aclOf("/a"), request.getCheckedAcl());
+
+        processor.pRequest(request);
+        assertTrue(request.getTxn() instanceof SetDataTxn);
+    }
+
+    @Test
+    public void testSameAclListSkipsCheck() throws Exception {
+        dataTree.setACL("/a", ADMIN_ONLY, -1);
+
+        // as if a worker authorized it against the ACL of the node
+        Request request = setData(1, 1, USER);
+        request.setCheckedAcl(aclOf("/a"));
+        processor.pRequest(request);
+        assertTrue(request.getTxn() instanceof SetDataTxn);
+
+        // an equal list isn't the same ACL
+        request = setData(1, 2, USER);
+        request.setCheckedAcl(new ArrayList<>(aclOf("/a")));
+        processor.pRequest(request);
+        assertError(request, Code.NOAUTH);
+    }
+
+    @Test
+    public void testPrecheckInvalidatedByAclChangeInTree() throws Exception {
+        Request request = prepare(setData(1, 1, USER));
+        assertNotNull(request.getCheckedAcl());
+
+        // the ACL changes between the preparation and the sequencing
+        dataTree.setACL("/a", ADMIN_ONLY, -1);
+        processor.pRequest(request);
+        assertError(request, Code.NOAUTH);
+    }
+
+    @Test
+    public void testPrecheckInvalidatedByOutstandingChange() throws Exception {
+        Request request = prepare(setData(1, 1, USER));
+        assertNotNull(request.getCheckedAcl());
+
+        // the ACL changes, and a change of the node is sequenced before the
+        // request: it's checked against the ACL of the change record
+        dataTree.setACL("/a", ADMIN_ONLY, -1);
+        Request update = setData(2, 1, ADMIN);
+        processor.pRequest(update);
+        assertEquals(OpCode.setData, update.getHdr().getType());
+        assertNotNull(zks.outstandingChanges.get("/a"));
+
+        processor.pRequest(request);
+        assertError(request, Code.NOAUTH);
+    }
+
+    @Test
+    public void testFailedPrecheckRedoneInOrder() throws Exception {
+        dataTree.setACL("/a", ADMIN_ONLY, -1);
+        Request request = prepare(setData(1, 1, USER));
+        assertNull(request.getCheckedAcl());
+
+        // the ACL is opened before the request is sequenced
+        dataTree.setACL("/a", ZooDefs.Ids.OPEN_ACL_UNSAFE, -1);
+        processor.pRequest(request);
+        assertTrue(request.getTxn() instanceof SetDataTxn);
+    }
+
+    @Test
+    public void testSessionOrderPreserved() throws Exception {
+        int sessions = 16;
+        int requestsPerSession = 200;
+        for (int cxid = 1; cxid <= requestsPerSession; cxid++) {
+            for (long sessionId = 1; sessionId <= sessions; sessionId++) {
+                processor.processRequest(setData(sessionId, cxid, USER));
+            }
+        }
+
+        Map<Long, Integer> lastCxid = new HashMap<>();
+        for (int i = 0; i < sessions * requestsPerSession; i++) {
+            Request request = processor.submittedRequests.poll(10, TimeUnit.SECONDS);
+            assertNotNull(request);
+            Integer last = lastCxid.put(request.sessionId, request.cxid);
+            assertEquals("session " + request.sessionId, last == null ? 1 : last + 1, request.cxid);
+        }
+        assertEquals(sessions, lastCxid.size());
+    }
+
+}
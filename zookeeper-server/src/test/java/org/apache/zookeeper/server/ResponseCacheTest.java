@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.Counter;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+    // small enough to fit in a single shard
+    private static final int CACHE_SIZE = 16;
+
+    private final AtomicLong evicted = new AtomicLong();
+    private final Counter evictions = counter(evicted);
+    private final AtomicLong rejected = new AtomicLong();
+    private final Counter oversized = counter(rejected);
+
+    private static Counter counter(AtomicLong count) {
+        return new Counter() {
+            @Override
+            public void add(long delta) {
+                count.addAndGet(delta);
+            }
+
+            @Override
+            public long get() {
+                return count.get();
+            }
+        };
+    }
+
+    /**
+     * A cache recording every read in its frequency sketch, so that the
+     * admissions are deterministic.
+     */
+    private ResponseCache newCache(long cacheBytes) {
+        ResponseCache cache = newSampledCache(cacheBytes);
+        cache.setAccessSampleRate(1);
+        return cache;
+    }
+
+    private ResponseCache newSampledCache(long cacheBytes) {
+        return new ResponseCache(CACHE_SIZE, cacheBytes, "Test", () -> evictions, () -> oversized);
+    }
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        stat.setPzxid(mzxid);
+        return stat;
+    }
+
+    /**
+     * Read the path like the server does: cache it on a miss.
+     */
+    private static byte[] read(ResponseCache cache, String path) {
+        byte[] data = cache.get(path, stat(1));
+        if (data == null) {
+            data = path.getBytes();
+            cache.put(path, data, stat(1));
+        }
+        return data;
+    }
+
+    private static boolean cached(ResponseCache cache, String path) {
+        return cache.get(path, stat(1)) != null;
+    }
+
+    @Test
+    public void testHitAndInvalidation() {
+        ResponseCache cache = newCache(0);
+        byte[] data = "data".getBytes();
+        cache.put("/a", data, stat(1));
+        assertArrayEquals(data, cache.get("/a", stat(1)));
+
+        // a newer stat invalidates the entry
+        assertNull(cache.get("/a", stat(2)));
+        assertEquals(0, cache.size());
+        assertNull(cache.get("/a", stat(1)));
+
+        // a newer serialization replaces the cached one
+        cache.put("/a", data, stat(1));
+        byte[] newer = "newer".getBytes();
+        cache.put("/a", newer, stat(2));
+        assertArrayEquals(newer, cache.get("/a", stat(2)));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        ResponseCache cache = new ResponseCache(0, "Test");
+        assertTrue(!cache.isEnabled());
+        cache.put("/a", new byte[1], stat(1));
+        assertNull(cache.get("/a", stat(1)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEntryBound() {
+        ResponseCache cache = newCache(0);
+        for (int i = 0; i < 10 * CACHE_SIZE; i++) {
+            read(cache, "/n" + i);
+            assertTrue(cache.size() <= CACHE_SIZE);
+        }
+        assertEquals(CACHE_SIZE, cache.size());
+        assertTrue(evicted.get() > 0);
+    }
+
+    @Test
+    public void testByteBound() {
+        // room for about two entries of 1000 bytes
+        ResponseCache cache = newCache(2300);
+        cache.put("/big", new byte[3000], stat(1));
+        assertNull(cache.get("/big", stat(1)));
+        assertEquals(1, rejected.get());
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("/n" + i, new byte[1000], stat(1));
+            assertTrue(cache.size() <= 2);
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testColdNewcomerNotAdmitted() {
+        ResponseCache cache = newCache(0);
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            for (int j = 0; j < 4; j++) {
+                read(cache, "/hot" + i);
+            }
+        }
+        assertEquals(CACHE_SIZE, cache.size());
+
+        // seen once, less often than any cached entry
+        cache.put("/cold", new byte[1], stat(1));
+        assertNull(cache.get("/cold", stat(1)));
+        assertEquals(CACHE_SIZE, cache.size());
+        assertEquals(0, evicted.get());
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            assertTrue(cached(cache, "/hot" + i));
+        }
+    }
+
+    @Test
+    public void testFrequentNewcomerEvictsUnreferencedEntry() {
+        ResponseCache cache = newCache(0);
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            read(cache, "/n" + i);
+        }
+        // reference the first half, the hand skips them
+        for (int i = 0; i < CACHE_SIZE / 2; i++) {
+            assertNotNull(cache.get("/n" + i, stat(1)));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            String path = "/new" + i;
+            for (int j = 0; j < 6; j++) {
+                assertNull(cache.get(path, stat(1)));
+            }
+            cache.put(path, new byte[1], stat(1));
+            assertTrue(cached(cache, path));
+        }
+        assertEquals(CACHE_SIZE, cache.size());
+        assertEquals(4, evicted.get());
+        for (int i = 0; i < CACHE_SIZE / 2; i++) {
+            assertTrue(cached(cache, "/n" + i));
+        }
+        int unreferenced = 0;
+        for (int i = CACHE_SIZE / 2; i < CACHE_SIZE; i++) {
+            if (cached(cache, "/n" + i)) {
+                unreferenced++;
+            }
+        }
+        assertEquals(CACHE_SIZE / 2 - 4, unreferenced);
+    }
+
+    @Test
+    public void testScanDoesNotFlushPopularEntries() {
+        ResponseCache cache = newCache(0);
+        int hot = CACHE_SIZE / 2;
+        for (int i = 0; i < hot; i++) {
+            for (int j = 0; j < 8; j++) {
+                read(cache, "/hot" + i);
+            }
+        }
+
+        for (int i = 0; i < 50 * CACHE_SIZE; i++) {
+            read(cache, "/scan" + i);
+            if (i % CACHE_SIZE == 0) {
+                for (int j = 0; j < hot; j++) {
+                    read(cache, "/hot" + j);
+                }
+            }
+            assertTrue(cache.size() <= CACHE_SIZE);
+        }
+        for (int i = 0; i < hot; i++) {
+            assertTrue("/hot" + i, cached(cache, "/hot" + i));
+        }
+    }
+
+    @Test
+    public void testScanDoesNotFlushPopularEntriesWithSampledReads() {
+        ResponseCache cache = newSampledCache(0);
+        int hot = CACHE_SIZE / 2;
+        for (int i = 0; i < hot; i++) {
+            for (int j = 0; j < 100; j++) {
+                read(cache, "/hot" + i);
+            }
+        }
+
+        for (int i = 0; i < 50 * CACHE_SIZE; i++) {
+            read(cache, "/scan" + i);
+            if (i % CACHE_SIZE == 0) {
+                for (int j = 0; j < hot; j++) {
+                    for (int k = 0; k < 20; k++) {
+                        read(cache, "/hot" + j);
+                    }
+                }
+            }
+            assertTrue(cache.size() <= CACHE_SIZE);
+        }
+        for (int i = 0; i < hot; i++) {
+            assertTrue("/hot" + i, cached(cache, "/hot" + i));
+        }
+        assertEquals(0, rejected.get());
+    }
+
+}
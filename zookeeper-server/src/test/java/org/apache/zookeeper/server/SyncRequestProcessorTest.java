@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.TxnLog.FlushedTxns;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The group commit of the SyncRequestProcessor: the batches are synced on
+ * the LogSyncThread, whose syncs are held until the test releases them.
+ */
+public class SyncRequestProcessorTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    // how long to wait for something which must not happen
+    private static final long QUIET_MS = 200;
+
+    /**
+     * A written batch, whose sync blocks until it is released.
+     */
+    private static class GatedTxns implements FlushedTxns {
+
+        final List<Request> requests;
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile boolean synced;
+
+        GatedTxns(List<Request> requests) {
+            this.requests = requests;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public void sync() throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            synced = true;
+        }
+
+    }
+
+    private class RecordingProcessor implements RequestProcessor {
+
+        final BlockingQueue<Request> processed = new LinkedBlockingQueue<>();
+        volatile int processedAtShutdown = -1;
+
+        @Override
+        public void processRequest(Request request) {
+            GatedTxns batch = batchOf.get(request);
+            if (batch != null && !batch.synced) {
+                errors.add("0x" + Long.toHexString(request.zxid) + " passed on before its batch was synced");
+            }
+            processed.add(request);
+        }
+
+        @Override
+        public void shutdown() {
+            processedAtShutdown = processed.size();
+        }
+
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final boolean groupCommitEnabled = ZooKeeperServer.isGroupCommitEnabled();
+
+    // accessed by the SyncThread only
+    private final List<Request> appended = new ArrayList<>();
+
+    private final BlockingQueue<GatedTxns> written = new LinkedBlockingQueue<>();
+    private final List<GatedTxns> allWritten = new CopyOnWriteArrayList<>();
+    private final Map<Request, GatedTxns> batchOf = new ConcurrentHashMap<>();
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+
+    private ZooKeeperServer zks;
+    private RecordingProcessor next;
+    private SyncRequestProcessor processor;
+
+    @Before
+    public void setUp() throws IOException {
+        ZooKeeperServer.setGroupCommitEnabled(true);
+        ZKDatabase db = mock(ZKDatabase.class);
+        when(db.append(any())).thenAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            if (request.getHdr() == null) {
+                return false;
+            }
+            appended.add(request);
+            return true;
+        });
+        when(db.flush()).thenAnswer(invocation -> {
+            GatedTxns batch = new GatedTxns(new ArrayList<>(appended));
+            appended.clear();
+            for (Request request : batch.requests) {
+                batchOf.put(request, batch);
+            }
+            allWritten.add(batch);
+            written.add(batch);
+            return batch;
+        });
+        zks = mock(ZooKeeperServer.class);
+        when(zks.getZKDatabase()).thenReturn(db);
+        when(zks.getZooKeeperServerListener()).thenReturn(mock(ZooKeeperServerListener.class));
+        when(zks.getMaxWriteQueuePollTime()).thenReturn(10L);
+        next = new RecordingProcessor();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (GatedTxns batch : allWritten) {
+            batch.release();
+        }
+        if (processor != null && processor.isAlive()) {
+            processor.shutdown();
+        }
+        executor.shutdownNow();
+        ZooKeeperServer.setGroupCommitEnabled(groupCommitEnabled);
+    }
+
+    private void start(int maxBatchSize) {
+        when(zks.getMaxBatchSize()).thenReturn(maxBatchSize);
+        processor = new SyncRequestProcessor(zks, next);
+        processor.start();
+    }
+
+    private static Request write(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, 0, OpCode.setData);
+        return new Request(1, (int) zxid, OpCode.setData, hdr, null, zxid);
+    }
+
+    private static Request read(int xid) {
+        return new Request(1, xid, OpCode.getData, null, null, -1);
+    }
+
+    private GatedTxns nextBatch() throws InterruptedException {
+        GatedTxns batch = written.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no batch was written", batch);
+        return batch;
+    }
+
+    private Request nextProcessed() throws InterruptedException {
+        Request request = next.processed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no request was passed on", request);
+        return request;
+    }
+
+    private void assertNothingProcessed() throws InterruptedException {
+        assertNull(next.processed.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRequestsPassedOnAfterTheirBatchIsSynced() throws Exception {
+        start(0);
+        Request first = write(1);
+        processor.processRequest(first);
+        GatedTxns firstBatch = nextBatch();
+        assertEquals(1, firstBatch.requests.size());
+        assertSame(first, firstBatch.requests.get(0));
+
+        // the next batch is written while the first one is synced
+        Request second = write(2);
+        processor.processRequest(second);
+        GatedTxns secondBatch = nextBatch();
+        assertSame(second, secondBatch.requests.get(0));
+        assertNothingProcessed();
+
+        // it is not passed on before the first batch, even if it is synced
+        secondBatch.release();
+        assertNothingProcessed();
+
+        firstBatch.release();
+        assertSame(first, nextProcessed());
+        assertSame(second, nextProcessed());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testBatchesPassedOnInOrder() throws Exception {
+        start(1);
+        int count = 20;
+        for (long zxid = 1; zxid <= count; zxid++) {
+            processor.processRequest(write(zxid));
+        }
+        List<GatedTxns> batches = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batches.add(nextBatch());
+        }
+        assertNothingProcessed();
+
+        // release the syncs backwards, the requests still follow the log order
+        for (int i = count - 1; i >= 0; i--) {
+            batches.get(i).release();
+        }
+        for (long zxid = 1; zxid <= count; zxid++) {
+            assertEquals(zxid, nextProcessed().zxid);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testRequestsWithoutTxnDoNotOvertakeBatches() throws Exception {
+        start(0);
+        Request write = write(1);
+        processor.processRequest(write);
+        GatedTxns writeBatch = nextBatch();
+
+        // a batch is in flight, so the read queues behind it
+        Request read = read(2);
+        processor.processRequest(read);
+        GatedTxns readBatch = nextBatch();
+        assertTrue(readBatch.requests.isEmpty());
+        assertNothingProcessed();
+
+        writeBatch.release();
+        assertSame(write, nextProcessed());
+        assertNothingProcessed();
+
+        readBatch.release();
+        assertSame(read, nextProcessed());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testReadPassedOnWithoutBatchInFlight() throws Exception {
+        start(0);
+        Request read = read(1);
+        processor.processRequest(read);
+        assertSame(read, nextProcessed());
+        assertTrue(allWritten.isEmpty());
+    }
+
+    @Test
+    public void testShutdownDrainsPendingBatches() throws Exception {
+        start(1);
+        int count = 5;
+        for (long zxid = 1; zxid <= count; zxid++) {
+            processor.processRequest(write(zxid));
+        }
+        List<GatedTxns> batches = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batches.add(nextBatch());
+        }
+
+        Future<?> shutdown = executor.submit(processor::shutdown);
+        // waits for the syncs
+        Thread.sleep(QUIET_MS);
+        assertFalse(shutdown.isDone());
+        assertEquals(-1, next.processedAtShutdown);
+
+        for (GatedTxns batch : batches) {
+            batch.release();
+        }
+        shutdown.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(count, next.processedAtShutdown);
+        for (long zxid = 1; zxid <= count; zxid++) {
+            assertEquals(zxid, next.processed.poll().zxid);
+        }
+        assertFalse(processor.isAlive());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileDeltaSnapTest {
+
+    private File dataDir;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_DELTA_COUNT, "2");
+        dataDir = Files.createTempDirectory("deltasnap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_DELTA_COUNT);
+        delete(dataDir);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Change the tree the same way for the same step: create, update and
+     * delete nodes, including a whole subtree and ephemeral nodes.
+     */
+    private static void mutate(DataTree dt, Map<Long, Integer> sessions, int step) throws Exception {
+        long zxid = dt.lastProcessedZxid + 1;
+        String parent = "/step" + step;
+        dt.createNode(parent, new byte[]{(byte) step}, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 0, zxid++, step);
+        for (int i = 0; i < 20; i++) {
+            dt.createNode(parent + "/c" + i, new byte[i], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, i, zxid++, step);
+        }
+        long session = 0x200 + step;
+        sessions.put(session, 10000);
+        dt.createNode(parent + "/e", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, session, 20, zxid++, step);
+        for (int i = step; i < 500; i += 5) {
+            String path = "/p" + (i % 7) + "/n" + i;
+            if (dt.getNode(path) != null) {
+                dt.setData(path, ("step" + step).getBytes(), step, zxid++, step);
+            }
+        }
+        for (int i = step + 1; i < 500; i += 9) {
+            String path = "/p" + (i % 7) + "/n" + i;
+            if (dt.getNode(path) != null) {
+                dt.deleteNode(path, zxid++);
+            }
+        }
+        if (step > 1) {
+            // drop the subtree created by the previous step
+            String previous = "/step" + (step - 1);
+            for (int i = 0; i < 20; i++) {
+                dt.deleteNode(previous + "/c" + i, zxid++);
+            }
+            dt.deleteNode(previous + "/e", zxid++);
+            dt.deleteNode(previous, zxid++);
+            sessions.remove(0x200L + step - 1);
+        }
+        dt.lastProcessedZxid = zxid - 1;
+    }
+
+    private static DataTree expectedTree(int steps) throws Exception {
+        DataTree dt = FileSnapTest.createTree(500, 1);
+        Map<Long, Integer> sessions = new HashMap<>();
+        for (int step = 1; step <= steps; step++) {
+            mutate(dt, sessions, step);
+        }
+        return dt;
+    }
+
+    private DataTree restore(long expectedZxid, Map<Long, Integer> expectedSessions) throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree dt = new DataTree();
+        Map<Long, Integer> sessions = new HashMap<>();
+        assertEquals(expectedZxid, snapLog.restore(dt, sessions, (hdr, rec, digest) -> { }));
+        assertEquals(expectedSessions, sessions);
+        snapLog.close();
+        return dt;
+    }
+
+    @Test
+    public void testDeltasAppliedOverBaseSnapshot() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree dt = FileSnapTest.createTree(500, 1);
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        assertTrue(snapLog.save(dt, sessions, false, true).getName().startsWith(FileSnap.SNAPSHOT_FILE_PREFIX));
+
+        mutate(dt, sessions, 1);
+        assertTrue(snapLog.save(dt, sessions, false, true).getName().startsWith(FileDeltaSnap.DELTA_FILE_PREFIX));
+        assertTreesEqual(dt, restore(dt.lastProcessedZxid, sessions));
+
+        mutate(dt, sessions, 2);
+        assertTrue(snapLog.save(dt, sessions, false, true).getName().startsWith(FileDeltaSnap.DELTA_FILE_PREFIX));
+        assertTreesEqual(dt, restore(dt.lastProcessedZxid, sessions));
+        assertTreesEqual(expectedTree(2), restore(dt.lastProcessedZxid, sessions));
+
+        // deltaCount deltas were taken, the next one is a full snapshot and
+        // the deltas of the previous one are left out
+        mutate(dt, sessions, 3);
+        assertTrue(snapLog.save(dt, sessions, false, true).getName().startsWith(FileSnap.SNAPSHOT_FILE_PREFIX));
+        assertTreesEqual(dt, restore(dt.lastProcessedZxid, sessions));
+
+        mutate(dt, sessions, 4);
+        assertTrue(snapLog.save(dt, sessions, false, true).getName().startsWith(FileDeltaSnap.DELTA_FILE_PREFIX));
+        assertTreesEqual(dt, restore(dt.lastProcessedZxid, sessions));
+        assertTreesEqual(expectedTree(4), restore(dt.lastProcessedZxid, sessions));
+        snapLog.close();
+    }
+
+    @Test
+    public void testCorruptDeltaStopsTheChain() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree dt = FileSnapTest.createTree(500, 1);
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        snapLog.save(dt, sessions, false, true);
+        mutate(dt, sessions, 1);
+        snapLog.save(dt, sessions, false, true);
+        long firstDeltaZxid = dt.lastProcessedZxid;
+        Map<Long, Integer> firstDeltaSessions = new HashMap<>(sessions);
+        mutate(dt, sessions, 2);
+        File corrupt = snapLog.save(dt, sessions, false, true);
+        snapLog.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(corrupt, "rw")) {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        assertTreesEqual(expectedTree(1), restore(firstDeltaZxid, firstDeltaSessions));
+    }
+
+    @Test
+    public void testTruncateDropsNewerDeltas() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree dt = FileSnapTest.createTree(500, 1);
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        snapLog.save(dt, sessions, false, true);
+        mutate(dt, sessions, 1);
+        snapLog.save(dt, sessions, false, true);
+        long firstDeltaZxid = dt.lastProcessedZxid;
+        Map<Long, Integer> firstDeltaSessions = new HashMap<>(sessions);
+        mutate(dt, sessions, 2);
+        File second = snapLog.save(dt, sessions, false, true);
+        snapLog.close();
+
+        new FileDeltaSnap(second.getParentFile()).truncate(firstDeltaZxid);
+        assertTrue(!second.exists());
+        assertTreesEqual(expectedTree(1), restore(firstDeltaZxid, firstDeltaSessions));
+    }
+
+    private static void assertTreesEqual(DataTree expected, DataTree actual) throws Exception {
+        FileSnapTest.assertTreesEqual(expected, actual);
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.EphemeralType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSnapTest {
+
+    private File snapDir;
+
+    @Before
+    public void setUp() throws Exception {
+        snapDir = Files.createTempDirectory("filesnap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileSnap.setChunkSize(0);
+        FileSnap.setLoadThreads(Runtime.getRuntime().availableProcessors());
+        for (File f : snapDir.listFiles()) {
+            f.delete();
+        }
+        snapDir.delete();
+    }
+
+    static DataTree createTree(int count, long seed) throws Exception {
+        Random random = new Random(seed);
+        List<ACL> digestAcl = Collections.singletonList(new ACL(ZooDefs.Perms.READ, new Id("digest", "user:secret")));
+        DataTree dt = new DataTree();
+        long zxid = 1;
+        for (int i = 0; i < count; i++) {
+            String parent = "/p" + (i % 7);
+            if (dt.getNode(parent) == null) {
+                dt.createNode(parent, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 0, zxid++, 1);
+            }
+            byte[] data = new byte[random.nextInt(300)];
+            random.nextBytes(data);
+            long owner = 0;
+            if (i % 11 == 0) {
+                owner = 0x100 + i % 3;
+            } else if (i % 13 == 0) {
+                owner = EphemeralType.CONTAINER_EPHEMERAL_OWNER;
+            }
+            dt.createNode(parent + "/n" + i, data, i % 2 == 0 ? ZooDefs.Ids.OPEN_ACL_UNSAFE : digestAcl,
+                owner, i, zxid++, i);
+        }
+        dt.lastProcessedZxid = zxid - 1;
+        return dt;
+    }
+
+    static void assertTreesEqual(DataTree expected, DataTree actual) throws Exception {
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertNodesEqual(expected, actual, "/");
+        assertEquals(ephemerals(expected), ephemerals(actual));
+        assertEquals(expected.getContainers(), actual.getContainers());
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+    }
+
+    // the sessions whose ephemerals were all deleted are left with an empty set
+    private static Map<Long, Set<String>> ephemerals(DataTree dt) {
+        Map<Long, Set<String>> ephemerals = new HashMap<>(dt.getEphemerals());
+        ephemerals.values().removeIf(Set::isEmpty);
+        return ephemerals;
+    }
+
+    private static void assertNodesEqual(DataTree expected, DataTree actual, String path) throws Exception {
+        Stat expectedStat = new Stat();
+        Stat actualStat = new Stat();
+        assertArrayEquals(path, expected.getData(path, expectedStat, null), actual.getData(path, actualStat, null));
+        assertEquals(path, expectedStat, actualStat);
+        assertEquals(path, expected.getACL(path, null), actual.getACL(path, null));
+        List<String> children = new ArrayList<>(expected.getChildren(path, null, null));
+        List<String> actualChildren = new ArrayList<>(actual.getChildren(path, null, null));
+        Collections.sort(children);
+        Collections.sort(actualChildren);
+        assertEquals(path, children, actualChildren);
+        for (String child : children) {
+            assertNodesEqual(expected, actual, ("/".equals(path) ? "" : path) + "/" + child);
+        }
+    }
+
+    private static Map<Long, Integer> sessions() {
+        Map<Long, Integer> sessions = new HashMap<>();
+        for (long id = 0x100; id < 0x103; id++) {
+            sessions.put(id, 30000);
+        }
+        return sessions;
+    }
+
+    private File save(DataTree dt) throws Exception {
+        File file = new File(snapDir, Util.makeSnapshotName(dt.lastProcessedZxid));
+        new FileSnap(snapDir).serialize(dt, sessions(), file, false);
+        return file;
+    }
+
+    private DataTree load(long expectedZxid) throws Exception {
+        DataTree dt = new DataTree();
+        Map<Long, Integer> sessions = new HashMap<>();
+        assertEquals(expectedZxid, new FileSnap(snapDir).deserialize(dt, sessions));
+        assertEquals(sessions(), sessions);
+        return dt;
+    }
+
+    @Test
+    public void testChunkedRoundTrip() throws Exception {
+        FileSnap.setChunkSize(1024);
+        FileSnap.setLoadThreads(4);
+        DataTree dt = createTree(2000, 1);
+        save(dt);
+        assertTreesEqual(dt, load(dt.lastProcessedZxid));
+    }
+
+    @Test
+    public void testChunkLargerThanTree() throws Exception {
+        FileSnap.setChunkSize(1024 * 1024);
+        FileSnap.setLoadThreads(1);
+        DataTree dt = createTree(50, 2);
+        save(dt);
+        assertTreesEqual(dt, load(dt.lastProcessedZxid));
+    }
+
+    @Test
+    public void testChunkedAndStreamSnapshotsAreInterchangeable() throws Exception {
+        DataTree dt = createTree(500, 3);
+        save(dt);
+        FileSnap.setChunkSize(512);
+        assertTreesEqual(dt, load(dt.lastProcessedZxid));
+
+        DataTree newer = createTree(600, 4);
+        save(newer);
+        FileSnap.setChunkSize(0);
+        assertTreesEqual(newer, load(newer.lastProcessedZxid));
+    }
+
+    @Test
+    public void testCorruptChunkFallsBackToOlderSnapshot() throws Exception {
+        FileSnap.setChunkSize(512);
+        FileSnap.setLoadThreads(4);
+        DataTree older = createTree(1000, 5);
+        save(older);
+        DataTree newer = createTree(1500, 6);
+        File corrupt = save(newer);
+        try (RandomAccessFile raf = new RandomAccessFile(corrupt, "rw")) {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        assertTreesEqual(older, load(older.lastProcessedZxid));
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog.FileTxnIterator;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Reads the same logs through the mapped and the stream iterators, which
+ * must agree on where a log ends.
+ */
+@RunWith(Parameterized.class)
+public class FileTxnIteratorTest {
+
+    private static final int TXNS_PER_LOG = 100;
+
+    private final boolean mmap;
+    private File logDir;
+
+    public FileTxnIteratorTest(boolean mmap) {
+        this.mmap = mmap;
+    }
+
+    @Parameterized.Parameters(name = "mmap={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][]{{true}, {false}});
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = Files.createTempDirectory("txnlog").toFile();
+        FileTxnLog.setPreallocSize(64 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        FileTxnLog.setPreallocSize(64 * 1024 * 1024);
+        for (File f : logDir.listFiles()) {
+            f.delete();
+        }
+        logDir.delete();
+    }
+
+    private static void append(FileTxnLog log, long zxid) throws IOException {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create);
+        byte[] data = new byte[(int) (zxid % 50)];
+        Arrays.fill(data, (byte) zxid);
+        log.append(hdr, new CreateTxn("/node" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1));
+    }
+
+    /**
+     * Write the txns from 1 to the given zxid, rolling the log every
+     * TXNS_PER_LOG txns.
+     */
+    private void writeLogs(long lastZxid) throws IOException {
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (long zxid = 1; zxid <= lastZxid; zxid++) {
+            append(log, zxid);
+            if (zxid % TXNS_PER_LOG == 0) {
+                log.commit();
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+    }
+
+    private List<Long> readZxids(long zxid, FileTxnIterator.Start start) throws IOException {
+        List<Long> zxids = new ArrayList<>();
+        try (FileTxnIterator itr = new FileTxnIterator(logDir, zxid, start, mmap)) {
+            while (itr.getHeader() != null) {
+                CreateTxn txn = (CreateTxn) itr.getTxn();
+                assertEquals("/node" + itr.getHeader().getZxid(), txn.getPath());
+                assertEquals(itr.getHeader().getZxid() % 50, txn.getData().length);
+                zxids.add(itr.getHeader().getZxid());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        }
+        return zxids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> zxids = new ArrayList<>();
+        for (long zxid = from; zxid <= to; zxid++) {
+            zxids.add(zxid);
+        }
+        return zxids;
+    }
+
+    /**
+     * @return the log file holding the given zxid and the offset of its entry
+     */
+    private long entryOffset(long zxid) throws IOException {
+        try (FileTxnIterator itr = new FileTxnIterator(logDir, zxid - 1, FileTxnIterator.Start.ZXID, mmap)) {
+            assertEquals(zxid - 1, itr.getHeader().getZxid());
+            return itr.getPosition();
+        }
+    }
+
+    private File logOf(long zxid) {
+        long first = (zxid - 1) / TXNS_PER_LOG * TXNS_PER_LOG + 1;
+        return new File(logDir, Util.makeLogName(first));
+    }
+
+    /**
+     * @return the number of mappings of the files in the log directory
+     *         among the mappings of the process
+     */
+    private long mappedLogs() throws IOException {
+        File maps = new File("/proc/self/maps");
+        assumeTrue("the mappings of the process are listed", maps.exists());
+        String dir = logDir.getCanonicalPath() + File.separator;
+        return Files.readAllLines(maps.toPath()).stream().filter(line -> line.contains(dir)).count();
+    }
+
+    @Test
+    public void testLogsUnmapped() throws Exception {
+        writeLogs(250);
+        assertEquals(0, mappedLogs());
+
+        // read to the end of the logs
+        assertEquals(range(1, 250), readZxids(1, FileTxnIterator.Start.LOG));
+        assertEquals(0, mappedLogs());
+
+        // closed in the middle of a log
+        try (FileTxnIterator itr = new FileTxnIterator(logDir, 150, FileTxnIterator.Start.ZXID, mmap)) {
+            assertEquals(150, itr.getHeader().getZxid());
+            assertEquals(mmap ? 1 : 0, mappedLogs());
+        }
+        assertEquals(0, mappedLogs());
+    }
+
+    @Test
+    public void testReadPreallocatedLogs() throws Exception {
+        writeLogs(250);
+        // the logs are padded with zeros past their last txn
+        assertTrue(logOf(250).length() >= 64 * 1024);
+        assertEquals(range(1, 250), readZxids(1, FileTxnIterator.Start.LOG));
+        assertEquals(range(101, 250), readZxids(120, FileTxnIterator.Start.LOG));
+        assertEquals(range(120, 250), readZxids(120, FileTxnIterator.Start.ZXID));
+        // the stream reader starts at the closest indexed txn before
+        List<Long> before = readZxids(120, FileTxnIterator.Start.BEFORE_ZXID);
+        assertEquals(range(mmap ? 119 : before.get(0), 250), before);
+        assertTrue(before.get(0) >= 101 && before.get(0) <= 119);
+        assertEquals(range(201, 250), readZxids(201, FileTxnIterator.Start.ZXID));
+        assertTrue(readZxids(251, FileTxnIterator.Start.ZXID).isEmpty());
+    }
+
+    @Test
+    public void testPartialLastTxn() throws Exception {
+        writeLogs(250);
+        long offset = entryOffset(250);
+        try (RandomAccessFile raf = new RandomAccessFile(logOf(250), "rw")) {
+            // cut the last txn before its end of record marker
+            raf.setLength(offset + 20);
+        }
+        assertEquals(range(1, 249), readZxids(1, FileTxnIterator.Start.LOG));
+        assertEquals(range(240, 249), readZxids(240, FileTxnIterator.Start.ZXID));
+    }
+
+    @Test
+    public void testMissingEndOfRecordMarker() throws Exception {
+        writeLogs(250);
+        long offset = entryOffset(231);
+        try (RandomAccessFile raf = new RandomAccessFile(logOf(231), "rw")) {
+            raf.seek(offset + 8);
+            int len = raf.readInt();
+            raf.seek(offset + 12 + len);
+            raf.write(0);
+        }
+        assertEquals(range(1, 230), readZxids(1, FileTxnIterator.Start.LOG));
+    }
+
+    @Test
+    public void testCrcMismatch() throws Exception {
+        writeLogs(250);
+        long offset = entryOffset(150);
+        try (RandomAccessFile raf = new RandomAccessFile(logOf(150), "rw")) {
+            raf.seek(offset + 12 + 4);
+            int b = raf.read();
+            raf.seek(offset + 12 + 4);
+            raf.write(b ^ 0xff);
+        }
+        try (FileTxnIterator itr = new FileTxnIterator(logDir, 140, FileTxnIterator.Start.ZXID, mmap)) {
+            for (long zxid = 140; zxid < 150; zxid++) {
+                assertEquals(zxid, itr.getHeader().getZxid());
+                if (zxid < 149) {
+                    assertTrue(itr.next());
+                }
+            }
+            try {
+                itr.next();
+                fail("The corrupt txn was read");
+            } catch (IOException e) {
+                assertEquals(FileTxnIterator.CRC_ERROR, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        writeLogs(250);
+        FileTxnLog log = new FileTxnLog(logDir);
+        assertTrue(log.truncate(180));
+        log.close();
+        assertFalse(logOf(250).exists());
+        assertEquals(range(1, 180), readZxids(1, FileTxnIterator.Start.LOG));
+        assertEquals(range(170, 180), readZxids(170, FileTxnIterator.Start.ZXID));
+
+        // the txns appended after the truncation follow the truncated log
+        log = new FileTxnLog(logDir);
+        for (long zxid = 181; zxid <= 190; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+        assertEquals(range(1, 190), readZxids(1, FileTxnIterator.Start.LOG));
+        assertEquals(range(175, 190), readZxids(175, FileTxnIterator.Start.ZXID));
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog.FileTxnIterator;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+@RunWith(Parameterized.class)
+public class TxnLogCodecTest {
+
+    private final TxnLogCodec codec;
+
+    public TxnLogCodecTest(TxnLogCodec codec) {
+        this.codec = codec;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getParameters() {
+        List<Object[]> codecs = new ArrayList<>();
+        for (TxnLogCodec codec : TxnLogCodec.values()) {
+            codecs.add(new Object[]{codec});
+        }
+        return codecs;
+    }
+
+    private byte[] compress(byte[] raw) {
+        byte[] compressed = new byte[codec.maxCompressedLength(raw.length)];
+        int len = codec.compress(raw, raw.length, compressed);
+        assertTrue(len <= compressed.length);
+        return Arrays.copyOf(compressed, len);
+    }
+
+    private void assertRoundTrip(byte[] raw) throws IOException {
+        byte[] compressed = compress(raw);
+        // the destination may be larger than the raw bytes
+        byte[] decompressed = new byte[raw.length + 7];
+        codec.decompress(compressed, compressed.length, decompressed, raw.length);
+        assertArrayEquals(raw, Arrays.copyOf(decompressed, raw.length));
+    }
+
+    private static byte[] random(Random random, int len) {
+        byte[] b = new byte[len];
+        random.nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Bytes which repeat with the given period, with some noise.
+     */
+    private static byte[] repetitive(Random random, int len, int period) {
+        byte[] b = new byte[len];
+        byte[] pattern = random(random, period);
+        for (int i = 0; i < len; i++) {
+            b[i] = pattern[i % period];
+            if (random.nextInt(50) == 0) {
+                b[i] = (byte) random.nextInt();
+            }
+        }
+        return b;
+    }
+
+    @Test
+    public void testSmallLengths() throws Exception {
+        Random random = new Random(1);
+        for (int len = 0; len <= 40; len++) {
+            assertRoundTrip(random(random, len));
+            assertRoundTrip(new byte[len]);
+            assertRoundTrip(repetitive(random, len, 3));
+        }
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        Random random = new Random(2);
+        for (int len : new int[]{100, 4095, 4096, 65535, 65536, 65537, 1 << 20}) {
+            byte[] raw = random(random, len);
+            assertRoundTrip(raw);
+            assertTrue(compress(raw).length <= codec.maxCompressedLength(len));
+        }
+    }
+
+    @Test
+    public void testCompressible() throws Exception {
+        Random random = new Random(3);
+        for (int period : new int[]{1, 2, 4, 7, 100, 1000, 70000}) {
+            for (int len : new int[]{15, 16, 270, 271, 4096, 100000, 300000}) {
+                byte[] raw = repetitive(random, len, period);
+                assertRoundTrip(raw);
+            }
+        }
+        if (codec != TxnLogCodec.NONE) {
+            byte[] raw = repetitive(random, 100000, 10);
+            assertTrue(compress(raw).length < raw.length / 2);
+        }
+    }
+
+    @Test
+    public void testLongRuns() throws Exception {
+        Random random = new Random(4);
+        // literal and match lengths which need several extra length bytes,
+        // and matches at the largest LZ4 offset
+        for (int run : new int[]{14, 15, 18, 19, 269, 270, 274, 529, 100000}) {
+            byte[] raw = new byte[3 * run + 100];
+            System.arraycopy(random(random, run), 0, raw, 0, run);
+            System.arraycopy(raw, 0, raw, 2 * run, run);
+            assertRoundTrip(raw);
+        }
+        byte[] raw = random(random, 3 * 65536);
+        System.arraycopy(raw, 0, raw, 65535, 1000);
+        System.arraycopy(raw, 0, raw, 65536 + 2000, 1000);
+        assertRoundTrip(raw);
+    }
+
+    @Test
+    public void testTruncatedBlockFails() throws Exception {
+        Random random = new Random(5);
+        for (byte[] raw : new byte[][]{random(random, 5000), repetitive(random, 5000, 13), new byte[5000]}) {
+            byte[] compressed = compress(raw);
+            byte[] decompressed = new byte[raw.length];
+            for (int len = 0; len < compressed.length; len++) {
+                try {
+                    codec.decompress(compressed, len, decompressed, raw.length);
+                    fail("Decompressed " + len + " of " + compressed.length + " bytes");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptBlockFailsCleanly() throws Exception {
+        Random random = new Random(6);
+        byte[] raw = repetitive(random, 5000, 17);
+        byte[] compressed = compress(raw);
+        byte[] decompressed = new byte[raw.length];
+        for (int i = 0; i < 2000; i++) {
+            byte[] corrupt = compressed.clone();
+            for (int j = 0; j < 3; j++) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt();
+            }
+            try {
+                // a corruption may go unnoticed by the codec, the checksum
+                // of the block catches it, but it must not fail otherwise
+                codec.decompress(corrupt, corrupt.length, decompressed, raw.length);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static byte[] entries(Random random, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        for (int i = 0; i < count; i++) {
+            byte[] entry = repetitive(random, 50 + random.nextInt(200), 9);
+            dos.writeLong(i);
+            dos.writeInt(entry.length);
+            dos.write(entry);
+            dos.writeByte('B');
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(TxnLogBlockInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[333];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBlocks() throws Exception {
+        Random random = new Random(7);
+        byte[][] blocks = new byte[5][];
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(log);
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = entries(random, 20 + i);
+            TxnLogBlock.write(out, codec, blocks[i], blocks[i].length, i * 100 + 1, i * 100 + 20 + i);
+            raw.write(blocks[i]);
+        }
+        byte[] bytes = log.toByteArray();
+        TxnLogBlockInputStream in = new TxnLogBlockInputStream(
+            new DataInputStream(new ByteArrayInputStream(bytes)), codec);
+        assertArrayEquals(raw.toByteArray(), readAll(in));
+
+        // a partial last block ends the stream after the complete ones
+        int lastBlock = bytes.length - (TxnLogBlock.BLOCK_OVERHEAD + compress(blocks[4]).length);
+        for (int len : new int[]{lastBlock + 1, lastBlock + TxnLogBlock.BLOCK_HEADER_SIZE, bytes.length - 1}) {
+            in = new TxnLogBlockInputStream(
+                new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes, len))), codec);
+            assertArrayEquals(Arrays.copyOf(raw.toByteArray(), raw.size() - blocks[4].length), readAll(in));
+        }
+
+        // a corrupt block fails the checksum
+        byte[] corrupt = bytes.clone();
+        corrupt[lastBlock + TxnLogBlock.BLOCK_HEADER_SIZE + 1] ^= 0xff;
+        in = new TxnLogBlockInputStream(new DataInputStream(new ByteArrayInputStream(corrupt)), codec);
+        try {
+            readAll(in);
+            fail("The corrupt block was read");
+        } catch (IOException e) {
+            assertEquals(FileTxnIterator.CRC_ERROR, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompressedLog() throws Exception {
+        File logDir = Files.createTempDirectory("txnlogcodec").toFile();
+        FileTxnLog.setTxnLogCodec(codec);
+        try {
+            Random random = new Random(8);
+            FileTxnLog log = new FileTxnLog(logDir);
+            long zxid = 1;
+            // blocks of one txn up to many txns, over several logs
+            for (int commit = 0; commit < 60; commit++) {
+                for (int i = random.nextInt(commit + 1); i >= 0; i--, zxid++) {
+                    TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create);
+                    byte[] data = repetitive(random, random.nextInt(3000), 11);
+                    log.append(hdr, new CreateTxn("/node" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1));
+                }
+                log.commit();
+                if (commit % 20 == 19) {
+                    log.rollLog();
+                }
+            }
+            log.close();
+            long lastZxid = zxid - 1;
+
+            for (long start : new long[]{1, 2, lastZxid / 3, lastZxid / 2 + 1, lastZxid}) {
+                try (FileTxnIterator itr = new FileTxnIterator(logDir, start, FileTxnIterator.Start.ZXID, false)) {
+                    for (long expected = start; expected <= lastZxid; expected++) {
+                        assertEquals(expected, itr.getHeader().getZxid());
+                        assertEquals("/node" + expected, ((CreateTxn) itr.getTxn()).getPath());
+                        assertEquals(expected < lastZxid, itr.next());
+                    }
+                }
+            }
+        } finally {
+            FileTxnLog.setTxnLogCodec(TxnLogCodec.NONE);
+            for (File f : logDir.listFiles()) {
+                f.delete();
+            }
+            logDir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Scanner;
+import java.util.Set;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TxnLogIndexTest {
+
+    private static final int TXNS = 1000;
+
+    private File logDir;
+    private File logFile;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = Files.createTempDirectory("txnlogindex").toFile();
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (long zxid = 1; zxid <= TXNS; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create);
+            // about 1KB per txn, so that the log gets several index entries
+            log.append(hdr, new CreateTxn("/node" + zxid, new byte[1000], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1));
+            if (zxid % 100 == 0) {
+                log.commit();
+            }
+        }
+        log.commit();
+        log.close();
+        logFile = new File(logDir, Util.makeLogName(1));
+        assertTrue(logFile.exists());
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : logDir.listFiles()) {
+            f.delete();
+        }
+        logDir.delete();
+    }
+
+    private Set<String> listFiles() {
+        return new HashSet<>(Arrays.asList(logDir.list()));
+    }
+
+    private static long zxidAt(File logFile, long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            raf.seek(offset + FileTxnLog.TXN_ENTRY_ZXID_OFFSET);
+            return raf.readLong();
+        }
+    }
+
+    private static void assertOffset(File logFile, long zxid, long offset) throws IOException {
+        assertTrue("no indexed txn before " + zxid, offset > 0);
+        long indexedZxid = zxidAt(logFile, offset);
+        assertTrue(indexedZxid <= zxid);
+        // the index keeps a txn every index interval at most
+        assertTrue(zxid - indexedZxid <= TxnLogIndex.getIndexInterval() / 1000 + 1);
+    }
+
+    @Test
+    public void testWriterIndex() throws Exception {
+        File indexFile = TxnLogIndex.getIndexFile(logFile);
+        assertTrue(indexFile.exists());
+        for (long zxid = 200; zxid <= TXNS; zxid += 97) {
+            assertOffset(logFile, zxid, TxnLogIndex.getOffset(logFile, zxid));
+        }
+        assertEquals(-1, TxnLogIndex.getOffset(logFile, 0));
+    }
+
+    @Test
+    public void testReadOnlyLookupDoesNotWrite() throws Exception {
+        assertTrue(TxnLogIndex.getIndexFile(logFile).delete());
+        Set<String> files = listFiles();
+        for (long zxid = 200; zxid <= TXNS; zxid += 97) {
+            assertOffset(logFile, zxid, TxnLogIndex.getOffsetReadOnly(logFile, zxid));
+        }
+        assertEquals(files, listFiles());
+    }
+
+    @Test
+    public void testNameWithoutZxid() throws Exception {
+        File copy = new File(logDir, "copy.of.log");
+        File other = new File(logDir, "another");
+        Files.copy(logFile.toPath(), copy.toPath());
+        Files.copy(logFile.toPath(), other.toPath());
+        assertNull(TxnLogIndex.getIndexFile(copy));
+        Set<String> files = listFiles();
+        assertOffset(copy, 500, TxnLogIndex.getOffsetReadOnly(copy, 500));
+        assertOffset(other, 700, TxnLogIndex.getOffsetReadOnly(other, 700));
+        // the index of a log without a zxid in its name is kept in memory
+        assertOffset(copy, 600, TxnLogIndex.getOffset(copy, 600));
+        assertEquals(files, listFiles());
+    }
+
+    @Test
+    public void testToolkitDumpDoesNotWrite() throws Exception {
+        assertTrue(TxnLogIndex.getIndexFile(logFile).delete());
+        Set<String> files = listFiles();
+        try (TxnLogToolkit lt = TxnLogToolkit.parseCommandLine(new String[]{logFile.getPath(), "-z", "900"})) {
+            lt.dump(new Scanner(System.in));
+        }
+        assertEquals(files, listFiles());
+        assertFalse(TxnLogIndex.getIndexFile(logFile).exists());
+    }
+
+}
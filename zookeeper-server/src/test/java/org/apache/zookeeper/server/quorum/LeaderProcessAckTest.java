@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Commits of {@link Leader#processAck} when the acks of several learners are
+ * processed concurrently, across a reconfiguration.
+ */
+public class LeaderProcessAckTest {
+
+    // the leader is server 1, a voter of both configurations
+    private static final long MY_ID = 1;
+    private static final long EPOCH = 2;
+    private static final int PROPOSALS = 200;
+    private static final int RECONFIG_INDEX = 100;
+    // the last zxid committed is from the previous epoch
+    private static final long LAST_COMMITTED = ZxidUtils.makeZxid(EPOCH - 1, 57);
+
+    private final InetSocketAddress quorumAddress = new InetSocketAddress("127.0.0.1", 0);
+    private final List<Long> committed = Collections.synchronizedList(new ArrayList<>());
+    private QuorumPeer self;
+    private Leader leader;
+    private QuorumVerifier oldQv;
+    private QuorumVerifier newQv;
+
+    private QuorumVerifier quorumOf(long... sids) {
+        Map<Long, QuorumServer> servers = new HashMap<>();
+        for (long sid : sids) {
+            InetSocketAddress addr = sid == MY_ID ? quorumAddress : new InetSocketAddress("127.0.0.1", 2000 + (int) sid);
+            servers.put(sid, new QuorumServer(sid, addr));
+        }
+        return new QuorumMaj(servers);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        self = mock(QuorumPeer.class);
+        when(self.getMyId()).thenReturn(MY_ID);
+        when(self.getQuorumAddress()).thenReturn(new MultipleAddresses(quorumAddress));
+        LeaderZooKeeperServer zk = mock(LeaderZooKeeperServer.class);
+        zk.commitProcessor = mock(CommitProcessor.class);
+        doAnswer(invocation -> {
+            committed.add(((Request) invocation.getArgument(0)).zxid);
+            return null;
+        }).when(zk.commitProcessor).commit(any(Request.class));
+        leader = new Leader(self, zk);
+        // the learners are not connected, the acks are processed directly
+        leader.closeSockets();
+
+        oldQv = quorumOf(1, 2, 3);
+        newQv = quorumOf(1, 4, 5);
+        leader.lastCommitted = LAST_COMMITTED;
+        for (int i = 1; i <= PROPOSALS; i++) {
+            long zxid = ZxidUtils.makeZxid(EPOCH, i);
+            int type = i == RECONFIG_INDEX ? OpCode.reconfig : OpCode.setData;
+            TxnHeader hdr = new TxnHeader(1, i, zxid, System.currentTimeMillis(), type);
+            Proposal p = new Proposal();
+            p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, new byte[0], null);
+            p.request = new Request(1, i, type, hdr, new SetDataTxn("/a", new byte[0], -1), zxid);
+            p.addQuorumVerifier(oldQv);
+            if (i >= RECONFIG_INDEX) {
+                // the reconfiguration and the proposals which follow it
+                // wait for a quorum of both configurations
+                p.addQuorumVerifier(newQv);
+            }
+            leader.outstandingProposals.put(zxid, p);
+            leader.lastProposed = zxid;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        leader.closeSockets();
+    }
+
+    private void ackAll(long sid) {
+        for (int i = 1; i <= PROPOSALS; i++) {
+            leader.processAck(sid, ZxidUtils.makeZxid(EPOCH, i), null);
+        }
+    }
+
+    /**
+     * Ack every proposal in order from each server, on a thread per server
+     * started at once.
+     */
+    private void ackConcurrently(long... sids) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (long sid : sids) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                ackAll(sid);
+            }, "acker-" + sid);
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(TimeUnit.SECONDS.toMillis(60));
+            assertTrue(t.getName() + " is stuck", !t.isAlive());
+        }
+    }
+
+    private void assertCommittedInOrder(int count) {
+        assertEquals(count, committed.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(ZxidUtils.makeZxid(EPOCH, i + 1), (long) committed.get(i));
+        }
+        assertEquals(count == 0 ? LAST_COMMITTED : ZxidUtils.makeZxid(EPOCH, count), leader.lastCommitted);
+        assertEquals(PROPOSALS - count, leader.outstandingProposals.size());
+    }
+
+    @Test
+    public void testFirstProposalOfEpochCommitted() {
+        leader.processAck(MY_ID, ZxidUtils.makeZxid(EPOCH, 1), null);
+        assertCommittedInOrder(0);
+        leader.processAck(2, ZxidUtils.makeZxid(EPOCH, 1), null);
+        assertCommittedInOrder(1);
+    }
+
+    @Test
+    public void testConcurrentAcksAcrossReconfig() throws Exception {
+        ackConcurrently(1, 2, 3, 4, 5);
+
+        assertCommittedInOrder(PROPOSALS);
+        verify(self, times(1)).processReconfig(eq(newQv), eq(MY_ID), anyLong(), anyBoolean());
+        assertTrue(leader.allowedToCommit);
+    }
+
+    /**
+     * A follower in cumulative ack mode acks only the last proposal of the
+     * batch it logged.
+     */
+    @Test
+    public void testSingleAckCommitsEarlierProposals() {
+        ackAll(MY_ID);
+        assertCommittedInOrder(0);
+
+        leader.processAck(2, ZxidUtils.makeZxid(EPOCH, RECONFIG_INDEX / 2), null);
+        assertCommittedInOrder(RECONFIG_INDEX / 2);
+
+        // the reconfiguration still waits for a quorum of the new configuration
+        leader.processAck(2, ZxidUtils.makeZxid(EPOCH, PROPOSALS), null);
+        assertCommittedInOrder(RECONFIG_INDEX - 1);
+        leader.processAck(4, ZxidUtils.makeZxid(EPOCH, PROPOSALS), null);
+        assertCommittedInOrder(PROPOSALS);
+        verify(self, times(1)).processReconfig(eq(newQv), eq(MY_ID), anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testProposalsAfterReconfigWaitForBothQuorums() throws Exception {
+        // a quorum of the old configuration only
+        ackConcurrently(1, 2, 3);
+        assertCommittedInOrder(RECONFIG_INDEX - 1);
+        verify(self, times(0)).processReconfig(any(), any(), anyLong(), anyBoolean());
+
+        // then of the new one too
+        ackConcurrently(4, 5);
+        assertCommittedInOrder(PROPOSALS);
+        verify(self, times(1)).processReconfig(eq(newQv), eq(MY_ID), anyLong(), anyBoolean());
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Snapshot syncs of {@link LearnerHandler} which stream the most recent
+ * snapshot file, and their fallback to serializing the database.
+ */
+public class LearnerHandlerSnapFileTest {
+
+    private static final long LAST_ZXID = 30;
+
+    private File dataDir;
+    private FileTxnSnapLog snapLog;
+    private LearnerMaster learnerMaster;
+    private MockZKDatabase db;
+    private LearnerHandler learnerHandler;
+
+    /**
+     * A database whose committedLog holds the given range of zxids, on top of
+     * the txnlog and the snapshots of the real one.
+     */
+    private static class MockZKDatabase extends ZKDatabase {
+
+        private final List<Proposal> committedLog = new ArrayList<>();
+
+        MockZKDatabase(FileTxnSnapLog snapLog) {
+            super(snapLog);
+        }
+
+        void setCommittedLog(long minZxid, long maxZxid) {
+            committedLog.clear();
+            for (long zxid = minZxid; zxid <= maxZxid; zxid++) {
+                Proposal p = new Proposal();
+                p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, new byte[0], null);
+                committedLog.add(p);
+            }
+        }
+
+        @Override
+        public long getmaxCommittedLog() {
+            return committedLog.get(committedLog.size() - 1).packet.getZxid();
+        }
+
+        @Override
+        public long getminCommittedLog() {
+            return committedLog.get(0).packet.getZxid();
+        }
+
+        @Override
+        public synchronized Collection<Proposal> getCommittedLog() {
+            return committedLog;
+        }
+
+        @Override
+        public Iterator<Proposal> getCommittedLogFrom(long zxid) {
+            return committedLog.iterator();
+        }
+
+        @Override
+        public long getDataTreeLastProcessedZxid() {
+            return LAST_ZXID;
+        }
+
+        @Override
+        public long calculateTxnLogSizeLimit() {
+            // unlimited
+            return 0;
+        }
+
+    }
+
+    private static class MockLearnerHandler extends LearnerHandler {
+
+        MockLearnerHandler(LearnerMaster learnerMaster) throws IOException {
+            super(mock(Socket.class), new BufferedInputStream(new ByteArrayInputStream(new byte[0])), learnerMaster);
+        }
+
+        @Override
+        protected boolean shouldSendMarkerPacketForLogging() {
+            return false;
+        }
+
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(LearnerHandler.FORCE_SNAP_SYNC, "true");
+        LearnerHandler.setSnapSyncFromFile(true);
+        dataDir = Files.createTempDirectory("learnerhandler").toFile();
+        snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        db = new MockZKDatabase(snapLog);
+        learnerMaster = mock(LearnerMaster.class);
+        when(learnerMaster.getZKDatabase()).thenReturn(db);
+        learnerHandler = new MockLearnerHandler(learnerMaster);
+        learnerHandler.version = Leader.SNAP_FILE_PROTOCOL_VERSION;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(LearnerHandler.FORCE_SNAP_SYNC);
+        LearnerHandler.setSnapSyncFromFile(false);
+        learnerHandler.closeSnapshotFile();
+        snapLog.close();
+        delete(dataDir);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private void logTxns(long fromZxid, long toZxid) throws IOException {
+        for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create);
+            CreateTxn txn = new CreateTxn("/n" + zxid, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+            snapLog.append(new Request(1, (int) zxid, ZooDefs.OpCode.create, hdr, txn, zxid));
+        }
+        snapLog.commit();
+    }
+
+    private File takeSnapshot(long zxid) throws IOException {
+        DataTree dt = new DataTree();
+        dt.lastProcessedZxid = zxid;
+        return snapLog.save(dt, new ConcurrentHashMap<>(), false);
+    }
+
+    /**
+     * Check that exactly the proposals in (fromZxid, toZxid] are queued, each
+     * followed by its commit, and that no DIFF or TRUNC is queued.
+     */
+    private void assertQueuedProposals(long fromZxid, long toZxid) {
+        Iterator<QuorumPacket> itr = learnerHandler.getQueuedPackets().iterator();
+        for (long zxid = fromZxid + 1; zxid <= toZxid; zxid++) {
+            QuorumPacket proposal = itr.next();
+            assertEquals(Leader.PROPOSAL, proposal.getType());
+            assertEquals(zxid, proposal.getZxid());
+            QuorumPacket commit = itr.next();
+            assertEquals(Leader.COMMIT, commit.getType());
+            assertEquals(zxid, commit.getZxid());
+        }
+        assertTrue(!itr.hasNext());
+    }
+
+    @Test
+    public void testSnapshotFileWithinCommittedLog() throws Exception {
+        logTxns(1, LAST_ZXID);
+        File snapshot = takeSnapshot(10);
+        db.setCommittedLog(5, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertEquals(snapshot, learnerHandler.getSnapshotFile());
+        assertQueuedProposals(10, LAST_ZXID);
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+    }
+
+    @Test
+    public void testSnapshotFileWithTxnLogTopUp() throws Exception {
+        logTxns(1, LAST_ZXID);
+        File snapshot = takeSnapshot(10);
+        db.setCommittedLog(20, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertEquals(snapshot, learnerHandler.getSnapshotFile());
+        // 11 to 20 from the txnlog, the rest from the committedLog
+        assertQueuedProposals(10, LAST_ZXID);
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+    }
+
+    @Test
+    public void testFallbackWithoutSnapshotFile() throws Exception {
+        logTxns(1, LAST_ZXID);
+        db.setCommittedLog(5, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        assertQueuedProposals(LAST_ZXID, LAST_ZXID);
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+    }
+
+    @Test
+    public void testFallbackWhenTxnLogMissesCommittedLog() throws Exception {
+        logTxns(1, 15);
+        takeSnapshot(10);
+        db.setCommittedLog(20, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        // the txns queued from the txnlog are dropped
+        assertQueuedProposals(LAST_ZXID, LAST_ZXID);
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+    }
+
+    @Test
+    public void testFallbackWhenSnapshotIsNewerThanCommittedLog() throws Exception {
+        logTxns(1, LAST_ZXID);
+        takeSnapshot(LAST_ZXID + 5);
+        db.setCommittedLog(5, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        assertQueuedProposals(LAST_ZXID, LAST_ZXID);
+    }
+
+    @Test
+    public void testFallbackForOldLearner() throws Exception {
+        logTxns(1, LAST_ZXID);
+        takeSnapshot(10);
+        db.setCommittedLog(5, LAST_ZXID);
+        learnerHandler.version = 0x10000;
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        assertQueuedProposals(LAST_ZXID, LAST_ZXID);
+    }
+
+    @Test
+    public void testFallbackWhenDisabled() throws Exception {
+        LearnerHandler.setSnapSyncFromFile(false);
+        logTxns(1, LAST_ZXID);
+        takeSnapshot(10);
+        db.setCommittedLog(5, LAST_ZXID);
+
+        assertTrue(learnerHandler.syncFollower(3, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        assertQueuedProposals(LAST_ZXID, LAST_ZXID);
+    }
+
+    @Test
+    public void testDiffSyncUnaffected() throws Exception {
+        System.clearProperty(LearnerHandler.FORCE_SNAP_SYNC);
+        learnerHandler = new MockLearnerHandler(learnerMaster);
+        learnerHandler.version = Leader.SNAP_FILE_PROTOCOL_VERSION;
+        logTxns(1, LAST_ZXID);
+        takeSnapshot(10);
+        db.setCommittedLog(5, LAST_ZXID);
+
+        assertNotNull(db.findMostRecentSnapshot());
+        assertTrue(!learnerHandler.syncFollower(20, learnerMaster));
+        assertNull(learnerHandler.getSnapshotFile());
+        QuorumPacket diff = learnerHandler.getQueuedPackets().peek();
+        assertEquals(Leader.DIFF, diff.getType());
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A chain of three tiers: the voting members, an Observer relaying to
+ * downstream Observers, and a downstream Observer. Each server listens on its
+ * own loopback address, so that they can all use the same observerMasterPort.
+ */
+public class ObserverRelayTest {
+
+    private static final int VOTERS = 3;
+    private static final long RELAY = 4;
+    private static final long DOWNSTREAM = 5;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+
+    private final MainThread[] servers = new MainThread[(int) DOWNSTREAM + 1];
+    private File baseDir;
+    private int quorumPort;
+    private int electionPort;
+    private int clientPort;
+    private int observerMasterPort;
+
+    /**
+     * Runs a server from its configuration file in a thread.
+     */
+    private static class MainThread extends QuorumPeerMain {
+
+        private final File confFile;
+        private Thread thread;
+
+        MainThread(File confFile) {
+            this.confFile = confFile;
+        }
+
+        void start() {
+            thread = new Thread(() -> {
+                try {
+                    initializeAndRun(new String[] {confFile.getAbsolutePath()});
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "server-" + confFile.getParentFile().getName());
+            thread.start();
+        }
+
+        void shutdown() throws InterruptedException {
+            QuorumPeer peer = quorumPeer;
+            if (peer != null) {
+                peer.shutdown();
+            }
+            thread.join(TIMEOUT_MS);
+        }
+
+        QuorumPeer peer() {
+            return quorumPeer;
+        }
+
+    }
+
+    private static String host(long sid) {
+        return "127.0.0." + sid;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("zookeeper.admin.enableServer", "false");
+        // the relay falls back to the voting members, the downstream
+        // Observer tries the relay first
+        System.setProperty(QuorumPeer.OBSERVER_LEARNER_MASTERS, RELAY + ",1,2,3");
+        Observer.setRelay(true);
+        baseDir = Files.createTempDirectory("observerrelay").toFile();
+        quorumPort = freePort();
+        electionPort = freePort();
+        clientPort = freePort();
+        observerMasterPort = freePort();
+
+        for (long sid = 1; sid <= VOTERS; sid++) {
+            startServer(sid);
+        }
+        for (long sid = 1; sid <= VOTERS; sid++) {
+            waitForSynced(sid);
+        }
+        startServer(RELAY);
+        waitForSynced(RELAY);
+        waitFor("the relay hosts observers", () -> observer(RELAY).om != null);
+        startServer(DOWNSTREAM);
+        waitForSynced(DOWNSTREAM);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MainThread server : servers) {
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+        Observer.setRelay(false);
+        System.clearProperty(QuorumPeer.OBSERVER_LEARNER_MASTERS);
+        System.clearProperty("zookeeper.admin.enableServer");
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    private void startServer(long sid) throws IOException {
+        File dir = new File(baseDir, "server" + sid);
+        File dataDir = new File(dir, "data");
+        assertTrue(dataDir.isDirectory() || dataDir.mkdirs());
+        Files.write(new File(dataDir, "myid").toPath(), Long.toString(sid).getBytes());
+        File confFile = new File(dir, "zoo.cfg");
+        try (PrintWriter out = new PrintWriter(confFile)) {
+            out.println("tickTime=500");
+            out.println("initLimit=20");
+            out.println("syncLimit=10");
+            out.println("dataDir=" + dataDir.getAbsolutePath());
+            out.println("observerMasterPort=" + observerMasterPort);
+            if (sid > VOTERS) {
+                out.println("peerType=observer");
+            }
+            for (long i = 1; i <= DOWNSTREAM; i++) {
+                String type = i > VOTERS ? "observer" : "participant";
+                out.println("server." + i + "=" + host(i) + ":" + quorumPort + ":" + electionPort + ":" + type
+                            + ";" + host(i) + ":" + clientPort);
+            }
+        }
+        servers[(int) sid] = new MainThread(confFile);
+        servers[(int) sid].start();
+    }
+
+    private QuorumPeer peer(long sid) {
+        return servers[(int) sid].peer();
+    }
+
+    private Observer observer(long sid) {
+        QuorumPeer peer = peer(sid);
+        return peer == null ? null : peer.observer;
+    }
+
+    private long learnerMasterOf(long sid) {
+        Observer observer = observer(sid);
+        return observer == null ? -1 : observer.getLearnerMasterId();
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private void waitForSynced(long sid) throws InterruptedException {
+        waitFor("server " + sid + " to be synced", () -> {
+            QuorumPeer peer = peer(sid);
+            if (peer == null || peer.getZabState() != QuorumPeer.ZabState.BROADCAST) {
+                return false;
+            }
+            ZooKeeperServer zks = peer.getActiveServer();
+            return zks != null && zks.isRunning();
+        });
+    }
+
+    private long leaderId() {
+        for (long sid = 1; sid <= VOTERS; sid++) {
+            QuorumPeer peer = peer(sid);
+            if (peer != null && peer.leader != null) {
+                return sid;
+            }
+        }
+        return -1;
+    }
+
+    private ZooKeeper connect(long sid) throws Exception {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        ZooKeeper zk = new ZooKeeper(host(sid) + ":" + clientPort, 30000, event -> {
+            if (event.getState() == org.apache.zookeeper.Watcher.Event.KeeperState.SyncConnected) {
+                connected.complete(null);
+            }
+        });
+        connected.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return zk;
+    }
+
+    /**
+     * @return whether the node is visible from the given server, after a sync
+     */
+    private boolean isVisible(ZooKeeper zk, String path) {
+        try {
+            CompletableFuture<Void> synced = new CompletableFuture<>();
+            zk.sync(path, (rc, p, ctx) -> synced.complete(null), null);
+            synced.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return zk.exists(path, false) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void createWithRetry(ZooKeeper zk, String path, byte[] data) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                // created before the connection was lost
+                return;
+            } catch (KeeperException.ConnectionLossException e) {
+                assertTrue("Timed out creating " + path, System.currentTimeMillis() < deadline);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Test
+    public void testChainTopology() {
+        long leader = leaderId();
+        assertNotEquals(-1, leader);
+        assertEquals(RELAY, learnerMasterOf(DOWNSTREAM));
+        long relayMaster = learnerMasterOf(RELAY);
+        assertTrue("relay synced from " + relayMaster, relayMaster >= 1 && relayMaster <= VOTERS);
+        // only followers host observers
+        assertNotEquals(leader, relayMaster);
+    }
+
+    @Test
+    public void testDiffSyncFromRelayCommittedLog() throws Exception {
+        try (ZooKeeper leaderClient = connect(leaderId())) {
+            leaderClient.create("/before", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            waitFor("the downstream observer to catch up", () -> peer(DOWNSTREAM).getLastLoggedZxid()
+                                                                 == peer(leaderId()).getLastLoggedZxid());
+
+            servers[(int) DOWNSTREAM].shutdown();
+            for (int i = 0; i < 20; i++) {
+                leaderClient.create("/missed" + i, new byte[] {(byte) i}, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                    CreateMode.PERSISTENT);
+            }
+            long lastZxid = peer(leaderId()).getLastLoggedZxid();
+            waitFor("the relay to catch up", () -> peer(RELAY).getZkDb().getmaxCommittedLog() == lastZxid);
+
+            // starting the server resets the metrics
+            startServer(DOWNSTREAM);
+            waitForSynced(DOWNSTREAM);
+        }
+        assertEquals(RELAY, learnerMasterOf(DOWNSTREAM));
+        ServerMetrics metrics = ServerMetrics.getMetrics();
+        assertEquals(1L, metrics.DIFF_COUNT.get());
+        assertEquals(0L, metrics.SNAP_COUNT.get());
+        assertEquals(1L, metrics.LEARNER_SYNC_COMMITTED_LOG_HIT.get());
+
+        try (ZooKeeper downstreamClient = connect(DOWNSTREAM)) {
+            for (int i = 0; i < 20; i++) {
+                assertArrayEquals(new byte[] {(byte) i}, downstreamClient.getData("/missed" + i, false, null));
+            }
+        }
+    }
+
+    @Test
+    public void testRequestsForwardedThroughRelay() throws Exception {
+        try (ZooKeeper downstreamClient = connect(DOWNSTREAM);
+             ZooKeeper leaderClient = connect(leaderId())) {
+            String path = downstreamClient.create("/fwd", "v1".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                                  CreateMode.EPHEMERAL);
+            assertNotNull(leaderClient.exists(path, false));
+            downstreamClient.setData(path, "v2".getBytes(), -1);
+            assertArrayEquals("v2".getBytes(), leaderClient.getData(path, false, null));
+
+            // a write of the leader is relayed down
+            leaderClient.setData(path, "v3".getBytes(), -1);
+            assertTrue(isVisible(downstreamClient, path));
+            assertArrayEquals("v3".getBytes(), downstreamClient.getData(path, false, null));
+            assertEquals(RELAY, learnerMasterOf(DOWNSTREAM));
+        }
+    }
+
+    @Test
+    public void testFallbackWhenRelayLosesUpstream() throws Exception {
+        long relayMaster = learnerMasterOf(RELAY);
+        servers[(int) relayMaster].shutdown();
+
+        waitFor("the relay to sync from another server", () -> {
+            long master = learnerMasterOf(RELAY);
+            return master != -1 && master != relayMaster
+                   && peer(RELAY).getZabState() == QuorumPeer.ZabState.BROADCAST;
+        });
+        waitFor("the downstream observer to sync from another server", () -> {
+            long master = learnerMasterOf(DOWNSTREAM);
+            return master != -1 && master != relayMaster
+                   && peer(DOWNSTREAM).getZabState() == QuorumPeer.ZabState.BROADCAST;
+        });
+
+        try (ZooKeeper downstreamClient = connect(DOWNSTREAM);
+             ZooKeeper leaderClient = connect(leaderId())) {
+            createWithRetry(downstreamClient, "/afterFallback", new byte[0]);
+            assertNotNull(leaderClient.exists("/afterFallback", false));
+            leaderClient.create("/fromLeader", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            waitFor("the write to reach the downstream observer", () -> isVisible(downstreamClient, "/fromLeader"));
+        }
+    }
+
+}
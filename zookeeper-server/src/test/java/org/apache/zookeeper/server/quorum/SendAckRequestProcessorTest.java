@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The acks a follower sends for the txns it logs, one per txn or one per
+ * flushed batch in cumulative ack mode, depending on the leader's protocol
+ * version announced in LEADERINFO.
+ */
+public class SendAckRequestProcessorTest {
+
+    private static final int OLD_LEADER_PROTOCOL_VERSION = 0x10000;
+
+    private final boolean cumulativeAck = Learner.getCumulativeAck();
+
+    // the packets written by the learner, and whether each was flushed
+    private final List<QuorumPacket> written = new ArrayList<>();
+    private final List<Boolean> flushed = new ArrayList<>();
+    private Learner learner;
+    private SendAckRequestProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        learner = mock(Learner.class);
+        when(learner.isCumulativeAck()).thenCallRealMethod();
+        doAnswer(invocation -> {
+            written.add(invocation.getArgument(0));
+            flushed.add(invocation.getArgument(1));
+            return null;
+        }).when(learner).writePacket(any(), anyBoolean());
+        processor = new SendAckRequestProcessor(learner);
+    }
+
+    @After
+    public void tearDown() {
+        Learner.setCumulativeAck(cumulativeAck);
+    }
+
+    private static Request txn(long counter) {
+        long zxid = ZxidUtils.makeZxid(1, counter);
+        TxnHeader hdr = new TxnHeader(1, (int) counter, zxid, 0, OpCode.setData);
+        return new Request(1, (int) counter, OpCode.setData, hdr, null, zxid);
+    }
+
+    private void logBatch(long from, long to) throws Exception {
+        for (long counter = from; counter <= to; counter++) {
+            processor.processRequest(txn(counter));
+        }
+        processor.flush();
+    }
+
+    private List<Long> ackedZxids() {
+        List<Long> zxids = new ArrayList<>();
+        for (QuorumPacket qp : written) {
+            if (qp != null) {
+                assertEquals(Leader.ACK, qp.getType());
+                zxids.add(qp.getZxid());
+            }
+        }
+        return zxids;
+    }
+
+    private static List<Long> zxids(long... counters) {
+        List<Long> zxids = new ArrayList<>();
+        for (long counter : counters) {
+            zxids.add(ZxidUtils.makeZxid(1, counter));
+        }
+        return zxids;
+    }
+
+    @Test
+    public void testOneAckPerFlush() throws Exception {
+        Learner.setCumulativeAck(true);
+        learner.leaderProtocolVersion = Leader.CUMULATIVE_ACK_PROTOCOL_VERSION;
+
+        logBatch(1, 5);
+        assertEquals(zxids(5), ackedZxids());
+        // the ack is written along with the flush
+        assertEquals(1, written.size());
+        assertTrue(flushed.get(0));
+
+        logBatch(6, 6);
+        logBatch(7, 9);
+        assertEquals(zxids(5, 6, 9), ackedZxids());
+
+        // nothing new to ack
+        processor.flush();
+        assertEquals(zxids(5, 6, 9), ackedZxids());
+        assertNull(written.get(written.size() - 1));
+    }
+
+    @Test
+    public void testSyncNotAcked() throws Exception {
+        Learner.setCumulativeAck(true);
+        learner.leaderProtocolVersion = Leader.CUMULATIVE_ACK_PROTOCOL_VERSION;
+
+        processor.processRequest(new Request(1, 1, OpCode.sync, null, null, 0));
+        processor.flush();
+        assertTrue(ackedZxids().isEmpty());
+    }
+
+    @Test
+    public void testEveryTxnAckedByOldLeader() throws Exception {
+        Learner.setCumulativeAck(true);
+        learner.leaderProtocolVersion = OLD_LEADER_PROTOCOL_VERSION;
+
+        logBatch(1, 5);
+        assertEquals(zxids(1, 2, 3, 4, 5), ackedZxids());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(flushed.get(i));
+        }
+        // then the flush alone
+        assertNull(written.get(5));
+        assertTrue(flushed.get(5));
+    }
+
+    @Test
+    public void testEveryTxnAckedWhenDisabled() throws Exception {
+        Learner.setCumulativeAck(false);
+        learner.leaderProtocolVersion = Leader.CUMULATIVE_ACK_PROTOCOL_VERSION;
+
+        logBatch(1, 3);
+        assertEquals(zxids(1, 2, 3), ackedZxids());
+    }
+
+    /**
+     * Register a learner with a leader announcing the given protocol version.
+     */
+    private static Learner registerWithLeader(int leaderProtocolVersion) throws Exception {
+        QuorumPeer self = mock(QuorumPeer.class);
+        when(self.getMyId()).thenReturn(2L);
+        when(self.getAcceptedEpoch()).thenReturn(1L);
+        when(self.getCurrentEpoch()).thenReturn(1L);
+        when(self.getQuorumVerifier()).thenReturn(mock(QuorumMaj.class));
+
+        byte[] version = new byte[4];
+        ByteBuffer.wrap(version).putInt(leaderProtocolVersion);
+        ByteArrayOutputStream fromLeader = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(fromLeader).writeRecord(
+            new QuorumPacket(Leader.LEADERINFO, ZxidUtils.makeZxid(2, 0), version, null), "packet");
+
+        Learner learner = new Learner();
+        learner.self = self;
+        learner.leaderIs = BinaryInputArchive.getArchive(new ByteArrayInputStream(fromLeader.toByteArray()));
+        learner.bufferedOutput = new BufferedOutputStream(new ByteArrayOutputStream());
+        learner.leaderOs = BinaryOutputArchive.getArchive(learner.bufferedOutput);
+        assertEquals(ZxidUtils.makeZxid(2, 0), learner.registerWithLeader(Leader.FOLLOWERINFO));
+        return learner;
+    }
+
+    @Test
+    public void testCumulativeAckNegotiatedInLeaderInfo() throws Exception {
+        Learner.setCumulativeAck(true);
+        Learner learner = registerWithLeader(Leader.CUMULATIVE_ACK_PROTOCOL_VERSION);
+        assertEquals(Leader.CUMULATIVE_ACK_PROTOCOL_VERSION, learner.leaderProtocolVersion);
+        assertTrue(learner.isCumulativeAck());
+
+        assertFalse(registerWithLeader(OLD_LEADER_PROTOCOL_VERSION).isCumulativeAck());
+        assertFalse(registerWithLeader(Leader.SNAP_FILE_PROTOCOL_VERSION).isCumulativeAck());
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+import org.apache.jute.ToStringOutputArchive;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.junit.Test;
+
+/**
+ * A packet broadcast to learners is serialized once, to the bytes a plain
+ * QuorumPacket would be written as.
+ */
+public class SerializedQuorumPacketTest {
+
+    private static final long ZXID = ZxidUtils.makeZxid(3, 42);
+
+    private static final List<Id> AUTHINFO = Arrays.asList(new Id("digest", "user:secret"), new Id("ip", "10.0.0.1"));
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    /**
+     * The packets a leader broadcasts: with and without data, with an empty
+     * body, and with auth info.
+     */
+    private static QuorumPacket[] packets() {
+        return new QuorumPacket[] {
+            new QuorumPacket(Leader.COMMIT, ZXID, null, null),
+            new QuorumPacket(Leader.PROPOSAL, ZXID, data(1000), null),
+            new QuorumPacket(Leader.INFORM, ZXID, new byte[0], null),
+            new QuorumPacket(Leader.COMMITANDACTIVATE, ZXID, data(10), Collections.emptyList()),
+            new QuorumPacket(Leader.PROPOSAL, ZXID, data(100), AUTHINFO)
+        };
+    }
+
+    private static SerializedQuorumPacket serialized(QuorumPacket qp) {
+        return new SerializedQuorumPacket(qp.getType(), qp.getZxid(), qp.getData(), qp.getAuthinfo());
+    }
+
+    /**
+     * Write a packet the way a LearnerHandler does.
+     */
+    private static byte[] write(Record qp) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(out);
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(bufferedOutput);
+        oa.writeRecord(qp, "packet");
+        bufferedOutput.flush();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSerializedLikeQuorumPacket() throws IOException {
+        for (QuorumPacket qp : packets()) {
+            byte[] expected = write(qp);
+            SerializedQuorumPacket packet = serialized(qp);
+            assertArrayEquals(expected, packet.getSerialized());
+            assertArrayEquals(expected, write(packet));
+            assertArrayEquals(expected, ByteBufferOutputArchive.serialize(packet));
+        }
+    }
+
+    @Test
+    public void testHandlersShareSerializedBytes() throws IOException {
+        SerializedQuorumPacket packet = serialized(new QuorumPacket(Leader.PROPOSAL, ZXID, data(1000), null));
+        byte[] first = write(packet);
+        byte[] serialized = packet.getSerialized();
+
+        // the packet isn't serialized again, a change after it was first
+        // written doesn't show
+        packet.setZxid(ZXID + 1);
+        packet.setData(data(10));
+        byte[] second = write(packet);
+        assertArrayEquals(first, second);
+        assertSame(serialized, packet.getSerialized());
+    }
+
+    @Test
+    public void testArchiveWithoutBinaryFormat() throws IOException {
+        for (QuorumPacket qp : packets()) {
+            assertEquals(toString(qp), toString(serialized(qp)));
+        }
+    }
+
+    private static String toString(QuorumPacket qp) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputArchive oa = new ToStringOutputArchive(out);
+        qp.serialize(oa, "packet");
+        return out.toString("UTF-8");
+    }
+
+}
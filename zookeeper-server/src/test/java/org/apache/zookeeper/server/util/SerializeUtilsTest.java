@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.jute.RecordView;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.txn.CloseSessionTxn;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+
+public class SerializeUtilsTest {
+
+    // clientId, cxid, zxid, time and type
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+
+    private static TxnHeader header(int type) {
+        return new TxnHeader(0x1234L, 7, 0x100000001L, 1000L, type);
+    }
+
+    private static List<Object[]> txnOfEveryType() throws IOException {
+        byte[] data = "data".getBytes();
+        List<Object[]> txns = new ArrayList<>();
+        txns.add(new Object[] {OpCode.createSession, new CreateSessionTxn(30000)});
+        txns.add(new Object[] {OpCode.closeSession, new CloseSessionTxn(Arrays.asList("/e1", "/e2"))});
+        txns.add(new Object[] {OpCode.create, new CreateTxn("/c", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, true, 3)});
+        txns.add(new Object[] {OpCode.create2, new CreateTxn("/c2", null, ZooDefs.Ids.READ_ACL_UNSAFE, false, 4)});
+        txns.add(new Object[] {OpCode.createTTL, new CreateTTLTxn("/t", data, ZooDefs.Ids.CREATOR_ALL_ACL, 5, 60000L)});
+        txns.add(new Object[] {OpCode.createContainer, new CreateContainerTxn("/cc", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 6)});
+        txns.add(new Object[] {OpCode.delete, new DeleteTxn("/d")});
+        txns.add(new Object[] {OpCode.deleteContainer, new DeleteTxn("/dc")});
+        txns.add(new Object[] {OpCode.setData, new SetDataTxn("/s", data, 8)});
+        txns.add(new Object[] {OpCode.reconfig, new SetDataTxn("/zookeeper/config", data, -1)});
+        txns.add(new Object[] {OpCode.setACL, new SetACLTxn("/a", ZooDefs.Ids.READ_ACL_UNSAFE, 9)});
+        txns.add(new Object[] {OpCode.error, new ErrorTxn(-101)});
+        List<Txn> ops = new ArrayList<>();
+        ops.add(new Txn(OpCode.create, Util.marshallTxnEntry(null, new CreateTxn("/m", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1))));
+        ops.add(new Txn(OpCode.delete, Util.marshallTxnEntry(null, new DeleteTxn("/n"))));
+        txns.add(new Object[] {OpCode.multi, new MultiTxn(ops)});
+        return txns;
+    }
+
+    /**
+     * Compare the values returned by all the getters of the record.
+     */
+    private static void assertSameFields(Record expected, Record actual) throws Exception {
+        assertTrue(expected.getClass().isInstance(actual));
+        for (Method m : expected.getClass().getDeclaredMethods()) {
+            if (m.getName().startsWith("get") && m.getParameterCount() == 0) {
+                Object e = m.invoke(expected);
+                Object a = m.invoke(actual);
+                if (e instanceof byte[]) {
+                    assertArrayEquals(m.getName(), (byte[]) e, (byte[]) a);
+                } else {
+                    assertEquals(m.getName(), e, a);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripEveryTxnType() throws Exception {
+        for (Object[] t : txnOfEveryType()) {
+            TxnHeader hdr = header((Integer) t[0]);
+            Record txn = (Record) t[1];
+            byte[] bytes = Util.marshallTxnEntry(hdr, txn);
+
+            TxnLogEntry entry = SerializeUtils.deserializeTxn(bytes);
+            assertEquals(hdr, entry.getHeader());
+            assertTrue(entry.getTxn() instanceof RecordView);
+            assertSameFields(txn, entry.getTxn());
+            assertArrayEquals(bytes, Util.marshallTxnEntry(entry.getHeader(), entry.getTxn()));
+        }
+    }
+
+    @Test
+    public void testBufferDroppedOnceDecoded() throws Exception {
+        for (Object[] t : txnOfEveryType()) {
+            TxnHeader hdr = header((Integer) t[0]);
+            Record txn = (Record) t[1];
+            byte[] bytes = Util.marshallTxnEntry(hdr, txn);
+            byte[] copy = bytes.clone();
+
+            TxnLogEntry entry = SerializeUtils.deserializeTxn(copy);
+            // decodes every field, the view no longer needs the bytes
+            assertSameFields(txn, entry.getTxn());
+            Arrays.fill(copy, (byte) 0);
+            assertSameFields(txn, entry.getTxn());
+            assertArrayEquals(bytes, Util.marshallTxnEntry(entry.getHeader(), entry.getTxn()));
+        }
+    }
+
+    @Test
+    public void testRoundTripFromDirectBuffer() throws Exception {
+        for (Object[] t : txnOfEveryType()) {
+            TxnHeader hdr = header((Integer) t[0]);
+            Record txn = (Record) t[1];
+            byte[] bytes = Util.marshallTxnEntry(hdr, txn);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+
+            TxnLogEntry entry = SerializeUtils.deserializeTxn(direct);
+            assertEquals(0, direct.position());
+            // the txn must not keep a reference to the direct buffer
+            direct.put(new byte[bytes.length]).flip();
+            assertSameFields(txn, entry.getTxn());
+            assertArrayEquals(bytes, Util.marshallTxnEntry(entry.getHeader(), entry.getTxn()));
+        }
+    }
+
+    private static byte[] setDataTxnWithDataLength(int len) throws IOException {
+        byte[] bytes = Util.marshallTxnEntry(header(OpCode.setData), new SetDataTxn("/s", "data".getBytes(), 1));
+        // the length of the data follows the header and the path
+        ByteBuffer.wrap(bytes).putInt(HEADER_SIZE + 4 + 2, len);
+        return bytes;
+    }
+
+    @Test
+    public void testNegativeLengthRejected() throws Exception {
+        try {
+            SerializeUtils.deserializeTxn(setDataTxnWithDataLength(-2));
+            fail("negative length accepted");
+        } catch (IOException e) {
+            assertEquals(BinaryInputArchive.UNREASONBLE_LENGTH + -2, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLengthOverMaxBufferRejected() throws Exception {
+        try {
+            SerializeUtils.deserializeTxn(setDataTxnWithDataLength(Integer.MAX_VALUE));
+            fail("length over jute.maxbuffer accepted");
+        } catch (IOException e) {
+            assertEquals(BinaryInputArchive.UNREASONBLE_LENGTH + Integer.MAX_VALUE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTruncatedTxnRejected() throws Exception {
+        byte[] bytes = setDataTxnWithDataLength(4);
+        try {
+            SerializeUtils.deserializeTxn(Arrays.copyOf(bytes, bytes.length - 6));
+            fail("truncated txn accepted");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * The WatchManager contract, checked against WatchManager itself and against
+ * WatchManagerSharded with a single stripe and with many.
+ */
+@RunWith(Parameterized.class)
+public class WatchManagerShardedTest {
+
+    private static final int PATHS = 200;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> managers() {
+        return Arrays.asList(new Object[][]{
+            {"WatchManager", (Supplier<IWatchManager>) WatchManager::new},
+            {"WatchManagerSharded-1", (Supplier<IWatchManager>) () -> new WatchManagerSharded(1)},
+            {"WatchManagerSharded-16", (Supplier<IWatchManager>) () -> new WatchManagerSharded(16)}
+        });
+    }
+
+    private final IWatchManager manager;
+
+    public WatchManagerShardedTest(String name, Supplier<IWatchManager> manager) {
+        this.manager = manager.get();
+    }
+
+    /**
+     * Records the events it's notified of.
+     */
+    private static class RecordingWatcher implements Watcher {
+
+        final List<WatchedEvent> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void process(WatchedEvent event) {
+            events.add(event);
+        }
+
+        List<String> paths() {
+            List<String> paths = new ArrayList<>();
+            synchronized (events) {
+                for (WatchedEvent event : events) {
+                    paths.add(event.getPath());
+                }
+            }
+            return paths;
+        }
+
+    }
+
+    private static ServerCnxn cnxn(long sessionId) {
+        ServerCnxn cnxn = mock(ServerCnxn.class);
+        when(cnxn.getSessionId()).thenReturn(sessionId);
+        return cnxn;
+    }
+
+    private static String path(int i) {
+        return "/node" + i;
+    }
+
+    @Test
+    public void testAddTriggerRemove() {
+        RecordingWatcher w1 = new RecordingWatcher();
+        RecordingWatcher w2 = new RecordingWatcher();
+        for (int i = 0; i < PATHS; i++) {
+            assertTrue(manager.addWatch(path(i), w1));
+            assertFalse(manager.addWatch(path(i), w1));
+            if (i % 2 == 0) {
+                assertTrue(manager.addWatch(path(i), w2));
+            }
+        }
+        assertEquals(PATHS + PATHS / 2, manager.size());
+        WatchesSummary summary = manager.getWatchesSummary();
+        assertEquals(2, summary.getNumConnections());
+        assertEquals(PATHS, summary.getNumPaths());
+        assertEquals(PATHS + PATHS / 2, summary.getTotalWatches());
+        for (int i = 0; i < PATHS; i++) {
+            assertTrue(manager.containsWatcher(path(i), w1));
+        }
+
+        // the first quarter is triggered, the second removed by path
+        for (int i = 0; i < PATHS / 4; i++) {
+            WatcherOrBitSet triggered = manager.triggerWatch(path(i), EventType.NodeDataChanged);
+            assertTrue(triggered.contains(w1));
+            assertEquals(i % 2 == 0, triggered.contains(w2));
+            assertEquals(i % 2 == 0 ? 2 : 1, triggered.size());
+            // standard watches fire once
+            assertNull(manager.triggerWatch(path(i), EventType.NodeDataChanged));
+        }
+        for (int i = PATHS / 4; i < PATHS / 2; i++) {
+            assertTrue(manager.removeWatcher(path(i), w1));
+            assertFalse(manager.removeWatcher(path(i), w1));
+            WatcherOrBitSet triggered = manager.triggerWatch(path(i), EventType.NodeDeleted);
+            if (i % 2 == 0) {
+                assertEquals(1, triggered.size());
+                assertTrue(triggered.contains(w2));
+            } else {
+                assertNull(triggered);
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < PATHS / 4; i++) {
+            expected.add(path(i));
+        }
+        assertEquals(expected, w1.paths());
+        for (WatchedEvent event : w1.events) {
+            assertEquals(EventType.NodeDataChanged, event.getType());
+        }
+        for (int i = 0; i < PATHS / 2; i++) {
+            assertFalse(manager.containsWatcher(path(i), w1));
+        }
+
+        // the rest is removed with the watcher, across every stripe
+        manager.removeWatcher(w1);
+        assertEquals(1, manager.getWatchesSummary().getNumConnections());
+        // w2 is left on the even paths of the second half
+        assertEquals(PATHS / 4, manager.size());
+        for (int i = 1; i < PATHS; i += 2) {
+            assertFalse(manager.containsWatcher(path(i), w1));
+        }
+        manager.removeWatcher(w2);
+        assertEquals(0, manager.size());
+        assertEquals(0, manager.getWatchesSummary().getNumPaths());
+        assertEquals(0, manager.getWatchesSummary().getTotalWatches());
+    }
+
+    @Test
+    public void testSuppressedWatcher() {
+        RecordingWatcher w1 = new RecordingWatcher();
+        RecordingWatcher w2 = new RecordingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        WatcherOrBitSet suppress = new WatcherOrBitSet(Collections.singleton(w1));
+        WatcherOrBitSet triggered = manager.triggerWatch("/a", EventType.NodeDeleted, suppress);
+        // a suppressed watch is consumed, but not notified
+        assertEquals(2, triggered.size());
+        assertTrue(w1.events.isEmpty());
+        assertEquals(Collections.singletonList("/a"), w2.paths());
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testDeadWatcherIgnored() {
+        ServerCnxn cnxn = cnxn(1);
+        when(cnxn.isStale()).thenReturn(true);
+        assertFalse(manager.addWatch("/a", cnxn));
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testPersistentWatch() {
+        RecordingWatcher w = new RecordingWatcher();
+        assertTrue(manager.addWatch("/a", w, WatcherMode.PERSISTENT));
+        assertEquals(0, manager.getRecursiveWatchQty());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(manager.triggerWatch("/a", EventType.NodeDataChanged).contains(w));
+        }
+        assertTrue(manager.triggerWatch("/a", EventType.NodeChildrenChanged).contains(w));
+        // not for children
+        assertNull(manager.triggerWatch("/a/b", EventType.NodeCreated));
+        assertEquals(4, w.events.size());
+        assertTrue(manager.removeWatcher("/a", w));
+        assertNull(manager.triggerWatch("/a", EventType.NodeDataChanged));
+    }
+
+    @Test
+    public void testPersistentRecursiveWatch() {
+        RecordingWatcher recursive = new RecordingWatcher();
+        RecordingWatcher parent = new RecordingWatcher();
+        RecordingWatcher leaf = new RecordingWatcher();
+        assertTrue(manager.addWatch("/a", recursive, WatcherMode.PERSISTENT_RECURSIVE));
+        assertEquals(1, manager.getRecursiveWatchQty());
+        manager.addWatch("/a/b", parent);
+        manager.addWatch("/a/b/c/d", leaf);
+
+        // the paths below the recursive watch land in other stripes
+        List<String> triggered = new ArrayList<>();
+        for (int i = 0; i < PATHS; i++) {
+            String path = "/a/b/c/d/" + i;
+            assertTrue(manager.triggerWatch(path, EventType.NodeCreated).contains(recursive));
+            triggered.add(path);
+        }
+        assertEquals(triggered, recursive.paths());
+        // a standard watch on a parent isn't triggered by its children
+        assertTrue(parent.events.isEmpty());
+        assertTrue(leaf.events.isEmpty());
+
+        // nor is a recursive watch by children changes
+        WatcherOrBitSet children = manager.triggerWatch("/a/b/c/d", EventType.NodeChildrenChanged);
+        assertEquals(1, children.size());
+        assertTrue(children.contains(leaf));
+        assertEquals(PATHS, recursive.events.size());
+
+        WatcherOrBitSet deleted = manager.triggerWatch("/a/b", EventType.NodeDeleted);
+        assertEquals(new HashSet<>(Arrays.asList(EventType.NodeDeleted)), eventTypes(parent));
+        assertTrue(deleted.contains(recursive));
+        assertTrue(deleted.contains(parent));
+
+        // outside of the watched subtree
+        assertNull(manager.triggerWatch("/ab", EventType.NodeCreated));
+        assertNull(manager.triggerWatch("/", EventType.NodeDataChanged));
+
+        assertTrue(manager.containsWatcher("/a", recursive));
+        assertTrue(manager.removeWatcher("/a", recursive));
+        assertEquals(0, manager.getRecursiveWatchQty());
+        assertNull(manager.triggerWatch("/a/b/c", EventType.NodeCreated));
+    }
+
+    private static Set<EventType> eventTypes(RecordingWatcher watcher) {
+        Set<EventType> types = new HashSet<>();
+        for (WatchedEvent event : watcher.events) {
+            types.add(event.getType());
+        }
+        return types;
+    }
+
+    @Test
+    public void testReports() {
+        ServerCnxn c1 = cnxn(1);
+        ServerCnxn c2 = cnxn(2);
+        Map<Long, Set<String>> byId = new HashMap<>();
+        Map<String, Set<Long>> byPath = new HashMap<>();
+        for (int i = 0; i < PATHS; i++) {
+            ServerCnxn cnxn = i % 3 == 0 ? c2 : c1;
+            manager.addWatch(path(i), cnxn);
+            byId.computeIfAbsent(cnxn.getSessionId(), id -> new HashSet<>()).add(path(i));
+            byPath.computeIfAbsent(path(i), p -> new HashSet<>()).add(cnxn.getSessionId());
+        }
+        manager.addWatch(path(0), c1);
+        byId.get(1L).add(path(0));
+        byPath.get(path(0)).add(1L);
+
+        assertEquals(byId, manager.getWatches().toMap());
+        assertEquals(byPath, manager.getWatchesByPath().toMap());
+    }
+
+    /**
+     * Watches added and triggered concurrently on different paths, each
+     * thread owning its paths, all fire exactly once.
+     */
+    @Test
+    public void testConcurrentAddAndTrigger() throws Exception {
+        int threads = 8;
+        RecordingWatcher recursive = new RecordingWatcher();
+        manager.addWatch("/shared", recursive, WatcherMode.PERSISTENT_RECURSIVE);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<RecordingWatcher>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    RecordingWatcher w = new RecordingWatcher();
+                    for (int i = 0; i < PATHS; i++) {
+                        String path = "/shared/" + thread + "/" + i;
+                        manager.addWatch(path, w);
+                        manager.triggerWatch(path, EventType.NodeDataChanged);
+                    }
+                    return w;
+                }));
+            }
+            for (int t = 0; t < threads; t++) {
+                RecordingWatcher w = futures.get(t).get();
+                assertEquals(PATHS, w.events.size());
+                for (int i = 0; i < PATHS; i++) {
+                    assertEquals("/shared/" + t + "/" + i, w.events.get(i).getPath());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * PATHS, recursive.events.size());
+        // only the recursive watch is left
+        assertEquals(1, manager.size());
+    }
+
+}